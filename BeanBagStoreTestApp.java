@@ -13,10 +13,20 @@ public class BeanBagStoreTestApp
     public static int testCounter = 0;
 
     public static void main(String[] args) {
+        // Cross-check every store-wide total against a full recount
+        System.setProperty("beanbags.checkTotals", "true");
+
         TestStore();
         TestBeanBags();
         TestReservation();
+        TestCollections();
         TestSerialisation();
+        TestCatalogue();
+        TestAsyncSnapshot();
+        TestJournal();
+        TestConcurrentStore();
+        TestServer();
+        TestReplication();
         System.out.printf("\n%d tests completed", testCounter);
     }
 
@@ -49,7 +59,25 @@ public class BeanBagStoreTestApp
         store = new Store();
         assert store.validateHex("-1") == false :
             "Negative hex value passed validation";
-        completeTest();        
+        completeTest();
+
+        /*  .validateHex() - invalid (empty, null, too large)
+        **********************************************************************/
+        store = new Store();
+        assert store.validateHex("") == false : "Empty ID passed validation";
+        assert store.validateHex(null) == false : "Null ID passed validation";
+        assert store.validateHex("8000000000000000") == false :
+            "Overflowing hex value passed validation";
+        assert store.validateHex("7fffffffffffffff") :
+            "Largest hex value failed validation";
+        completeTest();
+
+        /*  BeanBagID.parse()
+        **********************************************************************/
+        assert BeanBagID.parse("00aB") == 0xABL : "Hex value parsed wrongly";
+        assert BeanBagID.parse("12G4") == BeanBagID.INVALID :
+            "Invalid hex parsed";
+        completeTest();
 
 
         /*  .addBeanBags() - add valid bean bag
@@ -109,7 +137,7 @@ public class BeanBagStoreTestApp
 
         try {
             store.addBeanBags(1, "", "", "123", (short)2016, (byte)100);
-            assert false : "InvalidMonthException not raised";        
+            assert false : "InvalidMonthException not raised";
         }
         catch (InvalidMonthException err) {}
         catch (Exception err) {
@@ -117,7 +145,71 @@ public class BeanBagStoreTestApp
             assert false : "Unexpected exception thrown";
         }
 
-        completeTest();        
+        completeTest();
+
+
+        /*  .addBeanBags() - matching bag merges stock
+        **********************************************************************/
+        store = new Store();
+
+        try {
+            store.addBeanBags(1, "Bean", "Bag", "123", (short)2016, (byte)2, "Info");
+            store.addBeanBags(2, "Bean", "Bag", "123", (short)2016, (byte)2, "Info");
+        }
+        catch (Exception err) {
+            err.printStackTrace();
+            assert false : "Unexpected exception thrown";
+        }
+
+        assert store.getBeanBagsArray().size() == 1 : "Duplicate bag added";
+        assert store.findBeanBag("123").getStockCount() == 3 : "Stock not merged";
+        assert store.findBeanBag("123").getInformation().equals("Info");
+        completeTest();
+
+
+        /*  .addBeanBags() - mismatching bag
+        **********************************************************************/
+        try {
+            store.addBeanBags(1, "Other", "Bag", "123", (short)2016, (byte)2, "Info");
+            assert false : "BeanBagMismatchException not raised";
+        }
+        catch (BeanBagMismatchException err) {}
+        catch (Exception err) {
+            err.printStackTrace();
+            assert false : "Unexpected exception thrown";
+        }
+
+        assert store.findBeanBag("123").getStockCount() == 3 : "Stock changed";
+        completeTest();
+
+
+        /*  .ingest() - batch with duplicates and bad records
+        **********************************************************************/
+        BeanBagRecord[] records = new BeanBagRecord[] {
+            new BeanBagRecord(5, "Bean", "Bag", "A1", (short)2016, (byte)2),
+            new BeanBagRecord(0, "Bean", "Bag", "A2", (short)2016, (byte)2),
+            new BeanBagRecord(5, "Bean", "Bag", "A1", (short)2016, (byte)2),
+            new BeanBagRecord(1, "Bean", "Bag", "NOTHEX", (short)2016, (byte)2),
+            new BeanBagRecord(1, "Bean", "Bag", "A3", (short)2016, (byte)13),
+            new BeanBagRecord(1, "Other", "Bag", "123", (short)2016, (byte)2),
+            new BeanBagRecord(4, "Bean", "Bag", "123", (short)2016, (byte)2, "Info")
+        };
+        IngestResult result = store.ingest(records);
+
+        assert result.getRecordCount() == 7;
+        assert result.getAddedCount() == 1;
+        assert result.getMergedCount() == 2;
+        assert result.getFailureCount() == 4;
+        assert result.getFailedRecord(0) == 1;
+        assert result.getFailureReason(0) == IngestResult.Reason.ILLEGAL_NUMBER;
+        assert result.getFailureReason(1) == IngestResult.Reason.ILLEGAL_ID;
+        assert result.getFailureReason(2) == IngestResult.Reason.INVALID_MONTH;
+        assert result.getFailedRecord(3) == 5;
+        assert result.getFailureReason(3) == IngestResult.Reason.MISMATCH;
+        assert store.findBeanBag("A1").getStockCount() == 10;
+        assert store.findBeanBag("123").getStockCount() == 7;
+        assert store.beanBagsInStock() == 17;
+        completeTest();
 
 
         /*  .findBeanBag() - search for non-existent bag
@@ -140,7 +232,16 @@ public class BeanBagStoreTestApp
 
         bag = store.findBeanBag("123");
         assert bag.getId() == "123" : "Unexpected bag found";
-        completeTest();        
+        completeTest();
+
+
+        /*  .findBeanBag() - search by numeric ID
+        **********************************************************************/
+        assert bag.getKey() == 0x123L : "Bag key not parsed from ID";
+        assert store.findBeanBag(0x123L) == bag : "Numeric ID not found";
+        assert store.findBeanBag("0123") == bag : "Equal hex value not found";
+        assert store.findBeanBag(-1L) == null : "Negative ID found";
+        completeTest();
 
 
         /*  .reserveBeanBags() - reserve illegal quantity
@@ -422,6 +523,61 @@ public class BeanBagStoreTestApp
         completeTest();
 
 
+        /*  .sellBeanBags() - reservation already sold
+        **********************************************************************/
+        try {
+            store.sellBeanBags(reservationID);
+            assert false : "Sale should have thrown error";
+        }
+        catch (ReservationNumberNotRecognisedException err) {}
+        catch (Exception err) {
+            err.printStackTrace();
+            assert false : "Unexpected exception thrown";
+        }
+
+        completeTest();
+
+
+        /*  .sellBeanBags() - reservations cancelled on the bag directly
+        **********************************************************************/
+        int firstReservation = 0;
+        int secondReservation = 0;
+
+        try {
+            firstReservation = store.reserveBeanBags(1, "123");
+            secondReservation = store.reserveBeanBags(2, "123");
+        }
+        catch (Exception err) {
+            err.printStackTrace();
+            assert false : "Unexpected exception thrown";
+        }
+
+        bag.unreserve(firstReservation);
+
+        try {
+            store.sellBeanBags(firstReservation);
+            assert false : "Sale should have thrown error";
+        }
+        catch (ReservationNumberNotRecognisedException err) {}
+        catch (Exception err) {
+            err.printStackTrace();
+            assert false : "Unexpected exception thrown";
+        }
+
+        try {
+            store.sellBeanBags(secondReservation);
+        }
+        catch (Exception err) {
+            err.printStackTrace();
+            assert false : "Unexpected exception thrown";
+        }
+
+        assert bag.getReservedCount() == 0 : "Reservation not sold";
+        assert bag.getReservations().size() == 0 : "Reservation not removed";
+
+        completeTest();
+
+
         /*  .setBeanBagPrice() - invalid hex
         **********************************************************************/
         try {
@@ -510,11 +666,39 @@ public class BeanBagStoreTestApp
         completeTest();
 
 
+        /*  Store totals - follow price drops, sales, resets and direct edits
+        **********************************************************************/
+        try {
+            store.setBeanBagPrice("500", 100);
+            store.sellBeanBags(3, "500");
+        }
+        catch (Exception err) {
+            err.printStackTrace();
+            assert false : "Unexpected exception occurred";
+        }
+
+        assert store.getTotalPriceOfReservedBeanBags() == 200;
+        assert store.getNumberOfSoldBeanBags() == 3;
+        assert store.getTotalPriceOfSoldBeanBags() == 300;
+
+        store.resetSaleAndCostTracking();
+        store.findBeanBag("500").setStockCount(20);
+
+        assert store.getNumberOfSoldBeanBags() == 0;
+        assert store.getTotalPriceOfSoldBeanBags() == 0;
+        assert store.beanBagsInStock() == 20;
+        assert store.reservedBeanBagsInStock() == 2;
+        store.verifyTotals();
+
+        completeTest();
+
+
         /*  .empty()
         **********************************************************************/        
         assert store.getBeanBagsArray().size() != 0;
         store.empty();
         assert store.getBeanBagsArray().size() == 0;
+        assert store.findBeanBag("500") == null : "Emptied bag still found";
         completeTest();
 
         /*  .replace() - valid
@@ -541,6 +725,13 @@ public class BeanBagStoreTestApp
         assert bag.getId() == "456" : "Bean bag ID was not replaced";
         completeTest();
 
+        /*  .replace() - lookups follow the new ID
+        **********************************************************************/
+        assert store.findBeanBag("456") == bag : "New ID not found";
+        assert store.findBeanBag("123") == null : "Old ID still found";
+        assert store.getBeanBagsArray().get(0) == bag : "Store order changed";
+        completeTest();
+
         /*  .replace() - old ID doesn't exist
         **********************************************************************/        
         try {
@@ -799,6 +990,41 @@ public class BeanBagStoreTestApp
         completeTest();
     }
 
+    public static void TestCollections() {
+        /*  TypedArrayList - remove in order and by swapping
+        **********************************************************************/
+        TypedArrayList<String> list = new TypedArrayList<String>(2);
+        list.add("a");
+        list.add("b");
+        list.add("c");
+        list.add("d");
+
+        assert list.remove(0).equals("a");
+        assert list.get(0).equals("b") : "Order not kept on remove";
+        assert list.removeSwap(0).equals("b");
+        assert list.get(0).equals("d") : "Last element not swapped in";
+        assert list.size() == 2;
+        assert list.get(2) == null : "Invalid index returned an element";
+        list.trimToSize();
+        list.add("e");
+        assert list.size() == 3;
+        completeTest();
+
+        /*  IntArrayList - bulk add and swap removal
+        **********************************************************************/
+        IntArrayList numbers = new IntArrayList();
+        IntArrayList more = new IntArrayList();
+        numbers.add(1);
+        more.add(2);
+        more.add(3);
+        numbers.addAll(more);
+
+        assert numbers.size() == 3;
+        assert numbers.removeSwap(0) == 1;
+        assert numbers.get(0) == 3;
+        completeTest();
+    }
+
     public static void TestSerialisation() {
         /*  Create store
         **********************************************************************/
@@ -824,9 +1050,11 @@ public class BeanBagStoreTestApp
 
         /*  Make some sales and reservations
         **********************************************************************/
+        int reservationID = 0;
+
         try {
             store.sellBeanBags(4, "0");
-            store.reserveBeanBags(1, "0");
+            reservationID = store.reserveBeanBags(1, "0");
 
             store.sellBeanBags(10, "1");
             store.reserveBeanBags(5, "1");
@@ -887,5 +1115,1487 @@ public class BeanBagStoreTestApp
         assert bag1.getSoldCount() == 10;
         assert bag1.getReservedCount() == 5;
         completeTest();
+
+        /*  Reservations made before saving can be sold after loading
+        **********************************************************************/
+        try {
+            store.sellBeanBags(reservationID);
+        }
+        catch (Exception err) {
+            err.printStackTrace();
+            assert false : "Unexpected exception thrown";
+        }
+
+        assert bag0.getSoldCount() == 5;
+        assert bag0.getReservedCount() == 0;
+        completeTest();
+
+        /*  Reservation numbers carry on from the saved store in a new one
+        **********************************************************************/
+        Store restored = new Store();
+
+        try {
+            store.saveStoreContents("output.ser");
+            restored.loadStoreContents("output.ser");
+            int next = restored.reserveBeanBags(1, "1");
+            assert next >= store.getReservationHighWater() :
+                "Reservation number reused after loading";
+        }
+        catch (Exception err) {
+            err.printStackTrace();
+            assert false : "Unexpected exception thrown";
+        }
+        completeTest();
+
+        /*  Binary snapshot - strings, shared names and details survive
+        **********************************************************************/
+        StringBuilder longInformation = new StringBuilder();
+        for (int i=0; i < 20000; i++) {
+            longInformation.append("\u00e9t\u00e9 ");
+        }
+
+        store = new Store();
+        restored = new Store();
+        try {
+            for (int i=0; i < 50; i++) {
+                store.addBeanBags(i + 1, "Caf\u00e9 Bags", "Lounger " + (i % 3),
+                                  Integer.toHexString(i + 1), (short)2016,
+                                  (byte)(1 + i % 12));
+            }
+            store.addBeanBags(3, "Other", "Big", "ff", (short)2015, (byte)12,
+                              longInformation.toString());
+            store.setBeanBagPrice("ff", 250);
+            store.sellBeanBags(1, "ff");
+            int kept = store.reserveBeanBags(1, "ff");
+
+            store.saveStoreContents("output.ser");
+            restored.loadStoreContents("output.ser");
+
+            assert restored.getNumberOfDifferentBeanBagsInStock() == 51 :
+                "Bags lost by snapshot";
+            assert restored.getBeanBagDetails("ff").equals(longInformation.toString()) :
+                "Long information not restored";
+            assert restored.findBeanBag("2").getManufacturer().equals("Caf\u00e9 Bags") :
+                "Shared manufacturer not restored";
+            assert restored.findBeanBag("2").getName().equals("Lounger 1") :
+                "Name not restored";
+            assert restored.getTotalPriceOfSoldBeanBags() == 250 :
+                "Sales not restored";
+            assert restored.getTotalPriceOfReservedBeanBags() == 250 :
+                "Reservation not restored";
+            restored.sellBeanBags(kept);
+            restored.verifyTotals();
+        }
+        catch (Exception err) {
+            err.printStackTrace();
+            assert false : "Unexpected exception thrown";
+        }
+        completeTest();
+
+        /*  .loadStoreContents() - streaming through a small buffer
+        **********************************************************************/
+        restored = new Store();
+        try {
+            store.saveStoreContents("output.ser");
+            restored.loadStoreContents("output.ser", 16);
+            assert restored.getNumberOfDifferentBeanBagsInStock() == 51 :
+                "Bags lost by small buffer";
+            assert restored.getBeanBagDetails("ff").equals(longInformation.toString()) :
+                "Long information not streamed";
+            assert restored.getTotalPriceOfReservedBeanBags() ==
+                store.getTotalPriceOfReservedBeanBags() :
+                "Reservations not streamed";
+            restored.verifyTotals();
+        }
+        catch (Exception err) {
+            err.printStackTrace();
+            assert false : "Unexpected exception thrown";
+        }
+        completeTest();
+
+        /*  Binary snapshot - large files are loaded through mappings
+        **********************************************************************/
+        Store large = new Store();
+        restored = new Store();
+        try {
+            for (int i=0; i < 12; i++) {
+                large.addBeanBags(i + 1, "Big Bags", "Giant", Integer.toHexString(i + 1),
+                                  (short)2016, (byte)6, longInformation.toString());
+            }
+            large.setBeanBagPrice("1", 10);
+            large.reserveBeanBags(1, "1");
+
+            large.saveStoreContents("output.ser");
+            assert new java.io.File("output.ser").length() > 1024 * 1024 :
+                "Snapshot too small to be mapped";
+            restored.loadStoreContents("output.ser");
+
+            assert restored.getNumberOfDifferentBeanBagsInStock() == 12 :
+                "Bags lost by mapped snapshot";
+            assert restored.beanBagsInStock("c") == 12 :
+                "Last bag not restored";
+            assert restored.reservedBeanBagsInStock() == 1 :
+                "Reservation not restored";
+            restored.verifyTotals();
+        }
+        catch (Exception err) {
+            err.printStackTrace();
+            assert false : "Unexpected exception thrown";
+        }
+        completeTest();
+
+        /*  Serialised files from earlier versions still load
+        **********************************************************************/
+        restored = new Store();
+        try {
+            java.io.ObjectOutputStream objectOut = new java.io.ObjectOutputStream(
+                new java.io.FileOutputStream("output.ser"));
+            objectOut.writeObject(store);
+            objectOut.close();
+
+            restored.loadStoreContents("output.ser");
+            assert restored.getNumberOfDifferentBeanBagsInStock() == 51 :
+                "Serialised store not loaded";
+            assert restored.getTotalPriceOfSoldBeanBags() == 250 :
+                "Serialised sales not loaded";
+        }
+        catch (Exception err) {
+            err.printStackTrace();
+            assert false : "Unexpected exception thrown";
+        }
+        completeTest();
+
+        /*  Binary snapshot - truncated file is rejected, store kept
+        **********************************************************************/
+        BeanBagStore[] truncated = { new ConcurrentStore(), new Store() };
+        try {
+            store.saveStoreContents("output.ser");
+            java.io.RandomAccessFile file =
+                new java.io.RandomAccessFile("output.ser", "rw");
+            file.setLength(file.length() / 2);
+            file.close();
+
+            for (BeanBagStore target : truncated) {
+                target.addBeanBags(1, "Maker", "Kept", "FEED", (short)2016, (byte)1);
+                try {
+                    target.loadStoreContents("output.ser");
+                    assert false : "Truncated snapshot loaded";
+                }
+                catch (java.io.IOException err) {
+                    assert target.getNumberOfDifferentBeanBagsInStock() == 1 &&
+                        target.beanBagsInStock("FEED") == 1 :
+                        "Store lost to a truncated snapshot";
+                }
+            }
+        }
+        catch (Exception err) {
+            err.printStackTrace();
+            assert false : "Unexpected exception thrown";
+        }
+        completeTest();
+
+        /*  .saveStoreContents(codec) - compressed blocks load back in order
+        **********************************************************************/
+        Store blocked = new Store();
+        try {
+            for (int i=1; i <= 5000; i++) {
+                blocked.addBeanBags(i % 7 + 1, "Maker " + (i % 20), "Model " + (i % 50),
+                                    Integer.toHexString(i), (short)2016, (byte)(i % 12 + 1),
+                                    "Bag number " + i);
+            }
+            blocked.setBeanBagPrice("1388", 30);
+            blocked.reserveBeanBags(2, "1388");
+            blocked.sellBeanBags(1, "1388");
+
+            SnapshotCodec[] codecs = { SnapshotCodecs.NONE, SnapshotCodecs.DEFLATE };
+            blocked.saveStoreContents("output.ser");
+            long plainSize = new java.io.File("output.ser").length();
+
+            for (SnapshotCodec codec : codecs) {
+                blocked.saveStoreContents("output.ser", codec);
+                restored = new Store();
+                restored.loadStoreContents("output.ser");
+
+                assert restored.getNumberOfDifferentBeanBagsInStock() == 5000 :
+                    "Bags lost by " + codec.getName() + " snapshot";
+                assert restored.getBeanBagDetails("1388").equals("Bag number 5000") :
+                    "Bag decoded from the wrong block";
+                assert restored.reservedBeanBagsInStock() == 2 :
+                    "Reservation lost by " + codec.getName() + " snapshot";
+                assert restored.getTotalPriceOfSoldBeanBags() == 30 :
+                    "Sales lost by " + codec.getName() + " snapshot";
+                restored.verifyTotals();
+            }
+            assert new java.io.File("output.ser").length() < plainSize / 2 :
+                "Deflated snapshot not much smaller";
+
+            restored = new Store();
+            ConcurrentStore concurrent = new ConcurrentStore();
+            concurrent.loadStoreContents("output.ser");
+            assert concurrent.getNumberOfDifferentBeanBagsInStock() == 5000 :
+                "Compressed snapshot not loaded by ConcurrentStore";
+        }
+        catch (Exception err) {
+            err.printStackTrace();
+            assert false : "Unexpected exception thrown";
+        }
+        completeTest();
+
+        /*  .saveStoreContents(codec) - damaged block is rejected
+        **********************************************************************/
+        restored = new Store();
+        try {
+            blocked.saveStoreContents("output.ser", SnapshotCodecs.DEFLATE);
+            java.io.RandomAccessFile file =
+                new java.io.RandomAccessFile("output.ser", "rw");
+            file.seek(file.length() / 2);
+            file.write(new byte[64]);
+            file.close();
+
+            restored.loadStoreContents("output.ser");
+            assert false : "Damaged snapshot loaded";
+        }
+        catch (java.io.IOException err) {
+            assert restored.getNumberOfDifferentBeanBagsInStock() == 0 :
+                "Part of a damaged snapshot left in the store";
+        }
+        catch (Exception err) {
+            err.printStackTrace();
+            assert false : "Unexpected exception thrown";
+        }
+        completeTest();
+
+        /*  .saveStoreContents(codec) - failed save leaves the last one whole
+        **********************************************************************/
+        restored = new Store();
+        try {
+            blocked.saveStoreContents("output.ser");
+            SnapshotCodec failing = new SnapshotCodec() {
+                public int getId() { return 15; }
+                public String getName() { return "failing"; }
+                public byte[] compress(byte[] data, int length) {
+                    throw new IllegalStateException("Out of space");
+                }
+                public void decompress(byte[] data, byte[] out) {
+                }
+            };
+            try {
+                blocked.saveStoreContents("output.ser", failing);
+                assert false : "Failed save not reported";
+            }
+            catch (IllegalStateException err) {
+            }
+
+            assert !new java.io.File("output.ser.tmp").exists() :
+                "Part written snapshot left behind";
+            restored.loadStoreContents("output.ser");
+            assert restored.getNumberOfDifferentBeanBagsInStock() == 5000 :
+                "Last snapshot damaged by a failed save";
+        }
+        catch (Exception err) {
+            err.printStackTrace();
+            assert false : "Unexpected exception thrown";
+        }
+        completeTest();
+
+        /*  .salvageStoreContents() - damaged bag count in the header
+        **********************************************************************/
+        restored = new Store();
+        try {
+            blocked.saveStoreContents("output.ser", SnapshotCodecs.DEFLATE);
+            // Bit 30 of the bag count, after magic, version, mark and LSN
+            java.io.RandomAccessFile file =
+                new java.io.RandomAccessFile("output.ser", "rw");
+            file.seek(18);
+            int first = file.read();
+            file.seek(18);
+            file.write(first ^ 0x40);
+            file.close();
+
+            try {
+                restored.salvageStoreContents("output.ser");
+                assert false : "Damaged header salvaged";
+            }
+            catch (java.io.IOException err) {
+                assert err.getMessage().contains("header") :
+                    "Header damage not reported";
+            }
+            assert restored.getNumberOfDifferentBeanBagsInStock() == 0 :
+                "Store changed by a rejected snapshot";
+        }
+        catch (Exception err) {
+            err.printStackTrace();
+            assert false : "Unexpected exception thrown";
+        }
+        completeTest();
+
+        /*  .saveShardedContents() - shards written and read back in parallel
+        **********************************************************************/
+        restored = new Store();
+        try {
+            blocked.saveShardedContents("sharded.snap", 4);
+            for (int i=0; i < 4; i++) {
+                assert new java.io.File("sharded.snap." + i).length() > 0 :
+                    "Shard " + i + " not written";
+            }
+            restored.loadShardedContents("sharded.snap");
+
+            assert restored.getNumberOfDifferentBeanBagsInStock() == 5000 :
+                "Bags lost by sharded snapshot";
+            assert restored.getBeanBagDetails("1388").equals("Bag number 5000") :
+                "Bag details lost by sharded snapshot";
+            assert restored.reservedBeanBagsInStock() == 2 :
+                "Reservation lost by sharded snapshot";
+            assert restored.getReservationHighWater() == blocked.getReservationHighWater() :
+                "Reservation high-water mark lost by sharded snapshot";
+            restored.verifyTotals();
+
+            blocked.saveShardedContents("sharded.snap", 3, SnapshotCodecs.DEFLATE);
+            restored.loadShardedContents("sharded.snap");
+            assert restored.getNumberOfDifferentBeanBagsInStock() == 5000 :
+                "Bags lost by compressed sharded snapshot";
+            assert !new java.io.File("sharded.snap.3").exists() :
+                "Shard from the earlier save left behind";
+        }
+        catch (Exception err) {
+            err.printStackTrace();
+            assert false : "Unexpected exception thrown";
+        }
+        completeTest();
+
+        /*  .loadShardedContents() - shard not matching its checksum
+        **********************************************************************/
+        try {
+            java.io.RandomAccessFile file =
+                new java.io.RandomAccessFile("sharded.snap.1", "rw");
+            file.seek(file.length() - 1);
+            int last = file.read();
+            file.seek(file.length() - 1);
+            file.write(last ^ 1);
+            file.close();
+
+            restored.loadShardedContents("sharded.snap");
+            assert false : "Damaged shard loaded";
+        }
+        catch (java.io.IOException err) {
+            assert restored.getNumberOfDifferentBeanBagsInStock() == 5000 :
+                "Store changed by a failed sharded load";
+        }
+        catch (Exception err) {
+            err.printStackTrace();
+            assert false : "Unexpected exception thrown";
+        }
+        completeTest();
+
+        /*  .salvageStoreContents() - damaged blocks skipped, the rest loaded
+        **********************************************************************/
+        restored = new Store();
+        try {
+            blocked.saveStoreContents("output.ser");
+            java.io.RandomAccessFile file =
+                new java.io.RandomAccessFile("output.ser", "rw");
+            long length = file.length();
+            file.seek(length / 2);
+            int middle = file.read();
+            file.seek(length / 2);
+            file.write(middle ^ 0x10);
+            file.close();
+
+            try {
+                restored.loadStoreContents("output.ser");
+                assert false : "Flipped bit not detected";
+            }
+            catch (java.io.IOException err) {}
+
+            LoadReport report = restored.salvageStoreContents("output.ser");
+            assert !report.isComplete() && report.getBlocksDamaged() == 1 :
+                "Damaged block not reported";
+            assert report.getBagsLoaded() > 0 && report.getBagsLoaded() < 5000 :
+                "Intact blocks not loaded";
+            assert report.getBagsLoaded() + report.getBagsLost() == 5000 :
+                "Report does not add up";
+            assert restored.getNumberOfDifferentBeanBagsInStock() == report.getBagsLoaded() :
+                "Report does not match the store";
+            assert restored.findBeanBag("1") != null && restored.findBeanBag("1388") != null :
+                "Bags either side of the damage not loaded";
+            restored.verifyTotals();
+
+            // Wipe out a stretch covering whole block frames, so later
+            // blocks have to be found by searching for the next frame
+            file = new java.io.RandomAccessFile("output.ser", "rw");
+            file.seek(100);
+            file.write(new byte[(int) (length / 2)]);
+            file.close();
+
+            report = restored.salvageStoreContents("output.ser");
+            assert report.getBlocksDamaged() >= 1 && report.getBagsLoaded() > 0 :
+                "Blocks after the wiped stretch not found";
+            assert restored.findBeanBag("1") == null && restored.findBeanBag("1388") != null :
+                "Wrong blocks loaded after the wiped stretch";
+        }
+        catch (Exception err) {
+            err.printStackTrace();
+            assert false : "Unexpected exception thrown";
+        }
+        completeTest();
+
+        /*  .salvageStoreContents() - truncated snapshot keeps whole blocks
+        **********************************************************************/
+        restored = new Store();
+        try {
+            blocked.saveStoreContents("output.ser");
+            java.io.RandomAccessFile file =
+                new java.io.RandomAccessFile("output.ser", "rw");
+            file.setLength(file.length() * 2 / 3);
+            file.close();
+
+            LoadReport report = restored.salvageStoreContents("output.ser");
+            assert report.getBagsLoaded() > 0 && report.getBagsLost() > 0 :
+                "Truncated snapshot not salvaged";
+            assert !report.getProblems().isEmpty() :
+                "Truncation not reported";
+            assert restored.findBeanBag("1") != null :
+                "First block not salvaged";
+            restored.verifyTotals();
+
+            blocked.saveStoreContents("output.ser");
+            report = restored.salvageStoreContents("output.ser");
+            assert report.isComplete() && report.getBagsLoaded() == 5000 :
+                "Intact snapshot not fully salvaged";
+        }
+        catch (Exception err) {
+            err.printStackTrace();
+            assert false : "Unexpected exception thrown";
+        }
+        completeTest();
+
+        /*  ReservationSequence - unique across threads and past advanceTo
+        **********************************************************************/
+        final ReservationSequence sequence = new ReservationSequence(8);
+        final int[][] issued = new int[4][1000];
+        Thread[] threads = new Thread[issued.length];
+
+        for (int t=0; t < threads.length; t++) {
+            final int[] numbers = issued[t];
+            threads[t] = new Thread(() -> {
+                for (int i=0; i < numbers.length; i++) {
+                    numbers[i] = sequence.next();
+                }
+            });
+            threads[t].start();
+        }
+
+        java.util.HashSet<Integer> seen = new java.util.HashSet<Integer>();
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+        catch (InterruptedException err) {
+            assert false : "Interrupted";
+        }
+        for (int[] numbers : issued) {
+            for (int number : numbers) {
+                assert number > 0 && seen.add(number) :
+                    "Reservation number issued twice";
+            }
+        }
+
+        int before = sequence.next();
+        sequence.advanceTo(before + 100);
+        assert sequence.next() >= before + 100 :
+            "Number below the advanced mark issued";
+
+        // Threads that only reserve once take one number each
+        final ReservationSequence fresh = new ReservationSequence();
+        try {
+            for (int t=0; t < 10; t++) {
+                Thread once = new Thread(() -> fresh.next());
+                once.start();
+                once.join();
+            }
+        }
+        catch (InterruptedException err) {
+            assert false : "Interrupted";
+        }
+        assert fresh.getHighWater() == 11 :
+            "Numbers wasted by short-lived threads";
+        completeTest();
+    }
+
+    public static void TestCatalogue() {
+        Store store = new Store();
+        try {
+            store.addBeanBags(5, "Comfy Co", "Lounger", "1", (short)2016, (byte)5,
+                              "Soft, \"extra\" large\nwith handles");
+            store.addBeanBags(3, "Comfy Co", "Sack", "2", (short)2015, (byte)11, "");
+            store.addBeanBags(7, "Bags \u00e0 la mode", "Pouf", "a1", (short)2017, (byte)1);
+            store.setBeanBagPrice("1", 2500);
+            store.setBeanBagPrice("a1", 999);
+            store.reserveBeanBags(2, "1");
+            store.sellBeanBags(1, "a1");
+        }
+        catch (Exception err) {
+            err.printStackTrace();
+            assert false : "Unexpected exception thrown";
+        }
+
+        /*  CsvCatalogue - export and import round trip
+        **********************************************************************/
+        Store imported = new Store();
+        try {
+            assert CsvCatalogue.export(store, "catalogue.csv") == 3 :
+                "Wrong number of rows exported";
+            IngestResult result = CsvCatalogue.importInto(imported, "catalogue.csv");
+
+            assert result.getAddedCount() == 3 && result.getFailureCount() == 0 :
+                "CSV rows not imported";
+            assert imported.getBeanBagDetails("1").equals(store.getBeanBagDetails("1")) :
+                "Quoted field not read back";
+            assert imported.findBeanBag("a1").getManufacturer().equals("Bags \u00e0 la mode") :
+                "UTF-8 field not read back";
+            assert imported.beanBagsInStock("1") == 5 :
+                "Reserved bags not imported as stock";
+            assert imported.findBeanBag("1").getPrice() == 2500 &&
+                !imported.findBeanBag("2").hasPrice() :
+                "Prices not imported";
+        }
+        catch (Exception err) {
+            err.printStackTrace();
+            assert false : "Unexpected exception thrown";
+        }
+        completeTest();
+
+        /*  CsvCatalogue - malformed row is rejected
+        **********************************************************************/
+        try {
+            java.nio.file.Files.write(java.nio.file.Paths.get("catalogue.csv"),
+                "id,manufacturer,name,year,month,stock\n1,Comfy Co,Sack,2016,five,2\n"
+                .getBytes("UTF-8"));
+            CsvCatalogue.importInto(new Store(), "catalogue.csv");
+            assert false : "Malformed row imported";
+        }
+        catch (java.io.IOException err) {}
+        catch (Exception err) {
+            err.printStackTrace();
+            assert false : "Unexpected exception thrown";
+        }
+        completeTest();
+
+        /*  ColumnarCatalogue - single columns scanned, import round trip
+        **********************************************************************/
+        imported = new Store();
+        try {
+            assert ColumnarCatalogue.export(store, "catalogue.col") == 3 :
+                "Wrong number of rows exported";
+
+            int[] stock = ColumnarCatalogue.readNumbers("catalogue.col", CatalogueColumn.STOCK);
+            int[] reserved = ColumnarCatalogue.readNumbers("catalogue.col",
+                                                           CatalogueColumn.RESERVED);
+            int[] soldValue = ColumnarCatalogue.readNumbers("catalogue.col",
+                                                            CatalogueColumn.SOLD_VALUE);
+            String[] ids = ColumnarCatalogue.readText("catalogue.col", CatalogueColumn.ID);
+            int total = 0;
+            for (int i=0; i < stock.length; i++) {
+                total += stock[i];
+            }
+            assert total == store.beanBagsInStock() : "Stock column wrong";
+            assert reserved[0] == 2 && soldValue[2] == 999 : "Sales columns wrong";
+            assert ids.length == 3 && ids[2].equals("a1") : "ID column wrong";
+
+            IngestResult result = ColumnarCatalogue.importInto(imported, "catalogue.col");
+            assert result.getAddedCount() == 3 : "Columnar rows not imported";
+            assert imported.getBeanBagDetails("1").equals(store.getBeanBagDetails("1")) :
+                "Text column not read back";
+            assert imported.findBeanBag("a1").getPrice() == 999 :
+                "Price column not imported";
+        }
+        catch (Exception err) {
+            err.printStackTrace();
+            assert false : "Unexpected exception thrown";
+        }
+        completeTest();
+
+        /*  ColumnarCatalogue - negative row count is rejected
+        **********************************************************************/
+        try {
+            // Row count follows the magic number and version
+            java.io.RandomAccessFile file =
+                new java.io.RandomAccessFile("catalogue.col", "rw");
+            file.seek(6);
+            file.writeInt(-3);
+            file.close();
+            try {
+                ColumnarCatalogue.readNumbers("catalogue.col", CatalogueColumn.STOCK);
+                assert false : "Negative row count read";
+            }
+            catch (java.io.IOException err) {
+                assert err.getMessage().contains("row count") : "Wrong failure";
+            }
+        }
+        catch (Exception err) {
+            err.printStackTrace();
+            assert false : "Unexpected exception thrown";
+        }
+        completeTest();
+    }
+
+    public static void TestAsyncSnapshot() {
+        /*  .saveStoreContentsAsync() - snapshot is the store as it was
+        **********************************************************************/
+        Store store = new Store();
+        Store restored = new Store();
+        try {
+            for (int i=1; i <= 20000; i++) {
+                store.addBeanBags(10, "Maker", "Bag", Integer.toHexString(i),
+                                  (short)2016, (byte)1);
+                store.setBeanBagPrice(Integer.toHexString(i), 100);
+            }
+            int stock = store.beanBagsInStock();
+
+            SnapshotTask task = store.saveStoreContentsAsync("output.ser");
+
+            // Sales carry on while the snapshot is written
+            for (int i=1; i <= 20000; i += 7) {
+                String id = Integer.toHexString(i);
+                store.sellBeanBags(2, id);
+                store.reserveBeanBags(1, id);
+                store.setBeanBagPrice(id, 50);
+            }
+            store.replace("1", "fffff");
+
+            task.get();
+            assert task.isDone() && task.getBagsWritten() == 20000 :
+                "Snapshot not finished";
+            assert task.getBagsCopied() <= 20000 / 7 + 1 :
+                "Unchanged bags copied";
+
+            restored.loadStoreContents("output.ser");
+            assert restored.beanBagsInStock() == stock : "Snapshot saw sales";
+            assert restored.reservedBeanBagsInStock() == 0 :
+                "Snapshot saw reservations";
+            assert restored.getTotalPriceOfSoldBeanBags() == 0 :
+                "Snapshot saw sold bags";
+            assert restored.findBeanBag("1") != null : "Snapshot saw replace";
+            assert restored.getTotalPriceOfReservedBeanBags() == 0;
+        }
+        catch (Exception err) {
+            err.printStackTrace();
+            assert false : "Unexpected exception thrown";
+        }
+        completeTest();
+
+        /*  .saveDeltaContents() - only changed bags, loaded over the base
+        **********************************************************************/
+        store = new Store();
+        restored = new Store();
+        try {
+            for (int i=1; i <= 1000; i++) {
+                store.addBeanBags(10, "Maker", "Bag", Integer.toHexString(i),
+                                  (short)2016, (byte)1);
+            }
+            store.saveStoreContents("base.snap");
+
+            store.setBeanBagPrice("1", 100);
+            store.sellBeanBags(3, "1");
+            int kept = store.reserveBeanBags(2, "1");
+            store.replace("2", "abcdef");
+            store.addBeanBags(4, "Maker", "New", "fffff", (short)2017, (byte)5);
+            assert store.saveDeltaContents("delta1.snap") == 3 :
+                "Wrong number of changed bags saved";
+
+            store.addBeanBags(5, "Maker", "Bag", "3", (short)2016, (byte)1);
+            assert store.saveDeltaContents("delta2.snap") == 1 :
+                "Unchanged bags saved";
+
+            String[] deltas = {"delta1.snap", "delta2.snap"};
+            restored.loadStoreContents("base.snap", deltas);
+            assert restored.beanBagsInStock() == store.beanBagsInStock() :
+                "Stock not restored from deltas";
+            assert restored.getNumberOfDifferentBeanBagsInStock() == 1001 :
+                "Wrong number of bags restored from deltas";
+            assert restored.findBeanBag("2") == null : "Replaced ID still found";
+            assert restored.findBeanBag("abcdef") != null : "Replacement not found";
+            assert restored.getTotalPriceOfSoldBeanBags() == 300 :
+                "Sales not restored from deltas";
+            restored.sellBeanBags(kept);
+            restored.verifyTotals();
+
+            String[][] broken = {
+                {"delta2.snap"}, {"delta2.snap", "delta1.snap"}
+            };
+            for (String[] chain : broken) {
+                try {
+                    new Store().loadStoreContents("base.snap", chain);
+                    assert false : "Deltas loaded out of order";
+                }
+                catch (java.io.IOException err) {}
+            }
+
+            Store.compactSnapshots("base.snap", deltas, "compact.snap");
+            Store compacted = new Store();
+            compacted.loadStoreContents("compact.snap");
+            assert compacted.beanBagsInStock() == store.beanBagsInStock() :
+                "Compacted snapshot differs";
+            assert compacted.reservedBeanBagsInStock() == 2 :
+                "Compacted reservations differ";
+
+            // Emptying the store is carried by the delta too
+            store.empty();
+            store.addBeanBags(1, "Maker", "Only", "9", (short)2016, (byte)1);
+            store.saveDeltaContents("delta3.snap");
+            compacted.loadStoreContents("compact.snap", new String[] {"delta3.snap"});
+            assert compacted.getNumberOfDifferentBeanBagsInStock() == 1 :
+                "Emptied store not restored from delta";
+            compacted.verifyTotals();
+        }
+        catch (Exception err) {
+            err.printStackTrace();
+            assert false : "Unexpected exception thrown";
+        }
+        completeTest();
+
+        /*  .saveStoreContentsAsync() - one snapshot at a time
+        **********************************************************************/
+        try {
+            SnapshotTask task = store.saveStoreContentsAsync("output.ser");
+            try {
+                store.saveStoreContentsAsync("output.ser");
+                assert task.isDone() : "IllegalStateException not raised";
+            }
+            catch (IllegalStateException err) {}
+            task.get();
+        }
+        catch (Exception err) {
+            err.printStackTrace();
+            assert false : "Unexpected exception thrown";
+        }
+        completeTest();
+
+        /*  .saveStoreContentsAsync() - failed snapshot keeps its changes
+        **********************************************************************/
+        store = new Store();
+        restored = new Store();
+        try {
+            store.addBeanBags(10, "Maker", "Bag", "A", (short)2016, (byte)1);
+            store.setBeanBagPrice("A", 100);
+            store.saveStoreContents("base.snap");
+            store.sellBeanBags(3, "A");
+
+            SnapshotTask task = store.saveStoreContentsAsync("nowhere/output.snap");
+            try {
+                task.get();
+                assert false : "Snapshot written to a missing directory";
+            }
+            catch (java.util.concurrent.ExecutionException err) {}
+
+            store.addBeanBags(10, "Maker", "Bag", "B", (short)2016, (byte)1);
+            store.setBeanBagPrice("B", 100);
+            store.sellBeanBags(1, "B");
+            store.saveDeltaContents("delta1.snap");
+
+            restored.loadStoreContents("base.snap", new String[] {"delta1.snap"});
+            assert restored.getNumberOfSoldBeanBags() == 4 :
+                "Changes held by the failed snapshot lost";
+        }
+        catch (Exception err) {
+            err.printStackTrace();
+            assert false : "Unexpected exception thrown";
+        }
+        completeTest();
+    }
+
+    public static void TestJournal() {
+        new java.io.File("journal.log").delete();
+
+        /*  Journal - snapshot plus journal tail rebuilds the store
+        **********************************************************************/
+        Store store = new Store();
+        Store recovered = new Store();
+        int kept = 0;
+        int cancelled = 0;
+
+        try {
+            store.openJournal("journal.log");
+            store.addBeanBags(10, "Maker", "Lounger", "a1", (short)2016, (byte)3);
+            store.addBeanBags(5, "Maker", "Pod", "b2", (short)2016, (byte)4, "Soft");
+            store.setBeanBagPrice("a1", 100);
+            store.sellBeanBags(2, "a1");
+            store.saveStoreContents("output.ser");
+
+            // Changes after the snapshot only survive in the journal
+            kept = store.reserveBeanBags(3, "a1");
+            cancelled = store.reserveBeanBags(1, "a1");
+            store.unreserveBeanBags(cancelled);
+            store.replace("b2", "c3");
+            store.setBeanBagPrice("c3", 40);
+            store.sellBeanBags(1, "c3");
+
+            // No close: every change is already on disk, as after a crash
+            int replayed = recovered.recover("output.ser", "journal.log");
+            assert replayed == 6 : "Wrong number of records replayed";
+            assert recovered.beanBagsInStock() == store.beanBagsInStock() :
+                "Stock not recovered";
+            assert recovered.reservedBeanBagsInStock() == 3 :
+                "Reservations not recovered";
+            assert recovered.getTotalPriceOfSoldBeanBags() == 240 :
+                "Sales not recovered";
+            assert recovered.findBeanBag("c3") != null : "Replace not recovered";
+            recovered.sellBeanBags(kept);
+            recovered.verifyTotals();
+            store.closeJournal();
+        }
+        catch (Exception err) {
+            err.printStackTrace();
+            assert false : "Unexpected exception thrown";
+        }
+        completeTest();
+
+        /*  Journal - a torn last record is dropped and writing carries on
+        **********************************************************************/
+        try {
+            java.io.FileOutputStream out =
+                new java.io.FileOutputStream("journal.log", true);
+            out.write(new byte[] {0, 0, 0, 40, 1, 2, 3});
+            out.close();
+
+            recovered = new Store();
+            assert recovered.recover("output.ser", "journal.log") == 6 :
+                "Torn record replayed";
+
+            recovered.openJournal("journal.log", 100);
+            recovered.addBeanBags(2, "Maker", "Lounger", "a1", (short)2016,
+                                  (byte)3);
+            recovered.syncJournal();
+
+            Store again = new Store();
+            assert again.recover(null, "journal.log") == 11 :
+                "Journal not continued after torn record";
+            assert again.beanBagsInStock("a1") == 10 : "Stock not recovered";
+            recovered.closeJournal();
+        }
+        catch (Exception err) {
+            err.printStackTrace();
+            assert false : "Unexpected exception thrown";
+        }
+        completeTest();
+
+        /*  Journal - checkpoint empties it and recovery carries on
+        **********************************************************************/
+        new java.io.File("journal.log").delete();
+        store = new Store();
+        try {
+            store.openJournal("journal.log");
+            for (int i=1; i <= 50; i++) {
+                store.addBeanBags(2, "Maker", "Bag", Integer.toHexString(i),
+                                  (short)2016, (byte)1);
+            }
+            long before = new java.io.File("journal.log").length();
+            store.checkpoint("output.ser");
+            assert new java.io.File("journal.log").length() < before / 10 :
+                "Journal not emptied";
+
+            store.addBeanBags(3, "Maker", "Bag", "a1", (short)2016, (byte)1);
+            recovered = new Store();
+            assert recovered.recover("output.ser", "journal.log") == 1 :
+                "Wrong number of records replayed after checkpoint";
+            assert recovered.beanBagsInStock() == 103 : "Stock not recovered";
+            store.closeJournal();
+        }
+        catch (Exception err) {
+            err.printStackTrace();
+            assert false : "Unexpected exception thrown";
+        }
+        completeTest();
+
+        /*  Journal - cannot append to a journal the store has not replayed
+        **********************************************************************/
+        store = new Store();
+        try {
+            store.openJournal("journal.log");
+            assert false : "IllegalStateException not raised";
+        }
+        catch (IllegalStateException err) {}
+        catch (Exception err) {
+            err.printStackTrace();
+            assert false : "Unexpected exception thrown";
+        }
+        completeTest();
+    }
+
+    public static void TestConcurrentStore() {
+        /*  StoreMode - each mode creates the matching store
+        **********************************************************************/
+        assert StoreMode.SINGLE_THREADED.createStore() instanceof Store;
+        assert StoreMode.STRIPED.createStore() instanceof ConcurrentStore;
+        completeTest();
+
+        // Few stripes, so the threads below share locks
+        final ConcurrentStore store = new ConcurrentStore(2);
+        final int threads = 8;
+        final int rounds = 1000;
+
+        /*  Setup - one bag per thread plus one shared bag
+        **********************************************************************/
+        try {
+            for (int i=0; i < threads; i++) {
+                store.addBeanBags(rounds * 2, "Bean", "Bag",
+                                  Integer.toHexString(i + 1), (short)2016, (byte)2);
+                store.setBeanBagPrice(i + 1, 10);
+            }
+            store.addBeanBags(threads * rounds / 2, "Bean", "Bag", "FF",
+                              (short)2016, (byte)2);
+            store.setBeanBagPrice("FF", 10);
+        }
+        catch (Exception err) {
+            err.printStackTrace();
+            assert false : "Unexpected exception thrown";
+        }
+
+        assert store.getNumberOfDifferentBeanBagsInStock() == threads + 1;
+        completeTest();
+
+        /*  Parallel sales and reservations
+        **********************************************************************/
+        final java.util.concurrent.ConcurrentHashMap<Integer, Boolean> numbers =
+            new java.util.concurrent.ConcurrentHashMap<Integer, Boolean>();
+        final java.util.concurrent.atomic.AtomicInteger sharedSold =
+            new java.util.concurrent.atomic.AtomicInteger();
+        Thread[] workers = new Thread[threads];
+
+        for (int t=0; t < threads; t++) {
+            final long id = t + 1;
+            workers[t] = new Thread(() -> {
+                for (int i=0; i < rounds; i++) {
+                    try {
+                        store.sellBeanBags(1, id);
+                        int number = store.reserveBeanBags(1, id);
+                        assert numbers.put(number, true) == null :
+                            "Reservation number issued twice";
+                        store.sellBeanBags(number);
+                    }
+                    catch (Exception err) {
+                        err.printStackTrace();
+                        assert false : "Unexpected exception thrown";
+                    }
+
+                    // Every thread competes for the shared bag
+                    try {
+                        store.sellBeanBags(1, "FF");
+                        sharedSold.incrementAndGet();
+                    }
+                    catch (BeanBagNotInStockException err) {}
+                    catch (Exception err) {
+                        err.printStackTrace();
+                        assert false : "Unexpected exception thrown";
+                    }
+                }
+            });
+            workers[t].start();
+        }
+
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            }
+            catch (InterruptedException err) {
+                assert false : "Interrupted waiting for workers";
+            }
+        }
+
+        assert sharedSold.get() == threads * rounds / 2 :
+            "Shared bag oversold or undersold";
+        assert store.getNumberOfSoldBeanBags() ==
+            threads * rounds * 2 + sharedSold.get() : "Sold total incorrect";
+        assert store.beanBagsInStock() == 0 : "Stock total incorrect";
+        assert store.reservedBeanBagsInStock() == 0 : "Reserved total incorrect";
+        completeTest();
+
+        /*  Point reads and replace under striped locks
+        **********************************************************************/
+        try {
+            assert store.getNumberOfSoldBeanBags(1L) == rounds * 2;
+            assert store.getTotalPriceOfSoldBeanBags("1") == rounds * 20;
+            assert store.getBeanBagDetails("1").equals("");
+
+            store.replace("1", "ABC");
+            assert store.beanBagsInStock("ABC") == 0;
+            assert store.findBeanBag("1") == null : "Old ID still found";
+        }
+        catch (Exception err) {
+            err.printStackTrace();
+            assert false : "Unexpected exception thrown";
+        }
+        completeTest();
+
+        /*  PipelinedStore - calls from many threads applied in order
+        **********************************************************************/
+        final PipelinedStore pipeline = new PipelinedStore(new Store(), 64);
+        try {
+            new java.io.File("pipeline.log").delete();
+            pipeline.openJournal("pipeline.log");
+            pipeline.addBeanBags(threads * rounds, "Bean", "Bag", "AB", (short)2016, (byte)2);
+            pipeline.setBeanBagPrice("AB", 10);
+        }
+        catch (Exception err) {
+            err.printStackTrace();
+            assert false : "Unexpected exception thrown";
+        }
+
+        final java.util.concurrent.ConcurrentHashMap<Integer, Boolean> pipelined =
+            new java.util.concurrent.ConcurrentHashMap<Integer, Boolean>();
+        for (int t=0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                java.util.concurrent.CompletableFuture<?>[] calls =
+                    new java.util.concurrent.CompletableFuture<?>[rounds / 2];
+                for (int i=0; i < calls.length; i++) {
+                    calls[i] = pipeline.reserveBeanBagsAsync(1, "AB")
+                        .thenAccept(number -> pipelined.put(number, true));
+                }
+                java.util.concurrent.CompletableFuture.allOf(calls).join();
+                for (int i=0; i < rounds / 2; i++) {
+                    try {
+                        pipeline.sellBeanBags(1, "AB");
+                    }
+                    catch (Exception err) {
+                        err.printStackTrace();
+                        assert false : "Unexpected exception thrown";
+                    }
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            }
+            catch (InterruptedException err) {
+                assert false : "Interrupted waiting for workers";
+            }
+        }
+
+        try {
+            assert pipelined.size() == threads * rounds / 2 :
+                "Reservation number issued twice";
+            assert pipeline.reservedBeanBagsInStock() == threads * rounds / 2 &&
+                pipeline.getNumberOfSoldBeanBags() == threads * rounds / 2 :
+                "Published totals wrong";
+            assert pipeline.beanBagsInStock("AB") == threads * rounds / 2 :
+                "Stock wrong";
+            pipeline.sellBeanBagsAsync(1, "FFFF").join();
+            assert false : "Unknown ID sold";
+        }
+        catch (java.util.concurrent.CompletionException err) {
+            assert err.getCause() instanceof BeanBagIDNotRecognisedException :
+                "Wrong failure cause";
+        }
+        catch (Exception err) {
+            err.printStackTrace();
+            assert false : "Unexpected exception thrown";
+        }
+        completeTest();
+
+        /*  PipelinedStore - batched journal recovers every change
+        **********************************************************************/
+        try {
+            pipeline.close();
+            Store recovered = new Store();
+            assert recovered.recover(null, "pipeline.log") ==
+                2 + threads * rounds : "Journal records missing";
+            assert recovered.reservedBeanBagsInStock() == threads * rounds / 2 &&
+                recovered.getNumberOfSoldBeanBags() == threads * rounds / 2 :
+                "Recovered store differs";
+        }
+        catch (Exception err) {
+            err.printStackTrace();
+            assert false : "Unexpected exception thrown";
+        }
+        try {
+            pipeline.empty();
+            assert false : "Closed store used";
+        }
+        catch (IllegalStateException err) {}
+        completeTest();
+
+        /*  AsyncStores - calls pipelined over a Store and a ConcurrentStore
+        **********************************************************************/
+        java.util.concurrent.ExecutorService pool =
+            java.util.concurrent.Executors.newFixedThreadPool(4);
+        AsyncBeanBagStore[] asyncStores = {
+            AsyncStores.serialised(new Store()),
+            AsyncStores.concurrent(new ConcurrentStore(), pool)
+        };
+        for (AsyncBeanBagStore async : asyncStores) {
+            try {
+                async.addBeanBagsAsync(100, "Bean", "Bag", "CD", (short)2016, (byte)2, "")
+                     .thenCompose(done -> async.setBeanBagPriceAsync("CD", 10)).join();
+
+                java.util.concurrent.CompletableFuture<?>[] calls =
+                    new java.util.concurrent.CompletableFuture<?>[100];
+                for (int i=0; i < calls.length; i++) {
+                    calls[i] = i % 2 == 0 ? async.sellBeanBagsAsync(1, "CD")
+                                          : async.reserveBeanBagsAsync(1, "CD");
+                }
+                java.util.concurrent.CompletableFuture.allOf(calls).join();
+
+                assert async.getNumberOfSoldBeanBagsAsync().join() == 50 &&
+                    async.reservedBeanBagsInStockAsync().join() == 50 :
+                    "Async calls lost";
+                async.sellBeanBagsAsync(0, "CD").join();
+                assert false : "Sold no bags";
+            }
+            catch (java.util.concurrent.CompletionException err) {
+                assert err.getCause() instanceof IllegalNumberOfBeanBagsSoldException :
+                    "Wrong failure cause";
+            }
+            try {
+                async.close();
+                async.emptyAsync();
+                assert false : "Closed store used";
+            }
+            catch (IllegalStateException err) {}
+            catch (Exception err) {
+                err.printStackTrace();
+                assert false : "Unexpected exception thrown";
+            }
+        }
+        pool.shutdown();
+        completeTest();
+
+        /*  ShardedStore - reservations route back to their shard
+        **********************************************************************/
+        ShardedStore sharded = new ShardedStore(4);
+        try {
+            for (int i=1; i <= 64; i++) {
+                sharded.addBeanBags(10, "Bean", "Bag", Integer.toHexString(i),
+                                    (short)2016, (byte)2);
+                sharded.setBeanBagPrice(Integer.toHexString(i), 5);
+            }
+            for (int i=1; i <= 64; i++) {
+                String id = Integer.toHexString(i);
+                int number = sharded.reserveBeanBags(2, id);
+                assert number % 4 == sharded.shardOf(id) :
+                    "Reservation number does not name its shard";
+                sharded.sellBeanBags(number);
+                sharded.unreserveBeanBags(sharded.reserveBeanBags(1, id));
+            }
+            assert sharded.getNumberOfDifferentBeanBagsInStock() == 64 &&
+                sharded.beanBagsInStock() == 64 * 8 &&
+                sharded.getTotalPriceOfSoldBeanBags() == 64 * 10 :
+                "Totals not combined across shards";
+
+            // Move a bag to an ID that hashes to another shard
+            String from = "1";
+            String to = "41";
+            for (int i=66; sharded.shardOf(to) == sharded.shardOf(from); i++) {
+                to = Integer.toHexString(i);
+            }
+            int held = sharded.reserveBeanBags(1, from);
+            sharded.replace(from, to);
+            assert sharded.beanBagsInStock(to) == 8 : "Replaced bag not found";
+            sharded.sellBeanBags(held);
+            try {
+                sharded.replace("3", to);
+                assert false : "ID used twice";
+            }
+            catch (IllegalIDException err) {}
+        }
+        catch (Exception err) {
+            err.printStackTrace();
+            assert false : "Unexpected exception thrown";
+        }
+        completeTest();
+
+        /*  ShardedStore - shards saved and loaded in parallel
+        **********************************************************************/
+        try {
+            sharded.reserveBeanBags(3, "5");
+            sharded.saveStoreContents("shardstore.snap");
+
+            ShardedStore reloaded = new ShardedStore(4);
+            reloaded.loadStoreContents("shardstore.snap");
+            assert reloaded.beanBagsInStock() == sharded.beanBagsInStock() &&
+                reloaded.reservedBeanBagsInStock() == 3 :
+                "Sharded snapshot lost bags";
+            assert reloaded.getBeanBagDetails("41").equals("") :
+                "Moved bag not found after load";
+            int number = reloaded.reserveBeanBags(1, "5");
+            assert number % 4 == reloaded.shardOf("5") :
+                "Reloaded shard issues another shard's numbers";
+
+            try {
+                new ShardedStore(3).loadStoreContents("shardstore.snap");
+                assert false : "Loaded into the wrong number of shards";
+            }
+            catch (java.io.IOException err) {}
+            reloaded.close();
+            sharded.close();
+        }
+        catch (Exception err) {
+            err.printStackTrace();
+            assert false : "Unexpected exception thrown";
+        }
+        completeTest();
+    }
+
+    public static void TestServer() {
+        ConcurrentStore store = new ConcurrentStore();
+        StoreServer server = null;
+        try {
+            store.addBeanBags(400, "Bean", "Bag", "AA", (short)2016, (byte)2);
+            store.setBeanBagPrice("AA", 10);
+            server = new StoreServer(store, new java.net.InetSocketAddress(
+                java.net.InetAddress.getLoopbackAddress(), 0));
+            server.start();
+        }
+        catch (Exception err) {
+            err.printStackTrace();
+            assert false : "Unexpected exception thrown";
+        }
+
+        final String base = "http://127.0.0.1:" + server.getPort();
+        final java.net.http.HttpClient client = java.net.http.HttpClient.newBuilder()
+            .version(java.net.http.HttpClient.Version.HTTP_1_1).build();
+
+        /*  StoreServer - concurrent sales over loopback
+        **********************************************************************/
+        try {
+            TypedArrayList<java.util.concurrent.CompletableFuture<
+                java.net.http.HttpResponse<String>>> replies =
+                new TypedArrayList<java.util.concurrent.CompletableFuture<
+                    java.net.http.HttpResponse<String>>>();
+            for (int i=0; i < 500; i++) {
+                replies.add(client.sendAsync(
+                    java.net.http.HttpRequest.newBuilder(
+                        java.net.URI.create(base + "/bags/AA/sell?num=1"))
+                        .POST(java.net.http.HttpRequest.BodyPublishers.noBody()).build(),
+                    java.net.http.HttpResponse.BodyHandlers.ofString()));
+            }
+
+            int sold = 0;
+            int refused = 0;
+            for (int i=0; i < replies.size(); i++) {
+                int status = replies.get(i).get().statusCode();
+                if (status == 204) {
+                    sold++;
+                }
+                else if (status == 409) {
+                    refused++;
+                }
+            }
+            assert sold == 400 && refused == 100 : "Bags oversold or undersold";
+            assert store.getNumberOfSoldBeanBags() == 400 : "Sold total incorrect";
+        }
+        catch (Exception err) {
+            err.printStackTrace();
+            assert false : "Unexpected exception thrown";
+        }
+        completeTest();
+
+        /*  StoreServer - operations and status codes
+        **********************************************************************/
+        try {
+            java.net.http.HttpResponse<String> reply = client.send(
+                java.net.http.HttpRequest.newBuilder(java.net.URI.create(base + "/bags/B1"))
+                    .POST(java.net.http.HttpRequest.BodyPublishers.ofString(
+                        "num=5&manufacturer=Comfy+Co&name=Sack&year=2016&month=3"))
+                    .header("Content-Type", "application/x-www-form-urlencoded").build(),
+                java.net.http.HttpResponse.BodyHandlers.ofString());
+            assert reply.statusCode() == 204 : "Bags not added";
+
+            reply = client.send(
+                java.net.http.HttpRequest.newBuilder(
+                    java.net.URI.create(base + "/bags/B1/reserve?num=2"))
+                    .POST(java.net.http.HttpRequest.BodyPublishers.noBody()).build(),
+                java.net.http.HttpResponse.BodyHandlers.ofString());
+            assert reply.statusCode() == 409 &&
+                reply.body().contains("PriceNotSetException") : "Reserved with no price";
+
+            reply = client.send(
+                java.net.http.HttpRequest.newBuilder(
+                    java.net.URI.create(base + "/bags/B1/reserve"))
+                    .POST(java.net.http.HttpRequest.BodyPublishers.ofString("num=%zz"))
+                    .header("Content-Type", "application/x-www-form-urlencoded").build(),
+                java.net.http.HttpResponse.BodyHandlers.ofString());
+            assert reply.statusCode() == 400 : "Malformed escape answered " +
+                reply.statusCode();
+
+            String[][] cases = {
+                { "GET", "/bags/B1", "200" },
+                { "GET", "/bags/FFFF", "404" },
+                { "GET", "/bags/XYZ", "400" },
+                { "POST", "/bags/AA/sell?num=0", "400" },
+                { "POST", "/bags/AA/sell?num=lots", "400" },
+                { "DELETE", "/reservations/99", "404" },
+                // Month 259 would be cut down to a valid byte, 3
+                { "POST", "/bags/C1?num=1&manufacturer=M&name=N&year=2016&month=259", "400" },
+                { "POST", "/bags/C1?num=1&manufacturer=M&name=N&year=67552&month=3", "400" },
+                { "GET", "/bags/C1", "404" },
+                { "GET", "/nowhere", "404" },
+                { "GET", "/store", "200" },
+            };
+            for (String[] test : cases) {
+                reply = client.send(
+                    java.net.http.HttpRequest.newBuilder(java.net.URI.create(base + test[1]))
+                        .method(test[0], java.net.http.HttpRequest.BodyPublishers.noBody())
+                        .build(),
+                    java.net.http.HttpResponse.BodyHandlers.ofString());
+                assert reply.statusCode() == Integer.parseInt(test[2]) :
+                    test[0] + " " + test[1] + " answered " + reply.statusCode();
+            }
+            assert reply.body().contains("\"sold\":400") : "Store totals wrong";
+        }
+        catch (Exception err) {
+            err.printStackTrace();
+            assert false : "Unexpected exception thrown";
+        }
+        finally {
+            server.stop(0);
+        }
+        completeTest();
+    }
+
+    public static void TestReplication() {
+        PipelinedStore leader = new PipelinedStore();
+        ReplicationPrimary primary = null;
+        ReplicaStore replica = null;
+        String host = java.net.InetAddress.getLoopbackAddress().getHostAddress();
+
+        /*  Replication - replica follows the primary over loopback
+        **********************************************************************/
+        try {
+            leader.addBeanBags(100, "Bean", "Bag", "AB", (short)2016, (byte)2);
+            leader.setBeanBagPrice("AB", 20);
+            primary = new ReplicationPrimary(leader, new java.net.InetSocketAddress(
+                java.net.InetAddress.getLoopbackAddress(), 0), 16);
+            primary.start();
+
+            // Joins a store that already holds changes, so starts from a
+            // snapshot
+            replica = new ReplicaStore(host, primary.getPort());
+            leader.sellBeanBags(5, "AB");
+            int held = leader.reserveBeanBags(10, "AB");
+            leader.addBeanBags(7, "Bean", "Bag", "AC", (short)2016, (byte)3, "Blue");
+            leader.replace("AC", "AD");
+            assert replica.awaitLsn(primary.getLastLsn(), 10000) :
+                "Replica did not catch up";
+            assert replica.beanBagsInStock() == leader.beanBagsInStock() &&
+                replica.reservedBeanBagsInStock() == 10 &&
+                replica.getTotalPriceOfSoldBeanBags() == 100 &&
+                replica.getBeanBagDetails("AD").equals("Blue") :
+                "Replica differs from the primary";
+
+            try {
+                replica.sellBeanBags(held);
+                assert false : "Replica changed";
+            }
+            catch (UnsupportedOperationException err) {}
+            leader.sellBeanBags(held);
+            assert replica.awaitLsn(primary.getLastLsn(), 10000) &&
+                replica.reservedBeanBagsInStock() == 0 &&
+                replica.getNumberOfSoldBeanBags("AB") == 15 :
+                "Reserved sale not replicated";
+        }
+        catch (Exception err) {
+            err.printStackTrace();
+            assert false : "Unexpected exception thrown";
+        }
+        completeTest();
+
+        /*  Replication - replica restarts from its own snapshot
+        **********************************************************************/
+        try {
+            replica.saveStoreContents("replica.snap");
+            long saved = replica.getAppliedLsn();
+            replica.close();
+
+            // Few enough changes while away to be sent from the log
+            for (int i=0; i < 5; i++) {
+                leader.sellBeanBags(1, "AB");
+            }
+            replica = new ReplicaStore("replica.snap", host, primary.getPort());
+            assert replica.getAppliedLsn() == saved : "Snapshot LSN not used";
+            assert replica.awaitLsn(primary.getLastLsn(), 10000) &&
+                replica.getNumberOfSoldBeanBags("AB") == 20 :
+                "Replica did not carry on from its snapshot";
+            replica.close();
+
+            // Too many for the log, so sent a snapshot instead
+            for (int i=0; i < 40; i++) {
+                leader.sellBeanBags(1, "AB");
+            }
+            replica = new ReplicaStore("replica.snap", host, primary.getPort());
+            assert replica.awaitLsn(primary.getLastLsn(), 10000) &&
+                replica.getNumberOfSoldBeanBags("AB") == 60 &&
+                replica.beanBagsInStock() == leader.beanBagsInStock() :
+                "Replica did not catch up from a snapshot";
+
+            try {
+                leader.loadStoreContents("replica.snap");
+                assert false : "Replicated store loaded";
+            }
+            catch (IllegalStateException err) {}
+        }
+        catch (Exception err) {
+            err.printStackTrace();
+            assert false : "Unexpected exception thrown";
+        }
+        finally {
+            try {
+                replica.close();
+                primary.stop();
+                leader.close();
+            }
+            catch (Exception err) {
+                err.printStackTrace();
+            }
+        }
+        completeTest();
+
+        /*  Replication - snapshot for a replica leaves deltas chained
+        **********************************************************************/
+        PipelinedStore owner = new PipelinedStore();
+        primary = null;
+        replica = null;
+        try {
+            owner.addBeanBags(1, "Bean", "Bag", "A1", (short)2016, (byte)2);
+            owner.saveStoreContents("repl-base.snap");
+            // Only in the delta, but sent to the replica in its snapshot
+            owner.addBeanBags(2, "Bean", "Bag", "A2", (short)2016, (byte)2);
+
+            primary = new ReplicationPrimary(owner, new java.net.InetSocketAddress(
+                java.net.InetAddress.getLoopbackAddress(), 0), 16);
+            primary.start();
+            replica = new ReplicaStore(host, primary.getPort());
+            assert replica.awaitLsn(primary.getLastLsn(), 10000) :
+                "Replica did not catch up";
+            owner.addBeanBags(3, "Bean", "Bag", "A3", (short)2016, (byte)2);
+            owner.execute(store -> store.saveDeltaContents("repl-d1.snap")).join();
+
+            Store restored = new Store();
+            restored.loadStoreContents("repl-base.snap", new String[] {"repl-d1.snap"});
+            assert restored.getNumberOfDifferentBeanBagsInStock() == 3 &&
+                restored.beanBagsInStock() == 6 :
+                "Changes lost from the delta by a replica's snapshot";
+        }
+        catch (Exception err) {
+            err.printStackTrace();
+            assert false : "Unexpected exception thrown";
+        }
+        finally {
+            try {
+                if (replica != null) {
+                    replica.close();
+                }
+                if (primary != null) {
+                    primary.stop();
+                }
+                owner.close();
+            }
+            catch (Exception err) {
+                err.printStackTrace();
+            }
+        }
+        completeTest();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,114 @@
+import beanbags.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Measures how ConcurrentStore throughput scales with threads when every
+ * thread picks bean bag models uniformly at random from the whole
+ * catalogue. Nine in ten operations look up a model's stock, and the rest
+ * reserve one of a model and cancel the reservation again, so stock never
+ * runs out.
+ *
+ * Usage: java ConcurrentStoreBenchmark [bag count] [seconds per run] [most threads]
+ *
+ * @author Max Beech, Louis Haddrell
+ */
+
+public class ConcurrentStoreBenchmark
+{
+    public static void main(String[] args) throws Exception {
+        int bagCount = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        double seconds = args.length > 1 ? Double.parseDouble(args[1]) : 2;
+        int cores = Runtime.getRuntime().availableProcessors();
+        int mostThreads = args.length > 2 ? Integer.parseInt(args[2]) : 2 * cores;
+
+        ConcurrentStore store = fill(bagCount);
+
+        System.out.printf("%d bags, %.1f s per run, %d cores%n%n", bagCount, seconds,
+                          cores);
+        System.out.printf("%-8s %14s %8s%n", "threads", "ops/s", "scaling");
+
+        // Once untimed so the JIT has compiled the store first
+        run(store, bagCount, 1, seconds / 2);
+
+        double single = 0;
+        for (int threads=1; threads <= mostThreads; threads *= 2) {
+            double rate = run(store, bagCount, threads, seconds);
+            if (threads == 1) {
+                single = rate;
+            }
+            System.out.printf("%-8d %14.0f %8.2f%n", threads, rate, rate / single);
+        }
+
+        if (store.reservedBeanBagsInStock() != 0) {
+            throw new IllegalStateException("Reservations left behind");
+        }
+    }
+
+    /*
+     * Run the mix on a number of threads for a while, returning the
+     * operations completed per second
+     */
+    private static double run(ConcurrentStore store, int bagCount, int threads,
+                              double seconds)
+    throws InterruptedException {
+        LongAdder operations = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        long nanos = (long) (seconds * 1e9);
+        Thread[] workers = new Thread[threads];
+
+        for (int t=0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long done = 0;
+                try {
+                    start.await();
+                    long deadline = System.nanoTime() + nanos;
+                    while (System.nanoTime() < deadline) {
+                        // Batches keep the clock out of the measurement
+                        for (int i=0; i < 256; i++) {
+                            long id = random.nextInt(bagCount) + 1;
+                            if (random.nextInt(10) == 0) {
+                                store.unreserveBeanBags(store.reserveBeanBags(1, id));
+                            }
+                            else {
+                                store.beanBagsInStock(id);
+                            }
+                        }
+                        done += 256;
+                    }
+                }
+                catch (Exception err) {
+                    throw new IllegalStateException(err);
+                }
+                operations.add(done);
+            });
+            workers[t].start();
+        }
+
+        long began = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return operations.sum() / ((System.nanoTime() - began) / 1e9);
+    }
+
+    /*
+     * Store of priced models with IDs 1 to bagCount in hexadecimal, each
+     * with plenty of stock
+     */
+    private static ConcurrentStore fill(int bagCount) throws Exception {
+        ConcurrentStore store = new ConcurrentStore();
+        for (int i=1; i <= bagCount; i++) {
+            String id = Long.toHexString(i);
+            store.addBeanBags(100, "Manufacturer " + (i % 40), "Bag " + (i % 250),
+                              id, (short)(2000 + i % 17), (byte)(i % 12 + 1));
+            store.setBeanBagPrice(id, 1000 + i % 5000);
+        }
+        return store;
+    }
+}
@@ -0,0 +1,112 @@
+import beanbags.*;
+
+import java.io.File;
+
+
+/**
+ * Compares snapshot size against save and load time for each snapshot
+ * codec, and for a snapshot sharded across one file per core, on a store
+ * filled with bags whose manufacturers and names repeat as they do in a
+ * real catalogue.
+ *
+ * Usage: java SnapshotBenchmark [bag count] [runs]
+ *
+ * @author Max Beech, Louis Haddrell
+ */
+
+public class SnapshotBenchmark
+{
+    public static void main(String[] args) throws Exception {
+        int bagCount = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+        Store store = fill(bagCount);
+        File file = File.createTempFile("beanbags-benchmark", ".snap");
+        file.deleteOnExit();
+
+        String[] names = { "unblocked", "none", "deflate-1", "deflate", "deflate-9" };
+        SnapshotCodec[] codecs = { null, SnapshotCodecs.NONE, SnapshotCodecs.deflate(1),
+                                   SnapshotCodecs.DEFLATE, SnapshotCodecs.deflate(9) };
+
+        System.out.printf("%d bags, best of %d runs, %d cores%n%n", bagCount, runs,
+                          Runtime.getRuntime().availableProcessors());
+        System.out.printf("%-10s %12s %8s %10s %10s%n", "codec", "bytes", "ratio",
+                          "save ms", "load ms");
+
+        long baseSize = 0;
+        for (int c=0; c < codecs.length; c++) {
+            long bestSave = Long.MAX_VALUE;
+            long bestLoad = Long.MAX_VALUE;
+
+            for (int run=0; run < runs; run++) {
+                long start = System.nanoTime();
+                store.saveStoreContents(file.getPath(), codecs[c]);
+                bestSave = Math.min(bestSave, System.nanoTime() - start);
+
+                Store loaded = new Store();
+                start = System.nanoTime();
+                loaded.loadStoreContents(file.getPath());
+                bestLoad = Math.min(bestLoad, System.nanoTime() - start);
+
+                if (loaded.getNumberOfDifferentBeanBagsInStock() != bagCount) {
+                    throw new IllegalStateException("Bags lost by " + names[c]);
+                }
+            }
+
+            long size = file.length();
+            if (c == 0) {
+                baseSize = size;
+            }
+            System.out.printf("%-10s %12d %8.2f %10.1f %10.1f%n", names[c], size,
+                              (double) baseSize / size, bestSave / 1e6, bestLoad / 1e6);
+        }
+
+        // Unblocked shards, one per core, against the single unblocked file
+        int shards = Runtime.getRuntime().availableProcessors();
+        long bestSave = Long.MAX_VALUE;
+        long bestLoad = Long.MAX_VALUE;
+        for (int run=0; run < runs; run++) {
+            long start = System.nanoTime();
+            store.saveShardedContents(file.getPath(), shards);
+            bestSave = Math.min(bestSave, System.nanoTime() - start);
+
+            Store loaded = new Store();
+            start = System.nanoTime();
+            loaded.loadShardedContents(file.getPath());
+            bestLoad = Math.min(bestLoad, System.nanoTime() - start);
+        }
+
+        long size = 0;
+        for (int i=0; i < shards; i++) {
+            File shard = new File(file.getPath() + "." + i);
+            shard.deleteOnExit();
+            size += shard.length();
+        }
+        System.out.printf("%-10s %12d %8.2f %10.1f %10.1f%n", shards + " shards", size,
+                          (double) baseSize / size, bestSave / 1e6, bestLoad / 1e6);
+    }
+
+    /*
+     * Store with a few hundred manufacturer and name pairs, small stock
+     * counts and some priced, reserved and sold bags
+     */
+    private static Store fill(int bagCount) throws Exception {
+        Store store = new Store();
+        for (int i=1; i <= bagCount; i++) {
+            String id = Integer.toHexString(i);
+            store.addBeanBags(i % 9 + 2, "Manufacturer " + (i % 40), "Bag " + (i % 250),
+                              id, (short)(2000 + i % 17), (byte)(i % 12 + 1),
+                              i % 3 == 0 ? "" : "Filled with polystyrene beads");
+            if (i % 4 == 0) {
+                store.setBeanBagPrice(id, 1000 + i % 5000);
+                if (i % 8 == 0) {
+                    store.reserveBeanBags(1, id);
+                }
+                if (i % 12 == 0) {
+                    store.sellBeanBags(1, id);
+                }
+            }
+        }
+        return store;
+    }
+}
@@ -0,0 +1,134 @@
+package beanbags;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Non-blocking form of {@link BeanBagStore}. Every call returns at once
+ * with a future, which completes with the result or fails with the
+ * exception the matching BeanBagStore method would have thrown, so many
+ * calls can be in flight from one thread.
+ * <p>
+ * {@link PipelinedStore} is one natively. {@link AsyncStores} runs the
+ * calls of any other store on a thread or a pool of threads.
+ *
+ * @author Max Beech, Louis Haddrell
+ */
+public interface AsyncBeanBagStore
+{
+    /**
+     * @see BeanBagStore#addBeanBags(int, String, String, String, short, byte, String)
+     */
+    CompletableFuture<Void> addBeanBagsAsync(int num, String manufacturer,
+                                             String name, String id,
+                                             short year, byte month,
+                                             String information);
+
+    /**
+     * @see BeanBagStore#setBeanBagPrice(String, int)
+     */
+    CompletableFuture<Void> setBeanBagPriceAsync(String id, int priceInPence);
+
+    /**
+     * @see BeanBagStore#sellBeanBags(int, String)
+     */
+    CompletableFuture<Void> sellBeanBagsAsync(int num, String id);
+
+    /**
+     * @see BeanBagStore#reserveBeanBags(int, String)
+     */
+    CompletableFuture<Integer> reserveBeanBagsAsync(int num, String id);
+
+    /**
+     * @see BeanBagStore#unreserveBeanBags(int)
+     */
+    CompletableFuture<Void> unreserveBeanBagsAsync(int reservationNumber);
+
+    /**
+     * @see BeanBagStore#sellBeanBags(int)
+     */
+    CompletableFuture<Void> sellBeanBagsAsync(int reservationNumber);
+
+    /**
+     * @see BeanBagStore#beanBagsInStock()
+     */
+    CompletableFuture<Integer> beanBagsInStockAsync();
+
+    /**
+     * @see BeanBagStore#reservedBeanBagsInStock()
+     */
+    CompletableFuture<Integer> reservedBeanBagsInStockAsync();
+
+    /**
+     * @see BeanBagStore#beanBagsInStock(String)
+     */
+    CompletableFuture<Integer> beanBagsInStockAsync(String id);
+
+    /**
+     * @see BeanBagStore#saveStoreContents(String)
+     */
+    CompletableFuture<Void> saveStoreContentsAsync(String filename);
+
+    /**
+     * @see BeanBagStore#loadStoreContents(String)
+     */
+    CompletableFuture<Void> loadStoreContentsAsync(String filename);
+
+    /**
+     * @see BeanBagStore#getNumberOfDifferentBeanBagsInStock()
+     */
+    CompletableFuture<Integer> getNumberOfDifferentBeanBagsInStockAsync();
+
+    /**
+     * @see BeanBagStore#getNumberOfSoldBeanBags()
+     */
+    CompletableFuture<Integer> getNumberOfSoldBeanBagsAsync();
+
+    /**
+     * @see BeanBagStore#getNumberOfSoldBeanBags(String)
+     */
+    CompletableFuture<Integer> getNumberOfSoldBeanBagsAsync(String id);
+
+    /**
+     * @see BeanBagStore#getTotalPriceOfSoldBeanBags()
+     */
+    CompletableFuture<Integer> getTotalPriceOfSoldBeanBagsAsync();
+
+    /**
+     * @see BeanBagStore#getTotalPriceOfSoldBeanBags(String)
+     */
+    CompletableFuture<Integer> getTotalPriceOfSoldBeanBagsAsync(String id);
+
+    /**
+     * @see BeanBagStore#getTotalPriceOfReservedBeanBags()
+     */
+    CompletableFuture<Integer> getTotalPriceOfReservedBeanBagsAsync();
+
+    /**
+     * @see BeanBagStore#getBeanBagDetails(String)
+     */
+    CompletableFuture<String> getBeanBagDetailsAsync(String id);
+
+    /**
+     * @see BeanBagStore#empty()
+     */
+    CompletableFuture<Void> emptyAsync();
+
+    /**
+     * @see BeanBagStore#resetSaleAndCostTracking()
+     */
+    CompletableFuture<Void> resetSaleAndCostTrackingAsync();
+
+    /**
+     * @see BeanBagStore#replace(String, String)
+     */
+    CompletableFuture<Void> replaceAsync(String oldId, String replacementId);
+
+    /**
+     * Finish every call already made and stop taking new ones, which then
+     * throw IllegalStateException
+     *
+     * @throws IOException  if the store's journal cannot be written
+     */
+    void close() throws IOException;
+}
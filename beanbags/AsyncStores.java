@@ -0,0 +1,252 @@
+package beanbags;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Ways of running the calls of a blocking {@link BeanBagStore} as an
+ * {@link AsyncBeanBagStore}.
+ *
+ * @author Max Beech, Louis Haddrell
+ */
+public final class AsyncStores
+{
+    private AsyncStores() {
+    }
+
+    /**
+     * Run every call on one thread of its own, one after another, so a
+     * store that is not thread-safe, such as {@link Store}, can be used
+     * from anywhere. The thread stops when the async store is closed.
+     *
+     * @param store     store to call, which must not be used directly
+     *                  while the async store is open
+     * @return          async store making the calls
+     */
+    public static AsyncBeanBagStore serialised(BeanBagStore store) {
+        ExecutorService thread = Executors.newSingleThreadExecutor(task -> {
+            Thread async = new Thread(task, "beanbags-async");
+            async.setDaemon(true);
+            return async;
+        });
+        return new ExecutorStore(store, thread, thread);
+    }
+
+    /**
+     * Run calls on an executor, as many at a time as it allows. Only for
+     * thread-safe stores such as {@link ConcurrentStore}.
+     *
+     * @param store     thread-safe store to call
+     * @param executor  executor to run the calls on, which is left running
+     *                  when the async store is closed
+     * @return          async store making the calls
+     */
+    public static AsyncBeanBagStore concurrent(BeanBagStore store, Executor executor) {
+        return new ExecutorStore(store, executor, null);
+    }
+
+    /*
+     * Runs each call as a task on an executor
+     */
+    private static final class ExecutorStore implements AsyncBeanBagStore
+    {
+        private final BeanBagStore store;
+        private final Executor executor;
+        private final ExecutorService owned;
+        private final AtomicInteger inFlight;
+        private volatile boolean closed;
+
+        ExecutorStore(BeanBagStore store, Executor executor, ExecutorService owned) {
+            this.store = store;
+            this.executor = executor;
+            this.owned = owned;
+            this.inFlight = new AtomicInteger();
+        }
+
+        /*
+         * Run a call on the executor, completing the future with its result
+         * or with whatever it threw
+         */
+        private <T> CompletableFuture<T> call(Callable<T> work) {
+            // Counted before checking closed, so close() either waits for
+            // this call or the call sees the store is closed
+            this.inFlight.incrementAndGet();
+            if (this.closed) {
+                this.finished();
+                throw new IllegalStateException("Store is closed");
+            }
+
+            CompletableFuture<T> future = new CompletableFuture<T>();
+            try {
+                this.executor.execute(() -> {
+                    try {
+                        future.complete(work.call());
+                    }
+                    catch (Throwable err) {
+                        future.completeExceptionally(err);
+                    }
+                    finally {
+                        this.finished();
+                    }
+                });
+            }
+            catch (RuntimeException err) {
+                this.finished();
+                future.completeExceptionally(err);
+            }
+            return future;
+        }
+
+        private void finished() {
+            if (this.inFlight.decrementAndGet() == 0 && this.closed) {
+                synchronized (this) {
+                    this.notifyAll();
+                }
+            }
+        }
+
+        public void close() throws IOException {
+            this.closed = true;
+            try {
+                synchronized (this) {
+                    while (this.inFlight.get() > 0) {
+                        this.wait();
+                    }
+                }
+            }
+            catch (InterruptedException err) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for calls to finish");
+            }
+            finally {
+                if (this.owned != null) {
+                    this.owned.shutdown();
+                }
+            }
+        }
+
+        public CompletableFuture<Void> addBeanBagsAsync(int num, String manufacturer,
+                                                        String name, String id,
+                                                        short year, byte month,
+                                                        String information) {
+            return this.call(() -> {
+                this.store.addBeanBags(num, manufacturer, name, id, year, month,
+                                       information);
+                return null;
+            });
+        }
+
+        public CompletableFuture<Void> setBeanBagPriceAsync(String id, int priceInPence) {
+            return this.call(() -> {
+                this.store.setBeanBagPrice(id, priceInPence);
+                return null;
+            });
+        }
+
+        public CompletableFuture<Void> sellBeanBagsAsync(int num, String id) {
+            return this.call(() -> {
+                this.store.sellBeanBags(num, id);
+                return null;
+            });
+        }
+
+        public CompletableFuture<Integer> reserveBeanBagsAsync(int num, String id) {
+            return this.call(() -> this.store.reserveBeanBags(num, id));
+        }
+
+        public CompletableFuture<Void> unreserveBeanBagsAsync(int reservationNumber) {
+            return this.call(() -> {
+                this.store.unreserveBeanBags(reservationNumber);
+                return null;
+            });
+        }
+
+        public CompletableFuture<Void> sellBeanBagsAsync(int reservationNumber) {
+            return this.call(() -> {
+                this.store.sellBeanBags(reservationNumber);
+                return null;
+            });
+        }
+
+        public CompletableFuture<Integer> beanBagsInStockAsync() {
+            return this.call(() -> this.store.beanBagsInStock());
+        }
+
+        public CompletableFuture<Integer> reservedBeanBagsInStockAsync() {
+            return this.call(() -> this.store.reservedBeanBagsInStock());
+        }
+
+        public CompletableFuture<Integer> beanBagsInStockAsync(String id) {
+            return this.call(() -> this.store.beanBagsInStock(id));
+        }
+
+        public CompletableFuture<Void> saveStoreContentsAsync(String filename) {
+            return this.call(() -> {
+                this.store.saveStoreContents(filename);
+                return null;
+            });
+        }
+
+        public CompletableFuture<Void> loadStoreContentsAsync(String filename) {
+            return this.call(() -> {
+                this.store.loadStoreContents(filename);
+                return null;
+            });
+        }
+
+        public CompletableFuture<Integer> getNumberOfDifferentBeanBagsInStockAsync() {
+            return this.call(() -> this.store.getNumberOfDifferentBeanBagsInStock());
+        }
+
+        public CompletableFuture<Integer> getNumberOfSoldBeanBagsAsync() {
+            return this.call(() -> this.store.getNumberOfSoldBeanBags());
+        }
+
+        public CompletableFuture<Integer> getNumberOfSoldBeanBagsAsync(String id) {
+            return this.call(() -> this.store.getNumberOfSoldBeanBags(id));
+        }
+
+        public CompletableFuture<Integer> getTotalPriceOfSoldBeanBagsAsync() {
+            return this.call(() -> this.store.getTotalPriceOfSoldBeanBags());
+        }
+
+        public CompletableFuture<Integer> getTotalPriceOfSoldBeanBagsAsync(String id) {
+            return this.call(() -> this.store.getTotalPriceOfSoldBeanBags(id));
+        }
+
+        public CompletableFuture<Integer> getTotalPriceOfReservedBeanBagsAsync() {
+            return this.call(() -> this.store.getTotalPriceOfReservedBeanBags());
+        }
+
+        public CompletableFuture<String> getBeanBagDetailsAsync(String id) {
+            return this.call(() -> this.store.getBeanBagDetails(id));
+        }
+
+        public CompletableFuture<Void> emptyAsync() {
+            return this.call(() -> {
+                this.store.empty();
+                return null;
+            });
+        }
+
+        public CompletableFuture<Void> resetSaleAndCostTrackingAsync() {
+            return this.call(() -> {
+                this.store.resetSaleAndCostTracking();
+                return null;
+            });
+        }
+
+        public CompletableFuture<Void> replaceAsync(String oldId, String replacementId) {
+            return this.call(() -> {
+                this.store.replace(oldId, replacementId);
+                return null;
+            });
+        }
+    }
+}
@@ -1,6 +1,11 @@
 package beanbags;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This BeanBag class contains details for every different BeanBag product, including its key specification, and any reservation or sold BeanBag information.
@@ -10,7 +15,9 @@ import java.io.Serializable;
  */
 public class BeanBag implements Serializable
 {
-    private static int totalReservations = 0;
+    private static final long serialVersionUID = 7585509356907296882L;
+
+    private static final AtomicInteger totalReservations = new AtomicInteger();
 
     private byte month;
     private int priceInPence;
@@ -18,12 +25,31 @@ public class BeanBag implements Serializable
     private int soldValue;
     private int soldCount;
     private int stockCount;
-    private ObjectArrayList reservations;
+    private TypedArrayList<Reservation> reservations;
     private short year;
     private String id;
+    private transient long key;
     private String information;
     private String manufacturer;
     private String name;  
+    private transient BeanBagOwner owner;
+
+    // Serialised form kept as it was when reservations were held in an
+    // ObjectArrayList, so files saved by earlier versions still load
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("month", Byte.TYPE),
+        new ObjectStreamField("priceInPence", Integer.TYPE),
+        new ObjectStreamField("reservedCount", Integer.TYPE),
+        new ObjectStreamField("soldValue", Integer.TYPE),
+        new ObjectStreamField("soldCount", Integer.TYPE),
+        new ObjectStreamField("stockCount", Integer.TYPE),
+        new ObjectStreamField("reservations", ObjectArrayList.class),
+        new ObjectStreamField("year", Short.TYPE),
+        new ObjectStreamField("id", String.class),
+        new ObjectStreamField("information", String.class),
+        new ObjectStreamField("manufacturer", String.class),
+        new ObjectStreamField("name", String.class)
+    };
 
     public BeanBag(int num, String manufacturer, String name, String id,
                    short year, byte month) {
@@ -38,27 +64,173 @@ public class BeanBag implements Serializable
         this.manufacturer = manufacturer;
         this.name = name;
         this.id = id;
+        this.key = BeanBagID.parse(id);
         this.year = year;
         this.month = month;
         this.information = information;
 
-        this.reservations = new ObjectArrayList();
+        this.reservations = new TypedArrayList<Reservation>();
         this.priceInPence = -1;
     }
 
+    /**
+     *  Write the bag in its original serialised form
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectArrayList reservationArray = new ObjectArrayList();
+        for (int i=0; i < this.reservations.size(); i++){
+            reservationArray.add(this.reservations.get(i));
+        }
+
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("month", this.month);
+        fields.put("priceInPence", this.priceInPence);
+        fields.put("reservedCount", this.reservedCount);
+        fields.put("soldValue", this.soldValue);
+        fields.put("soldCount", this.soldCount);
+        fields.put("stockCount", this.stockCount);
+        fields.put("reservations", reservationArray);
+        fields.put("year", this.year);
+        fields.put("id", this.id);
+        fields.put("information", this.information);
+        fields.put("manufacturer", this.manufacturer);
+        fields.put("name", this.name);
+        out.writeFields();
+    }
+
+    /**
+     *  Read the bag from its serialised form, and recalculate the numeric
+     *  key, as it is not written out
+     */
+    private void readObject(ObjectInputStream in)
+    throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        this.month = fields.get("month", (byte) 0);
+        this.priceInPence = fields.get("priceInPence", -1);
+        this.reservedCount = fields.get("reservedCount", 0);
+        this.soldValue = fields.get("soldValue", 0);
+        this.soldCount = fields.get("soldCount", 0);
+        this.stockCount = fields.get("stockCount", 0);
+        this.year = fields.get("year", (short) 0);
+        this.id = (String) fields.get("id", null);
+        this.information = (String) fields.get("information", "");
+        this.manufacturer = (String) fields.get("manufacturer", null);
+        this.name = (String) fields.get("name", null);
+        this.key = BeanBagID.parse(this.id);
+
+        ObjectArrayList reservationArray =
+            (ObjectArrayList) fields.get("reservations", null);
+        this.reservations = new TypedArrayList<Reservation>(reservationArray.size());
+        for (int i=0; i < reservationArray.size(); i++){
+            this.reservations.add((Reservation) reservationArray.get(i));
+        }
+    }
+
     /**
      *  Simple reservation ID generator.
      *  @return     unique reservation
      */
     public static int generateReservationID() {
-        return ++BeanBag.totalReservations;
+        return BeanBag.totalReservations.incrementAndGet();
     }
 
 
     /**
-     * @return      reservations ObjectArrayList
+     * Attach this bag to a store, which is then told about every
+     * reservation held by the bag and any later change to them.
+     *
+     * @param value     store holding this bag, or null to detach
      */
-    public ObjectArrayList getReservations() {
+    void setOwner(BeanBagOwner value) {
+        // Move this bag's share of the store totals to the new owner
+        int reservationValue = this.getReservationValue();
+        this.changed(-this.stockCount, -this.reservedCount, -this.soldCount,
+                     -this.soldValue, -reservationValue);
+        this.owner = value;
+        this.changed(this.stockCount, this.reservedCount, this.soldCount,
+                     this.soldValue, reservationValue);
+
+        for (int i=0; i < this.reservations.size(); i++){
+            Reservation reservation = this.reservations.get(i);
+            reservation.setLocation(this, i);
+            if (value != null) {
+                value.reservationAdded(reservation);
+            }
+        }
+    }
+
+    /**
+     * Put back the price, sales and reservations of a bag read from a
+     * snapshot. Only called on a bag not yet held by a store, so no totals
+     * are reported.
+     *
+     * @param priceInPence      price, or -1 if not set
+     * @param soldCount         number sold
+     * @param soldValue         value sold (in pence)
+     * @param reservations      reservations held by the bag
+     */
+    void restore(int priceInPence, int soldCount, int soldValue,
+                 TypedArrayList<Reservation> reservations) {
+        this.priceInPence = priceInPence;
+        this.soldCount = soldCount;
+        this.soldValue = soldValue;
+        this.reservations = reservations;
+        this.reservedCount = 0;
+
+        for (int i=0; i < reservations.size(); i++){
+            Reservation reservation = reservations.get(i);
+            reservation.setLocation(this, i);
+            this.reservedCount += reservation.getQuantity();
+        }
+    }
+
+    /**
+     * Copy of this bag's current state, not held by any store, so a
+     * snapshot can be written from it while the bag itself carries on
+     * changing
+     *
+     * @return      copy of the bag with copies of its reservations
+     */
+    BeanBag snapshotCopy() {
+        TypedArrayList<Reservation> copies =
+            new TypedArrayList<Reservation>(this.reservations.size());
+        for (int i=0; i < this.reservations.size(); i++){
+            Reservation reservation = this.reservations.get(i);
+            copies.add(new Reservation(reservation.getID(), reservation.getPrice(),
+                                       reservation.getQuantity()));
+        }
+
+        BeanBag copy = new BeanBag(this.stockCount, this.manufacturer, this.name,
+                                   this.id, this.year, this.month,
+                                   this.information);
+        copy.restore(this.priceInPence, this.soldCount, this.soldValue, copies);
+        return copy;
+    }
+
+    /**
+     * Tell the store holding this bag that it is about to change
+     */
+    private void beforeChange() {
+        if (this.owner != null) {
+            this.owner.beforeChange(this);
+        }
+    }
+
+    /**
+     * Report a change in this bag's counters to the store holding it
+     */
+    private void changed(int stock, int reserved, int soldCount,
+                         int soldValue, int reservationValue) {
+        if (this.owner != null) {
+            this.owner.totalsChanged(stock, reserved, soldCount, soldValue,
+                                     reservationValue);
+        }
+    }
+
+    /**
+     * @return      reservations list
+     */
+    public TypedArrayList<Reservation> getReservations() {
         return this.reservations;
     }
 
@@ -73,6 +245,7 @@ public class BeanBag implements Serializable
      * @param value     new month of manufacture
      */
     public void setMonth(byte value) {
+        this.beforeChange();
         this.month = value;
     }
 
@@ -88,12 +261,20 @@ public class BeanBag implements Serializable
      * @param value     new bean bag price in pence
      */
     public void setPrice(int value) {
+        this.beforeChange();
         this.priceInPence = value;
+        int valueChange = 0;
 
         for (int i=0; i < this.reservations.size(); i++){
-            Reservation reservation = (Reservation) this.reservations.get(i);
+            Reservation reservation = this.reservations.get(i);
+            int oldValue = reservation.getValue();
             reservation.setPrice(value);
+            valueChange += reservation.getValue() - oldValue;
         }       
+
+        if (valueChange != 0) {
+            this.changed(0, 0, 0, 0, valueChange);
+        }
     }
 
     /**
@@ -107,6 +288,8 @@ public class BeanBag implements Serializable
      * @param value     new bean bag stock count
      */
     public void setStockCount(int value) {
+        this.beforeChange();
+        this.changed(value - this.stockCount, 0, 0, 0, 0);
         this.stockCount = value;
     }
 
@@ -121,6 +304,7 @@ public class BeanBag implements Serializable
      * @param value     new year of manufacture
      */
     public void setYear(short value) {
+        this.beforeChange();
         this.year = value;
     }
 
@@ -135,7 +319,16 @@ public class BeanBag implements Serializable
      * @param value      new identification string
      */
     public void setId(String value) {
+        this.beforeChange();
         this.id = value;
+        this.key = BeanBagID.parse(value);
+    }
+
+    /**
+     * @return      numeric key parsed from the identification string
+     */
+    public long getKey() {
+        return this.key;
     }
 
     /**
@@ -149,6 +342,7 @@ public class BeanBag implements Serializable
      * @param value     new description value 
      */
     public void setInformation(String value) {
+        this.beforeChange();
         this.information = value;
     }
 
@@ -163,6 +357,7 @@ public class BeanBag implements Serializable
      * @param value     new manufacturer
      */
     public void setManufacturer(String value) {
+        this.beforeChange();
         this.manufacturer = value;
     }
 
@@ -177,6 +372,7 @@ public class BeanBag implements Serializable
      * @param value     new model name
      */
     public void setName(String value) {
+        this.beforeChange();
         this.name = value;
     }
 
@@ -229,7 +425,7 @@ public class BeanBag implements Serializable
         int totalValue = 0;
 
         for (int i=0; i < this.reservations.size(); i++){
-            Reservation reservation = (Reservation) this.reservations.get(i);
+            Reservation reservation = this.reservations.get(i);
             totalValue += reservation.getValue();
         }
 
@@ -240,6 +436,8 @@ public class BeanBag implements Serializable
      *  Reset counter tracking sales
      */
     public void reset() {
+        this.beforeChange();
+        this.changed(0, 0, -this.soldCount, -this.soldValue, 0);
         this.soldCount = 0;
         this.soldValue = 0;
     }
@@ -249,10 +447,14 @@ public class BeanBag implements Serializable
      */
     public void empty() {
         reset();
+
+        while (this.reservations.size() > 0) {
+            int last = this.reservations.size() - 1;
+            this.unreserve(this.reservations.get(last));
+        }
+
         this.priceInPence = -1;
-        this.reservedCount = 0;
-        this.stockCount = 0;
-        this.reservations = new ObjectArrayList();
+        this.setStockCount(0);
     }
 
     /**
@@ -269,9 +471,11 @@ public class BeanBag implements Serializable
      *  @param quantity     Number of bean bags to sell
      */  
     private void sell(int price, int quantity) {
+        this.beforeChange();
         this.stockCount -= quantity;
         this.soldCount += quantity;
         this.soldValue += price * quantity;        
+        this.changed(-quantity, 0, quantity, price * quantity, 0);
     }
 
     /**
@@ -282,12 +486,9 @@ public class BeanBag implements Serializable
      */ 
     public Boolean sellReservation(int reservationID) {
         for (int i=0; i < this.reservations.size(); i++){
-            Reservation reservation = (Reservation) this.reservations.get(i);
+            Reservation reservation = this.reservations.get(i);
             if (reservation.getID() == reservationID) {
-                this.sell(reservation.getPrice(), reservation.getQuantity());
-
-                this.reservedCount -= reservation.getQuantity();
-                this.reservations.remove(i);                
+                this.sellReservation(reservation);
                 return true;
             }
         }
@@ -295,18 +496,52 @@ public class BeanBag implements Serializable
         return false;        
     }
 
+    /**
+     *  Make a sale from a reservation already known to be held by this bag
+     *  @param reservation      reservation to sell
+     */
+    void sellReservation(Reservation reservation) {
+        this.sell(reservation.getPrice(), reservation.getQuantity());
+        this.unreserve(reservation);
+    }
+
     /**
      *  Reserve a number of bean bags
      *  @param quantity     number of bags to reserve
      *  @return             unique ID number of the reservation
      */ 
     public int reserve(int quantity) {
-        int id = BeanBag.generateReservationID();
-        this.reservations.add(new Reservation(id, this.priceInPence, quantity));
-        this.reservedCount += quantity;
+        int id;
+        if (this.owner != null) {
+            id = this.owner.nextReservationNumber();
+        }
+        else {
+            id = BeanBag.generateReservationID();
+        }
+
+        this.reserve(quantity, id);
         return id;
     }
 
+    /**
+     *  Reserve a number of bean bags under a reservation number that has
+     *  already been issued, such as when replaying a journal
+     *  @param quantity     number of bags to reserve
+     *  @param id           unique ID number of the reservation
+     */
+    void reserve(int quantity, int id) {
+        this.beforeChange();
+        Reservation reservation = new Reservation(id, this.priceInPence, quantity);
+        reservation.setLocation(this, this.reservations.size());
+        this.reservations.add(reservation);
+        this.reservedCount += quantity;
+        this.changed(0, quantity, 0, 0, reservation.getValue());
+
+        if (this.owner != null) {
+            this.owner.reservationAdded(reservation);
+        }
+    }
+
     /**
      *  Cancel a reservation
      *  @param reservationID    unique ID number of the reservation
@@ -315,10 +550,9 @@ public class BeanBag implements Serializable
      */ 
     public Boolean unreserve(int reservationID) {
         for (int i=0; i < this.reservations.size(); i++){
-            Reservation reservation = (Reservation) this.reservations.get(i);
+            Reservation reservation = this.reservations.get(i);
             if (reservation.getID() == reservationID) {
-                this.reservedCount -= reservation.getQuantity();
-                this.reservations.remove(i);
+                this.unreserve(reservation);
                 return true;
             }
         }
@@ -326,4 +560,34 @@ public class BeanBag implements Serializable
         return false;
     }
 
+    /**
+     *  Cancel a reservation already known to be held by this bag
+     *  @param reservation      reservation to cancel
+     */
+    void unreserve(Reservation reservation) {
+        this.beforeChange();
+        this.reservedCount -= reservation.getQuantity();
+        this.changed(0, -reservation.getQuantity(), 0, 0,
+                     -reservation.getValue());
+        this.removeReservation(reservation.getSlot());
+    }
+
+    /**
+     *  Remove the reservation at an index by moving the last reservation
+     *  into its place, as the order of reservations does not matter
+     *  @param slot     index of the reservation to remove
+     */
+    private void removeReservation(int slot) {
+        Reservation removed = this.reservations.removeSwap(slot);
+
+        if (slot < this.reservations.size()) {
+            this.reservations.get(slot).setLocation(this, slot);
+        }
+        removed.setLocation(null, -1);
+
+        if (this.owner != null) {
+            this.owner.reservationRemoved(removed);
+        }
+    }
+
 }
@@ -0,0 +1,79 @@
+package beanbags;
+
+
+/**
+ * Conversion between the hexadecimal ID strings used by the BeanBagStore
+ * interface and the numeric keys the store indexes bean bags by.
+ *
+ * @author Max Beech, Louis Haddrell
+ */
+public final class BeanBagID
+{
+    /**
+     * Value returned by {@link #parse(String)} for an illegal ID
+     */
+    public static final long INVALID = -1L;
+
+    private BeanBagID() { }
+
+    /**
+     * Parse a hexadecimal ID string into its numeric key.
+     * <p>
+     * The string is scanned by hand rather than with Long.parseLong, so a
+     * malformed ID costs neither an allocation nor a thrown exception.
+     *
+     * @param id    ID string to parse
+     * @return      key of the ID, or {@link #INVALID} if the string is not a
+     *              positive hexadecimal number that fits in a long
+     */
+    public static long parse(String id) {
+        if (id == null || id.length() == 0) {
+            return INVALID;
+        }
+
+        long key = 0L;
+        for (int i = 0; i < id.length(); i++) {
+            int digit = digit(id.charAt(i));
+            // Reject non-hex characters, and values that would overflow
+            if (digit < 0 || key > (Long.MAX_VALUE >>> 4)) {
+                return INVALID;
+            }
+            key = (key << 4) | digit;
+        }
+        return key;
+    }
+
+    /**
+     * Check if a string is a legal ID without converting it.
+     *
+     * @param id    ID string to check
+     * @return      true if the string is a positive hexadecimal number
+     */
+    public static boolean isValid(String id) {
+        return parse(id) != INVALID;
+    }
+
+    /*
+     * Value of a single hexadecimal digit, or -1 if the character is not one
+     */
+    private static int digit(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+
+    /**
+     * @param key   numeric ID
+     * @return      true if the key could have been parsed from a legal ID
+     */
+    public static boolean isValid(long key) {
+        return key >= 0L;
+    }
+}
@@ -0,0 +1,54 @@
+package beanbags;
+
+
+/**
+ * Callbacks from a BeanBag to the store holding it, so the store can keep
+ * its indexes and running totals up to date whichever way the bag is
+ * changed.
+ *
+ * @author Max Beech, Louis Haddrell
+ */
+interface BeanBagOwner
+{
+    /**
+     * Called before any field of a bag changes, while it still holds its
+     * old state
+     *
+     * @param bag       bag about to change
+     */
+    void beforeChange(BeanBag bag);
+
+    /**
+     * Issue a reservation number unique within the store
+     *
+     * @return      new reservation number
+     */
+    int nextReservationNumber();
+
+    /**
+     * Called after a reservation has been attached to a bag
+     *
+     * @param reservation   new reservation
+     */
+    void reservationAdded(Reservation reservation);
+
+    /**
+     * Called after a reservation has been sold or cancelled
+     *
+     * @param reservation   removed reservation
+     */
+    void reservationRemoved(Reservation reservation);
+
+    /**
+     * Called whenever a bag's counters change, with the amount each one
+     * changed by
+     *
+     * @param stock             change in stock count
+     * @param reserved          change in reserved count
+     * @param soldCount         change in number sold
+     * @param soldValue         change in value sold (in pence)
+     * @param reservationValue  change in value of reservations (in pence)
+     */
+    void totalsChanged(int stock, int reserved, int soldCount, int soldValue,
+                       int reservationValue);
+}
@@ -0,0 +1,109 @@
+package beanbags;
+
+
+/**
+ * One line of a catalogue feed: the arguments of a single
+ * {@link BeanBagStore#addBeanBags} call, for adding in bulk with
+ * {@link Store#ingest(BeanBagRecord[])}.
+ *
+ * @author Max Beech, Louis Haddrell
+ */
+public class BeanBagRecord
+{
+    private final int num;
+    private final String manufacturer;
+    private final String name;
+    private final String id;
+    private final short year;
+    private final byte month;
+    private final String information;
+    private final int price;
+
+    public BeanBagRecord(int num, String manufacturer, String name, String id,
+                         short year, byte month) {
+
+        this(num, manufacturer, name, id, year, month, "");
+    }
+
+    public BeanBagRecord(int num, String manufacturer, String name, String id,
+                         short year, byte month, String information) {
+
+        this(num, manufacturer, name, id, year, month, information, -1);
+    }
+
+    /**
+     * Record that also sets the price of the bags once they are added, as
+     * a catalogue export carries it
+     *
+     * @param priceInPence      price to set, or -1 to leave it as it is
+     */
+    public BeanBagRecord(int num, String manufacturer, String name, String id,
+                         short year, byte month, String information,
+                         int priceInPence) {
+
+        this.num = num;
+        this.manufacturer = manufacturer;
+        this.name = name;
+        this.id = id;
+        this.year = year;
+        this.month = month;
+        this.information = information;
+        this.price = priceInPence;
+    }
+
+    /**
+     * @return      number of bean bags added
+     */
+    public int getNum() {
+        return this.num;
+    }
+
+    /**
+     * @return      bean bag manufacturer
+     */
+    public String getManufacturer() {
+        return this.manufacturer;
+    }
+
+    /**
+     * @return      bean bag model name
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * @return      bean bag identification string
+     */
+    public String getId() {
+        return this.id;
+    }
+
+    /**
+     * @return      year of manufacture
+     */
+    public short getYear() {
+        return this.year;
+    }
+
+    /**
+     * @return      month of manufacture
+     */
+    public byte getMonth() {
+        return this.month;
+    }
+
+    /**
+     * @return      descriptive text
+     */
+    public String getInformation() {
+        return this.information;
+    }
+
+    /**
+     * @return      price in pence to set once added, or -1 if none
+     */
+    public int getPrice() {
+        return this.price;
+    }
+}
@@ -0,0 +1,105 @@
+package beanbags;
+
+
+/**
+ * A field of the catalogue as exported by {@link CsvCatalogue} and
+ * {@link ColumnarCatalogue}, in the order they are written.
+ *
+ * @author Max Beech, Louis Haddrell
+ */
+public enum CatalogueColumn
+{
+    ID("id", true),
+    MANUFACTURER("manufacturer", true),
+    NAME("name", true),
+    YEAR("year", false),
+    MONTH("month", false),
+    /** Price in pence, or -1 if not set */
+    PRICE("price", false),
+    /** Number in stock, including those reserved */
+    STOCK("stock", false),
+    RESERVED("reserved", false),
+    SOLD_COUNT("sold_count", false),
+    /** Value sold, in pence */
+    SOLD_VALUE("sold_value", false),
+    INFORMATION("information", true);
+
+    private final String heading;
+    private final boolean text;
+
+    private CatalogueColumn(String heading, boolean text) {
+        this.heading = heading;
+        this.text = text;
+    }
+
+    /**
+     * @return      name of the column in a CSV header row
+     */
+    public String getHeading() {
+        return this.heading;
+    }
+
+    /**
+     * @return      true if the column holds strings rather than ints
+     */
+    public boolean isText() {
+        return this.text;
+    }
+
+    /**
+     * @param heading   name of a column in a CSV header row
+     * @return          column with that heading, or null if there is none
+     */
+    static CatalogueColumn forHeading(String heading) {
+        for (CatalogueColumn column : values()) {
+            if (column.heading.equals(heading)) {
+                return column;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param bag   bag to read the field of
+     * @return      value of this text column for the bag
+     */
+    String textOf(BeanBag bag) {
+        switch (this) {
+            case ID:
+                return bag.getId();
+            case MANUFACTURER:
+                return bag.getManufacturer();
+            case NAME:
+                return bag.getName();
+            case INFORMATION:
+                return bag.getInformation();
+            default:
+                throw new IllegalStateException(this + " is not a text column");
+        }
+    }
+
+    /**
+     * @param bag   bag to read the field of
+     * @return      value of this number column for the bag
+     */
+    int numberOf(BeanBag bag) {
+        switch (this) {
+            case YEAR:
+                return bag.getYear();
+            case MONTH:
+                return bag.getMonth();
+            case PRICE:
+                return bag.getPrice();
+            case STOCK:
+                return bag.getStockCount();
+            case RESERVED:
+                return bag.getReservedCount();
+            case SOLD_COUNT:
+                return bag.getSoldCount();
+            case SOLD_VALUE:
+                return bag.getSoldValue();
+            default:
+                throw new IllegalStateException(this + " is not a number column");
+        }
+    }
+}
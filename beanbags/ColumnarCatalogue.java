@@ -0,0 +1,340 @@
+package beanbags;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Exports the catalogue in a binary layout where each field of every bag
+ * is stored together, so a report can map and scan a single column
+ * without decoding the others.
+ * <p>
+ * The file starts with a magic number, format version, row count and
+ * column count, then a directory giving, for each column, its
+ * {@link CatalogueColumn} ordinal as a byte and the offset and length of
+ * its data as longs. A number column is an int per row. A text column is
+ * an int byte length per row (-1 for null) followed by the UTF-8 bytes of
+ * every row in turn. Everything is big-endian.
+ *
+ * @author Max Beech, Louis Haddrell
+ */
+public final class ColumnarCatalogue
+{
+    static final int MAGIC = 0x4242434C;
+    static final short VERSION = 1;
+
+    private static final int HEADER_SIZE = 12;
+    private static final int DIRECTORY_ENTRY_SIZE = 17;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private ColumnarCatalogue() {
+    }
+
+    /**
+     * Write every bag in the store, column by column
+     *
+     * @param store         store to export
+     * @param filename      location of the file, replaced if it exists
+     * @return              number of bags written
+     * @throws IOException  if the file cannot be written
+     */
+    public static int export(Store store, String filename) throws IOException {
+        TypedArrayList<BeanBag> bags = store.getBeanBagsArray();
+        CatalogueColumn[] columns = CatalogueColumn.values();
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE +
+                                                columns.length * DIRECTORY_ENTRY_SIZE);
+        header.putInt(MAGIC);
+        header.putShort(VERSION);
+        header.putInt(bags.size());
+        header.putShort((short) columns.length);
+
+        FileChannel channel = FileChannel.open(Paths.get(filename),
+                                               StandardOpenOption.CREATE,
+                                               StandardOpenOption.WRITE,
+                                               StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            long offset = header.capacity();
+            channel.position(offset);
+
+            for (CatalogueColumn column : columns) {
+                long length = column.isText()
+                    ? writeText(channel, buffer, bags, column)
+                    : writeNumbers(channel, buffer, bags, column);
+                header.put((byte) column.ordinal());
+                header.putLong(offset);
+                header.putLong(length);
+                offset += length;
+            }
+
+            header.flip();
+            long position = 0;
+            while (header.hasRemaining()) {
+                position += channel.write(header, position);
+            }
+            channel.force(false);
+        }
+        finally {
+            channel.close();
+        }
+        return bags.size();
+    }
+
+    /**
+     * Read one number column, touching only that column's part of the file
+     *
+     * @param filename      location of the file
+     * @param column        column to read, which must not be a text column
+     * @return              value for each bag, in export order
+     * @throws IOException  if the file cannot be read or is not a columnar
+     *                      catalogue
+     */
+    public static int[] readNumbers(String filename, CatalogueColumn column)
+    throws IOException {
+        if (column.isText()) {
+            throw new IllegalArgumentException(column + " is a text column");
+        }
+
+        FileChannel channel = FileChannel.open(Paths.get(filename),
+                                               StandardOpenOption.READ);
+        try {
+            int rows = readRowCount(channel);
+            IntBuffer values = mapColumn(channel, column, (long) rows * 4).asIntBuffer();
+            int[] result = new int[rows];
+            values.get(result);
+            return result;
+        }
+        finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Read one text column, touching only that column's part of the file
+     *
+     * @param filename      location of the file
+     * @param column        column to read, which must be a text column
+     * @return              value for each bag, in export order
+     * @throws IOException  if the file cannot be read or is not a columnar
+     *                      catalogue
+     */
+    public static String[] readText(String filename, CatalogueColumn column)
+    throws IOException {
+        if (!column.isText()) {
+            throw new IllegalArgumentException(column + " is a number column");
+        }
+
+        FileChannel channel = FileChannel.open(Paths.get(filename),
+                                               StandardOpenOption.READ);
+        try {
+            int rows = readRowCount(channel);
+            ByteBuffer data = mapColumn(channel, column, (long) rows * 4);
+            IntBuffer lengths = data.asIntBuffer();
+            data.position(rows * 4);
+
+            String[] result = new String[rows];
+            byte[] bytes = new byte[256];
+            for (int i=0; i < rows; i++){
+                int length = lengths.get(i);
+                if (length < 0) {
+                    continue;
+                }
+                if (length > data.remaining()) {
+                    throw new IOException("Columnar catalogue " + column + " column is cut short");
+                }
+                if (length > bytes.length) {
+                    bytes = new byte[Math.max(length, bytes.length * 2)];
+                }
+                data.get(bytes, 0, length);
+                result[i] = new String(bytes, 0, length, StandardCharsets.UTF_8);
+            }
+            return result;
+        }
+        finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Add every bag in a columnar catalogue to the store, through
+     * {@link Store#ingest(BeanBagRecord[])}, with the price of each. As
+     * with {@link CsvCatalogue#importInto}, reservations and sales are not
+     * carried over, and bags with no stock are rejected.
+     *
+     * @param store         store to add the bags to
+     * @param filename      location of the file
+     * @return              counts of added and merged rows, and the
+     *                      position and reason of every rejected row
+     * @throws IOException  if the file cannot be read, is not a columnar
+     *                      catalogue, or has a year or month too large to
+     *                      be held
+     */
+    public static IngestResult importInto(Store store, String filename)
+    throws IOException {
+        String[] ids = readText(filename, CatalogueColumn.ID);
+        String[] manufacturers = readText(filename, CatalogueColumn.MANUFACTURER);
+        String[] names = readText(filename, CatalogueColumn.NAME);
+        String[] information = readText(filename, CatalogueColumn.INFORMATION);
+        int[] years = readNumbers(filename, CatalogueColumn.YEAR);
+        int[] months = readNumbers(filename, CatalogueColumn.MONTH);
+        int[] prices = readNumbers(filename, CatalogueColumn.PRICE);
+        int[] stock = readNumbers(filename, CatalogueColumn.STOCK);
+
+        BeanBagRecord[] records = new BeanBagRecord[ids.length];
+        for (int i=0; i < records.length; i++){
+            // Out of range months are left for ingest to reject, but must
+            // not wrap round into range on the way
+            if (years[i] < Short.MIN_VALUE || years[i] > Short.MAX_VALUE ||
+                months[i] < Byte.MIN_VALUE || months[i] > Byte.MAX_VALUE) {
+                throw new IOException("Columnar catalogue row " + (i + 1) +
+                                      " has a bad number: year " + years[i] +
+                                      ", month " + months[i]);
+            }
+            records[i] = new BeanBagRecord(stock[i], manufacturers[i], names[i], ids[i],
+                                           (short) years[i], (byte) months[i],
+                                           information[i] == null ? "" : information[i],
+                                           prices[i]);
+        }
+        return store.ingest(records);
+    }
+
+    /*
+     * Write a number column, returning its length
+     */
+    private static long writeNumbers(FileChannel channel, ByteBuffer buffer,
+                                     TypedArrayList<BeanBag> bags,
+                                     CatalogueColumn column)
+    throws IOException {
+        for (int i=0; i < bags.size(); i++){
+            if (buffer.remaining() < 4) {
+                flush(channel, buffer);
+            }
+            buffer.putInt(column.numberOf(bags.get(i)));
+        }
+        flush(channel, buffer);
+        return (long) bags.size() * 4;
+    }
+
+    /*
+     * Write a text column, lengths first and then the bytes, returning its
+     * length. Each value is encoded once for its length and again for its
+     * bytes, so the column is never held in memory whole.
+     */
+    private static long writeText(FileChannel channel, ByteBuffer buffer,
+                                  TypedArrayList<BeanBag> bags,
+                                  CatalogueColumn column)
+    throws IOException {
+        long length = (long) bags.size() * 4;
+
+        for (int i=0; i < bags.size(); i++){
+            String value = column.textOf(bags.get(i));
+            if (buffer.remaining() < 4) {
+                flush(channel, buffer);
+            }
+            if (value == null) {
+                buffer.putInt(-1);
+                continue;
+            }
+            int count = value.getBytes(StandardCharsets.UTF_8).length;
+            buffer.putInt(count);
+            length += count;
+        }
+
+        for (int i=0; i < bags.size(); i++){
+            String value = column.textOf(bags.get(i));
+            if (value == null) {
+                continue;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            int offset = 0;
+            while (offset < bytes.length) {
+                if (!buffer.hasRemaining()) {
+                    flush(channel, buffer);
+                }
+                int count = Math.min(buffer.remaining(), bytes.length - offset);
+                buffer.put(bytes, offset, count);
+                offset += count;
+            }
+        }
+        flush(channel, buffer);
+        return length;
+    }
+
+    /*
+     * Write out everything in the buffer
+     */
+    private static void flush(FileChannel channel, ByteBuffer buffer)
+    throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /*
+     * Check the header and return the number of rows
+     */
+    private static int readRowCount(FileChannel channel) throws IOException {
+        ByteBuffer header = read(channel, 0, HEADER_SIZE);
+        if (header.getInt() != MAGIC) {
+            throw new IOException("Not a columnar bean bag catalogue");
+        }
+        short version = header.getShort();
+        if (version != VERSION) {
+            throw new IOException("Unsupported columnar catalogue version " + version);
+        }
+        int rows = header.getInt();
+        if (rows < 0) {
+            throw new IOException("Columnar catalogue has a negative row count " + rows);
+        }
+        return rows;
+    }
+
+    /*
+     * Find a column in the directory and map its data, which must be at
+     * least the given length
+     */
+    private static ByteBuffer mapColumn(FileChannel channel, CatalogueColumn column,
+                                        long minimum)
+    throws IOException {
+        int columns = read(channel, HEADER_SIZE - 2, 2).getShort();
+        ByteBuffer directory = read(channel, HEADER_SIZE,
+                                    columns * DIRECTORY_ENTRY_SIZE);
+
+        for (int i=0; i < columns; i++){
+            int ordinal = directory.get();
+            long offset = directory.getLong();
+            long length = directory.getLong();
+            if (ordinal != column.ordinal()) {
+                continue;
+            }
+            if (length < minimum || offset + length > channel.size() ||
+                length > Integer.MAX_VALUE) {
+                throw new IOException("Columnar catalogue " + column + " column is cut short");
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        }
+        throw new IOException("Columnar catalogue has no " + column + " column");
+    }
+
+    /*
+     * Read a fixed part of the file
+     */
+    private static ByteBuffer read(FileChannel channel, long position, int length)
+    throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Columnar catalogue is cut short");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
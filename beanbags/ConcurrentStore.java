@@ -0,0 +1,1060 @@
+package beanbags;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
+import java.io.Serializable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+/**
+ * Thread-safe Bean Bag store implementing the BeanBagStore interface.
+ * <p>
+ * Bags are held by numeric ID in {@link LongObjectHashMap}s, one per
+ * segment of the ID space, so no ID is boxed. Each segment has a
+ * StampedLock of its own: lookups are optimistic and only take the read
+ * side if a writer changed the segment meanwhile, so they rarely block.
+ * Each bag is guarded by one of a fixed set of striped StampedLocks: every
+ * check-then-act sequence on a bag (such as checking the available count
+ * and then selling) holds the write side of its stripe, while point reads
+ * such as stock counts are optimistic and only take the read side if a
+ * writer got in the way. Threads working on bags in different stripes
+ * never wait for each other. Store-wide totals are kept in LongAdders and
+ * reservation numbers come from an atomic counter, so neither needs a
+ * global lock either.
+ * <p>
+ * Use {@link StoreMode} to choose between this and the lock-free
+ * single-threaded {@link Store}.
+ *
+ * @author Max Beech, Louis Haddrell
+ */
+public class ConcurrentStore implements BeanBagStore, Serializable
+{
+    private static final long serialVersionUID = -5928391795993386178L;
+
+    // Serialised form kept as it was when bags were held in a
+    // ConcurrentHashMap, so files saved by earlier versions still load
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("beanBags", ConcurrentHashMap.class),
+        new ObjectStreamField("reservationNumbers", ReservationSequence.class)
+    };
+    private transient Segment[] segments;
+    private transient ReservationSequence reservationNumbers;
+    private transient ConcurrentHashMap<Integer, Reservation> reservationIndex;
+    private transient BeanBagOwner owner;
+    private transient StampedLock[] stripes;
+
+    private transient LongAdder totalStock;
+    private transient LongAdder totalReserved;
+    private transient LongAdder totalSoldCount;
+    private transient LongAdder totalSoldValue;
+    private transient LongAdder totalReservationValue;
+
+    public ConcurrentStore() {
+        this(4 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create a store with a chosen number of lock stripes. More stripes
+     * make it less likely that two busy bags share a lock.
+     *
+     * @param stripes   minimum number of lock stripes
+     */
+    public ConcurrentStore(int stripes) {
+        this.reservationNumbers = new ReservationSequence();
+        this.initialise(stripes);
+    }
+
+    /*
+     * Bags whose IDs hash to one segment, and the lock guarding them
+     */
+    private static class Segment
+    {
+        final StampedLock lock = new StampedLock();
+        final LongObjectHashMap<BeanBag> bags = new LongObjectHashMap<BeanBag>();
+    }
+
+    /*
+     * Set up the locks, indexes and totals, which are not serialised
+     */
+    private void initialise(int stripes) {
+        int count = 1;
+        while (count < stripes) {
+            count *= 2;
+        }
+        this.stripes = new StampedLock[count];
+        this.segments = new Segment[count];
+        for (int i=0; i < count; i++) {
+            this.stripes[i] = new StampedLock();
+            this.segments[i] = new Segment();
+        }
+
+        this.reservationIndex = new ConcurrentHashMap<Integer, Reservation>();
+        this.owner = new Owner();
+        this.totalStock = new LongAdder();
+        this.totalReserved = new LongAdder();
+        this.totalSoldCount = new LongAdder();
+        this.totalSoldValue = new LongAdder();
+        this.totalReservationValue = new LongAdder();
+    }
+
+    /**
+     * Keeps the reservation index and totals in step with the bags. Bags
+     * only call back while the write side of their stripe is held.
+     */
+    private class Owner implements BeanBagOwner
+    {
+        public void beforeChange(BeanBag bag) {
+        }
+
+        public int nextReservationNumber() {
+            return reservationNumbers.next();
+        }
+
+        public void reservationAdded(Reservation reservation) {
+            reservationIndex.put(reservation.getID(), reservation);
+            // Bags brought in with reservations already made must never
+            // have their numbers issued again
+            reservationNumbers.advanceTo(reservation.getID() + 1);
+        }
+
+        public void reservationRemoved(Reservation reservation) {
+            reservationIndex.remove(reservation.getID());
+        }
+
+        public void totalsChanged(int stock, int reserved, int soldCount,
+                                  int soldValue, int reservationValue) {
+            totalStock.add(stock);
+            totalReserved.add(reserved);
+            totalSoldCount.add(soldCount);
+            totalSoldValue.add(soldValue);
+            totalReservationValue.add(reservationValue);
+        }
+    }
+
+    /**
+     * Write the store in its original serialised form
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        TypedArrayList<BeanBag> bags = this.values();
+        ConcurrentHashMap<Long, BeanBag> bagMap =
+            new ConcurrentHashMap<Long, BeanBag>(bags.size());
+        for (int i=0; i < bags.size(); i++){
+            bagMap.put(bags.get(i).getKey(), bags.get(i));
+        }
+
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("beanBags", bagMap);
+        fields.put("reservationNumbers", this.reservationNumbers);
+        out.writeFields();
+    }
+
+    /**
+     * Rebuild the indexes and totals after deserialisation
+     */
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in)
+    throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        ConcurrentHashMap<Long, BeanBag> bagMap =
+            (ConcurrentHashMap<Long, BeanBag>) fields.get("beanBags", null);
+        this.reservationNumbers =
+            (ReservationSequence) fields.get("reservationNumbers", null);
+        this.initialise(4 * Runtime.getRuntime().availableProcessors());
+
+        for (BeanBag bag : bagMap.values()) {
+            this.segmentFor(bag.getKey()).bags.put(bag.getKey(), bag);
+            bag.setOwner(this.owner);
+        }
+    }
+
+    /**
+     * Retrieve a BeanBag object by ID string
+     *
+     * @param id    bean bag ID string to search for
+     * @return      BeanBag object if ID exists; null if not
+     */
+    public BeanBag findBeanBag(String id) {
+        return this.findBeanBag(BeanBagID.parse(id));
+    }
+
+    /**
+     * Retrieve a BeanBag object by numeric ID
+     *
+     * @param id    bean bag ID to search for
+     * @return      BeanBag object if ID exists; null if not
+     */
+    public BeanBag findBeanBag(long id) {
+        if (!BeanBagID.isValid(id)) {
+            return null;
+        }
+        return this.lookup(id);
+    }
+
+    /*
+     * Segment of the bag map holding an ID
+     */
+    private Segment segmentFor(long key) {
+        int h = (int) (key ^ (key >>> 32)) * 0x9E3779B9;
+        return this.segments[(h ^ (h >>> 16)) & (this.segments.length - 1)];
+    }
+
+    /*
+     * Find a bag by numeric ID without locking, falling back to the read
+     * lock if a writer changed the segment during the lookup. A lookup
+     * racing a resize can see the table half moved and fail, which the
+     * fallback covers too.
+     */
+    private BeanBag lookup(long key) {
+        Segment segment = this.segmentFor(key);
+        long stamp = segment.lock.tryOptimisticRead();
+        BeanBag bag = null;
+        try {
+            bag = segment.bags.get(key);
+        }
+        catch (RuntimeException err) {
+            stamp = 0;
+        }
+
+        if (!segment.lock.validate(stamp)) {
+            stamp = segment.lock.readLock();
+            try {
+                bag = segment.bags.get(key);
+            }
+            finally {
+                segment.lock.unlockRead(stamp);
+            }
+        }
+        return bag;
+    }
+
+    /*
+     * Add a bag under an ID unless the ID is taken, returning the bag
+     * holding it if it is
+     */
+    private BeanBag putIfAbsent(long key, BeanBag bag) {
+        Segment segment = this.segmentFor(key);
+        long stamp = segment.lock.writeLock();
+        try {
+            BeanBag existing = segment.bags.get(key);
+            if (existing == null) {
+                segment.bags.put(key, bag);
+            }
+            return existing;
+        }
+        finally {
+            segment.lock.unlockWrite(stamp);
+        }
+    }
+
+    /*
+     * Remove an ID if it still holds the given bag
+     */
+    private boolean remove(long key, BeanBag bag) {
+        Segment segment = this.segmentFor(key);
+        long stamp = segment.lock.writeLock();
+        try {
+            if (segment.bags.get(key) != bag) {
+                return false;
+            }
+            segment.bags.remove(key);
+            return true;
+        }
+        finally {
+            segment.lock.unlockWrite(stamp);
+        }
+    }
+
+    /*
+     * Every bag in the store, each segment read as it stood when reached
+     */
+    private TypedArrayList<BeanBag> values() {
+        TypedArrayList<BeanBag> bags = new TypedArrayList<BeanBag>();
+        for (int i=0; i < this.segments.length; i++){
+            Segment segment = this.segments[i];
+            long stamp = segment.lock.readLock();
+            try {
+                segment.bags.addValuesTo(bags);
+            }
+            finally {
+                segment.lock.unlockRead(stamp);
+            }
+        }
+        return bags;
+    }
+
+    /*
+     * Lock stripe guarding a bag. Stripes are chosen by the bag object
+     * rather than its ID, so replacing the ID does not move the bag to a
+     * different lock.
+     */
+    private StampedLock lockFor(BeanBag bag) {
+        int h = System.identityHashCode(bag) * 0x9E3779B9;
+        return this.stripes[(h ^ (h >>> 16)) & (this.stripes.length - 1)];
+    }
+
+    /*
+     * Read a number from a bag without locking, falling back to the read
+     * lock if a writer changed the bag's stripe during the read
+     */
+    private int readInt(BeanBag bag, ToIntFunction<BeanBag> field) {
+        StampedLock lock = this.lockFor(bag);
+        long stamp = lock.tryOptimisticRead();
+        int value = field.applyAsInt(bag);
+
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                value = field.applyAsInt(bag);
+            }
+            finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return value;
+    }
+
+    /*
+     * Read a field from a bag without locking, as for readInt
+     */
+    private <T> T read(BeanBag bag, Function<BeanBag, T> field) {
+        StampedLock lock = this.lockFor(bag);
+        long stamp = lock.tryOptimisticRead();
+        T value = field.apply(bag);
+
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                value = field.apply(bag);
+            }
+            finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return value;
+    }
+
+    /*
+     * Find a bag by numeric ID, throwing the interface's exceptions if the
+     * ID is illegal or unknown
+     */
+    private BeanBag getBeanBag(long id)
+    throws BeanBagIDNotRecognisedException, IllegalIDException {
+        if (!BeanBagID.isValid(id)) {
+            throw new IllegalIDException();
+        }
+
+        BeanBag bag = this.lookup(id);
+
+        if (bag == null) {
+            throw new BeanBagIDNotRecognisedException();
+        }
+        return bag;
+    }
+
+    /**
+     * Add bean bags to the store with the provided arguments.
+     *
+     * @see Store#addBeanBags(int, String, String, String, short, byte)
+     */
+    public void addBeanBags(int num, String manufacturer, String name,
+                            String id, short year, byte month)
+    throws IllegalNumberOfBeanBagsAddedException, BeanBagMismatchException,
+           IllegalIDException, InvalidMonthException {
+
+        this.addBeanBags(num, manufacturer, name, id, year, month, "");
+    }
+
+    /**
+     * Add bean bags to the store with the provided arguments. Adding to a
+     * bag that already exists merges the stock if the details match.
+     *
+     * @see Store#addBeanBags(int, String, String, String, short, byte, String)
+     */
+    public void addBeanBags(int num, String manufacturer, String name,
+                            String id, short year, byte month,
+                            String information)
+    throws IllegalNumberOfBeanBagsAddedException, BeanBagMismatchException,
+           IllegalIDException, InvalidMonthException {
+
+        if (num < 1) {
+            throw new IllegalNumberOfBeanBagsAddedException();
+        }
+
+        if (month < (byte)1 || (byte)12 < month ) {
+            throw new InvalidMonthException();
+        }
+
+        long key = BeanBagID.parse(id);
+        if (!BeanBagID.isValid(key)) {
+            throw new IllegalIDException();
+        }
+
+        BeanBag existingBag;
+        StampedLock lock;
+        long stamp;
+        while (true) {
+            existingBag = this.lookup(key);
+
+            if (existingBag == null) {
+                BeanBag bag = new BeanBag(num, manufacturer, name, id, year, month,
+                                          information);
+                // Attach before publishing so the totals never miss a sale
+                bag.setOwner(this.owner);
+                existingBag = this.putIfAbsent(key, bag);
+
+                if (existingBag == null) {
+                    return;
+                }
+                // Another thread added the same ID first - merge into theirs
+                bag.setOwner(null);
+            }
+
+            lock = this.lockFor(existingBag);
+            stamp = lock.writeLock();
+            // Emptied or reloaded since it was found; look again
+            if (this.lookup(key) == existingBag) {
+                break;
+            }
+            lock.unlockWrite(stamp);
+        }
+        try {
+            if (!existingBag.getName().equals(name) ||
+                !existingBag.getManufacturer().equals(manufacturer) ||
+                !existingBag.getInformation().equals(information)) {
+                throw new BeanBagMismatchException();
+            }
+            existingBag.setStockCount(existingBag.getStockCount() + num);
+        }
+        finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Method to set the price of bean bags with matching ID in stock.
+     *
+     * @see Store#setBeanBagPrice(String, int)
+     */
+    public void setBeanBagPrice(String id, int priceInPence)
+    throws InvalidPriceException, BeanBagIDNotRecognisedException, IllegalIDException {
+
+        this.setBeanBagPrice(BeanBagID.parse(id), priceInPence);
+    }
+
+    /**
+     * Method to set the price of bean bags by numeric ID.
+     *
+     * @see Store#setBeanBagPrice(long, int)
+     */
+    public void setBeanBagPrice(long id, int priceInPence)
+    throws InvalidPriceException, BeanBagIDNotRecognisedException, IllegalIDException {
+
+        if (!BeanBagID.isValid(id)) {
+            throw new IllegalIDException();
+        }
+        if (priceInPence < 1) {
+            throw new InvalidPriceException();
+        }
+
+        BeanBag bag;
+        StampedLock lock;
+        long stamp;
+        while (true) {
+            bag = this.getBeanBag(id);
+            lock = this.lockFor(bag);
+            stamp = lock.writeLock();
+            // Emptied or reloaded since it was found; look again
+            if (this.lookup(id) == bag) {
+                break;
+            }
+            lock.unlockWrite(stamp);
+        }
+        try {
+            bag.setPrice(priceInPence);
+        }
+        finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Method sells bean bags with the corresponding ID from the store.
+     *
+     * @see Store#sellBeanBags(int, String)
+     */
+    public void sellBeanBags(int num, String id)
+    throws BeanBagNotInStockException, InsufficientStockException,
+           IllegalNumberOfBeanBagsSoldException, PriceNotSetException,
+           BeanBagIDNotRecognisedException, IllegalIDException {
+
+        this.sellBeanBags(num, BeanBagID.parse(id));
+    }
+
+    /**
+     * Method sells bean bags by numeric ID.
+     *
+     * @see Store#sellBeanBags(int, long)
+     */
+    public void sellBeanBags(int num, long id)
+    throws BeanBagNotInStockException, InsufficientStockException,
+           IllegalNumberOfBeanBagsSoldException, PriceNotSetException,
+           BeanBagIDNotRecognisedException, IllegalIDException {
+
+        if (num < 1) {
+            throw new IllegalNumberOfBeanBagsSoldException();
+        }
+
+        BeanBag bag;
+        StampedLock lock;
+        long stamp;
+        while (true) {
+            bag = this.getBeanBag(id);
+            lock = this.lockFor(bag);
+            stamp = lock.writeLock();
+            // Emptied or reloaded since it was found; look again
+            if (this.lookup(id) == bag) {
+                break;
+            }
+            lock.unlockWrite(stamp);
+        }
+        try {
+            if (!bag.inStock()) {
+                throw new BeanBagNotInStockException();
+            }
+            if (bag.availableCount() < num) {
+                throw new InsufficientStockException();
+            }
+            if (!bag.hasPrice()) {
+                throw new PriceNotSetException();
+            }
+            bag.sell(num);
+        }
+        finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Reserve bean bags with the corresponding ID.
+     *
+     * @see Store#reserveBeanBags(int, String)
+     */
+    public int reserveBeanBags(int quantity, String id)
+    throws BeanBagNotInStockException, InsufficientStockException,
+           IllegalNumberOfBeanBagsReservedException, PriceNotSetException,
+           BeanBagIDNotRecognisedException, IllegalIDException {
+
+        return this.reserveBeanBags(quantity, BeanBagID.parse(id));
+    }
+
+    /**
+     * Reserve bean bags by numeric ID.
+     *
+     * @see Store#reserveBeanBags(int, long)
+     */
+    public int reserveBeanBags(int quantity, long id)
+    throws BeanBagNotInStockException, InsufficientStockException,
+           IllegalNumberOfBeanBagsReservedException, PriceNotSetException,
+           BeanBagIDNotRecognisedException, IllegalIDException {
+
+        if (quantity < 1) {
+            throw new IllegalNumberOfBeanBagsReservedException();
+        }
+
+        BeanBag bag;
+        StampedLock lock;
+        long stamp;
+        while (true) {
+            bag = this.getBeanBag(id);
+            lock = this.lockFor(bag);
+            stamp = lock.writeLock();
+            // Emptied or reloaded since it was found; look again
+            if (this.lookup(id) == bag) {
+                break;
+            }
+            lock.unlockWrite(stamp);
+        }
+        try {
+            if (!bag.inStock()) {
+                throw new BeanBagNotInStockException();
+            }
+            if (bag.availableCount() < quantity) {
+                throw new InsufficientStockException();
+            }
+            if (!bag.hasPrice()) {
+                throw new PriceNotSetException();
+            }
+            return bag.reserve(quantity);
+        }
+        finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Cancel an existing reservation ticket.
+     *
+     * @see Store#unreserveBeanBags(int)
+     */
+    public void unreserveBeanBags(int reservationNumber)
+    throws ReservationNumberNotRecognisedException {
+
+        Reservation reservation = this.reservationIndex.get(reservationNumber);
+        BeanBag bag = reservation == null ? null : reservation.getBag();
+
+        if (bag != null) {
+            StampedLock lock = this.lockFor(bag);
+            long stamp = lock.writeLock();
+            try {
+                // Another thread may have completed it while we waited
+                if (reservation.getBag() == bag) {
+                    bag.unreserve(reservation);
+                    return;
+                }
+            }
+            finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        throw new ReservationNumberNotRecognisedException();
+    }
+
+    /**
+     * Sell a bean bags from a reservation ticket.
+     *
+     * @see Store#sellBeanBags(int)
+     */
+    public void sellBeanBags(int reservationNumber)
+    throws ReservationNumberNotRecognisedException {
+
+        Reservation reservation = this.reservationIndex.get(reservationNumber);
+        BeanBag bag = reservation == null ? null : reservation.getBag();
+
+        if (bag != null) {
+            StampedLock lock = this.lockFor(bag);
+            long stamp = lock.writeLock();
+            try {
+                // Another thread may have completed it while we waited
+                if (reservation.getBag() == bag) {
+                    bag.sellReservation(reservation);
+                    return;
+                }
+            }
+            finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        throw new ReservationNumberNotRecognisedException();
+    }
+
+    /**
+     * Get the total of reserved and unreserved stock held by the store.
+     *
+     * @return      number of bean bags in this store
+     */
+    public int beanBagsInStock() {
+        return this.totalStock.intValue();
+    }
+
+    /**
+     * Get the total number of reserved bean bags
+     *
+     * @return      number of reserved bean bags in this store
+     */
+    public int reservedBeanBagsInStock() {
+        return this.totalReserved.intValue();
+    }
+
+    /**
+     * Get the total stock held by the store for a specific bean bag model.
+     *
+     * @see Store#beanBagsInStock(String)
+     */
+    public int beanBagsInStock(String id)
+    throws BeanBagIDNotRecognisedException, IllegalIDException {
+        return this.beanBagsInStock(BeanBagID.parse(id));
+    }
+
+    /**
+     * Get the total stock held by the store for a numeric bean bag ID.
+     *
+     * @see Store#beanBagsInStock(long)
+     */
+    public int beanBagsInStock(long id)
+    throws BeanBagIDNotRecognisedException, IllegalIDException {
+        BeanBag bag = this.getBeanBag(id);
+
+        return this.readInt(bag, BeanBag::getStockCount);
+    }
+
+    /**
+     * Write the store's contents into a binary snapshot file. Each bag is
+     * written under the read side of its stripe, so every record is
+     * consistent, but callers should stop mutating the store while it is
+     * saved if the snapshot as a whole must be. The file is only replaced
+     * once the new snapshot has been written in full.
+     *
+     * @param filename      location of the file to be saved
+     * @throws IOException  if there is a problem experienced when trying to save
+     *                      the store contents to the file
+     */
+    public void saveStoreContents(String filename)
+    throws IOException {
+        TypedArrayList<BeanBag> bags = this.values();
+        // Written alongside and moved over, so a failed save leaves the
+        // last one whole. The store keeps no journal, so has no LSN
+        String temporary = filename + ".tmp";
+        try {
+            SnapshotWriter writer = new SnapshotWriter(temporary, bags.size(),
+                this.reservationNumbers.getHighWater(), 0, SnapshotCodecs.NONE);
+            try {
+                for (int i=0; i < bags.size(); i++){
+                    BeanBag bag = bags.get(i);
+                    StampedLock lock = this.lockFor(bag);
+                    long stamp = lock.readLock();
+                    try {
+                        writer.writeBag(bag);
+                    }
+                    finally {
+                        lock.unlockRead(stamp);
+                    }
+                }
+            }
+            finally {
+                writer.close();
+            }
+            SnapshotWriter.moveIntoPlace(temporary, filename);
+        }
+        catch (IOException | RuntimeException err) {
+            SnapshotWriter.discard(temporary);
+            throw err;
+        }
+    }
+
+    /**
+     * Load the store's contents from a binary snapshot, or from a
+     * serialised file written by this class or by {@link Store}, replacing
+     * the current contents.
+     *
+     * @param filename      location of the file to be loaded
+     * @throws IOException  if there is a problem experienced when trying to
+     *                      load the store contents from the file
+     * @see #loadStoreContents(String, int)
+     */
+    public void loadStoreContents(String filename)
+    throws IOException, ClassNotFoundException {
+        this.loadStoreContents(filename, SnapshotReader.DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Load the store's contents from a file, reading it through a buffer
+     * of the given size. Binary snapshots are decoded one bag at a time,
+     * and the store is only replaced once every bag has been read, so it
+     * is left as it was if the snapshot turns out to be damaged. The
+     * reservation sequence is moved past the loaded store's numbers before
+     * anything is replaced, holding off reservations while it moves, so a
+     * reservation made during the load never reuses a loaded number.
+     *
+     * @param filename      location of the file to be loaded
+     * @param bufferSize    bytes read from the file at a time; very large
+     *                      snapshots are memory-mapped instead
+     * @throws IOException  if there is a problem experienced when trying to
+     *                      load the store contents from the file
+     */
+    public void loadStoreContents(String filename, int bufferSize)
+    throws IOException, ClassNotFoundException {
+        if (SnapshotReader.isSnapshot(filename)) {
+            SnapshotReader reader = new SnapshotReader(filename, bufferSize);
+            try {
+                if (reader.isDelta()) {
+                    throw new IOException(filename + " is a delta snapshot");
+                }
+
+                // Read every bag before replacing the contents, so a
+                // damaged snapshot leaves the store as it was
+                TypedArrayList<BeanBag> bags =
+                    new TypedArrayList<BeanBag>(reader.getBagCapacity());
+                for (int i=0; i < reader.getBagCount(); i++){
+                    bags.add(reader.readBag());
+                }
+
+                // Moved first, so nothing reserved while the contents are
+                // replaced is given a number the snapshot uses
+                this.reservationNumbers.advanceTo(reader.getReservationHighWater());
+                this.empty();
+                for (int i=0; i < bags.size(); i++){
+                    this.insert(bags.get(i));
+                }
+            }
+            finally {
+                reader.close();
+            }
+            return;
+        }
+
+        Object loaded;
+
+        ObjectInputStream objectInput = new ObjectInputStream(
+            new BufferedInputStream(new FileInputStream(filename), bufferSize));
+        try {
+            loaded = objectInput.readObject();
+        }
+        finally {
+            objectInput.close();
+        }
+
+        if (loaded instanceof ConcurrentStore) {
+            ConcurrentStore loadedStore = (ConcurrentStore) loaded;
+            this.reservationNumbers.advanceTo(loadedStore.reservationNumbers.getHighWater());
+            this.empty();
+
+            TypedArrayList<BeanBag> loadedArray = loadedStore.values();
+            for (int i=0; i < loadedArray.size(); i++){
+                this.insert(loadedArray.get(i));
+            }
+        }
+        else if (loaded instanceof Store) {
+            Store loadedStore = (Store) loaded;
+            TypedArrayList<BeanBag> loadedArray = loadedStore.getBeanBagsArray();
+            this.reservationNumbers.advanceTo(loadedStore.getReservationHighWater());
+            this.empty();
+
+            for (int i=0; i < loadedArray.size(); i++){
+                this.insert(loadedArray.get(i));
+            }
+        }
+        else {
+            throw new IOException("File does not contain a bean bag store");
+        }
+    }
+
+    /*
+     * Adopt a loaded bag; the owner moves the reservation sequence past its
+     * reservations so new numbers cannot collide with them
+     */
+    private void insert(BeanBag bag) {
+        StampedLock lock = this.lockFor(bag);
+        long stamp = lock.writeLock();
+        try {
+            bag.setOwner(this.owner);
+            Segment segment = this.segmentFor(bag.getKey());
+            long put = segment.lock.writeLock();
+            try {
+                segment.bags.put(bag.getKey(), bag);
+            }
+            finally {
+                segment.lock.unlockWrite(put);
+            }
+        }
+        finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * @return      number above every reservation number this store has
+     *              issued or holds
+     */
+    public int getReservationHighWater() {
+        return this.reservationNumbers.getHighWater();
+    }
+
+    /**
+     * Count unique bean bag models held by this store.
+     *
+     * @return      number of different bean bags in the store
+     */
+    public int getNumberOfDifferentBeanBagsInStock() {
+        int count = 0;
+        for (int i=0; i < this.segments.length; i++){
+            Segment segment = this.segments[i];
+            long stamp = segment.lock.readLock();
+            try {
+                count += segment.bags.size();
+            }
+            finally {
+                segment.lock.unlockRead(stamp);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Count total number of sold bean bags.
+     *
+     * @return      number of bean bags sold by the store
+     */
+    public int getNumberOfSoldBeanBags() {
+        return this.totalSoldCount.intValue();
+    }
+
+    /**
+     * Count total number of sold bean bags for a particular model ID.
+     *
+     * @see Store#getNumberOfSoldBeanBags(String)
+     */
+    public int getNumberOfSoldBeanBags(String id) throws
+    BeanBagIDNotRecognisedException, IllegalIDException {
+        return this.getNumberOfSoldBeanBags(BeanBagID.parse(id));
+    }
+
+    /**
+     * Count total number of sold bean bags for a numeric model ID.
+     *
+     * @see Store#getNumberOfSoldBeanBags(long)
+     */
+    public int getNumberOfSoldBeanBags(long id) throws
+    BeanBagIDNotRecognisedException, IllegalIDException {
+        BeanBag bag = this.getBeanBag(id);
+
+        return this.readInt(bag, BeanBag::getSoldCount);
+    }
+
+    /**
+     * Count total income generated by all bean bag sales.
+     *
+     * @return      total cost of bean bags sold (in pence)
+     */
+    public int getTotalPriceOfSoldBeanBags() {
+        return this.totalSoldValue.intValue();
+    }
+
+    /**
+     * Count total income generated by a specific bean bag model.
+     *
+     * @see Store#getTotalPriceOfSoldBeanBags(String)
+     */
+    public int getTotalPriceOfSoldBeanBags(String id)
+    throws BeanBagIDNotRecognisedException, IllegalIDException {
+        return this.getTotalPriceOfSoldBeanBags(BeanBagID.parse(id));
+    }
+
+    /**
+     * Count total income generated by a numeric bean bag model ID.
+     *
+     * @see Store#getTotalPriceOfSoldBeanBags(long)
+     */
+    public int getTotalPriceOfSoldBeanBags(long id)
+    throws BeanBagIDNotRecognisedException, IllegalIDException {
+        BeanBag bag = this.getBeanBag(id);
+
+        return this.readInt(bag, BeanBag::getSoldValue);
+    }
+
+    /**
+     * Count total value of all reserved bean bags.
+     *
+     * @return      total cost of reserved bean bags (in pence)
+     */
+    public int getTotalPriceOfReservedBeanBags() {
+        return this.totalReservationValue.intValue();
+    }
+
+    /**
+     * Retrieve description of a particular bean bag model.
+     *
+     * @see Store#getBeanBagDetails(String)
+     */
+    public String getBeanBagDetails(String id)
+    throws BeanBagIDNotRecognisedException, IllegalIDException {
+        return this.getBeanBagDetails(BeanBagID.parse(id));
+    }
+
+    /**
+     * Retrieve description of a bean bag model by numeric ID.
+     *
+     * @see Store#getBeanBagDetails(long)
+     */
+    public String getBeanBagDetails(long id)
+    throws BeanBagIDNotRecognisedException, IllegalIDException {
+        BeanBag bag = this.getBeanBag(id);
+
+        return this.read(bag, BeanBag::getInformation);
+    }
+
+    /**
+     * Empty all contents from the store.
+     */
+    public void empty() {
+        TypedArrayList<BeanBag> bags = this.values();
+        for (int i=0; i < bags.size(); i++){
+            BeanBag bag = bags.get(i);
+            StampedLock lock = this.lockFor(bag);
+            long stamp = lock.writeLock();
+            try {
+                if (this.remove(bag.getKey(), bag)) {
+                    bag.setOwner(null);
+                }
+            }
+            finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+    }
+
+    /**
+     * Reset cost tracking of all bean bags.
+     *
+     * Note that stock levels and reservations are unaffected.
+     */
+    public void resetSaleAndCostTracking() {
+        TypedArrayList<BeanBag> bags = this.values();
+        for (int i=0; i < bags.size(); i++){
+            BeanBag bag = bags.get(i);
+            StampedLock lock = this.lockFor(bag);
+            long stamp = lock.writeLock();
+            try {
+                bag.reset();
+            }
+            finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+    }
+
+    /**
+     * Replace a bean bag's ID number.
+     *
+     * @see Store#replace(String, String)
+     */
+    public void replace(String oldId, String replacementId)
+    throws BeanBagIDNotRecognisedException, IllegalIDException {
+
+        long oldKey = BeanBagID.parse(oldId);
+        long replacementKey = BeanBagID.parse(replacementId);
+
+        if (!BeanBagID.isValid(oldKey) || !BeanBagID.isValid(replacementKey)) {
+            throw new IllegalIDException();
+        }
+
+        BeanBag bag = this.getBeanBag(oldKey);
+
+        StampedLock lock = this.lockFor(bag);
+        long stamp = lock.writeLock();
+        try {
+            // Another thread may have replaced or removed it meanwhile
+            if (this.lookup(oldKey) != bag) {
+                throw new BeanBagIDNotRecognisedException();
+            }
+            // Claiming the new ID atomically stops two bags taking it
+            if (this.putIfAbsent(replacementKey, bag) != null) {
+                throw new IllegalIDException();
+            }
+
+            bag.setId(replacementId);
+            this.remove(oldKey, bag);
+        }
+        finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+}
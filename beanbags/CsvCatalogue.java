@@ -0,0 +1,356 @@
+package beanbags;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Exports the catalogue as CSV, one bag per row under a header row of
+ * {@link CatalogueColumn} headings, and imports it back.
+ * <p>
+ * Both directions stream through a fixed NIO buffer, so neither holds
+ * more than a row of text at a time. Fields holding commas, quotes or line
+ * breaks are quoted, with quotes doubled. A price that is not set is left
+ * empty.
+ *
+ * @author Max Beech, Louis Haddrell
+ */
+public final class CsvCatalogue
+{
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private CsvCatalogue() {
+    }
+
+    /**
+     * Write every bag in the store to a CSV file
+     *
+     * @param store         store to export
+     * @param filename      location of the CSV file, replaced if it exists
+     * @return              number of bags written
+     * @throws IOException  if the file cannot be written
+     */
+    public static int export(Store store, String filename) throws IOException {
+        TypedArrayList<BeanBag> bags = store.getBeanBagsArray();
+        CatalogueColumn[] columns = CatalogueColumn.values();
+
+        FileChannel channel = FileChannel.open(Paths.get(filename),
+                                               StandardOpenOption.CREATE,
+                                               StandardOpenOption.WRITE,
+                                               StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            StringBuilder row = new StringBuilder();
+
+            for (int c=0; c < columns.length; c++){
+                row.append(c == 0 ? "" : ",").append(columns[c].getHeading());
+            }
+            put(channel, buffer, row.append('\n'));
+
+            for (int i=0; i < bags.size(); i++){
+                BeanBag bag = bags.get(i);
+                row.setLength(0);
+                for (int c=0; c < columns.length; c++){
+                    if (c > 0) {
+                        row.append(',');
+                    }
+                    if (columns[c].isText()) {
+                        appendText(row, columns[c].textOf(bag));
+                    }
+                    else if (columns[c] != CatalogueColumn.PRICE || bag.getPrice() > 0) {
+                        row.append(columns[c].numberOf(bag));
+                    }
+                }
+                put(channel, buffer, row.append('\n'));
+            }
+
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        }
+        finally {
+            channel.close();
+        }
+        return bags.size();
+    }
+
+    /**
+     * Add every bag in a CSV file to the store, through
+     * {@link Store#ingest(Iterable)}. Columns are found by their headings,
+     * in any order; id, manufacturer, name, year, month and stock are
+     * needed, price and information are used if present, and any other
+     * columns are ignored. Reservations and sales are not carried over:
+     * reserved bags come back as plain stock, and bags with no stock are
+     * rejected as addBeanBags would reject them.
+     *
+     * @param store         store to add the bags to
+     * @param filename      location of the CSV file
+     * @return              counts of added and merged rows, and the
+     *                      position and reason of every rejected row
+     * @throws IOException  if the file cannot be read, or a row is not
+     *                      well formed
+     */
+    public static IngestResult importInto(Store store, String filename)
+    throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(filename),
+                                               StandardOpenOption.READ);
+        try {
+            RowIterator rows = new RowIterator(channel);
+            return store.ingest(() -> rows);
+        }
+        catch (UncheckedIOException err) {
+            throw err.getCause();
+        }
+        finally {
+            channel.close();
+        }
+    }
+
+    /*
+     * Append a text field, quoted if it needs to be
+     */
+    private static void appendText(StringBuilder row, String value) {
+        if (value == null) {
+            return;
+        }
+        boolean quote = false;
+        for (int i=0; i < value.length() && !quote; i++){
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            row.append(value);
+            return;
+        }
+
+        row.append('"');
+        for (int i=0; i < value.length(); i++){
+            char c = value.charAt(i);
+            row.append(c);
+            if (c == '"') {
+                row.append('"');
+            }
+        }
+        row.append('"');
+    }
+
+    /*
+     * Encode a row into the buffer, writing the buffer out as it fills
+     */
+    private static void put(FileChannel channel, ByteBuffer buffer, CharSequence row)
+    throws IOException {
+        byte[] bytes = row.toString().getBytes(StandardCharsets.UTF_8);
+        int offset = 0;
+        while (offset < bytes.length) {
+            if (!buffer.hasRemaining()) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                buffer.clear();
+            }
+            int count = Math.min(buffer.remaining(), bytes.length - offset);
+            buffer.put(bytes, offset, count);
+            offset += count;
+        }
+    }
+
+    /*
+     * Parses rows one at a time out of a file read through a fixed buffer.
+     * The delimiters are all ASCII, which never appears inside a multi-byte
+     * UTF-8 character, so fields are split on bytes and only decoded once
+     * complete.
+     */
+    private static class RowIterator implements Iterator<BeanBagRecord>
+    {
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+        private final int[] positions;
+        private final String[] fields;
+        private byte[] field;
+        private int fieldLength;
+        private int rowNumber;
+        private boolean finished;
+        private BeanBagRecord next;
+
+        RowIterator(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            this.buffer.flip();
+            this.field = new byte[256];
+
+            String[] headings = this.readRow();
+            if (headings == null) {
+                throw new EOFException("CSV catalogue has no header row");
+            }
+            this.positions = new int[CatalogueColumn.values().length];
+            Arrays.fill(this.positions, -1);
+            for (int i=0; i < headings.length; i++){
+                CatalogueColumn column = CatalogueColumn.forHeading(headings[i]);
+                if (column != null) {
+                    this.positions[column.ordinal()] = i;
+                }
+            }
+
+            CatalogueColumn[] needed = { CatalogueColumn.ID, CatalogueColumn.MANUFACTURER,
+                                         CatalogueColumn.NAME, CatalogueColumn.YEAR,
+                                         CatalogueColumn.MONTH, CatalogueColumn.STOCK };
+            for (CatalogueColumn column : needed) {
+                if (this.positions[column.ordinal()] < 0) {
+                    throw new IOException("CSV catalogue has no " +
+                                          column.getHeading() + " column");
+                }
+            }
+            this.fields = new String[headings.length];
+        }
+
+        public boolean hasNext() {
+            if (this.next == null && !this.finished) {
+                try {
+                    this.next = this.parseRecord();
+                }
+                catch (IOException err) {
+                    throw new UncheckedIOException(err);
+                }
+                this.finished = this.next == null;
+            }
+            return this.next != null;
+        }
+
+        public BeanBagRecord next() {
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            BeanBagRecord record = this.next;
+            this.next = null;
+            return record;
+        }
+
+        /*
+         * Turn the next row into a record, or return null at the end
+         */
+        private BeanBagRecord parseRecord() throws IOException {
+            String[] row = this.readRow();
+            if (row == null) {
+                return null;
+            }
+            if (row.length != this.fields.length) {
+                throw new IOException("CSV catalogue row " + this.rowNumber + " has " +
+                                      row.length + " fields, not " + this.fields.length);
+            }
+
+            try {
+                String price = this.field(row, CatalogueColumn.PRICE);
+                String information = this.field(row, CatalogueColumn.INFORMATION);
+                return new BeanBagRecord(
+                    Integer.parseInt(this.field(row, CatalogueColumn.STOCK)),
+                    this.field(row, CatalogueColumn.MANUFACTURER),
+                    this.field(row, CatalogueColumn.NAME),
+                    this.field(row, CatalogueColumn.ID),
+                    Short.parseShort(this.field(row, CatalogueColumn.YEAR)),
+                    Byte.parseByte(this.field(row, CatalogueColumn.MONTH)),
+                    information == null ? "" : information,
+                    price == null || price.isEmpty() ? -1 : Integer.parseInt(price));
+            }
+            catch (NumberFormatException err) {
+                throw new IOException("CSV catalogue row " + this.rowNumber +
+                                      " has a bad number: " + err.getMessage());
+            }
+        }
+
+        /*
+         * Field of a row for a column, or null if the file has no such column
+         */
+        private String field(String[] row, CatalogueColumn column) {
+            int position = this.positions[column.ordinal()];
+            return position < 0 ? null : row[position];
+        }
+
+        /*
+         * Split the next row into fields, or return null at the end of the
+         * file
+         */
+        private String[] readRow() throws IOException {
+            int b = this.nextByte();
+            while (b == '\n' || b == '\r') {
+                b = this.nextByte();
+            }
+            if (b < 0) {
+                return null;
+            }
+            this.rowNumber++;
+
+            TypedArrayList<String> row = new TypedArrayList<String>(
+                this.fields == null ? 16 : this.fields.length);
+            while (true) {
+                this.fieldLength = 0;
+                if (b == '"') {
+                    b = this.nextByte();
+                    while (true) {
+                        if (b < 0) {
+                            throw new EOFException("CSV catalogue ends inside a quoted field");
+                        }
+                        if (b == '"') {
+                            b = this.nextByte();
+                            if (b != '"') {
+                                break;
+                            }
+                        }
+                        this.append(b);
+                        b = this.nextByte();
+                    }
+                }
+                else {
+                    while (b >= 0 && b != ',' && b != '\n' && b != '\r') {
+                        this.append(b);
+                        b = this.nextByte();
+                    }
+                }
+                row.add(new String(this.field, 0, this.fieldLength, StandardCharsets.UTF_8));
+
+                if (b != ',') {
+                    break;
+                }
+                b = this.nextByte();
+            }
+
+            String[] fields = new String[row.size()];
+            for (int i=0; i < fields.length; i++){
+                fields[i] = row.get(i);
+            }
+            return fields;
+        }
+
+        private void append(int b) {
+            if (this.fieldLength == this.field.length) {
+                this.field = Arrays.copyOf(this.field, this.field.length * 2);
+            }
+            this.field[this.fieldLength++] = (byte) b;
+        }
+
+        /*
+         * Next byte of the file, or -1 at the end
+         */
+        private int nextByte() throws IOException {
+            if (!this.buffer.hasRemaining()) {
+                this.buffer.clear();
+                int count = this.channel.read(this.buffer);
+                this.buffer.flip();
+                if (count < 0) {
+                    return -1;
+                }
+            }
+            return this.buffer.get() & 0xFF;
+        }
+    }
+}
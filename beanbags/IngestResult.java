@@ -0,0 +1,110 @@
+package beanbags;
+
+/**
+ * Outcome of a bulk ingest. Rather than one exception per bad record, the
+ * failures are kept as the position of each rejected record in the batch
+ * together with the reason, in two compact parallel primitive lists.
+ *
+ * @author Max Beech, Louis Haddrell
+ */
+public class IngestResult
+{
+    /**
+     * Why a record was rejected, matching the exception a single
+     * addBeanBags call would have thrown
+     */
+    public enum Reason
+    {
+        /** Number added is less than 1 (IllegalNumberOfBeanBagsAddedException) */
+        ILLEGAL_NUMBER,
+        /** Month is not in the range 1 to 12 (InvalidMonthException) */
+        INVALID_MONTH,
+        /** ID is not a positive hexadecimal number (IllegalIDException) */
+        ILLEGAL_ID,
+        /** ID exists with different details (BeanBagMismatchException) */
+        MISMATCH
+    }
+
+    private static final Reason[] REASONS = Reason.values();
+
+    private int recordCount;
+    private int addedCount;
+    private int mergedCount;
+    private IntArrayList failedRecords;
+    // Ordinal of each failure's reason
+    private IntArrayList failureReasons;
+
+    IngestResult() {
+        this.failedRecords = new IntArrayList(8);
+        this.failureReasons = new IntArrayList(8);
+    }
+
+    /*
+     * Count the next record of the batch as added as a new bag
+     */
+    void added() {
+        this.recordCount++;
+        this.addedCount++;
+    }
+
+    /*
+     * Count the next record of the batch as merged into an existing bag
+     */
+    void merged() {
+        this.recordCount++;
+        this.mergedCount++;
+    }
+
+    /*
+     * Count the next record of the batch as rejected for a reason
+     */
+    void failed(Reason reason) {
+        this.failedRecords.add(this.recordCount);
+        this.failureReasons.add(reason.ordinal());
+        this.recordCount++;
+    }
+
+    /**
+     * @return      number of records read from the batch
+     */
+    public int getRecordCount() {
+        return this.recordCount;
+    }
+
+    /**
+     * @return      number of records added as new bean bag models
+     */
+    public int getAddedCount() {
+        return this.addedCount;
+    }
+
+    /**
+     * @return      number of records merged into stock of an existing model
+     */
+    public int getMergedCount() {
+        return this.mergedCount;
+    }
+
+    /**
+     * @return      number of records rejected
+     */
+    public int getFailureCount() {
+        return this.failedRecords.size();
+    }
+
+    /**
+     * @param i     index of the failure, from 0 to getFailureCount() - 1
+     * @return      position in the batch of the rejected record
+     */
+    public int getFailedRecord(int i) {
+        return this.failedRecords.get(i);
+    }
+
+    /**
+     * @param i     index of the failure, from 0 to getFailureCount() - 1
+     * @return      why the record was rejected
+     */
+    public Reason getFailureReason(int i) {
+        return REASONS[this.failureReasons.get(i)];
+    }
+}
@@ -0,0 +1,169 @@
+package beanbags;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Stores primitive int values in an array list, so reservation numbers and
+ * counters can be kept without boxing each one.
+ *
+ * @author Max Beech, Louis Haddrell
+ * @version 1.0
+ */
+public class IntArrayList implements Serializable
+{
+    private static final long serialVersionUID = 6930029781433453563L;
+
+    private int[] array;
+    private int elementsUsed;
+
+    /**
+     * Creates initial instance of an IntArrayList with no contents
+     */
+    public IntArrayList() {
+        this(10);
+    }
+
+    /**
+     * Creates an empty IntArrayList able to hold the given number of values
+     * before it needs to grow
+     *
+     * @param capacity  number of values expected
+     */
+    public IntArrayList(int capacity) {
+        this.array = new int[Math.max(capacity, 1)];
+        this.elementsUsed = 0;
+    }
+
+    /**
+     * Method adds the argument to the end of the list
+     *
+     * @param value     value to be added
+     */
+    public void add(int value) {
+        if (this.elementsUsed == this.array.length)
+            this.grow(this.elementsUsed + 1);
+        this.array[this.elementsUsed] = value;
+        this.elementsUsed++;
+    }
+
+    /**
+     * Method adds every value of another list to the end of this one
+     *
+     * @param other     list of values to be added
+     */
+    public void addAll(IntArrayList other) {
+        this.ensureCapacity(this.elementsUsed + other.elementsUsed);
+        System.arraycopy(other.array, 0, this.array, this.elementsUsed,
+                         other.elementsUsed);
+        this.elementsUsed += other.elementsUsed;
+    }
+
+    /**
+     * Method grows the internal array so that it can hold at least the
+     * given number of values without resizing again
+     *
+     * @param capacity  number of values the list should be able to hold
+     */
+    public void ensureCapacity(int capacity) {
+        if (capacity > this.array.length)
+            this.grow(capacity);
+    }
+
+    /**
+     * Method shrinks the internal array to the number of values stored
+     */
+    public void trimToSize() {
+        if (this.elementsUsed < this.array.length)
+            this.array = Arrays.copyOf(this.array, Math.max(this.elementsUsed, 1));
+    }
+
+    /*
+     * Method at least doubles the capacity of the array
+     */
+    private void grow(int capacity) {
+        this.array = Arrays.copyOf(this.array,
+                                   Math.max(capacity, this.array.length * 2));
+    }
+
+    /**
+     * Method returns the value at the index provided
+     *
+     * @param index index of value in list to be returned
+     * @return value at corresponding index
+     * @throws IndexOutOfBoundsException if the index is invalid
+     */
+    public int get(int index) {
+        if ((index < 0) || (index >= this.elementsUsed))
+            throw new IndexOutOfBoundsException("Index: " + index);
+        return this.array[index];
+    }
+
+    /**
+     * Method replaces the value at the index provided
+     *
+     * @param index index of value in list to be replaced
+     * @param value new value
+     * @throws IndexOutOfBoundsException if the index is invalid
+     */
+    public void set(int index, int value) {
+        if ((index < 0) || (index >= this.elementsUsed))
+            throw new IndexOutOfBoundsException("Index: " + index);
+        this.array[index] = value;
+    }
+
+    /**
+     * Method removes the value at the index provided, keeping the order of
+     * the remaining values
+     *
+     * @param index index of value in list to be removed
+     * @return value removed
+     * @throws IndexOutOfBoundsException if the index is invalid
+     */
+    public int remove(int index) {
+        int value = this.get(index);
+        System.arraycopy(this.array,index+1,this.array,index,this.elementsUsed-(index+1));
+        this.elementsUsed--;
+        return value;
+    }
+
+    /**
+     * Method removes the value at the index provided by moving the last
+     * value into its place, so it does not keep the order of the list
+     *
+     * @param index index of value in list to be removed
+     * @return value removed
+     * @throws IndexOutOfBoundsException if the index is invalid
+     */
+    public int removeSwap(int index) {
+        int value = this.get(index);
+        this.elementsUsed--;
+        this.array[index] = this.array[this.elementsUsed];
+        return value;
+    }
+
+    /**
+     * Method removes every value from the list, keeping its capacity
+     */
+    public void clear() {
+        this.elementsUsed = 0;
+    }
+
+    /**
+     * Method returns the total number of values in the list
+     *
+     * @return number of values in the list
+     */
+    public int size(){
+        return this.elementsUsed;
+    }
+
+    /**
+     * Method copies the values into a new array of exactly the right size
+     *
+     * @return array of the values in list order
+     */
+    public int[] toArray() {
+        return Arrays.copyOf(this.array, this.elementsUsed);
+    }
+}
@@ -0,0 +1,185 @@
+package beanbags;
+
+
+/**
+ * Hash map from primitive int keys to object values using open addressing
+ * with linear probing, so no key is ever boxed. A slot is empty when its
+ * value is <code>null</code>, so <code>null</code> values are not supported.
+ *
+ * @author Max Beech, Louis Haddrell
+ * @version 1.0
+ */
+public class IntObjectHashMap<V>
+{
+    private int[] keys;
+    private Object[] values;
+    private int size;
+
+    /**
+     * Creates an empty map
+     */
+    public IntObjectHashMap() {
+        this(16);
+    }
+
+    /**
+     * Creates an empty map able to hold the given number of entries before
+     * it needs to grow
+     *
+     * @param expected  number of entries expected
+     */
+    public IntObjectHashMap(int expected) {
+        int capacity = 16;
+        while (capacity * 3 / 4 < expected) {
+            capacity *= 2;
+        }
+        this.keys = new int[capacity];
+        this.values = new Object[capacity];
+        this.size = 0;
+    }
+
+    /*
+     * Spread the key bits so sequential keys do not cluster
+     */
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Method returns the value stored against the key, or <code>null</code>
+     * if the key is not present
+     *
+     * @param key   key to look up
+     * @return      value for the key
+     */
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        int mask = this.keys.length - 1;
+        int i = hash(key) & mask;
+
+        while (this.values[i] != null) {
+            if (this.keys[i] == key) {
+                return (V) this.values[i];
+            }
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * Method stores the value against the key, replacing any previous value
+     *
+     * @param key       key to store against
+     * @param value     non-null value to store
+     * @return          previous value for the key, or <code>null</code>
+     */
+    @SuppressWarnings("unchecked")
+    public V put(int key, V value) {
+        int mask = this.keys.length - 1;
+        int i = hash(key) & mask;
+
+        while (this.values[i] != null) {
+            if (this.keys[i] == key) {
+                V previous = (V) this.values[i];
+                this.values[i] = value;
+                return previous;
+            }
+            i = (i + 1) & mask;
+        }
+
+        this.keys[i] = key;
+        this.values[i] = value;
+        this.size++;
+
+        if (this.size > this.keys.length * 3 / 4) {
+            this.resize();
+        }
+        return null;
+    }
+
+    /**
+     * Method removes the key from the map
+     *
+     * @param key   key to remove
+     * @return      value that was stored, or <code>null</code> if absent
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(int key) {
+        int mask = this.keys.length - 1;
+        int i = hash(key) & mask;
+
+        while (this.values[i] != null) {
+            if (this.keys[i] == key) {
+                V previous = (V) this.values[i];
+                this.shiftBack(i);
+                this.size--;
+                return previous;
+            }
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    /*
+     * Close the gap left at index by moving later entries of the probe run
+     * back, so lookups never need tombstones
+     */
+    private void shiftBack(int gap) {
+        int mask = this.keys.length - 1;
+        int i = (gap + 1) & mask;
+
+        while (this.values[i] != null) {
+            int home = hash(this.keys[i]) & mask;
+            // Move the entry if its home slot is not between gap and i
+            if (((i - home) & mask) >= ((i - gap) & mask)) {
+                this.keys[gap] = this.keys[i];
+                this.values[gap] = this.values[i];
+                gap = i;
+            }
+            i = (i + 1) & mask;
+        }
+        this.values[gap] = null;
+    }
+
+    /*
+     * Method doubles the capacity of the table and rehashes every entry
+     */
+    private void resize() {
+        int[] oldKeys = this.keys;
+        Object[] oldValues = this.values;
+        int mask = oldKeys.length * 2 - 1;
+
+        this.keys = new int[oldKeys.length * 2];
+        this.values = new Object[oldValues.length * 2];
+
+        for (int j = 0; j < oldValues.length; j++) {
+            if (oldValues[j] != null) {
+                int i = hash(oldKeys[j]) & mask;
+                while (this.values[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                this.keys[i] = oldKeys[j];
+                this.values[i] = oldValues[j];
+            }
+        }
+    }
+
+    /**
+     * Method removes every entry from the map
+     */
+    public void clear() {
+        this.keys = new int[16];
+        this.values = new Object[16];
+        this.size = 0;
+    }
+
+    /**
+     * Method returns the number of entries in the map
+     *
+     * @return number of entries
+     */
+    public int size() {
+        return this.size;
+    }
+}
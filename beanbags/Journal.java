@@ -0,0 +1,290 @@
+package beanbags;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only journal of store mutations.
+ * <p>
+ * After a short header, each record is framed by its length and a CRC32C
+ * of its bytes, so a record torn by a crash is detected and dropped on
+ * recovery. Every record gets the next log sequence number (LSN).
+ * <p>
+ * Records are buffered and forced to disk in groups: a sync writes every
+ * record buffered so far with a single fsync. With a group size of 1
+ * every record is durable before {@link #log} returns, but callers on
+ * other threads that log while an fsync is under way share the next one
+ * instead of each waiting for their own. Larger group sizes only sync once
+ * that many records are waiting, or when {@link #sync()} is called,
+ * trading the last few records in a crash for far fewer fsyncs.
+ * <p>
+ * Once a write or sync fails, the journal takes no more records, as the
+ * end of the file is no longer known; the records that failed may or may
+ * not be on disk. Recovering from the file and opening a new journal
+ * carries on from whatever was written.
+ * <p>
+ * The journal only grows while it is open. Once a snapshot holding every
+ * record is safely on disk, {@link #restart} cuts it back to its header,
+ * and the next record carries on from the snapshot's LSN.
+ *
+ * @author Max Beech, Louis Haddrell
+ */
+class Journal
+{
+    static final int MAGIC = 0x42424A4C;
+    static final short VERSION = 1;
+    static final int HEADER_SIZE = 6;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final FileChannel channel;
+    private final int groupSize;
+    private final CRC32C checksum;
+    private final Object syncLock;
+
+    // Guarded by this: records waiting for the next sync
+    private ByteBuffer pending;
+    private int pendingRecords;
+    private long nextLsn;
+
+    // Guarded by syncLock: buffer being written and what is on disk
+    private ByteBuffer writing;
+    private volatile long durableLsn;
+    // First write that failed, after which the file's end is unknown
+    private volatile IOException failure;
+
+    /**
+     * Open a journal for appending, creating it if need be. A record torn
+     * by an earlier crash is cut off the end.
+     *
+     * @param filename      location of the journal
+     * @param groupSize     number of records to buffer between syncs
+     * @param lastLsn       LSN of the last change already held by the store
+     * @throws IOException  if the file cannot be opened or is not a journal
+     * @throws IllegalStateException if the journal holds changes after
+     *                      lastLsn, which would be lost
+     */
+    Journal(String filename, int groupSize, long lastLsn) throws IOException {
+        long lastInFile = 0;
+        long validLength = 0;
+
+        if (Paths.get(filename).toFile().length() > 0) {
+            JournalReader reader = new JournalReader(filename);
+            try {
+                JournalRecord record = reader.next();
+                while (record != null) {
+                    lastInFile = record.getLsn();
+                    record = reader.next();
+                }
+                validLength = reader.getValidLength();
+            }
+            finally {
+                reader.close();
+            }
+        }
+
+        if (lastInFile > lastLsn) {
+            throw new IllegalStateException(
+                "Journal holds changes not in the store; recover it first");
+        }
+
+        this.channel = FileChannel.open(Paths.get(filename),
+                                        StandardOpenOption.CREATE,
+                                        StandardOpenOption.READ,
+                                        StandardOpenOption.WRITE);
+        this.groupSize = Math.max(groupSize, 1);
+        this.checksum = new CRC32C();
+        this.syncLock = new Object();
+        this.pending = ByteBuffer.allocate(BUFFER_SIZE);
+        this.writing = ByteBuffer.allocate(BUFFER_SIZE);
+        this.nextLsn = lastLsn + 1;
+        this.durableLsn = lastLsn;
+
+        try {
+            this.channel.truncate(validLength);
+            this.channel.position(validLength);
+            if (validLength == 0) {
+                this.pending.putInt(MAGIC);
+                this.pending.putShort(VERSION);
+            }
+        }
+        catch (IOException err) {
+            this.channel.close();
+            throw err;
+        }
+    }
+
+    /**
+     * Append a record, giving it the next LSN, and sync if a full group is
+     * waiting
+     *
+     * @param record        record to append
+     * @return              LSN given to the record
+     * @throws IOException  if the journal cannot be written, or an earlier
+     *                      write failed
+     */
+    long log(JournalRecord record) throws IOException {
+        long lsn;
+        boolean full;
+
+        synchronized (this) {
+            this.checkFailed();
+            lsn = this.nextLsn++;
+            record.setLsn(lsn);
+            byte[] body = record.encode();
+
+            this.checksum.reset();
+            this.checksum.update(body);
+
+            this.pending = ensure(this.pending, body.length + 8);
+            this.pending.putInt(body.length);
+            this.pending.putInt((int) this.checksum.getValue());
+            this.pending.put(body);
+            this.pendingRecords++;
+            full = this.pendingRecords >= this.groupSize;
+        }
+
+        if (full) {
+            this.commit(lsn);
+        }
+        return lsn;
+    }
+
+    /**
+     * Write and force every record appended so far
+     *
+     * @throws IOException  if the journal cannot be written
+     */
+    void sync() throws IOException {
+        long lsn;
+        synchronized (this) {
+            lsn = this.nextLsn - 1;
+        }
+        this.commit(lsn);
+    }
+
+    /**
+     * Drop every record, once a snapshot holding them all is on disk. The
+     * records are synced first, so the file never ends part way through
+     * one, and LSNs carry on where they were.
+     *
+     * @param heldLsn       LSN of the snapshot, which must be the last
+     *                      record appended
+     * @throws IOException  if the journal cannot be written or truncated
+     * @throws IllegalStateException if records after heldLsn have been
+     *                      appended, which only the journal holds
+     */
+    void restart(long heldLsn) throws IOException {
+        this.sync();
+        synchronized (this.syncLock) {
+            this.checkFailed();
+            if (this.durableLsn != heldLsn || this.getLastLsn() != heldLsn) {
+                throw new IllegalStateException(
+                    "Journal holds changes the snapshot does not");
+            }
+            // Header still waiting with the first record, so nothing to drop
+            if (this.channel.size() <= HEADER_SIZE) {
+                return;
+            }
+
+            try {
+                this.channel.truncate(HEADER_SIZE);
+                this.channel.position(HEADER_SIZE);
+                this.channel.force(false);
+            }
+            catch (IOException err) {
+                this.failure = err;
+                throw err;
+            }
+        }
+    }
+
+    /**
+     * @return      LSN of the last record appended
+     */
+    synchronized long getLastLsn() {
+        return this.nextLsn - 1;
+    }
+
+    /**
+     * Sync and close the journal
+     *
+     * @throws IOException  if the journal cannot be written
+     */
+    void close() throws IOException {
+        try {
+            this.sync();
+        }
+        finally {
+            this.channel.close();
+        }
+    }
+
+    /*
+     * Make sure the record with the given LSN is on disk. Whoever takes the
+     * sync lock first writes everything waiting, including records logged
+     * by threads queued behind it, which then find their LSN already
+     * durable.
+     */
+    private void commit(long lsn) throws IOException {
+        synchronized (this.syncLock) {
+            if (this.durableLsn >= lsn) {
+                return;
+            }
+            this.checkFailed();
+
+            long upTo;
+            synchronized (this) {
+                ByteBuffer full = this.pending;
+                this.pending = this.writing;
+                this.writing = full;
+                this.pendingRecords = 0;
+                upTo = this.nextLsn - 1;
+            }
+
+            try {
+                this.writing.flip();
+                while (this.writing.hasRemaining()) {
+                    this.channel.write(this.writing);
+                }
+                this.writing.clear();
+                this.channel.force(false);
+            }
+            catch (IOException err) {
+                // Part of the buffer may be on disk, so nothing more can
+                // safely be appended after it
+                this.failure = err;
+                throw err;
+            }
+            this.durableLsn = upTo;
+        }
+    }
+
+    /*
+     * Refuse to go on once a write has failed
+     */
+    private void checkFailed() throws IOException {
+        if (this.failure != null) {
+            throw new IOException("Journal failed earlier and must be reopened",
+                                  this.failure);
+        }
+    }
+
+    /*
+     * Grow a buffer if it cannot take the given number of bytes
+     */
+    private static ByteBuffer ensure(ByteBuffer buffer, int bytes) {
+        if (buffer.remaining() >= bytes) {
+            return buffer;
+        }
+        int capacity = Math.max(buffer.capacity() * 2, buffer.position() + bytes);
+        ByteBuffer larger = ByteBuffer.allocate(capacity);
+        buffer.flip();
+        larger.put(buffer);
+        return larger;
+    }
+}
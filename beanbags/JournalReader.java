@@ -0,0 +1,159 @@
+package beanbags;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/**
+ * Reads the records of a journal written by {@link Journal} in order.
+ * <p>
+ * A crash can leave the last record only partly written, so reading
+ * stops quietly at the first record that is cut short or fails its
+ * checksum, and {@link #getValidLength()} gives the length of the file up
+ * to the end of the last good record.
+ *
+ * @author Max Beech, Louis Haddrell
+ */
+class JournalReader
+{
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final FileChannel channel;
+    private final long fileSize;
+    private final ByteBuffer buffer;
+    private final CRC32C checksum;
+    private long validLength;
+    private boolean finished;
+
+    /**
+     * Open a journal and check its header
+     *
+     * @param filename      location of the journal
+     * @throws IOException  if the file cannot be read or is not a journal
+     */
+    JournalReader(String filename) throws IOException {
+        this.channel = FileChannel.open(Paths.get(filename),
+                                        StandardOpenOption.READ);
+        this.fileSize = this.channel.size();
+        this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        this.buffer.flip();
+        this.checksum = new CRC32C();
+
+        try {
+            if (!this.fill(Journal.HEADER_SIZE)) {
+                // Crashed while the header was written, so nothing is lost
+                this.finished = true;
+                return;
+            }
+            if (this.buffer.getInt() != Journal.MAGIC) {
+                throw new IOException("Not a bean bag store journal");
+            }
+            short version = this.buffer.getShort();
+            if (version != Journal.VERSION) {
+                throw new IOException("Unsupported journal version " + version);
+            }
+            this.validLength = Journal.HEADER_SIZE;
+        }
+        catch (IOException err) {
+            this.channel.close();
+            throw err;
+        }
+    }
+
+    /**
+     * Read the next record
+     *
+     * @return              next record, or null at the end of the journal
+     *                      or at a record that was not completely written
+     * @throws IOException  if the file cannot be read, or a record with a
+     *                      good checksum cannot be decoded
+     */
+    JournalRecord next() throws IOException {
+        if (this.finished || !this.fill(8)) {
+            this.finished = true;
+            return null;
+        }
+
+        int length = this.buffer.getInt();
+        int expected = this.buffer.getInt();
+        long start = this.validLength + 8;
+
+        if (length < 1 || length > this.fileSize - start) {
+            this.finished = true;
+            return null;
+        }
+
+        ByteBuffer body;
+        if (length <= this.buffer.capacity()) {
+            if (!this.fill(length)) {
+                this.finished = true;
+                return null;
+            }
+            body = this.buffer.slice();
+            body.limit(length);
+            this.buffer.position(this.buffer.position() + length);
+        }
+        else {
+            body = ByteBuffer.allocate(length);
+            body.put(this.buffer);
+            while (body.hasRemaining()) {
+                if (this.channel.read(body) < 0) {
+                    this.finished = true;
+                    return null;
+                }
+            }
+            body.flip();
+        }
+
+        this.checksum.reset();
+        this.checksum.update(body.duplicate());
+        if ((int) this.checksum.getValue() != expected) {
+            this.finished = true;
+            return null;
+        }
+
+        JournalRecord record = JournalRecord.decode(body);
+        this.validLength = start + length;
+        return record;
+    }
+
+    /**
+     * @return      length of the file up to the end of the last record read
+     *              successfully
+     */
+    long getValidLength() {
+        return this.validLength;
+    }
+
+    /**
+     * Close the file
+     *
+     * @throws IOException  if the file cannot be closed
+     */
+    void close() throws IOException {
+        this.channel.close();
+    }
+
+    /*
+     * Make sure the buffer holds at least the given number of unread bytes,
+     * returning false if the file ends first
+     */
+    private boolean fill(int bytes) throws IOException {
+        if (this.buffer.remaining() >= bytes) {
+            return true;
+        }
+
+        this.buffer.compact();
+        while (this.buffer.position() < bytes) {
+            if (this.channel.read(this.buffer) < 0) {
+                this.buffer.flip();
+                return false;
+            }
+        }
+        this.buffer.flip();
+        return true;
+    }
+}
@@ -0,0 +1,343 @@
+package beanbags;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One mutating store call as written to the journal.
+ * <p>
+ * A record is encoded as its type byte, its log sequence number (LSN) and
+ * then the arguments of the call, using the same fixed-width fields and
+ * length-prefixed UTF-8 strings as a snapshot. A reserve record also
+ * holds the reservation number that was issued, so replaying it hands out
+ * the same number again.
+ *
+ * @author Max Beech, Louis Haddrell
+ */
+class JournalRecord
+{
+    /**
+     * Store call recorded
+     */
+    enum Type
+    {
+        ADD, SET_PRICE, SELL, RESERVE, UNRESERVE, SELL_RESERVATION, REPLACE,
+        RESET, EMPTY
+    }
+
+    private static final Type[] TYPES = Type.values();
+
+    private final Type type;
+    private long lsn;
+    private int num;
+    private int reservationNumber;
+    private short year;
+    private byte month;
+    private String id;
+    private String replacementId;
+    private String manufacturer;
+    private String name;
+    private String information;
+
+    private JournalRecord(Type type) {
+        this.type = type;
+    }
+
+    static JournalRecord add(int num, String manufacturer, String name,
+                             String id, short year, byte month,
+                             String information) {
+        JournalRecord record = new JournalRecord(Type.ADD);
+        record.num = num;
+        record.manufacturer = manufacturer;
+        record.name = name;
+        record.id = id;
+        record.year = year;
+        record.month = month;
+        record.information = information;
+        return record;
+    }
+
+    static JournalRecord setPrice(String id, int priceInPence) {
+        JournalRecord record = new JournalRecord(Type.SET_PRICE);
+        record.id = id;
+        record.num = priceInPence;
+        return record;
+    }
+
+    static JournalRecord sell(int num, String id) {
+        JournalRecord record = new JournalRecord(Type.SELL);
+        record.num = num;
+        record.id = id;
+        return record;
+    }
+
+    static JournalRecord reserve(int num, String id, int reservationNumber) {
+        JournalRecord record = new JournalRecord(Type.RESERVE);
+        record.num = num;
+        record.id = id;
+        record.reservationNumber = reservationNumber;
+        return record;
+    }
+
+    static JournalRecord unreserve(int reservationNumber) {
+        JournalRecord record = new JournalRecord(Type.UNRESERVE);
+        record.reservationNumber = reservationNumber;
+        return record;
+    }
+
+    static JournalRecord sellReservation(int reservationNumber) {
+        JournalRecord record = new JournalRecord(Type.SELL_RESERVATION);
+        record.reservationNumber = reservationNumber;
+        return record;
+    }
+
+    static JournalRecord replace(String oldId, String replacementId) {
+        JournalRecord record = new JournalRecord(Type.REPLACE);
+        record.id = oldId;
+        record.replacementId = replacementId;
+        return record;
+    }
+
+    static JournalRecord reset() {
+        return new JournalRecord(Type.RESET);
+    }
+
+    static JournalRecord empty() {
+        return new JournalRecord(Type.EMPTY);
+    }
+
+    Type getType() {
+        return this.type;
+    }
+
+    long getLsn() {
+        return this.lsn;
+    }
+
+    void setLsn(long value) {
+        this.lsn = value;
+    }
+
+    /**
+     * @return      number of bags added, sold or reserved, or the price set
+     */
+    int getNum() {
+        return this.num;
+    }
+
+    int getReservationNumber() {
+        return this.reservationNumber;
+    }
+
+    short getYear() {
+        return this.year;
+    }
+
+    byte getMonth() {
+        return this.month;
+    }
+
+    String getId() {
+        return this.id;
+    }
+
+    String getReplacementId() {
+        return this.replacementId;
+    }
+
+    String getManufacturer() {
+        return this.manufacturer;
+    }
+
+    String getName() {
+        return this.name;
+    }
+
+    String getInformation() {
+        return this.information;
+    }
+
+    /**
+     * Encode the record, without any framing
+     *
+     * @return      encoded record
+     */
+    byte[] encode() {
+        byte[] id = bytes(this.id);
+        byte[] replacementId = bytes(this.replacementId);
+        byte[] manufacturer = bytes(this.manufacturer);
+        byte[] name = bytes(this.name);
+        byte[] information = bytes(this.information);
+
+        int size = 9;
+        switch (this.type) {
+            case ADD:
+                size += 7 + stringSize(manufacturer) + stringSize(name) +
+                        stringSize(id) + stringSize(information);
+                break;
+            case SET_PRICE:
+            case SELL:
+                size += 4 + stringSize(id);
+                break;
+            case RESERVE:
+                size += 8 + stringSize(id);
+                break;
+            case UNRESERVE:
+            case SELL_RESERVATION:
+                size += 4;
+                break;
+            case REPLACE:
+                size += stringSize(id) + stringSize(replacementId);
+                break;
+            default:
+                break;
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(size);
+        out.put((byte) this.type.ordinal());
+        out.putLong(this.lsn);
+
+        switch (this.type) {
+            case ADD:
+                out.putInt(this.num);
+                putString(out, manufacturer);
+                putString(out, name);
+                putString(out, id);
+                out.putShort(this.year);
+                out.put(this.month);
+                putString(out, information);
+                break;
+            case SET_PRICE:
+            case SELL:
+                putString(out, id);
+                out.putInt(this.num);
+                break;
+            case RESERVE:
+                putString(out, id);
+                out.putInt(this.num);
+                out.putInt(this.reservationNumber);
+                break;
+            case UNRESERVE:
+            case SELL_RESERVATION:
+                out.putInt(this.reservationNumber);
+                break;
+            case REPLACE:
+                putString(out, id);
+                putString(out, replacementId);
+                break;
+            default:
+                break;
+        }
+        return out.array();
+    }
+
+    /**
+     * Decode a record written by {@link #encode()}
+     *
+     * @param in            buffer holding exactly one encoded record
+     * @return              decoded record
+     * @throws IOException  if the bytes are not a valid record
+     */
+    static JournalRecord decode(ByteBuffer in) throws IOException {
+        try {
+            int code = in.get();
+            if (code < 0 || code >= TYPES.length) {
+                throw new IOException("Unknown journal record type " + code);
+            }
+
+            JournalRecord record = new JournalRecord(TYPES[code]);
+            record.lsn = in.getLong();
+
+            switch (record.type) {
+                case ADD:
+                    record.num = in.getInt();
+                    record.manufacturer = getString(in);
+                    record.name = getString(in);
+                    record.id = getString(in);
+                    record.year = in.getShort();
+                    record.month = in.get();
+                    record.information = getString(in);
+                    break;
+                case SET_PRICE:
+                case SELL:
+                    record.id = getString(in);
+                    record.num = in.getInt();
+                    break;
+                case RESERVE:
+                    record.id = getString(in);
+                    record.num = in.getInt();
+                    record.reservationNumber = in.getInt();
+                    break;
+                case UNRESERVE:
+                case SELL_RESERVATION:
+                    record.reservationNumber = in.getInt();
+                    break;
+                case REPLACE:
+                    record.id = getString(in);
+                    record.replacementId = getString(in);
+                    break;
+                default:
+                    break;
+            }
+
+            if (in.hasRemaining()) {
+                throw new IOException("Journal record longer than expected");
+            }
+            return record;
+        }
+        catch (BufferUnderflowException err) {
+            throw new IOException("Journal record shorter than expected");
+        }
+    }
+
+    /*
+     * UTF-8 bytes of a string, or null
+     */
+    private static byte[] bytes(String value) {
+        if (value == null) {
+            return null;
+        }
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /*
+     * Encoded size of a length-prefixed string
+     */
+    private static int stringSize(byte[] bytes) {
+        if (bytes == null) {
+            return 4;
+        }
+        return 4 + bytes.length;
+    }
+
+    /*
+     * Write a length-prefixed string, -1 standing for null
+     */
+    private static void putString(ByteBuffer out, byte[] bytes) {
+        if (bytes == null) {
+            out.putInt(-1);
+            return;
+        }
+        out.putInt(bytes.length);
+        out.put(bytes);
+    }
+
+    /*
+     * Read a length-prefixed string
+     */
+    private static String getString(ByteBuffer in) throws IOException {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > in.remaining()) {
+            throw new IOException("Journal record shorter than expected");
+        }
+
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
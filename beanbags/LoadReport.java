@@ -0,0 +1,125 @@
+package beanbags;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What {@link Store#salvageStoreContents(String)} managed to recover from
+ * a snapshot: how many bags it held and were loaded, and where and why any
+ * part of it had to be skipped.
+ *
+ * @author Max Beech, Louis Haddrell
+ */
+public class LoadReport
+{
+    private final String filename;
+    private final int bagsExpected;
+    private int bagsLoaded;
+    private int blocksRead;
+    private int blocksDamaged;
+    private final ArrayList<String> problems;
+
+    /**
+     * @param filename      location of the snapshot
+     * @param bagsExpected  number of bags the snapshot header says it holds
+     */
+    LoadReport(String filename, int bagsExpected) {
+        this.filename = filename;
+        this.bagsExpected = bagsExpected;
+        this.problems = new ArrayList<String>();
+    }
+
+    /**
+     * Count bags loaded into the store
+     *
+     * @param count     number of bags loaded
+     */
+    void bagsLoaded(int count) {
+        this.bagsLoaded += count;
+    }
+
+    /**
+     * Count a block that passed its checks
+     */
+    void blockRead() {
+        this.blocksRead++;
+    }
+
+    /**
+     * Record a block or stretch of the file that had to be skipped
+     *
+     * @param offset    position in the file where the damage was found
+     * @param problem   what was wrong
+     */
+    void damaged(long offset, String problem) {
+        this.blocksDamaged++;
+        this.problems.add("at byte " + offset + ": " + problem);
+    }
+
+    /**
+     * @return      location of the snapshot
+     */
+    public String getFilename() {
+        return this.filename;
+    }
+
+    /**
+     * @return      number of bags the snapshot was saved with
+     */
+    public int getBagsExpected() {
+        return this.bagsExpected;
+    }
+
+    /**
+     * @return      number of bags recovered into the store
+     */
+    public int getBagsLoaded() {
+        return this.bagsLoaded;
+    }
+
+    /**
+     * @return      number of bags saved but not recovered
+     */
+    public int getBagsLost() {
+        return Math.max(this.bagsExpected - this.bagsLoaded, 0);
+    }
+
+    /**
+     * @return      number of blocks that passed their checks
+     */
+    public int getBlocksRead() {
+        return this.blocksRead;
+    }
+
+    /**
+     * @return      number of damaged blocks or stretches skipped
+     */
+    public int getBlocksDamaged() {
+        return this.blocksDamaged;
+    }
+
+    /**
+     * @return      description of each piece of damage found, in file order
+     */
+    public List<String> getProblems() {
+        return Collections.unmodifiableList(this.problems);
+    }
+
+    /**
+     * @return      true if every bag in the snapshot was recovered
+     */
+    public boolean isComplete() {
+        return this.blocksDamaged == 0 && this.bagsLoaded == this.bagsExpected;
+    }
+
+    public String toString() {
+        StringBuilder report = new StringBuilder();
+        report.append(this.filename).append(": loaded ").append(this.bagsLoaded)
+              .append(" of ").append(this.bagsExpected).append(" bags");
+        for (int i=0; i < this.problems.size(); i++){
+            report.append(System.lineSeparator()).append("  ").append(this.problems.get(i));
+        }
+        return report.toString();
+    }
+}
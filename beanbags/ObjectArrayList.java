@@ -13,6 +13,8 @@ import java.io.Serializable;
  */
 public class ObjectArrayList implements Serializable
 {
+    private static final long serialVersionUID = -2262874025972347904L;
+
     private Object[] array;
     private int elementsUsed;
 
@@ -37,6 +39,20 @@ public class ObjectArrayList implements Serializable
         this.elementsUsed++;
     }
 
+    /**
+     * Method grows the internal array so that it can hold at least the
+     * given number of elements without resizing again
+     * 
+     * @param capacity number of elements the list should be able to hold
+     */
+    public void ensureCapacity(int capacity) {
+        if (capacity > this.array.length) {
+            Object[] tempArray = new Object[capacity];
+            System.arraycopy(this.array,0,tempArray,0,this.elementsUsed);
+            this.array = tempArray;
+        }
+    }
+
     /*
      * Method doubles the capacity of the array
      */
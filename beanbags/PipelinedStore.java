@@ -0,0 +1,911 @@
+package beanbags;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bean Bag store that applies every call on a single writer thread.
+ * <p>
+ * Callers on any thread claim a slot in a fixed ring of pre-allocated
+ * commands, fill in the call's arguments and publish it. The writer
+ * thread takes every published command in one batch, applies them in
+ * order to a plain, lock-free {@link Store}, syncs the journal once for
+ * the whole batch, and only then completes each caller's future. So the
+ * order of calls is the order their slots were claimed, bags are only
+ * ever touched by one thread, and a journalled change is on disk before
+ * its caller hears it succeeded. When the ring is full, callers wait for
+ * the writer to free a slot.
+ * <p>
+ * If the journal cannot be synced, the calls in that batch still complete
+ * as they would have, since their changes have been made, but they may
+ * not be on disk. The store then stops: every later call fails with
+ * IllegalStateException, so no more changes are made that the journal
+ * cannot hold.
+ * <p>
+ * The store-wide totals are published after every batch, so reading them
+ * never waits for the writer. Reads of a single bag go through the ring
+ * like the changes, so they see every change made before them.
+ * <p>
+ * The {@link AsyncBeanBagStore} methods return a future that completes
+ * with the result, or fails with the exception the {@link BeanBagStore}
+ * method would have thrown. Futures are completed on the writer thread, so anything chained
+ * onto them without an executor should be quick. The interface methods
+ * submit the same commands and wait for them.
+ *
+ * @author Max Beech, Louis Haddrell
+ */
+public class PipelinedStore implements BeanBagStore, AsyncBeanBagStore
+{
+    private static final int DEFAULT_CAPACITY = 1024;
+    private static final int SPINS = 100;
+    private static final long CLOSED = -1;
+
+    /**
+     * Work run on the writer thread, in order with the calls around it
+     */
+    public interface Task<T>
+    {
+        /**
+         * @param store     store held by the writer thread, which must not
+         *                  be kept or used once the task returns
+         * @return          result for the task's future
+         * @throws Exception to fail the task's future
+         */
+        T apply(Store store) throws Exception;
+    }
+
+    private enum Op
+    {
+        ADD, SET_PRICE, SELL, RESERVE, UNRESERVE, SELL_RESERVATION, REPLACE,
+        RESET, EMPTY, CALL, STOP
+    }
+
+    /*
+     * Slot in the ring. Its fields are written by the caller that claimed
+     * it before the sequence is set, and cleared by the writer before the
+     * slot is released.
+     */
+    private static final class Command
+    {
+        volatile long sequence = -1;
+        long claimed;
+        Op op;
+        int num;
+        String id;
+        String text;
+        String manufacturer;
+        String name;
+        String information;
+        short year;
+        byte month;
+        Task<?> task;
+        CompletableFuture<?> future;
+
+        void clear() {
+            this.id = null;
+            this.text = null;
+            this.manufacturer = null;
+            this.name = null;
+            this.information = null;
+            this.task = null;
+            this.future = null;
+        }
+    }
+
+    /*
+     * Store-wide totals as they stood after a batch
+     */
+    private static final class Totals
+    {
+        final int models;
+        final int stock;
+        final int reserved;
+        final int soldCount;
+        final int soldValue;
+        final int reservedValue;
+
+        Totals(Store store) {
+            this.models = store.getNumberOfDifferentBeanBagsInStock();
+            this.stock = store.beanBagsInStock();
+            this.reserved = store.reservedBeanBagsInStock();
+            this.soldCount = store.getNumberOfSoldBeanBags();
+            this.soldValue = store.getTotalPriceOfSoldBeanBags();
+            this.reservedValue = store.getTotalPriceOfReservedBeanBags();
+        }
+    }
+
+    private final Store store;
+    private final Command[] ring;
+    private final int mask;
+    private final Thread writer;
+
+    // Next sequence to claim, or CLOSED once the writer has stopped
+    private final AtomicLong next;
+    // Every slot before this sequence is free to claim again
+    private volatile long released;
+    private volatile boolean writerParked;
+    // Why the writer stopped early, if the journal could not be synced
+    private volatile IOException journalFailure;
+    private volatile Totals totals;
+
+    // Used only by the writer thread
+    private final CompletableFuture<?>[] futures;
+    private final Object[] results;
+    private final Throwable[] failures;
+    private SnapshotTask snapshot;
+
+    public PipelinedStore() {
+        this(new Store(), DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create a pipeline over an existing store, which from then on must
+     * only be used through the pipeline
+     *
+     * @param store     store to apply calls to
+     * @param capacity  minimum number of calls that can wait in the ring
+     */
+    public PipelinedStore(Store store, int capacity) {
+        int size = 2;
+        while (size < capacity) {
+            size *= 2;
+        }
+
+        this.store = store;
+        this.ring = new Command[size];
+        for (int i=0; i < size; i++){
+            this.ring[i] = new Command();
+        }
+        this.mask = size - 1;
+        this.futures = new CompletableFuture<?>[size];
+        this.results = new Object[size];
+        this.failures = new Throwable[size];
+        this.next = new AtomicLong();
+        this.totals = new Totals(store);
+
+        this.writer = new Thread(this::run, "beanbags-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Apply every call already submitted, close the journal and stop the
+     * writer thread. Calls made afterwards throw IllegalStateException.
+     *
+     * @throws IOException  if the journal cannot be written
+     */
+    public void close() throws IOException {
+        try {
+            this.closeJournal();
+            this.submit(this.claim(), Op.STOP).join();
+        }
+        catch (IllegalStateException err) {
+            // Already closed
+        }
+    }
+
+    /**
+     * Run work on the writer thread, after every call submitted before it
+     *
+     * @param task  work to run against the store
+     * @return      future for the task's result
+     */
+    public <T> CompletableFuture<T> execute(Task<T> task) {
+        Command command = this.claim();
+        command.task = task;
+        return this.submit(command, Op.CALL);
+    }
+
+    /**
+     * @see #addBeanBags(int, String, String, String, short, byte, String)
+     */
+    public CompletableFuture<Void> addBeanBagsAsync(int num, String manufacturer,
+                                                    String name, String id,
+                                                    short year, byte month,
+                                                    String information) {
+        Command command = this.claim();
+        command.num = num;
+        command.manufacturer = manufacturer;
+        command.name = name;
+        command.id = id;
+        command.year = year;
+        command.month = month;
+        command.information = information;
+        return this.submit(command, Op.ADD);
+    }
+
+    /**
+     * @see #setBeanBagPrice(String, int)
+     */
+    public CompletableFuture<Void> setBeanBagPriceAsync(String id, int priceInPence) {
+        Command command = this.claim();
+        command.id = id;
+        command.num = priceInPence;
+        return this.submit(command, Op.SET_PRICE);
+    }
+
+    /**
+     * @see #sellBeanBags(int, String)
+     */
+    public CompletableFuture<Void> sellBeanBagsAsync(int num, String id) {
+        Command command = this.claim();
+        command.num = num;
+        command.id = id;
+        return this.submit(command, Op.SELL);
+    }
+
+    /**
+     * @see #reserveBeanBags(int, String)
+     */
+    public CompletableFuture<Integer> reserveBeanBagsAsync(int num, String id) {
+        Command command = this.claim();
+        command.num = num;
+        command.id = id;
+        return this.submit(command, Op.RESERVE);
+    }
+
+    /**
+     * @see #unreserveBeanBags(int)
+     */
+    public CompletableFuture<Void> unreserveBeanBagsAsync(int reservationNumber) {
+        Command command = this.claim();
+        command.num = reservationNumber;
+        return this.submit(command, Op.UNRESERVE);
+    }
+
+    /**
+     * @see #sellBeanBags(int)
+     */
+    public CompletableFuture<Void> sellBeanBagsAsync(int reservationNumber) {
+        Command command = this.claim();
+        command.num = reservationNumber;
+        return this.submit(command, Op.SELL_RESERVATION);
+    }
+
+    /**
+     * @see #replace(String, String)
+     */
+    public CompletableFuture<Void> replaceAsync(String oldId, String replacementId) {
+        Command command = this.claim();
+        command.id = oldId;
+        command.text = replacementId;
+        return this.submit(command, Op.REPLACE);
+    }
+
+    /**
+     * @see #empty()
+     */
+    public CompletableFuture<Void> emptyAsync() {
+        return this.submit(this.claim(), Op.EMPTY);
+    }
+
+    /**
+     * @see #resetSaleAndCostTracking()
+     */
+    public CompletableFuture<Void> resetSaleAndCostTrackingAsync() {
+        return this.submit(this.claim(), Op.RESET);
+    }
+
+    public CompletableFuture<Integer> beanBagsInStockAsync() {
+        return CompletableFuture.completedFuture(this.beanBagsInStock());
+    }
+
+    public CompletableFuture<Integer> reservedBeanBagsInStockAsync() {
+        return CompletableFuture.completedFuture(this.reservedBeanBagsInStock());
+    }
+
+    public CompletableFuture<Integer> getNumberOfDifferentBeanBagsInStockAsync() {
+        return CompletableFuture.completedFuture(this.getNumberOfDifferentBeanBagsInStock());
+    }
+
+    public CompletableFuture<Integer> getNumberOfSoldBeanBagsAsync() {
+        return CompletableFuture.completedFuture(this.getNumberOfSoldBeanBags());
+    }
+
+    public CompletableFuture<Integer> getTotalPriceOfSoldBeanBagsAsync() {
+        return CompletableFuture.completedFuture(this.getTotalPriceOfSoldBeanBags());
+    }
+
+    public CompletableFuture<Integer> getTotalPriceOfReservedBeanBagsAsync() {
+        return CompletableFuture.completedFuture(this.getTotalPriceOfReservedBeanBags());
+    }
+
+    public CompletableFuture<Integer> beanBagsInStockAsync(String id) {
+        return this.execute(store -> store.beanBagsInStock(id));
+    }
+
+    public CompletableFuture<Integer> getNumberOfSoldBeanBagsAsync(String id) {
+        return this.execute(store -> store.getNumberOfSoldBeanBags(id));
+    }
+
+    public CompletableFuture<Integer> getTotalPriceOfSoldBeanBagsAsync(String id) {
+        return this.execute(store -> store.getTotalPriceOfSoldBeanBags(id));
+    }
+
+    public CompletableFuture<String> getBeanBagDetailsAsync(String id) {
+        return this.execute(store -> store.getBeanBagDetails(id));
+    }
+
+    /**
+     * Start a snapshot of the store as it is now. The writer thread only
+     * starts the snapshot, which is then written in the background while
+     * calls carry on being applied.
+     *
+     * @param filename      location of the file to be saved
+     * @return              future completing once the snapshot is in place
+     * @see Store#saveStoreContentsAsync(String)
+     */
+    public CompletableFuture<Void> saveStoreContentsAsync(String filename) {
+        return this.snapshot(filename, false);
+    }
+
+    /**
+     * Start a copy of the store as it is now, as for
+     * {@link #saveStoreContentsAsync(String)}, that does not count as a
+     * save, so the next delta saved still follows the last real save
+     *
+     * @param filename      location of the file to be written
+     * @return              future completing once the copy is in place
+     * @see Store#copyStoreContentsAsync(String)
+     */
+    CompletableFuture<Void> copyStoreContentsAsync(String filename) {
+        return this.snapshot(filename, true);
+    }
+
+    /*
+     * Start a snapshot on the writer thread once any before it is done
+     */
+    private CompletableFuture<Void> snapshot(String filename, boolean copy) {
+        CompletableFuture<SnapshotTask> started = this.execute(store -> {
+            // Only one snapshot can be written at a time
+            if (this.snapshot != null) {
+                try {
+                    this.snapshot.get();
+                }
+                catch (ExecutionException err) {
+                    // Reported to whoever started it
+                }
+            }
+            this.snapshot = copy ? store.copyStoreContentsAsync(filename)
+                                 : store.saveStoreContentsAsync(filename);
+            return this.snapshot;
+        });
+        return started.thenCompose(SnapshotTask::completion);
+    }
+
+    public CompletableFuture<Void> loadStoreContentsAsync(String filename) {
+        return this.execute(store -> {
+            store.loadStoreContents(filename);
+            return null;
+        });
+    }
+
+    /*
+     * Claim the next slot, waiting for the writer to free it if the ring
+     * is full
+     */
+    private Command claim() {
+        long sequence;
+        do {
+            sequence = this.next.get();
+            if (sequence == CLOSED) {
+                throw this.closed();
+            }
+        } while (!this.next.compareAndSet(sequence, sequence + 1));
+
+        int spins = 0;
+        while (sequence - this.released >= this.ring.length) {
+            if (spins++ < SPINS) {
+                Thread.onSpinWait();
+            }
+            else {
+                LockSupport.parkNanos(1000);
+            }
+        }
+
+        Command command = this.ring[(int) sequence & this.mask];
+        command.claimed = sequence;
+        return command;
+    }
+
+    /*
+     * Publish a filled-in slot to the writer
+     */
+    private <T> CompletableFuture<T> submit(Command command, Op op) {
+        CompletableFuture<T> future = new CompletableFuture<T>();
+        command.op = op;
+        command.future = future;
+        command.sequence = command.claimed;
+
+        if (this.writerParked) {
+            LockSupport.unpark(this.writer);
+        }
+        return future;
+    }
+
+    /*
+     * Writer thread: apply published commands in batches until stopped
+     */
+    private void run() {
+        long sequence = 0;
+        boolean stopping = false;
+
+        while (true) {
+            int count = 0;
+            while (count < this.ring.length &&
+                   this.ring[(int) (sequence + count) & this.mask].sequence == sequence + count) {
+                count++;
+            }
+
+            if (count == 0) {
+                if (stopping && this.next.compareAndSet(sequence, CLOSED)) {
+                    return;
+                }
+                this.idle(sequence);
+                continue;
+            }
+
+            for (int i=0; i < count; i++){
+                Command command = this.ring[(int) (sequence + i) & this.mask];
+                this.futures[i] = command.future;
+                if (stopping) {
+                    this.failures[i] = this.closed();
+                    continue;
+                }
+                try {
+                    this.results[i] = this.apply(command);
+                }
+                catch (Throwable err) {
+                    this.failures[i] = err;
+                }
+                stopping |= command.op == Op.STOP;
+            }
+
+            try {
+                this.store.syncJournal();
+            }
+            catch (IOException err) {
+                // The batch has been applied, so is reported as it went;
+                // a caller told otherwise would make its change twice
+                this.journalFailure = err;
+                stopping = true;
+            }
+            // Tasks may have changed the store too
+            this.totals = new Totals(this.store);
+
+            for (int i=0; i < count; i++){
+                this.ring[(int) (sequence + i) & this.mask].clear();
+            }
+            sequence += count;
+            this.released = sequence;
+
+            for (int i=0; i < count; i++){
+                complete(this.futures[i], this.results[i], this.failures[i]);
+                this.futures[i] = null;
+                this.results[i] = null;
+                this.failures[i] = null;
+            }
+        }
+    }
+
+    /*
+     * Failure for a call made once the writer has stopped
+     */
+    private IllegalStateException closed() {
+        if (this.journalFailure != null) {
+            return new IllegalStateException(
+                "Store stopped as its journal could not be synced",
+                this.journalFailure);
+        }
+        return new IllegalStateException("Store is closed");
+    }
+
+    /*
+     * Wait for the command at a sequence to be published, spinning briefly
+     * before parking
+     */
+    private void idle(long sequence) {
+        Command command = this.ring[(int) sequence & this.mask];
+        for (int i=0; i < SPINS; i++){
+            if (command.sequence == sequence) {
+                return;
+            }
+            Thread.onSpinWait();
+        }
+
+        this.writerParked = true;
+        if (command.sequence != sequence) {
+            LockSupport.park(this);
+        }
+        this.writerParked = false;
+    }
+
+    /*
+     * Make one call on the store
+     */
+    private Object apply(Command command) throws Exception {
+        switch (command.op) {
+            case ADD:
+                this.store.addBeanBags(command.num, command.manufacturer, command.name,
+                                       command.id, command.year, command.month,
+                                       command.information);
+                return null;
+            case SET_PRICE:
+                this.store.setBeanBagPrice(command.id, command.num);
+                return null;
+            case SELL:
+                this.store.sellBeanBags(command.num, command.id);
+                return null;
+            case RESERVE:
+                return this.store.reserveBeanBags(command.num, command.id);
+            case UNRESERVE:
+                this.store.unreserveBeanBags(command.num);
+                return null;
+            case SELL_RESERVATION:
+                this.store.sellBeanBags(command.num);
+                return null;
+            case REPLACE:
+                this.store.replace(command.id, command.text);
+                return null;
+            case RESET:
+                this.store.resetSaleAndCostTracking();
+                return null;
+            case EMPTY:
+                this.store.empty();
+                return null;
+            case CALL:
+                return command.task.apply(this.store);
+            default:
+                return null;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void complete(CompletableFuture<?> future, Object result,
+                                 Throwable failure) {
+        if (failure != null) {
+            future.completeExceptionally(failure);
+        }
+        else {
+            ((CompletableFuture<Object>) future).complete(result);
+        }
+    }
+
+    /*
+     * Wait for a future, throwing whatever it failed with
+     */
+    private static <T> T await(CompletableFuture<T> future) throws Exception {
+        try {
+            return future.join();
+        }
+        catch (CompletionException err) {
+            Throwable cause = err.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw (Error) cause;
+        }
+    }
+
+    /*
+     * Exception from a call that its interface method does not declare
+     */
+    private static RuntimeException unexpected(Exception err) {
+        if (err instanceof RuntimeException) {
+            return (RuntimeException) err;
+        }
+        return new IllegalStateException(err);
+    }
+
+    /**
+     * Start journalling every change. The journal is synced once for each
+     * batch the writer applies, before any call in the batch completes.
+     *
+     * @param filename      location of the journal
+     * @throws IOException  if the journal cannot be opened
+     * @see Store#openJournal(String)
+     */
+    public void openJournal(String filename) throws IOException {
+        try {
+            await(this.execute(store -> {
+                store.openJournal(filename, this.ring.length);
+                return null;
+            }));
+        }
+        catch (IOException err) {
+            throw err;
+        }
+        catch (Exception err) {
+            throw unexpected(err);
+        }
+    }
+
+    /**
+     * Sync and stop using the journal.
+     *
+     * @throws IOException  if the journal cannot be written
+     */
+    public void closeJournal() throws IOException {
+        try {
+            await(this.execute(store -> {
+                store.closeJournal();
+                return null;
+            }));
+        }
+        catch (IOException err) {
+            throw err;
+        }
+        catch (Exception err) {
+            throw unexpected(err);
+        }
+    }
+
+    /**
+     * Save a snapshot and empty the journal. The writer applies no other
+     * calls while the snapshot is written.
+     *
+     * @param snapshotFile  location of the snapshot
+     * @throws IOException  if the snapshot cannot be saved or the journal
+     *                      cannot be emptied
+     * @see Store#checkpoint(String)
+     */
+    public void checkpoint(String snapshotFile) throws IOException {
+        try {
+            await(this.execute(store -> {
+                store.checkpoint(snapshotFile);
+                return null;
+            }));
+        }
+        catch (IOException err) {
+            throw err;
+        }
+        catch (Exception err) {
+            throw unexpected(err);
+        }
+    }
+
+    public void addBeanBags(int num, String manufacturer, String name,
+                            String id, short year, byte month)
+    throws IllegalNumberOfBeanBagsAddedException, BeanBagMismatchException,
+           IllegalIDException, InvalidMonthException {
+
+        this.addBeanBags(num, manufacturer, name, id, year, month, "");
+    }
+
+    public void addBeanBags(int num, String manufacturer, String name,
+                            String id, short year, byte month,
+                            String information)
+    throws IllegalNumberOfBeanBagsAddedException, BeanBagMismatchException,
+           IllegalIDException, InvalidMonthException {
+        try {
+            await(this.addBeanBagsAsync(num, manufacturer, name, id, year, month,
+                                        information));
+        }
+        catch (IllegalNumberOfBeanBagsAddedException | BeanBagMismatchException |
+               IllegalIDException | InvalidMonthException err) {
+            throw err;
+        }
+        catch (Exception err) {
+            throw unexpected(err);
+        }
+    }
+
+    public void setBeanBagPrice(String id, int priceInPence)
+    throws InvalidPriceException, BeanBagIDNotRecognisedException,
+           IllegalIDException {
+        try {
+            await(this.setBeanBagPriceAsync(id, priceInPence));
+        }
+        catch (InvalidPriceException | BeanBagIDNotRecognisedException |
+               IllegalIDException err) {
+            throw err;
+        }
+        catch (Exception err) {
+            throw unexpected(err);
+        }
+    }
+
+    public void sellBeanBags(int num, String id)
+    throws BeanBagNotInStockException, InsufficientStockException,
+           IllegalNumberOfBeanBagsSoldException, PriceNotSetException,
+           BeanBagIDNotRecognisedException, IllegalIDException {
+        try {
+            await(this.sellBeanBagsAsync(num, id));
+        }
+        catch (BeanBagNotInStockException | InsufficientStockException |
+               IllegalNumberOfBeanBagsSoldException | PriceNotSetException |
+               BeanBagIDNotRecognisedException | IllegalIDException err) {
+            throw err;
+        }
+        catch (Exception err) {
+            throw unexpected(err);
+        }
+    }
+
+    public int reserveBeanBags(int num, String id)
+    throws BeanBagNotInStockException, InsufficientStockException,
+           IllegalNumberOfBeanBagsReservedException, PriceNotSetException,
+           BeanBagIDNotRecognisedException, IllegalIDException {
+        try {
+            return await(this.reserveBeanBagsAsync(num, id));
+        }
+        catch (BeanBagNotInStockException | InsufficientStockException |
+               IllegalNumberOfBeanBagsReservedException | PriceNotSetException |
+               BeanBagIDNotRecognisedException | IllegalIDException err) {
+            throw err;
+        }
+        catch (Exception err) {
+            throw unexpected(err);
+        }
+    }
+
+    public void unreserveBeanBags(int reservationNumber)
+    throws ReservationNumberNotRecognisedException {
+        try {
+            await(this.unreserveBeanBagsAsync(reservationNumber));
+        }
+        catch (ReservationNumberNotRecognisedException err) {
+            throw err;
+        }
+        catch (Exception err) {
+            throw unexpected(err);
+        }
+    }
+
+    public void sellBeanBags(int reservationNumber)
+    throws ReservationNumberNotRecognisedException {
+        try {
+            await(this.sellBeanBagsAsync(reservationNumber));
+        }
+        catch (ReservationNumberNotRecognisedException err) {
+            throw err;
+        }
+        catch (Exception err) {
+            throw unexpected(err);
+        }
+    }
+
+    public void replace(String oldId, String replacementId)
+    throws BeanBagIDNotRecognisedException, IllegalIDException {
+        try {
+            await(this.replaceAsync(oldId, replacementId));
+        }
+        catch (BeanBagIDNotRecognisedException | IllegalIDException err) {
+            throw err;
+        }
+        catch (Exception err) {
+            throw unexpected(err);
+        }
+    }
+
+    public void empty() {
+        try {
+            await(this.emptyAsync());
+        }
+        catch (Exception err) {
+            throw unexpected(err);
+        }
+    }
+
+    public void resetSaleAndCostTracking() {
+        try {
+            await(this.resetSaleAndCostTrackingAsync());
+        }
+        catch (Exception err) {
+            throw unexpected(err);
+        }
+    }
+
+    public int beanBagsInStock() {
+        return this.totals.stock;
+    }
+
+    public int reservedBeanBagsInStock() {
+        return this.totals.reserved;
+    }
+
+    public int getNumberOfDifferentBeanBagsInStock() {
+        return this.totals.models;
+    }
+
+    public int getNumberOfSoldBeanBags() {
+        return this.totals.soldCount;
+    }
+
+    public int getTotalPriceOfSoldBeanBags() {
+        return this.totals.soldValue;
+    }
+
+    public int getTotalPriceOfReservedBeanBags() {
+        return this.totals.reservedValue;
+    }
+
+    public int beanBagsInStock(String id)
+    throws BeanBagIDNotRecognisedException, IllegalIDException {
+        try {
+            return await(this.beanBagsInStockAsync(id));
+        }
+        catch (BeanBagIDNotRecognisedException | IllegalIDException err) {
+            throw err;
+        }
+        catch (Exception err) {
+            throw unexpected(err);
+        }
+    }
+
+    public int getNumberOfSoldBeanBags(String id)
+    throws BeanBagIDNotRecognisedException, IllegalIDException {
+        try {
+            return await(this.getNumberOfSoldBeanBagsAsync(id));
+        }
+        catch (BeanBagIDNotRecognisedException | IllegalIDException err) {
+            throw err;
+        }
+        catch (Exception err) {
+            throw unexpected(err);
+        }
+    }
+
+    public int getTotalPriceOfSoldBeanBags(String id)
+    throws BeanBagIDNotRecognisedException, IllegalIDException {
+        try {
+            return await(this.getTotalPriceOfSoldBeanBagsAsync(id));
+        }
+        catch (BeanBagIDNotRecognisedException | IllegalIDException err) {
+            throw err;
+        }
+        catch (Exception err) {
+            throw unexpected(err);
+        }
+    }
+
+    public String getBeanBagDetails(String id)
+    throws BeanBagIDNotRecognisedException, IllegalIDException {
+        try {
+            return await(this.getBeanBagDetailsAsync(id));
+        }
+        catch (BeanBagIDNotRecognisedException | IllegalIDException err) {
+            throw err;
+        }
+        catch (Exception err) {
+            throw unexpected(err);
+        }
+    }
+
+    /**
+     * Write a snapshot of the store as it is now, without holding up the
+     * calls behind it while it is written.
+     *
+     * @param filename      location of the file to be saved
+     * @throws IOException  if the snapshot cannot be written
+     * @see #saveStoreContentsAsync(String)
+     */
+    public void saveStoreContents(String filename) throws IOException {
+        try {
+            await(this.saveStoreContentsAsync(filename));
+        }
+        catch (IOException err) {
+            throw err;
+        }
+        catch (Exception err) {
+            throw unexpected(err);
+        }
+    }
+
+    public void loadStoreContents(String filename)
+    throws IOException, ClassNotFoundException {
+        try {
+            await(this.loadStoreContentsAsync(filename));
+        }
+        catch (IOException | ClassNotFoundException err) {
+            throw err;
+        }
+        catch (Exception err) {
+            throw unexpected(err);
+        }
+    }
+}
@@ -0,0 +1,556 @@
+package beanbags;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Read-only copy of a store kept up to date by a
+ * {@link ReplicationPrimary}.
+ * <p>
+ * A thread of the replica's own connects to the primary, asks for every
+ * change after the last one it holds, and makes each change to a local
+ * {@link Store} in the order the primary made them. If the connection is
+ * lost it reconnects and carries on from where it got to, and if the
+ * primary can no longer send the changes it missed, it is sent a snapshot
+ * instead. A replica can start from a snapshot of its own, so only the
+ * changes made since have to be sent.
+ * <p>
+ * Queries are answered from the local store, and may be a little behind
+ * the primary; {@link #awaitLsn(long, long)} waits for a given change to
+ * arrive. Changes are applied a batch at a time, so queries never see
+ * part of a batch. A batch is checked to carry on from the replica's last
+ * change before any of it is made. If a change still cannot be made, the
+ * replica no longer matches the primary: queries then fail with
+ * IllegalStateException until the replica has asked for and loaded a
+ * fresh snapshot. Every method that would change the store throws
+ * UnsupportedOperationException.
+ *
+ * @author Max Beech, Louis Haddrell
+ */
+public class ReplicaStore implements BeanBagStore
+{
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final long RETRY_MILLIS = 200;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final InetSocketAddress primary;
+    private final Store store;
+    private final ReentrantReadWriteLock lock;
+    private final Object progress;
+    private final Thread applier;
+
+    private volatile long appliedLsn;
+    private volatile Socket socket;
+    private volatile boolean closed;
+    // Set when a change could not be made, until a snapshot replaces the
+    // store
+    private volatile boolean diverged;
+    private volatile IOException lastFailure;
+
+    /**
+     * Create an empty replica and start following the primary
+     *
+     * @param host      host the primary is on
+     * @param port      port the primary is listening on
+     */
+    public ReplicaStore(String host, int port) {
+        this(new Store(), host, port);
+    }
+
+    /**
+     * Create a replica from a snapshot of the primary and start following
+     * the primary from the snapshot's last change
+     *
+     * @param snapshotFile  snapshot saved by the primary
+     * @param host          host the primary is on
+     * @param port          port the primary is listening on
+     * @throws IOException  if the snapshot cannot be read
+     * @throws ClassNotFoundException if the snapshot is a serialised file
+     *                      whose classes cannot be found
+     */
+    public ReplicaStore(String snapshotFile, String host, int port)
+    throws IOException, ClassNotFoundException {
+        this(load(snapshotFile), host, port);
+    }
+
+    private ReplicaStore(Store store, String host, int port) {
+        this.primary = new InetSocketAddress(host, port);
+        this.store = store;
+        this.lock = new ReentrantReadWriteLock();
+        this.progress = new Object();
+        this.appliedLsn = store.getLastLsn();
+
+        this.applier = new Thread(this::run, "beanbags-replica");
+        this.applier.setDaemon(true);
+        this.applier.start();
+    }
+
+    private static Store load(String snapshotFile)
+    throws IOException, ClassNotFoundException {
+        Store store = new Store();
+        store.loadStoreContents(snapshotFile);
+        return store;
+    }
+
+    /**
+     * @return  LSN of the last change made to the replica
+     */
+    public long getAppliedLsn() {
+        return this.appliedLsn;
+    }
+
+    /**
+     * @return  true if a change from the primary could not be made, so the
+     *          replica is waiting for a snapshot and cannot be queried
+     */
+    public boolean isDiverged() {
+        return this.diverged;
+    }
+
+    /**
+     * @return  why the connection to the primary was last lost, or null
+     *          if changes have arrived since
+     */
+    public IOException getLastFailure() {
+        return this.lastFailure;
+    }
+
+    /**
+     * Wait for the replica to catch up to a change
+     *
+     * @param lsn           LSN of the change to wait for
+     * @param timeoutMillis longest to wait
+     * @return              true if the replica holds the change
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitLsn(long lsn, long timeoutMillis)
+    throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+        synchronized (this.progress) {
+            while (this.appliedLsn < lsn) {
+                long remaining = (deadline - System.nanoTime()) / 1000000L;
+                if (remaining <= 0) {
+                    return false;
+                }
+                this.progress.wait(remaining);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Disconnect from the primary and stop applying changes. The replica
+     * can still be queried.
+     *
+     * @throws InterruptedException if interrupted waiting for the applier
+     *                      thread to stop
+     */
+    public void close() throws InterruptedException {
+        this.closed = true;
+        Socket current = this.socket;
+        if (current != null) {
+            try {
+                current.close();
+            }
+            catch (IOException err) {
+                // Closing anyway
+            }
+        }
+        this.applier.interrupt();
+        this.applier.join();
+    }
+
+    /*
+     * Follow the primary until closed, reconnecting whenever the
+     * connection is lost
+     */
+    private void run() {
+        while (!this.closed) {
+            try {
+                this.follow();
+            }
+            catch (IOException err) {
+                // Lost the primary, or could not make its changes; try
+                // again shortly
+                this.lastFailure = err;
+            }
+
+            try {
+                Thread.sleep(RETRY_MILLIS);
+            }
+            catch (InterruptedException err) {
+                return;
+            }
+        }
+    }
+
+    /*
+     * Connect to the primary and apply what it sends until the connection
+     * is lost or the replica is closed
+     */
+    private void follow() throws IOException {
+        Socket connection = new Socket();
+        this.socket = connection;
+        try {
+            if (this.closed) {
+                return;
+            }
+            connection.connect(this.primary, CONNECT_TIMEOUT_MILLIS);
+            connection.setTcpNoDelay(true);
+            // The primary sends something at least this often
+            connection.setSoTimeout(ReplicationPrimary.HEARTBEAT_MILLIS * 5);
+
+            DataInputStream in = new DataInputStream(
+                new BufferedInputStream(connection.getInputStream(), BUFFER_SIZE));
+            DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(connection.getOutputStream()));
+            out.writeInt(ReplicationPrimary.MAGIC);
+            out.writeShort(ReplicationPrimary.VERSION);
+            out.writeLong(this.diverged ? ReplicationPrimary.RESYNC : this.appliedLsn);
+            out.flush();
+
+            while (!this.closed) {
+                byte type = in.readByte();
+                if (type == ReplicationPrimary.RECORDS) {
+                    this.applyRecords(in);
+                }
+                else if (type == ReplicationPrimary.SNAPSHOT) {
+                    this.applySnapshot(in);
+                }
+                else {
+                    throw new IOException("Unknown replication message " + type);
+                }
+            }
+        }
+        finally {
+            connection.close();
+        }
+    }
+
+    /*
+     * Read a batch of records and make every change in it
+     */
+    private void applyRecords(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count == 0) {
+            return;
+        }
+
+        JournalRecord[] records = new JournalRecord[count];
+        for (int i=0; i < count; i++){
+            byte[] body = new byte[in.readInt()];
+            in.readFully(body);
+            records[i] = JournalRecord.decode(ByteBuffer.wrap(body));
+        }
+
+        // Make sure the whole batch carries on from the store first
+        if (this.diverged) {
+            throw new IOException("Changes sent before the snapshot asked for");
+        }
+        long expected = this.appliedLsn + 1;
+        if (records[0].getLsn() > expected) {
+            throw new IOException("Batch starts at " + records[0].getLsn() +
+                                  ", not " + expected);
+        }
+        for (int i=1; i < count; i++){
+            if (records[i].getLsn() != records[i - 1].getLsn() + 1) {
+                throw new IOException("Batch skips from " + records[i - 1].getLsn() +
+                                      " to " + records[i].getLsn());
+            }
+        }
+
+        this.lock.writeLock().lock();
+        try {
+            for (int i=0; i < count; i++){
+                this.store.apply(records[i]);
+            }
+            this.advance();
+        }
+        catch (IOException err) {
+            // Part of the batch is made and cannot be taken back, so stop
+            // answering queries until a snapshot replaces the store
+            this.diverged = true;
+            throw err;
+        }
+        finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /*
+     * Read a snapshot and replace the store with it
+     */
+    private void applySnapshot(DataInputStream in) throws IOException {
+        long size = in.readLong();
+        Path file = Files.createTempFile("beanbags-replica", ".snap");
+        try {
+            OutputStream copy = Files.newOutputStream(file);
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                while (size > 0) {
+                    int read = in.read(buffer, 0, (int) Math.min(buffer.length, size));
+                    if (read < 0) {
+                        throw new EOFException("Snapshot cut short");
+                    }
+                    copy.write(buffer, 0, read);
+                    size -= read;
+                }
+            }
+            finally {
+                copy.close();
+            }
+
+            this.lock.writeLock().lock();
+            try {
+                this.store.loadStoreContents(file.toString());
+                this.diverged = false;
+                this.advance();
+            }
+            catch (ClassNotFoundException err) {
+                throw new IOException("Primary sent an unreadable snapshot", err);
+            }
+            finally {
+                this.lock.writeLock().unlock();
+            }
+        }
+        finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /*
+     * Publish the LSN the store has reached to anyone waiting for it
+     */
+    private void advance() {
+        synchronized (this.progress) {
+            this.appliedLsn = this.store.getLastLsn();
+            this.lastFailure = null;
+            this.progress.notifyAll();
+        }
+    }
+
+    /*
+     * Refuse to answer from a store part way through a batch; called with
+     * the read lock held
+     */
+    private void checkConsistent() {
+        if (this.diverged) {
+            throw new IllegalStateException(
+                "Replica has diverged from the primary and is resyncing");
+        }
+    }
+
+    private static UnsupportedOperationException readOnly() {
+        return new UnsupportedOperationException("Replicas are read-only");
+    }
+
+    public void addBeanBags(int num, String manufacturer, String name,
+                            String id, short year, byte month)
+    throws IllegalNumberOfBeanBagsAddedException, BeanBagMismatchException,
+    IllegalIDException, InvalidMonthException {
+        throw readOnly();
+    }
+
+    public void addBeanBags(int num, String manufacturer, String name,
+                            String id, short year, byte month,
+                            String information)
+    throws IllegalNumberOfBeanBagsAddedException, BeanBagMismatchException,
+    IllegalIDException, InvalidMonthException {
+        throw readOnly();
+    }
+
+    public void setBeanBagPrice(String id, int priceInPence)
+    throws InvalidPriceException, BeanBagIDNotRecognisedException,
+    IllegalIDException {
+        throw readOnly();
+    }
+
+    public void sellBeanBags(int num, String id)
+    throws BeanBagNotInStockException, InsufficientStockException,
+    IllegalNumberOfBeanBagsSoldException, PriceNotSetException,
+    BeanBagIDNotRecognisedException, IllegalIDException {
+        throw readOnly();
+    }
+
+    public int reserveBeanBags(int num, String id)
+    throws BeanBagNotInStockException, InsufficientStockException,
+    IllegalNumberOfBeanBagsReservedException, PriceNotSetException,
+    BeanBagIDNotRecognisedException, IllegalIDException {
+        throw readOnly();
+    }
+
+    public void unreserveBeanBags(int reservationNumber)
+    throws ReservationNumberNotRecognisedException {
+        throw readOnly();
+    }
+
+    public void sellBeanBags(int reservationNumber)
+    throws ReservationNumberNotRecognisedException {
+        throw readOnly();
+    }
+
+    public void replace(String oldId, String replacementId)
+    throws BeanBagIDNotRecognisedException, IllegalIDException {
+        throw readOnly();
+    }
+
+    public void empty() {
+        throw readOnly();
+    }
+
+    public void resetSaleAndCostTracking() {
+        throw readOnly();
+    }
+
+    /**
+     * Replicas only load what the primary sends them.
+     *
+     * @throws UnsupportedOperationException always
+     */
+    public void loadStoreContents(String filename) {
+        throw readOnly();
+    }
+
+    /**
+     * Save the replica's contents as they stand, which a replica can later
+     * be started from.
+     *
+     * @param filename      location of the file to be saved
+     * @throws IOException  if the file cannot be written
+     */
+    public void saveStoreContents(String filename) throws IOException {
+        // Saving marks the store clean, so changes must wait
+        this.lock.writeLock().lock();
+        try {
+            this.store.saveStoreContents(filename);
+        }
+        finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    public int beanBagsInStock() {
+        this.lock.readLock().lock();
+        try {
+            this.checkConsistent();
+            return this.store.beanBagsInStock();
+        }
+        finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    public int reservedBeanBagsInStock() {
+        this.lock.readLock().lock();
+        try {
+            this.checkConsistent();
+            return this.store.reservedBeanBagsInStock();
+        }
+        finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    public int beanBagsInStock(String id)
+    throws BeanBagIDNotRecognisedException, IllegalIDException {
+        this.lock.readLock().lock();
+        try {
+            this.checkConsistent();
+            return this.store.beanBagsInStock(id);
+        }
+        finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    public int getNumberOfDifferentBeanBagsInStock() {
+        this.lock.readLock().lock();
+        try {
+            this.checkConsistent();
+            return this.store.getNumberOfDifferentBeanBagsInStock();
+        }
+        finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    public int getNumberOfSoldBeanBags() {
+        this.lock.readLock().lock();
+        try {
+            this.checkConsistent();
+            return this.store.getNumberOfSoldBeanBags();
+        }
+        finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    public int getNumberOfSoldBeanBags(String id)
+    throws BeanBagIDNotRecognisedException, IllegalIDException {
+        this.lock.readLock().lock();
+        try {
+            this.checkConsistent();
+            return this.store.getNumberOfSoldBeanBags(id);
+        }
+        finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    public int getTotalPriceOfSoldBeanBags() {
+        this.lock.readLock().lock();
+        try {
+            this.checkConsistent();
+            return this.store.getTotalPriceOfSoldBeanBags();
+        }
+        finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    public int getTotalPriceOfSoldBeanBags(String id)
+    throws BeanBagIDNotRecognisedException, IllegalIDException {
+        this.lock.readLock().lock();
+        try {
+            this.checkConsistent();
+            return this.store.getTotalPriceOfSoldBeanBags(id);
+        }
+        finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    public int getTotalPriceOfReservedBeanBags() {
+        this.lock.readLock().lock();
+        try {
+            this.checkConsistent();
+            return this.store.getTotalPriceOfReservedBeanBags();
+        }
+        finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    public String getBeanBagDetails(String id)
+    throws BeanBagIDNotRecognisedException, IllegalIDException {
+        this.lock.readLock().lock();
+        try {
+            this.checkConsistent();
+            return this.store.getBeanBagDetails(id);
+        }
+        finally {
+            this.lock.readLock().unlock();
+        }
+    }
+}
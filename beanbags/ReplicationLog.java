@@ -0,0 +1,118 @@
+package beanbags;
+
+/**
+ * Bounded in-memory log of the changes made to a replicated store, from
+ * which each replica is fed.
+ * <p>
+ * Records are held encoded, in LSN order, in a fixed ring. Once the ring
+ * is full the oldest record is dropped for each new one, so a replica
+ * that falls too far behind can no longer be fed from the log and must
+ * start again from a snapshot.
+ *
+ * @author Max Beech, Louis Haddrell
+ */
+class ReplicationLog
+{
+    static final int DEFAULT_CAPACITY = 64 * 1024;
+
+    private final byte[][] ring;
+
+    // Guarded by this: the log holds records first to last inclusive
+    private long first;
+    private long last;
+    private boolean closed;
+
+    /**
+     * @param capacity      most records held at once
+     * @param lastLsn       LSN of the last change the store already holds;
+     *                      the log starts with the change after it
+     */
+    ReplicationLog(int capacity, long lastLsn) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1");
+        }
+        this.ring = new byte[capacity][];
+        this.first = lastLsn + 1;
+        this.last = lastLsn;
+    }
+
+    /**
+     * Add the next change to the log, waking any reader waiting for it
+     *
+     * @param record    record of the change, holding its LSN
+     * @throws IllegalStateException if the record does not follow on from
+     *                  the last one in the log
+     */
+    synchronized void append(JournalRecord record) {
+        if (record.getLsn() != this.last + 1) {
+            throw new IllegalStateException("Record " + record.getLsn() +
+                " does not follow on from " + this.last);
+        }
+
+        this.last++;
+        this.ring[(int) (this.last % this.ring.length)] = record.encode();
+        if (this.last - this.first >= this.ring.length) {
+            this.first++;
+        }
+        this.notifyAll();
+    }
+
+    /**
+     * Whether every change after an LSN can still be read from the log
+     *
+     * @param lsn   LSN of the last change a reader holds
+     * @return      true if reading from lsn can carry on from it
+     */
+    synchronized boolean covers(long lsn) {
+        return lsn >= this.first - 1 && lsn <= this.last;
+    }
+
+    /**
+     * @return  LSN of the last change in the log
+     */
+    synchronized long getLastLsn() {
+        return this.last;
+    }
+
+    /**
+     * Copy out the encoded records after an LSN, waiting a while for one
+     * to be added if there are none yet
+     *
+     * @param lsn           LSN of the last change the reader holds
+     * @param into          array to copy records into, in LSN order
+     * @param timeoutMillis longest to wait for a record
+     * @return              number of records copied, 0 if none arrived in
+     *                      time or the log is closed, or -1 if the log no
+     *                      longer covers lsn
+     * @throws InterruptedException if interrupted while waiting
+     */
+    synchronized int read(long lsn, byte[][] into, long timeoutMillis)
+    throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+        while (this.last == lsn && !this.closed) {
+            long remaining = (deadline - System.nanoTime()) / 1000000L;
+            if (remaining <= 0) {
+                return 0;
+            }
+            this.wait(remaining);
+        }
+
+        if (!this.covers(lsn)) {
+            return -1;
+        }
+
+        int count = (int) Math.min(into.length, this.last - lsn);
+        for (int i=0; i < count; i++){
+            into[i] = this.ring[(int) ((lsn + 1 + i) % this.ring.length)];
+        }
+        return count;
+    }
+
+    /**
+     * Wake every waiting reader, which then find nothing new
+     */
+    synchronized void close() {
+        this.closed = true;
+        this.notifyAll();
+    }
+}
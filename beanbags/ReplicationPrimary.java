@@ -0,0 +1,288 @@
+package beanbags;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Streams every change made to a {@link PipelinedStore} to any number of
+ * {@link ReplicaStore}s over TCP.
+ * <p>
+ * Each change is recorded in the same compact binary form as the journal,
+ * with its LSN, in a bounded in-memory log. A replica connects, says the
+ * LSN of the last change it holds, and is sent every change after it in
+ * batches, as soon as the writer thread has made them. A replica the
+ * log no longer covers, because it fell too far behind or joined a store
+ * that already held changes, is first sent a snapshot of the store and
+ * carries on from the snapshot's LSN. So is a replica that asks from
+ * LSN -1 because it no longer matches the store. When there are no
+ * changes the primary sends an empty batch every second, so either end
+ * notices the other has gone.
+ * <p>
+ * Replicas see changes in the order the writer made them, but a little
+ * after the primary's callers do. The store cannot be loaded while it is
+ * being replicated, as the load would not reach the replicas.
+ *
+ * @author Max Beech, Louis Haddrell
+ */
+public class ReplicationPrimary
+{
+    static final int MAGIC = 0x42425250;
+    static final short VERSION = 1;
+    static final byte RECORDS = 1;
+    static final byte SNAPSHOT = 2;
+    static final int HEARTBEAT_MILLIS = 1000;
+    // LSN a replica asks to start from when it needs a snapshot whatever
+    // the log holds
+    static final long RESYNC = -1;
+
+    private static final int BATCH_SIZE = 512;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final PipelinedStore store;
+    private final ServerSocket server;
+    private final int capacity;
+    private final Set<Socket> replicas;
+
+    private volatile ReplicationLog log;
+    private volatile boolean stopped;
+
+    /**
+     * Create a primary for a store, listening on every interface
+     *
+     * @param store         store to replicate
+     * @param port          port to listen on, or 0 for any free port
+     * @throws IOException  if the port cannot be bound
+     */
+    public ReplicationPrimary(PipelinedStore store, int port) throws IOException {
+        this(store, new InetSocketAddress(port), ReplicationLog.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create a primary for a store
+     *
+     * @param store         store to replicate
+     * @param address       address to listen on
+     * @param capacity      most changes kept for replicas that fall behind
+     * @throws IOException  if the address cannot be bound
+     */
+    public ReplicationPrimary(PipelinedStore store, InetSocketAddress address,
+                              int capacity)
+    throws IOException {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1");
+        }
+        this.store = store;
+        this.capacity = capacity;
+        this.replicas = ConcurrentHashMap.newKeySet();
+        this.server = new ServerSocket();
+        this.server.bind(address);
+    }
+
+    /**
+     * Start logging the store's changes and accepting replicas
+     *
+     * @throws IllegalStateException if the store is already replicated, or
+     *                      the primary has been stopped
+     */
+    public void start() {
+        if (this.stopped) {
+            throw new IllegalStateException("Primary has been stopped");
+        }
+
+        // Attached on the writer thread, so the log starts exactly after
+        // the last change made
+        this.log = this.store.execute(store -> {
+            ReplicationLog log = new ReplicationLog(this.capacity,
+                                                    store.getLastLsn());
+            store.startReplication(log);
+            return log;
+        }).join();
+
+        Thread acceptor = new Thread(this::accept, "beanbags-replication");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Stop accepting replicas, disconnect those connected and stop logging
+     * the store's changes
+     */
+    public void stop() {
+        this.stopped = true;
+        closeQuietly(this.server);
+        for (Socket replica : this.replicas) {
+            closeQuietly(replica);
+        }
+
+        ReplicationLog log = this.log;
+        if (log != null) {
+            log.close();
+            try {
+                this.store.execute(store -> {
+                    store.stopReplication();
+                    return null;
+                }).join();
+            }
+            catch (IllegalStateException err) {
+                // Store already closed
+            }
+        }
+    }
+
+    /**
+     * @return  port the primary is listening on
+     */
+    public int getPort() {
+        return this.server.getLocalPort();
+    }
+
+    /**
+     * @return  LSN of the last change logged for replicas, or 0 if not
+     *          started
+     */
+    public long getLastLsn() {
+        ReplicationLog log = this.log;
+        return log == null ? 0 : log.getLastLsn();
+    }
+
+    /**
+     * @return  number of replicas connected
+     */
+    public int getReplicaCount() {
+        return this.replicas.size();
+    }
+
+    /*
+     * Take each replica that connects and feed it on a thread of its own
+     */
+    private void accept() {
+        while (!this.stopped) {
+            Socket socket;
+            try {
+                socket = this.server.accept();
+            }
+            catch (IOException err) {
+                // Closed by stop()
+                return;
+            }
+
+            this.replicas.add(socket);
+            if (this.stopped) {
+                closeQuietly(socket);
+                return;
+            }
+            Thread feeder = new Thread(() -> this.feed(socket),
+                                       "beanbags-replica-feed");
+            feeder.setDaemon(true);
+            feeder.start();
+        }
+    }
+
+    /*
+     * Send a replica every change after the LSN it asks for, until it
+     * disconnects or the primary stops
+     */
+    private void feed(Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(
+                new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a replica");
+            }
+            short version = in.readShort();
+            if (version != VERSION) {
+                throw new IOException("Unsupported replication version " + version);
+            }
+            long lsn = in.readLong();
+
+            byte[][] batch = new byte[BATCH_SIZE][];
+            while (!this.stopped) {
+                int count = this.log.read(lsn, batch, HEARTBEAT_MILLIS);
+                if (count < 0) {
+                    lsn = this.sendSnapshot(out);
+                    continue;
+                }
+
+                out.writeByte(RECORDS);
+                out.writeInt(count);
+                for (int i=0; i < count; i++){
+                    out.writeInt(batch[i].length);
+                    out.write(batch[i]);
+                    batch[i] = null;
+                }
+                out.flush();
+                lsn += count;
+            }
+        }
+        catch (IOException err) {
+            // Replica gone, or stopped; it reconnects from where it got to
+        }
+        catch (InterruptedException err) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            this.replicas.remove(socket);
+            closeQuietly(socket);
+        }
+    }
+
+    /*
+     * Snapshot the store and send it whole, returning the LSN it holds
+     */
+    private long sendSnapshot(DataOutputStream out)
+    throws IOException, InterruptedException {
+        Path file = Files.createTempFile("beanbags-replica", ".snap");
+        try {
+            try {
+                // Not a save of the store's own, so its deltas are untouched
+                this.store.copyStoreContentsAsync(file.toString()).get();
+            }
+            catch (ExecutionException err) {
+                throw new IOException("Snapshot for replica failed", err.getCause());
+            }
+
+            long lsn;
+            SnapshotReader reader = new SnapshotReader(file.toString());
+            try {
+                lsn = reader.getLsn();
+            }
+            finally {
+                reader.close();
+            }
+
+            out.writeByte(SNAPSHOT);
+            out.writeLong(Files.size(file));
+            Files.copy(file, out);
+            out.flush();
+            return lsn;
+        }
+        finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        }
+        catch (IOException err) {
+            // Nothing more to do
+        }
+    }
+}
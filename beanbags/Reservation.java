@@ -9,10 +9,16 @@ import java.io.Serializable;
  */
 public class Reservation implements Serializable
 {
+    private static final long serialVersionUID = -4672091399565618390L;
+
     private int id;
     private int priceInPence;
     private int quantity;
 
+    // Owning bean bag and position in its reservations list, set by the bag
+    private transient BeanBag bag;
+    private transient int slot;
+
     public Reservation(int id, int priceInPence, int quantity) {
         this.id = id;
         this.priceInPence = priceInPence;
@@ -60,4 +66,29 @@ public class Reservation implements Serializable
     public int getValue() {
         return this.priceInPence * this.quantity;
     }
+
+    /**
+     *  @return     bean bag holding this reservation
+     */
+    BeanBag getBag() {
+        return this.bag;
+    }
+
+    /**
+     *  @return     index of this reservation in its bag's reservations list
+     */
+    int getSlot() {
+        return this.slot;
+    }
+
+    /**
+     *  Record where this reservation is held
+     *
+     *  @param bag      bean bag holding the reservation
+     *  @param slot     index in the bag's reservations list
+     */
+    void setLocation(BeanBag bag, int slot) {
+        this.bag = bag;
+        this.slot = slot;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,137 @@
+package beanbags;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Source of reservation numbers unique within one store.
+ * <p>
+ * Each thread claims a block of numbers from a shared atomic high-water
+ * mark and then hands them out from its block without touching shared
+ * state, so threads reserving at the same time rarely contend. A thread's
+ * first block holds a single number and each block after it is twice the
+ * last, up to the block size, so a thread that only reserves once or twice
+ * takes no more numbers than it uses and a busy one soon stops contending.
+ * Every number ever issued is below the high-water mark, so saving the
+ * mark with the store and restoring it on load keeps numbers unique across
+ * restarts.
+ * <p>
+ * Numbers are held off while {@link #advanceTo(int)} moves the mark, so
+ * none issued after it returns is from a block claimed before.
+ *
+ * @author Max Beech, Louis Haddrell
+ */
+public class ReservationSequence implements Serializable
+{
+    private static final long serialVersionUID = -6041754723919089568L;
+    private static final int DEFAULT_BLOCK_SIZE = 64;
+
+    private final AtomicInteger highWater;
+    private final int blockSize;
+
+    // Bumped whenever the mark is moved by a load, so threads drop blocks
+    // claimed before it
+    private volatile int epoch;
+    private transient ThreadLocal<int[]> blocks;
+    // Written by advanceTo, so numbers taken from a block can be checked
+    // against a move of the mark
+    private transient StampedLock advancing;
+
+    /**
+     * Creates a sequence starting at 1
+     */
+    public ReservationSequence() {
+        this(DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Creates a sequence starting at 1 that hands numbers to each thread in
+     * blocks of the given size
+     *
+     * @param blockSize     most numbers claimed by a thread at a time
+     */
+    public ReservationSequence(int blockSize) {
+        this.highWater = new AtomicInteger(1);
+        this.blockSize = Math.max(blockSize, 1);
+        this.blocks = new ThreadLocal<int[]>();
+        this.advancing = new StampedLock();
+    }
+
+    /**
+     * Recreate the per-thread blocks after deserialisation
+     */
+    private void readObject(ObjectInputStream in)
+    throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        this.blocks = new ThreadLocal<int[]>();
+        this.advancing = new StampedLock();
+    }
+
+    /**
+     * Issue the next reservation number for the calling thread
+     *
+     * @return      number never issued before by this sequence
+     */
+    public int next() {
+        // Block holds the next number, the end of the block, its epoch and
+        // its size
+        int[] block = this.blocks.get();
+
+        if (block == null) {
+            block = new int[4];
+            this.blocks.set(block);
+        }
+
+        // Taken without locking unless the mark moved while it was taken
+        long stamp = this.advancing.tryOptimisticRead();
+        if (block[0] < block[1] && block[2] == this.epoch) {
+            int number = block[0]++;
+            if (this.advancing.validate(stamp)) {
+                return number;
+            }
+        }
+
+        stamp = this.advancing.readLock();
+        try {
+            int size = Math.min(Math.max(block[3] * 2, 1), this.blockSize);
+            int start = this.highWater.getAndAdd(size);
+            block[0] = start + 1;
+            block[1] = start + size;
+            block[2] = this.epoch;
+            block[3] = size;
+            return start;
+        }
+        finally {
+            this.advancing.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @return      number above every reservation number issued so far
+     */
+    public int getHighWater() {
+        return this.highWater.get();
+    }
+
+    /**
+     * Make sure no number below the given value is issued from now on, for
+     * example because a loaded store already uses them
+     *
+     * @param value     lowest number that may still be issued
+     */
+    public void advanceTo(int value) {
+        if (this.highWater.get() < value) {
+            long stamp = this.advancing.writeLock();
+            try {
+                this.highWater.accumulateAndGet(value, Math::max);
+                this.epoch++;
+            }
+            finally {
+                this.advancing.unlockWrite(stamp);
+            }
+        }
+    }
+}
@@ -0,0 +1,545 @@
+package beanbags;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+
+/**
+ * Bean Bag store split by ID hash into independent shards, one per core
+ * by default.
+ * <p>
+ * Each shard is a {@link PipelinedStore} with its own writer thread, so
+ * calls on bags in different shards never contend, and calls on one bag
+ * are applied in order. Point calls go straight to the shard holding the
+ * bag. Store-wide totals are combined from every shard's published
+ * totals, so they never wait for a writer, but are not taken at one
+ * instant across shards.
+ * <p>
+ * Shard i only issues reservation numbers that leave i when divided by
+ * the number of shards, so a reservation number leads straight to its
+ * shard. A bag keeps its shard when its ID is replaced, even if the new ID
+ * hashes to another, and is found there from then on.
+ *
+ * @author Max Beech, Louis Haddrell
+ */
+public class ShardedStore implements BeanBagStore, AsyncBeanBagStore
+{
+    private static final int RING_CAPACITY = 1024;
+
+    private final PipelinedStore[] shards;
+
+    // Keys of bags held outside the shard their ID hashes to, because
+    // their ID was replaced, with the shard that holds them
+    private final ConcurrentHashMap<Long, Integer> moved;
+
+    // Held shared while adding bags and exclusively while IDs move or the
+    // store is emptied, so no ID is ever in use in two shards
+    private final ReentrantReadWriteLock ids;
+
+    /*
+     * Store call run on a pool thread for an async method
+     */
+    private interface Call
+    {
+        void run() throws Exception;
+    }
+
+    public ShardedStore() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create a store with a chosen number of shards
+     *
+     * @param shards    number of shards, each with its own writer thread
+     */
+    public ShardedStore(int shards) {
+        if (shards < 1) {
+            throw new IllegalArgumentException("At least one shard is needed");
+        }
+
+        this.shards = new PipelinedStore[shards];
+        for (int i=0; i < shards; i++){
+            Store store = new Store();
+            store.setReservationStride(shards, i);
+            this.shards[i] = new PipelinedStore(store, RING_CAPACITY);
+        }
+        this.moved = new ConcurrentHashMap<Long, Integer>();
+        this.ids = new ReentrantReadWriteLock();
+    }
+
+    /**
+     * @return      number of shards
+     */
+    public int getShardCount() {
+        return this.shards.length;
+    }
+
+    /**
+     * Shard holding, or due to hold, a bag. Illegal IDs go to shard 0,
+     * which rejects them.
+     *
+     * @param id    bean bag ID string
+     * @return      shard number
+     */
+    public int shardOf(String id) {
+        long key = BeanBagID.parse(id);
+        return BeanBagID.isValid(key) ? this.shardOf(key) : 0;
+    }
+
+    private int shardOf(long key) {
+        Integer shard = this.moved.get(key);
+        return shard != null ? shard : SnapshotManifest.shardOf(key, this.shards.length);
+    }
+
+    private PipelinedStore shardFor(String id) {
+        return this.shards[this.shardOf(id)];
+    }
+
+    private PipelinedStore shardForReservation(int reservationNumber) {
+        return this.shards[Math.floorMod(reservationNumber, this.shards.length)];
+    }
+
+    /*
+     * Sum an int total over every shard
+     */
+    private CompletableFuture<Integer> sum(
+        Function<PipelinedStore, CompletableFuture<Integer>> total) {
+
+        CompletableFuture<Integer> result = CompletableFuture.completedFuture(0);
+        for (PipelinedStore shard : this.shards) {
+            result = result.thenCombine(total.apply(shard), Integer::sum);
+        }
+        return result;
+    }
+
+    /*
+     * Run a call that may block, such as one spanning shards, off the
+     * caller's thread
+     */
+    private static CompletableFuture<Void> inBackground(Call call) {
+        CompletableFuture<Void> future = new CompletableFuture<Void>();
+        ForkJoinPool.commonPool().execute(() -> {
+            try {
+                call.run();
+                future.complete(null);
+            }
+            catch (Throwable err) {
+                future.completeExceptionally(err);
+            }
+        });
+        return future;
+    }
+
+    /*
+     * Wait for a task on every shard, throwing the first failure once all
+     * have finished
+     */
+    private static void awaitAll(CompletableFuture<?>[] tasks) throws IOException {
+        Throwable failure = null;
+        for (int i=0; i < tasks.length; i++){
+            try {
+                tasks[i].join();
+            }
+            catch (CompletionException err) {
+                if (failure == null) {
+                    failure = err.getCause();
+                }
+            }
+        }
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        if (failure != null) {
+            throw new IOException(failure);
+        }
+    }
+
+    /**
+     * Finish every call already made to each shard and stop their writer
+     * threads
+     *
+     * @throws IOException  if a shard's journal cannot be written
+     */
+    public void close() throws IOException {
+        for (PipelinedStore shard : this.shards) {
+            shard.close();
+        }
+    }
+
+    public void addBeanBags(int num, String manufacturer, String name,
+                            String id, short year, byte month)
+    throws IllegalNumberOfBeanBagsAddedException, BeanBagMismatchException,
+           IllegalIDException, InvalidMonthException {
+
+        this.addBeanBags(num, manufacturer, name, id, year, month, "");
+    }
+
+    public void addBeanBags(int num, String manufacturer, String name,
+                            String id, short year, byte month,
+                            String information)
+    throws IllegalNumberOfBeanBagsAddedException, BeanBagMismatchException,
+           IllegalIDException, InvalidMonthException {
+
+        this.ids.readLock().lock();
+        try {
+            this.shardFor(id).addBeanBags(num, manufacturer, name, id, year, month,
+                                          information);
+        }
+        finally {
+            this.ids.readLock().unlock();
+        }
+    }
+
+    public CompletableFuture<Void> addBeanBagsAsync(int num, String manufacturer,
+                                                    String name, String id,
+                                                    short year, byte month,
+                                                    String information) {
+        // Only submitting needs the lock; a move waits behind the add in
+        // the shard's ring
+        this.ids.readLock().lock();
+        try {
+            return this.shardFor(id).addBeanBagsAsync(num, manufacturer, name, id,
+                                                      year, month, information);
+        }
+        finally {
+            this.ids.readLock().unlock();
+        }
+    }
+
+    public void setBeanBagPrice(String id, int priceInPence)
+    throws InvalidPriceException, BeanBagIDNotRecognisedException,
+           IllegalIDException {
+        this.shardFor(id).setBeanBagPrice(id, priceInPence);
+    }
+
+    public CompletableFuture<Void> setBeanBagPriceAsync(String id, int priceInPence) {
+        return this.shardFor(id).setBeanBagPriceAsync(id, priceInPence);
+    }
+
+    public void sellBeanBags(int num, String id)
+    throws BeanBagNotInStockException, InsufficientStockException,
+           IllegalNumberOfBeanBagsSoldException, PriceNotSetException,
+           BeanBagIDNotRecognisedException, IllegalIDException {
+        this.shardFor(id).sellBeanBags(num, id);
+    }
+
+    public CompletableFuture<Void> sellBeanBagsAsync(int num, String id) {
+        return this.shardFor(id).sellBeanBagsAsync(num, id);
+    }
+
+    public int reserveBeanBags(int num, String id)
+    throws BeanBagNotInStockException, InsufficientStockException,
+           IllegalNumberOfBeanBagsReservedException, PriceNotSetException,
+           BeanBagIDNotRecognisedException, IllegalIDException {
+        return this.shardFor(id).reserveBeanBags(num, id);
+    }
+
+    public CompletableFuture<Integer> reserveBeanBagsAsync(int num, String id) {
+        return this.shardFor(id).reserveBeanBagsAsync(num, id);
+    }
+
+    public void unreserveBeanBags(int reservationNumber)
+    throws ReservationNumberNotRecognisedException {
+        this.shardForReservation(reservationNumber).unreserveBeanBags(reservationNumber);
+    }
+
+    public CompletableFuture<Void> unreserveBeanBagsAsync(int reservationNumber) {
+        return this.shardForReservation(reservationNumber)
+                   .unreserveBeanBagsAsync(reservationNumber);
+    }
+
+    public void sellBeanBags(int reservationNumber)
+    throws ReservationNumberNotRecognisedException {
+        this.shardForReservation(reservationNumber).sellBeanBags(reservationNumber);
+    }
+
+    public CompletableFuture<Void> sellBeanBagsAsync(int reservationNumber) {
+        return this.shardForReservation(reservationNumber)
+                   .sellBeanBagsAsync(reservationNumber);
+    }
+
+    public int beanBagsInStock() {
+        return this.sum(PipelinedStore::beanBagsInStockAsync).join();
+    }
+
+    public CompletableFuture<Integer> beanBagsInStockAsync() {
+        return this.sum(PipelinedStore::beanBagsInStockAsync);
+    }
+
+    public int reservedBeanBagsInStock() {
+        return this.sum(PipelinedStore::reservedBeanBagsInStockAsync).join();
+    }
+
+    public CompletableFuture<Integer> reservedBeanBagsInStockAsync() {
+        return this.sum(PipelinedStore::reservedBeanBagsInStockAsync);
+    }
+
+    public int beanBagsInStock(String id)
+    throws BeanBagIDNotRecognisedException, IllegalIDException {
+        return this.shardFor(id).beanBagsInStock(id);
+    }
+
+    public CompletableFuture<Integer> beanBagsInStockAsync(String id) {
+        return this.shardFor(id).beanBagsInStockAsync(id);
+    }
+
+    public int getNumberOfDifferentBeanBagsInStock() {
+        return this.sum(PipelinedStore::getNumberOfDifferentBeanBagsInStockAsync).join();
+    }
+
+    public CompletableFuture<Integer> getNumberOfDifferentBeanBagsInStockAsync() {
+        return this.sum(PipelinedStore::getNumberOfDifferentBeanBagsInStockAsync);
+    }
+
+    public int getNumberOfSoldBeanBags() {
+        return this.sum(PipelinedStore::getNumberOfSoldBeanBagsAsync).join();
+    }
+
+    public CompletableFuture<Integer> getNumberOfSoldBeanBagsAsync() {
+        return this.sum(PipelinedStore::getNumberOfSoldBeanBagsAsync);
+    }
+
+    public int getNumberOfSoldBeanBags(String id)
+    throws BeanBagIDNotRecognisedException, IllegalIDException {
+        return this.shardFor(id).getNumberOfSoldBeanBags(id);
+    }
+
+    public CompletableFuture<Integer> getNumberOfSoldBeanBagsAsync(String id) {
+        return this.shardFor(id).getNumberOfSoldBeanBagsAsync(id);
+    }
+
+    public int getTotalPriceOfSoldBeanBags() {
+        return this.sum(PipelinedStore::getTotalPriceOfSoldBeanBagsAsync).join();
+    }
+
+    public CompletableFuture<Integer> getTotalPriceOfSoldBeanBagsAsync() {
+        return this.sum(PipelinedStore::getTotalPriceOfSoldBeanBagsAsync);
+    }
+
+    public int getTotalPriceOfSoldBeanBags(String id)
+    throws BeanBagIDNotRecognisedException, IllegalIDException {
+        return this.shardFor(id).getTotalPriceOfSoldBeanBags(id);
+    }
+
+    public CompletableFuture<Integer> getTotalPriceOfSoldBeanBagsAsync(String id) {
+        return this.shardFor(id).getTotalPriceOfSoldBeanBagsAsync(id);
+    }
+
+    public int getTotalPriceOfReservedBeanBags() {
+        return this.sum(PipelinedStore::getTotalPriceOfReservedBeanBagsAsync).join();
+    }
+
+    public CompletableFuture<Integer> getTotalPriceOfReservedBeanBagsAsync() {
+        return this.sum(PipelinedStore::getTotalPriceOfReservedBeanBagsAsync);
+    }
+
+    public String getBeanBagDetails(String id)
+    throws BeanBagIDNotRecognisedException, IllegalIDException {
+        return this.shardFor(id).getBeanBagDetails(id);
+    }
+
+    public CompletableFuture<String> getBeanBagDetailsAsync(String id) {
+        return this.shardFor(id).getBeanBagDetailsAsync(id);
+    }
+
+    public void empty() {
+        this.ids.writeLock().lock();
+        try {
+            CompletableFuture<?>[] tasks = new CompletableFuture<?>[this.shards.length];
+            for (int i=0; i < tasks.length; i++){
+                tasks[i] = this.shards[i].emptyAsync();
+            }
+            CompletableFuture.allOf(tasks).join();
+            this.moved.clear();
+        }
+        finally {
+            this.ids.writeLock().unlock();
+        }
+    }
+
+    public CompletableFuture<Void> emptyAsync() {
+        return inBackground(this::empty);
+    }
+
+    public void resetSaleAndCostTracking() {
+        this.resetSaleAndCostTrackingAsync().join();
+    }
+
+    public CompletableFuture<Void> resetSaleAndCostTrackingAsync() {
+        CompletableFuture<?>[] tasks = new CompletableFuture<?>[this.shards.length];
+        for (int i=0; i < tasks.length; i++){
+            tasks[i] = this.shards[i].resetSaleAndCostTrackingAsync();
+        }
+        return CompletableFuture.allOf(tasks);
+    }
+
+    /**
+     * Replace a bean bag's ID number. The bag stays in its shard, and is
+     * found there by its new ID.
+     *
+     * @see Store#replace(String, String)
+     */
+    public void replace(String oldId, String replacementId)
+    throws BeanBagIDNotRecognisedException, IllegalIDException {
+        long oldKey = BeanBagID.parse(oldId);
+        long replacementKey = BeanBagID.parse(replacementId);
+
+        if (!BeanBagID.isValid(oldKey) || !BeanBagID.isValid(replacementKey)) {
+            throw new IllegalIDException();
+        }
+
+        this.ids.writeLock().lock();
+        try {
+            int from = this.shardOf(oldKey);
+            int to = this.shardOf(replacementKey);
+
+            // The holding shard checks the new ID itself; any other shard
+            // the new ID could be in must be asked first
+            if (to != from &&
+                this.shards[to].execute(store -> store.findBeanBag(replacementKey) != null)
+                               .join()) {
+                throw new IllegalIDException();
+            }
+
+            this.shards[from].replace(oldId, replacementId);
+            this.moved.remove(oldKey);
+            if (from != SnapshotManifest.shardOf(replacementKey, this.shards.length)) {
+                this.moved.put(replacementKey, from);
+            }
+        }
+        finally {
+            this.ids.writeLock().unlock();
+        }
+    }
+
+    public CompletableFuture<Void> replaceAsync(String oldId, String replacementId) {
+        return inBackground(() -> this.replace(oldId, replacementId));
+    }
+
+    /**
+     * Write every shard to its own snapshot file in parallel, each on its
+     * shard's writer thread, and a manifest listing them with their
+     * checksums. The shards are named after the manifest, with the shard
+     * number appended. Each shard is saved as it stood when its writer
+     * reached the save.
+     *
+     * @param filename      location of the manifest
+     * @throws IOException  if any shard or the manifest cannot be written
+     */
+    public void saveStoreContents(String filename) throws IOException {
+        int highWater = 0;
+        for (PipelinedStore shard : this.shards) {
+            highWater = Math.max(highWater,
+                                 shard.execute(Store::getReservationHighWater).join());
+        }
+
+        SnapshotManifest manifest = new SnapshotManifest(highWater, 0, this.shards.length);
+        CompletableFuture<?>[] writes = new CompletableFuture<?>[this.shards.length];
+        for (int i=0; i < writes.length; i++){
+            final int shard = i;
+            writes[i] = this.shards[i].execute(store -> {
+                manifest.writeShard(shard, SnapshotManifest.shardFile(filename, shard),
+                                    store.getBeanBagsArray(), SnapshotCodecs.NONE);
+                return null;
+            });
+        }
+        awaitAll(writes);
+        manifest.write(filename);
+    }
+
+    public CompletableFuture<Void> saveStoreContentsAsync(String filename) {
+        return inBackground(() -> this.saveStoreContents(filename));
+    }
+
+    /**
+     * Load a snapshot written by {@link #saveStoreContents} from a store
+     * with the same number of shards, or by
+     * {@link Store#saveShardedContents} with that many shards from a store
+     * with no reservations. Every shard is read and checked in parallel
+     * before any is replaced.
+     *
+     * @param filename      location of the manifest
+     * @throws IOException  if the manifest or any shard cannot be read,
+     *                      does not match the manifest, or was written for
+     *                      a different number of shards
+     */
+    public void loadStoreContents(String filename) throws IOException {
+        SnapshotManifest manifest = SnapshotManifest.read(filename);
+        if (manifest.getShardCount() != this.shards.length) {
+            throw new IOException("Snapshot has " + manifest.getShardCount() +
+                                  " shards, not " + this.shards.length);
+        }
+
+        TypedArrayList<CompletableFuture<TypedArrayList<BeanBag>>> reads =
+            this.readShards(manifest);
+        CompletableFuture<?>[] pending = new CompletableFuture<?>[reads.size()];
+        for (int i=0; i < pending.length; i++){
+            pending[i] = reads.get(i);
+        }
+        awaitAll(pending);
+
+        this.ids.writeLock().lock();
+        try {
+            this.moved.clear();
+            CompletableFuture<?>[] loads = new CompletableFuture<?>[this.shards.length];
+            for (int i=0; i < loads.length; i++){
+                TypedArrayList<BeanBag> bags = reads.get(i).join();
+                for (int j=0; j < bags.size(); j++){
+                    long key = bags.get(j).getKey();
+                    if (SnapshotManifest.shardOf(key, this.shards.length) != i) {
+                        this.moved.put(key, i);
+                    }
+                }
+                loads[i] = this.shards[i].execute(store -> {
+                    store.loadShard(bags, manifest.getReservationHighWater());
+                    return null;
+                });
+            }
+            CompletableFuture.allOf(loads).join();
+        }
+        finally {
+            this.ids.writeLock().unlock();
+        }
+    }
+
+    public CompletableFuture<Void> loadStoreContentsAsync(String filename) {
+        return inBackground(() -> this.loadStoreContents(filename));
+    }
+
+    /*
+     * Read every shard of a snapshot on its shard's writer thread, checking
+     * each reservation number leads back to the shard
+     */
+    private TypedArrayList<CompletableFuture<TypedArrayList<BeanBag>>> readShards(
+        SnapshotManifest manifest) {
+
+        int count = this.shards.length;
+        TypedArrayList<CompletableFuture<TypedArrayList<BeanBag>>> reads =
+            new TypedArrayList<CompletableFuture<TypedArrayList<BeanBag>>>(count);
+        for (int i=0; i < count; i++){
+            final int shard = i;
+            reads.add(this.shards[i].execute(store -> {
+                TypedArrayList<BeanBag> bags = manifest.readShard(shard);
+                for (int j=0; j < bags.size(); j++){
+                    TypedArrayList<Reservation> reservations = bags.get(j).getReservations();
+                    for (int k=0; k < reservations.size(); k++){
+                        if (Math.floorMod(reservations.get(k).getID(), count) != shard) {
+                            throw new IOException("Bag " + bags.get(j).getId() +
+                                                  " holds another shard's reservation");
+                        }
+                    }
+                }
+                return bags;
+            }));
+        }
+        return reads;
+    }
+}
@@ -0,0 +1,46 @@
+package beanbags;
+
+import java.io.IOException;
+
+/**
+ * Compression applied to each block of a block snapshot. Implementations
+ * must be safe to use from several threads at once, as blocks are
+ * decompressed in parallel when a snapshot is loaded.
+ * <p>
+ * The built-in codecs and the registry used to find a codec by ID when
+ * loading are in {@link SnapshotCodecs}.
+ *
+ * @author Max Beech, Louis Haddrell
+ */
+public interface SnapshotCodec
+{
+    /**
+     * @return      ID stored in the snapshot header; 0 to 15 are reserved
+     *              for the built-in codecs
+     */
+    int getId();
+
+    /**
+     * @return      name of the codec, for reports
+     */
+    String getName();
+
+    /**
+     * Compress a block
+     *
+     * @param data      array holding the block
+     * @param length    number of bytes of the block, from the start of data
+     * @return          compressed block
+     */
+    byte[] compress(byte[] data, int length);
+
+    /**
+     * Decompress a block into an array of exactly its original length
+     *
+     * @param data          compressed block
+     * @param out           array to fill with the original block
+     * @throws IOException  if the data is not a valid compressed block of
+     *                      that length
+     */
+    void decompress(byte[] data, byte[] out) throws IOException;
+}
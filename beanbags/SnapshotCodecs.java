@@ -0,0 +1,165 @@
+package beanbags;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Built-in snapshot codecs, and the registry used to find the codec named
+ * in a snapshot header when it is loaded.
+ *
+ * @author Max Beech, Louis Haddrell
+ */
+public final class SnapshotCodecs
+{
+    /** Blocks stored as they are, still allowing parallel decoding */
+    public static final SnapshotCodec NONE = new NoCodec();
+
+    /** Blocks compressed with the JDK Deflater at its default level */
+    public static final SnapshotCodec DEFLATE = deflate(Deflater.DEFAULT_COMPRESSION);
+
+    private static final ConcurrentHashMap<Integer, SnapshotCodec> codecs =
+        new ConcurrentHashMap<Integer, SnapshotCodec>();
+
+    static {
+        codecs.put(NONE.getId(), NONE);
+        codecs.put(DEFLATE.getId(), DEFLATE);
+    }
+
+    private SnapshotCodecs() {
+    }
+
+    /**
+     * Deflate codec at a chosen level. Every level reads back with any
+     * other, so they share one ID.
+     *
+     * @param level     compression level, 0 to 9 or -1 for the default
+     * @return          codec compressing at that level
+     */
+    public static SnapshotCodec deflate(int level) {
+        return new DeflateCodec(level);
+    }
+
+    /**
+     * Make a codec available for loading snapshots written with it
+     *
+     * @param codec     codec with an ID from 16 to 255
+     * @throws IllegalArgumentException if the ID is reserved or already
+     *                  taken by another codec
+     */
+    public static void register(SnapshotCodec codec) {
+        int id = codec.getId();
+        if (id < 16 || id > 255) {
+            throw new IllegalArgumentException("Codec IDs 16 to 255 are free");
+        }
+        SnapshotCodec existing = codecs.putIfAbsent(id, codec);
+        if (existing != null && existing != codec) {
+            throw new IllegalArgumentException("Codec ID " + id + " already taken");
+        }
+    }
+
+    /**
+     * @param id    codec ID from a snapshot header
+     * @return      codec with that ID, or null if none is registered
+     */
+    public static SnapshotCodec forId(int id) {
+        return codecs.get(id);
+    }
+
+    /*
+     * Leaves blocks unchanged
+     */
+    private static class NoCodec implements SnapshotCodec
+    {
+        public int getId() {
+            return 0;
+        }
+
+        public String getName() {
+            return "none";
+        }
+
+        public byte[] compress(byte[] data, int length) {
+            return Arrays.copyOf(data, length);
+        }
+
+        public void decompress(byte[] data, byte[] out) throws IOException {
+            if (data.length != out.length) {
+                throw new IOException("Stored block has the wrong length");
+            }
+            System.arraycopy(data, 0, out, 0, out.length);
+        }
+    }
+
+    /*
+     * Deflate with a fresh Deflater or Inflater per block, so blocks can be
+     * handled on any thread
+     */
+    private static class DeflateCodec implements SnapshotCodec
+    {
+        private final int level;
+
+        DeflateCodec(int level) {
+            this.level = level;
+        }
+
+        public int getId() {
+            return 1;
+        }
+
+        public String getName() {
+            if (this.level == Deflater.DEFAULT_COMPRESSION) {
+                return "deflate";
+            }
+            return "deflate-" + this.level;
+        }
+
+        public byte[] compress(byte[] data, int length) {
+            Deflater deflater = new Deflater(this.level);
+            try {
+                deflater.setInput(data, 0, length);
+                deflater.finish();
+
+                byte[] out = new byte[Math.max(length / 2, 64)];
+                int size = 0;
+                while (!deflater.finished()) {
+                    if (size == out.length) {
+                        out = Arrays.copyOf(out, out.length * 2);
+                    }
+                    size += deflater.deflate(out, size, out.length - size);
+                }
+                return Arrays.copyOf(out, size);
+            }
+            finally {
+                deflater.end();
+            }
+        }
+
+        public void decompress(byte[] data, byte[] out) throws IOException {
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(data);
+                int size = 0;
+                while (size < out.length && !inflater.finished()) {
+                    int count = inflater.inflate(out, size, out.length - size);
+                    if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    size += count;
+                }
+                if (size != out.length || !inflater.finished()) {
+                    throw new IOException("Compressed block has the wrong length");
+                }
+            }
+            catch (DataFormatException err) {
+                throw new IOException("Compressed block is damaged", err);
+            }
+            finally {
+                inflater.end();
+            }
+        }
+    }
+}
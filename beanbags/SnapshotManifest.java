@@ -0,0 +1,338 @@
+package beanbags;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/**
+ * Describes a snapshot saved as several shard files, each an ordinary
+ * snapshot of the bags whose keys hash to that shard.
+ * <p>
+ * The manifest holds a magic number, format version, reservation
+ * high-water mark, LSN and shard count, then for each shard its file name
+ * relative to the manifest, bag count, length and a CRC32C of the whole
+ * shard file, and ends with a CRC32C of everything before it. It is
+ * written last, under a temporary name moved into place, so a save cut
+ * short leaves the previous manifest, and any shard overwritten since
+ * then fails its checksum rather than loading a mix of two saves.
+ *
+ * @author Max Beech, Louis Haddrell
+ */
+class SnapshotManifest
+{
+    static final int MAGIC = 0x4242534D;
+    static final short VERSION = 1;
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private final int highWater;
+    private final long lsn;
+    private final String[] files;
+    private final int[] bagCounts;
+    private final long[] lengths;
+    private final int[] checksums;
+
+    /**
+     * Start a manifest for a snapshot of the given number of shards
+     *
+     * @param highWater     reservation high-water mark of the store
+     * @param lsn           LSN of the last journalled change in the store,
+     *                      or 0 if it has no journal
+     * @param shards        number of shard files
+     */
+    SnapshotManifest(int highWater, long lsn, int shards) {
+        this.highWater = highWater;
+        this.lsn = lsn;
+        this.files = new String[shards];
+        this.bagCounts = new int[shards];
+        this.lengths = new long[shards];
+        this.checksums = new int[shards];
+    }
+
+    /**
+     * File name of a shard of the snapshot described by a manifest
+     *
+     * @param manifestFile  location of the manifest
+     * @param shard         shard number
+     * @return              location of the shard file
+     */
+    static String shardFile(String manifestFile, int shard) {
+        return manifestFile + "." + shard;
+    }
+
+    /**
+     * Shard a bag belongs in, from its key
+     *
+     * @param key       key of the bag
+     * @param shards    number of shards
+     * @return          shard number
+     */
+    static int shardOf(long key, int shards) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) ((hash >>> 32) * shards >>> 32);
+    }
+
+    /**
+     * Record a shard once its file is written
+     *
+     * @param shard     shard number
+     * @param filename  location of the shard file
+     * @param bagCount  number of bags in the shard
+     * @param length    length of the shard file
+     * @param checksum  CRC32C of the whole shard file
+     */
+    void setShard(int shard, String filename, int bagCount, long length,
+                  int checksum) {
+        this.files[shard] = Paths.get(filename).getFileName().toString();
+        this.bagCounts[shard] = bagCount;
+        this.lengths[shard] = length;
+        this.checksums[shard] = checksum;
+    }
+
+    /**
+     * Write a shard file, with the manifest's high-water mark and LSN, and
+     * record it. The file is only replaced once written in full.
+     *
+     * @param shard         shard number
+     * @param filename      location of the shard file
+     * @param bags          bags in the shard
+     * @param codec         codec to compress each block with, or null to
+     *                      write the shard unblocked
+     * @throws IOException  if the shard file cannot be written
+     */
+    void writeShard(int shard, String filename, TypedArrayList<BeanBag> bags,
+                    SnapshotCodec codec)
+    throws IOException {
+        String temporary = filename + ".tmp";
+        SnapshotWriter writer;
+        try {
+            writer = codec == null
+                ? new SnapshotWriter(temporary, bags.size(), this.highWater, this.lsn)
+                : new SnapshotWriter(temporary, bags.size(), this.highWater, this.lsn,
+                                     codec);
+            try {
+                for (int i=0; i < bags.size(); i++){
+                    writer.writeBag(bags.get(i));
+                }
+            }
+            finally {
+                writer.close();
+            }
+            SnapshotWriter.moveIntoPlace(temporary, filename);
+        }
+        catch (IOException | RuntimeException err) {
+            SnapshotWriter.discard(temporary);
+            throw err;
+        }
+        this.setShard(shard, filename, bags.size(), writer.getLength(),
+                      writer.getChecksum());
+    }
+
+    /**
+     * @return      reservation high-water mark of the saved store
+     */
+    int getReservationHighWater() {
+        return this.highWater;
+    }
+
+    /**
+     * @return      LSN of the last journalled change in the snapshot, or 0
+     */
+    long getLsn() {
+        return this.lsn;
+    }
+
+    /**
+     * @return      number of shard files
+     */
+    int getShardCount() {
+        return this.files.length;
+    }
+
+    /**
+     * @param shard     shard number
+     * @return          number of bags in the shard
+     */
+    int getBagCount(int shard) {
+        return this.bagCounts[shard];
+    }
+
+    /**
+     * @return      number of bags in every shard together
+     */
+    int getTotalBagCount() {
+        int total = 0;
+        for (int i=0; i < this.bagCounts.length; i++){
+            total += this.bagCounts[i];
+        }
+        return total;
+    }
+
+    /**
+     * Write the manifest, replacing any earlier one once it is complete.
+     * Shard files left by an earlier save with more shards are then
+     * deleted, as the manifest no longer refers to them.
+     *
+     * @param filename      location of the manifest
+     * @throws IOException  if the manifest cannot be written
+     */
+    void write(String filename) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(26 + this.files.length * 256);
+        buffer.putInt(MAGIC);
+        buffer.putShort(VERSION);
+        buffer.putInt(this.highWater);
+        buffer.putLong(this.lsn);
+        buffer.putInt(this.files.length);
+        for (int i=0; i < this.files.length; i++){
+            byte[] name = this.files[i].getBytes(StandardCharsets.UTF_8);
+            if (buffer.remaining() < name.length + 24) {
+                throw new IOException("Shard file name too long");
+            }
+            buffer.putInt(name.length);
+            buffer.put(name);
+            buffer.putInt(this.bagCounts[i]);
+            buffer.putLong(this.lengths[i]);
+            buffer.putInt(this.checksums[i]);
+        }
+        CRC32C checksum = new CRC32C();
+        checksum.update(buffer.array(), 0, buffer.position());
+        buffer.putInt((int) checksum.getValue());
+        buffer.flip();
+
+        String temporary = filename + ".tmp";
+        FileChannel channel = FileChannel.open(Paths.get(temporary),
+                                               StandardOpenOption.CREATE,
+                                               StandardOpenOption.WRITE,
+                                               StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        }
+        finally {
+            channel.close();
+        }
+
+        SnapshotWriter.moveIntoPlace(temporary, filename);
+
+        // Shards are numbered from 0 with no gaps, so stale ones stop at
+        // the first that is missing
+        int stale = this.files.length;
+        while (Files.exists(Paths.get(shardFile(filename, stale)))) {
+            SnapshotWriter.discard(shardFile(filename, stale));
+            stale++;
+        }
+    }
+
+    /**
+     * Read a manifest
+     *
+     * @param filename      location of the manifest
+     * @return              the manifest, with shard files relative to it
+     * @throws IOException  if the file cannot be read, is not a manifest or
+     *                      fails its checksum
+     */
+    static SnapshotManifest read(String filename) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(Paths.get(filename)));
+        try {
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Not a bean bag store snapshot manifest");
+            }
+            short version = buffer.getShort();
+            if (version != VERSION) {
+                throw new IOException("Unsupported manifest version " + version);
+            }
+
+            CRC32C checksum = new CRC32C();
+            checksum.update(buffer.array(), 0, buffer.limit() - 4);
+            if ((int) checksum.getValue() != buffer.getInt(buffer.limit() - 4)) {
+                throw new IOException("Manifest " + filename + " fails its checksum");
+            }
+
+            SnapshotManifest manifest = new SnapshotManifest(buffer.getInt(),
+                buffer.getLong(), buffer.getInt());
+            Path directory = Paths.get(filename).toAbsolutePath().getParent();
+            for (int i=0; i < manifest.files.length; i++){
+                byte[] name = new byte[buffer.getInt()];
+                buffer.get(name);
+                manifest.files[i] = directory.resolve(
+                    new String(name, StandardCharsets.UTF_8)).toString();
+                manifest.bagCounts[i] = buffer.getInt();
+                manifest.lengths[i] = buffer.getLong();
+                manifest.checksums[i] = buffer.getInt();
+            }
+            return manifest;
+        }
+        catch (RuntimeException err) {
+            // Short reads and impossible counts in a manifest that passed
+            // its checksum, so written by something else entirely
+            throw new EOFException("Manifest " + filename + " is incomplete");
+        }
+    }
+
+    /**
+     * Check a shard file is the one written with the manifest, then read
+     * every bag in it
+     *
+     * @param shard         shard number
+     * @return              bags in the shard, not held by any store
+     * @throws IOException  if the shard file cannot be read or does not
+     *                      match the manifest
+     */
+    TypedArrayList<BeanBag> readShard(int shard) throws IOException {
+        String filename = this.files[shard];
+        this.verify(shard);
+
+        SnapshotReader reader = new SnapshotReader(filename);
+        try {
+            if (reader.isDelta() || reader.getBagCount() != this.bagCounts[shard]) {
+                throw new IOException("Shard " + filename + " does not match its manifest");
+            }
+            TypedArrayList<BeanBag> bags =
+                new TypedArrayList<BeanBag>(reader.getBagCapacity());
+            for (int i=0; i < reader.getBagCount(); i++){
+                bags.add(reader.readBag());
+            }
+            return bags;
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+    /*
+     * Compare the length and checksum of a shard file with the manifest
+     */
+    private void verify(int shard) throws IOException {
+        String filename = this.files[shard];
+        FileChannel channel = FileChannel.open(Paths.get(filename),
+                                               StandardOpenOption.READ);
+        try {
+            if (channel.size() != this.lengths[shard]) {
+                throw new IOException("Shard " + filename + " has the wrong length");
+            }
+
+            CRC32C checksum = new CRC32C();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                checksum.update(buffer);
+                buffer.clear();
+            }
+            if ((int) checksum.getValue() != this.checksums[shard]) {
+                throw new IOException("Shard " + filename + " fails its checksum");
+            }
+        }
+        finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,804 @@
+package beanbags;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.CRC32C;
+
+/**
+ * Reads back a store snapshot written by {@link SnapshotWriter}, one bag
+ * at a time.
+ * <p>
+ * Large snapshots are memory-mapped and decoded straight out of the page
+ * cache rather than copied through a read buffer. A mapping is limited in
+ * size, so the file is mapped in windows, each starting where the last
+ * one was used up to.
+ * <p>
+ * The blocks of a block snapshot are read in order, but checked,
+ * decompressed and decoded on the common fork-join pool, with a block
+ * ahead for each core in flight while the caller takes bags from the
+ * oldest.
+ * <p>
+ * Damage normally stops the read with an IOException. A reader told to
+ * {@link #salvage} instead skips damaged blocks, searching forward for the
+ * next intact frame if need be, and records what it skipped in a
+ * {@link LoadReport}. An unblocked snapshot can only be salvaged up to the
+ * first damaged record.
+ *
+ * @author Max Beech, Louis Haddrell
+ */
+class SnapshotReader
+{
+    static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private static final int MIN_BUFFER_SIZE = 64;
+    // Fewest bytes a bag record can take: four empty strings or string
+    // references and the fixed-width fields
+    private static final int MIN_RECORD_SIZE = 39;
+    private static final int RESERVATION_SIZE = 12;
+    private static final long MAP_THRESHOLD = 1024 * 1024;
+    private static final int MAP_WINDOW = 256 * 1024 * 1024;
+    private static final int BLOCKS_AHEAD =
+        Runtime.getRuntime().availableProcessors() + 1;
+
+    private final FileChannel channel;
+    private final long fileSize;
+    private final int window;
+    private ByteBuffer buffer;
+    private long bufferStart;
+    private final ArrayList<String> strings;
+    private final int highWater;
+    private final long lsn;
+    private final long baseLsn;
+    private final boolean delta;
+    private final boolean cleared;
+    private final TypedArrayList<String> removedIds;
+    private final int bagCount;
+    private final SnapshotCodec codec;
+    private final boolean checked;
+    private final ArrayDeque<PendingBlock> blocks;
+    private final CRC32C frameChecksum;
+    private TypedArrayList<BeanBag> block;
+    private int blockIndex;
+    private int bagsQueued;
+    private LoadReport report;
+    private boolean exhausted;
+
+    /*
+     * A block read from the file and being decoded on the pool
+     */
+    private static class PendingBlock
+    {
+        final long offset;
+        final int count;
+        final CompletableFuture<TypedArrayList<BeanBag>> bags;
+
+        PendingBlock(long offset, int count,
+                     CompletableFuture<TypedArrayList<BeanBag>> bags) {
+            this.offset = offset;
+            this.count = count;
+            this.bags = bags;
+        }
+
+        /*
+         * Wait for the bags, with the failure that stopped them unwrapped
+         */
+        TypedArrayList<BeanBag> join() throws IOException {
+            try {
+                return this.bags.join();
+            }
+            catch (CompletionException err) {
+                Throwable cause = err.getCause();
+                if (cause instanceof UncheckedIOException) {
+                    throw ((UncheckedIOException) cause).getCause();
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw err;
+            }
+        }
+    }
+
+    /**
+     * Open a snapshot and read its header
+     *
+     * @param filename      location of the snapshot
+     * @throws IOException  if the file cannot be read or is not a snapshot
+     *                      in a known version
+     */
+    SnapshotReader(String filename) throws IOException {
+        this(filename, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Open a snapshot and read its header, reading small files through a
+     * buffer of the given size
+     *
+     * @param filename      location of the snapshot
+     * @param bufferSize    bytes read from the file at a time
+     * @throws IOException  if the file cannot be read or is not a snapshot
+     *                      in a known version
+     */
+    SnapshotReader(String filename, int bufferSize) throws IOException {
+        this(filename, bufferSize, MAP_WINDOW);
+    }
+
+    /**
+     * Open a snapshot, reading it through a buffer of the given size, or
+     * mapping it in windows of the given size if it is large enough to be
+     * worth mapping, and read its header
+     *
+     * @param filename      location of the snapshot
+     * @param bufferSize    bytes read from the file at a time
+     * @param window        most bytes mapped at once, at least 64KB
+     * @throws IOException  if the file cannot be read or is not a snapshot
+     *                      in a known version
+     */
+    SnapshotReader(String filename, int bufferSize, int window)
+    throws IOException {
+        this.channel = FileChannel.open(Paths.get(filename),
+                                        StandardOpenOption.READ);
+        this.fileSize = this.channel.size();
+        this.strings = new ArrayList<String>();
+
+        if (this.fileSize >= MAP_THRESHOLD) {
+            this.window = Math.max(window, DEFAULT_BUFFER_SIZE);
+            this.buffer = ByteBuffer.allocate(0);
+        }
+        else {
+            this.window = 0;
+            this.buffer = ByteBuffer.allocateDirect(Math.max(bufferSize,
+                                                             MIN_BUFFER_SIZE));
+            this.buffer.flip();
+        }
+
+        try {
+            this.need(6);
+            int magic = this.buffer.getInt();
+            if (magic != SnapshotWriter.MAGIC && magic != SnapshotWriter.DELTA_MAGIC) {
+                throw new IOException("Not a bean bag store snapshot");
+            }
+            short version = this.buffer.getShort();
+            if (version < 1 || version > SnapshotWriter.HEADER_VERSION ||
+                (version > SnapshotWriter.DELTA_VERSION &&
+                 version < SnapshotWriter.HEADER_VERSION &&
+                 magic == SnapshotWriter.DELTA_MAGIC)) {
+                throw new IOException("Unsupported snapshot version " + version);
+            }
+
+            this.need(version == 1 ? 4 : 12);
+            this.highWater = this.buffer.getInt();
+            this.lsn = version == 1 ? 0 : this.buffer.getLong();
+
+            this.delta = magic == SnapshotWriter.DELTA_MAGIC;
+            this.removedIds = new TypedArrayList<String>();
+            if (this.delta && version >= SnapshotWriter.DELTA_VERSION) {
+                this.need(8);
+                this.baseLsn = this.buffer.getLong();
+            }
+            else {
+                this.baseLsn = -1;
+            }
+            if (this.delta) {
+                this.need(5);
+                this.cleared = this.buffer.get() != 0;
+                int removedCount = this.buffer.getInt();
+                for (int i=0; i < removedCount; i++){
+                    this.removedIds.add(this.getString());
+                }
+            }
+            else {
+                this.cleared = false;
+            }
+
+            this.need(4);
+            this.bagCount = this.buffer.getInt();
+
+            boolean blocked = false;
+            if (!this.delta && version >= SnapshotWriter.HEADER_VERSION) {
+                this.need(1);
+                blocked = this.buffer.get() != 0;
+            }
+            else if (!this.delta) {
+                blocked = version >= SnapshotWriter.FIRST_BLOCK_VERSION;
+            }
+
+            this.checked = version >= SnapshotWriter.BLOCK_VERSION;
+            this.frameChecksum = new CRC32C();
+            if (blocked) {
+                this.need(1);
+                int codecId = this.buffer.get() & 0xFF;
+                this.codec = SnapshotCodecs.forId(codecId);
+                if (this.codec == null) {
+                    throw new IOException("Snapshot uses unknown codec " + codecId);
+                }
+                this.blocks = new ArrayDeque<PendingBlock>();
+            }
+            else {
+                this.codec = null;
+                this.blocks = null;
+            }
+
+            if (version >= SnapshotWriter.HEADER_VERSION) {
+                this.checkHeader();
+            }
+            if (this.bagCount < 0) {
+                throw new IOException("Snapshot has a negative bag count");
+            }
+        }
+        catch (IOException err) {
+            this.channel.close();
+            throw err;
+        }
+    }
+
+    /*
+     * Read the records of one block already decompressed into memory
+     */
+    private SnapshotReader(ByteBuffer block) {
+        this.channel = null;
+        this.fileSize = block.remaining();
+        this.window = 0;
+        this.buffer = block;
+        this.strings = new ArrayList<String>();
+        this.highWater = 0;
+        this.lsn = 0;
+        this.baseLsn = -1;
+        this.delta = false;
+        this.cleared = false;
+        this.removedIds = new TypedArrayList<String>();
+        this.bagCount = 0;
+        this.codec = null;
+        this.checked = false;
+        this.blocks = null;
+        this.frameChecksum = null;
+    }
+
+    /**
+     * Check whether a file starts with a full or delta snapshot magic
+     * number, rather than being a serialised store
+     *
+     * @param filename      location of the file
+     * @return              true if the file is a binary snapshot
+     * @throws IOException  if the file cannot be read
+     */
+    static boolean isSnapshot(String filename) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(filename),
+                                               StandardOpenOption.READ);
+        try {
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            while (magic.hasRemaining() && channel.read(magic) >= 0) {
+            }
+            if (magic.hasRemaining()) {
+                return false;
+            }
+            return magic.getInt(0) == SnapshotWriter.MAGIC ||
+                   magic.getInt(0) == SnapshotWriter.DELTA_MAGIC;
+        }
+        finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * @return      reservation high-water mark of the saved store
+     */
+    int getReservationHighWater() {
+        return this.highWater;
+    }
+
+    /**
+     * @return      LSN of the last journalled change in the snapshot, or 0
+     */
+    long getLsn() {
+        return this.lsn;
+    }
+
+    /**
+     * @return      LSN of the save a delta follows on from, or -1 if it
+     *              does not say
+     */
+    long getBaseLsn() {
+        return this.baseLsn;
+    }
+
+    /**
+     * @return      true if this is a delta holding only changed bags
+     */
+    boolean isDelta() {
+        return this.delta;
+    }
+
+    /**
+     * @return      true if the store was emptied before the changes in
+     *              this delta
+     */
+    boolean isCleared() {
+        return this.cleared;
+    }
+
+    /**
+     * @return      IDs to drop before applying the bags in this delta
+     */
+    TypedArrayList<String> getRemovedIds() {
+        return this.removedIds;
+    }
+
+    /**
+     * @return      number of bag records in the snapshot
+     */
+    int getBagCount() {
+        return this.bagCount;
+    }
+
+    /**
+     * @return      number of bags worth making room for up front: the bag
+     *              count, but no more than the rest of the file could hold
+     *              if it were not compressed
+     */
+    int getBagCapacity() {
+        long room = (this.fileSize - this.position()) / MIN_RECORD_SIZE;
+        return (int) Math.min(this.bagCount, room);
+    }
+
+    /**
+     * @return      codec the blocks are compressed with, or null if this is
+     *              not a block snapshot
+     */
+    SnapshotCodec getCodec() {
+        return this.codec;
+    }
+
+    /**
+     * Carry on past damage from here on, recording it in the report
+     * rather than failing
+     *
+     * @param report    report of what is recovered and skipped
+     */
+    void salvage(LoadReport report) {
+        this.report = report;
+    }
+
+    /**
+     * @return      true if the snapshot is read through memory mappings
+     */
+    boolean isMapped() {
+        return this.window > 0;
+    }
+
+    /**
+     * Read the next bag record
+     *
+     * @return              bag rebuilt from the record, not held by any
+     *                      store, or when salvaging null once no more
+     *                      intact bags can be found
+     * @throws IOException  if the file cannot be read or ends early
+     */
+    BeanBag readBag() throws IOException {
+        if (this.codec == null) {
+            return this.report == null ? this.decodeBag() : this.salvageBag();
+        }
+
+        while (this.block == null || this.blockIndex == this.block.size()) {
+            this.block = this.nextBlock();
+            if (this.block == null) {
+                return null;
+            }
+            this.blockIndex = 0;
+        }
+        return this.block.get(this.blockIndex++);
+    }
+
+    /**
+     * Close the file
+     *
+     * @throws IOException  if the file cannot be closed
+     */
+    void close() throws IOException {
+        if (this.blocks != null) {
+            this.blocks.clear();
+        }
+        this.channel.close();
+    }
+
+    /*
+     * Decode the bag record at the read position
+     */
+    private BeanBag decodeBag() throws IOException {
+        String id = this.getString();
+        String manufacturer = this.getTableString();
+        String name = this.getTableString();
+        String information = this.getString();
+
+        this.need(23);
+        short year = this.buffer.getShort();
+        byte month = this.buffer.get();
+        int price = this.buffer.getInt();
+        int stock = this.buffer.getInt();
+        int soldCount = this.buffer.getInt();
+        int soldValue = this.buffer.getInt();
+        int reservationCount = this.buffer.getInt();
+        if (reservationCount < 0 ||
+            reservationCount > (this.fileSize - this.position()) / RESERVATION_SIZE) {
+            throw new IOException("Bad reservation count in snapshot");
+        }
+
+        TypedArrayList<Reservation> reservations =
+            new TypedArrayList<Reservation>(reservationCount);
+        for (int i=0; i < reservationCount; i++){
+            this.need(12);
+            int reservationID = this.buffer.getInt();
+            int reservationPrice = this.buffer.getInt();
+            int quantity = this.buffer.getInt();
+            reservations.add(new Reservation(reservationID, reservationPrice,
+                                             quantity));
+        }
+
+        BeanBag bag = new BeanBag(stock, manufacturer, name, id, year, month,
+                                  information);
+        bag.restore(price, soldCount, soldValue, reservations);
+        return bag;
+    }
+
+    /*
+     * Decode the next record of an unblocked snapshot being salvaged,
+     * stopping for good at the first that cannot be read
+     */
+    private BeanBag salvageBag() throws IOException {
+        if (this.exhausted || this.bagsQueued == this.bagCount) {
+            return null;
+        }
+
+        long offset = this.position();
+        try {
+            BeanBag bag = this.decodeBag();
+            this.bagsQueued++;
+            return bag;
+        }
+        catch (IOException | RuntimeException err) {
+            this.report.damaged(offset, "unreadable from here on, " +
+                                (this.bagCount - this.bagsQueued) + " bags lost (" +
+                                err.getMessage() + ")");
+            this.exhausted = true;
+            return null;
+        }
+    }
+
+    /*
+     * Wait for the oldest block in flight to be decoded, first starting on
+     * as many of the following blocks as are allowed in flight. When
+     * salvaging, damaged blocks are passed over, and null is returned at
+     * the end of the file.
+     */
+    private TypedArrayList<BeanBag> nextBlock() throws IOException {
+        while (true) {
+            while (this.blocks.size() < BLOCKS_AHEAD && !this.exhausted &&
+                   this.bagsQueued < this.bagCount) {
+                PendingBlock pending = this.readBlock();
+                if (pending == null) {
+                    this.exhausted = true;
+                }
+                else {
+                    this.blocks.add(pending);
+                }
+            }
+
+            PendingBlock next = this.blocks.poll();
+            if (next == null) {
+                if (this.report != null) {
+                    return null;
+                }
+                throw new EOFException("Snapshot holds fewer bags than its header says");
+            }
+
+            try {
+                TypedArrayList<BeanBag> bags = next.join();
+                if (this.report != null) {
+                    this.report.blockRead();
+                }
+                return bags;
+            }
+            catch (IOException | RuntimeException err) {
+                if (this.report == null) {
+                    throw err;
+                }
+                this.report.damaged(next.offset, "block of " + next.count +
+                                    " bags skipped (" + err.getMessage() + ")");
+            }
+        }
+    }
+
+    /*
+     * Read the next block from the file and hand it to the pool to be
+     * checked, decompressed and decoded. Returns null when salvaging and
+     * no further block can be found.
+     */
+    private PendingBlock readBlock() throws IOException {
+        if (this.checked && !this.findFrame()) {
+            return null;
+        }
+
+        long offset = this.position();
+        int expected = 0;
+        if (this.checked) {
+            this.buffer.getInt();
+        }
+        else {
+            this.need(12);
+        }
+        int count = this.buffer.getInt();
+        int length = this.buffer.getInt();
+        int storedLength = this.buffer.getInt();
+        if (this.checked) {
+            expected = this.buffer.getInt();
+            this.buffer.getInt();
+        }
+        else if (count < 1 || length < 0 || storedLength < 0) {
+            throw new IOException("Bad block header in snapshot");
+        }
+
+        byte[] stored;
+        try {
+            stored = this.getBytes(storedLength);
+        }
+        catch (EOFException err) {
+            if (this.report == null) {
+                throw err;
+            }
+            this.report.damaged(offset, "snapshot ends part way through a block of " +
+                                count + " bags");
+            return null;
+        }
+        this.bagsQueued += count;
+
+        SnapshotCodec codec = this.codec;
+        boolean checked = this.checked;
+        int checksum = expected;
+        return new PendingBlock(offset, count, CompletableFuture.supplyAsync(() -> {
+            try {
+                return decodeBlock(codec, stored, length, count, checked, checksum);
+            }
+            catch (IOException err) {
+                throw new UncheckedIOException(err);
+            }
+        }, ForkJoinPool.commonPool()));
+    }
+
+    /*
+     * Move to the next block frame that passes its own checksum, returning
+     * false at the end of the file. Unless salvaging, anything but an
+     * intact frame at the read position is an error.
+     */
+    private boolean findFrame() throws IOException {
+        long damagedAt = -1;
+        while (true) {
+            try {
+                this.need(SnapshotWriter.FRAME_SIZE);
+            }
+            catch (EOFException err) {
+                if (this.report == null) {
+                    throw err;
+                }
+                if (damagedAt >= 0) {
+                    this.report.damaged(damagedAt, "no intact block after this point");
+                }
+                else if (this.report.getBlocksDamaged() == 0) {
+                    this.report.damaged(this.position(), "snapshot ends early");
+                }
+                return false;
+            }
+
+            if (this.frameIntact()) {
+                if (damagedAt >= 0) {
+                    this.report.damaged(damagedAt, "damaged block skipped up to byte " +
+                                        this.position());
+                }
+                return true;
+            }
+            if (this.report == null) {
+                throw new IOException("Damaged block frame at byte " + this.position());
+            }
+            if (damagedAt < 0) {
+                damagedAt = this.position();
+            }
+            this.buffer.position(this.buffer.position() + 1);
+        }
+    }
+
+    /*
+     * Check the frame at the read position without moving past it
+     */
+    private boolean frameIntact() {
+        int start = this.buffer.position();
+        if (this.buffer.getInt(start) != SnapshotWriter.BLOCK_MAGIC) {
+            return false;
+        }
+
+        ByteBuffer frame = this.buffer.duplicate();
+        frame.limit(start + SnapshotWriter.FRAME_SIZE - 4);
+        this.frameChecksum.reset();
+        this.frameChecksum.update(frame);
+        if ((int) this.frameChecksum.getValue() !=
+            this.buffer.getInt(start + SnapshotWriter.FRAME_SIZE - 4)) {
+            return false;
+        }
+        return this.buffer.getInt(start + 4) > 0 && this.buffer.getInt(start + 8) >= 0 &&
+               this.buffer.getInt(start + 12) >= 0;
+    }
+
+    /*
+     * Check a block against its checksum, decompress it and decode every
+     * bag record in it
+     */
+    private static TypedArrayList<BeanBag> decodeBlock(SnapshotCodec codec,
+                                                       byte[] stored,
+                                                       int length, int count,
+                                                       boolean checked,
+                                                       int checksum)
+    throws IOException {
+        if (checked) {
+            CRC32C crc = new CRC32C();
+            crc.update(stored);
+            if ((int) crc.getValue() != checksum) {
+                throw new IOException("Snapshot block fails its checksum");
+            }
+        }
+
+        try {
+            byte[] raw = new byte[length];
+            codec.decompress(stored, raw);
+
+            SnapshotReader reader = new SnapshotReader(ByteBuffer.wrap(raw));
+            TypedArrayList<BeanBag> bags =
+                new TypedArrayList<BeanBag>(Math.min(count, length / MIN_RECORD_SIZE));
+            for (int i=0; i < count; i++){
+                bags.add(reader.decodeBag());
+            }
+            if (reader.buffer.hasRemaining()) {
+                throw new IOException("Snapshot block holds more than its bags");
+            }
+            return bags;
+        }
+        catch (RuntimeException err) {
+            throw new IOException("Snapshot block cannot be decoded", err);
+        }
+    }
+
+    /*
+     * Check the header read so far against the checksum that follows it.
+     * The header may have been read through more than one buffer, so it is
+     * read again from the start of the file.
+     */
+    private void checkHeader() throws IOException {
+        long length = this.position();
+        ByteBuffer header = ByteBuffer.allocate((int) length);
+        while (header.hasRemaining()) {
+            if (this.channel.read(header, header.position()) < 0) {
+                throw new EOFException("Snapshot ends part way through its header");
+            }
+        }
+        header.flip();
+        CRC32C crc = new CRC32C();
+        crc.update(header);
+
+        this.need(4);
+        if (this.buffer.getInt() != (int) crc.getValue()) {
+            throw new IOException("Snapshot header fails its checksum");
+        }
+    }
+
+    /*
+     * Position in the file of the next unread byte
+     */
+    private long position() {
+        return this.bufferStart + this.buffer.position();
+    }
+
+    /*
+     * Read a string through the string table
+     */
+    private String getTableString() throws IOException {
+        this.need(4);
+        int reference = this.buffer.getInt();
+
+        if (reference == SnapshotWriter.NULL_STRING) {
+            return null;
+        }
+        if (reference == SnapshotWriter.NEW_STRING) {
+            String value = this.getString();
+            this.strings.add(value);
+            return value;
+        }
+        if (reference < 0 || reference >= this.strings.size()) {
+            throw new IOException("Bad string reference in snapshot");
+        }
+        return this.strings.get(reference);
+    }
+
+    /*
+     * Read a length-prefixed UTF-8 string, which may be larger than the
+     * buffer
+     */
+    private String getString() throws IOException {
+        this.need(4);
+        int length = this.buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        return new String(this.getBytes(length), StandardCharsets.UTF_8);
+    }
+
+    /*
+     * Read the given number of bytes, which may be more than the buffer
+     * holds
+     */
+    private byte[] getBytes(int length) throws IOException {
+        if (length > this.fileSize - this.position()) {
+            throw new EOFException("Snapshot ends part way through a record");
+        }
+
+        byte[] bytes = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            if (!this.buffer.hasRemaining()) {
+                this.need(1);
+            }
+            int count = Math.min(this.buffer.remaining(), length - offset);
+            this.buffer.get(bytes, offset, count);
+            offset += count;
+        }
+        return bytes;
+    }
+
+    /*
+     * Make sure the buffer holds at least the given number of unread bytes
+     */
+    private void need(int bytes) throws IOException {
+        if (this.buffer.remaining() >= bytes) {
+            return;
+        }
+
+        if (this.channel == null) {
+            throw new EOFException("Snapshot block ends part way through a record");
+        }
+        if (this.window > 0) {
+            this.remap(bytes);
+            return;
+        }
+
+        this.bufferStart += this.buffer.position();
+        this.buffer.compact();
+        while (this.buffer.position() < bytes) {
+            if (this.channel.read(this.buffer) < 0) {
+                this.buffer.flip();
+                throw new EOFException("Snapshot ends part way through a record");
+            }
+        }
+        this.buffer.flip();
+    }
+
+    /*
+     * Map the next window of the file, starting at the first unread byte
+     */
+    private void remap(int bytes) throws IOException {
+        long start = this.bufferStart + this.buffer.position();
+        long size = Math.min(Math.max(this.window, bytes), this.fileSize - start);
+
+        if (size < bytes) {
+            throw new EOFException("Snapshot ends part way through a record");
+        }
+        this.buffer = this.channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+        this.bufferStart = start;
+    }
+}
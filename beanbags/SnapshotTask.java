@@ -0,0 +1,238 @@
+package beanbags;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A snapshot being written in the background by
+ * {@link Store#saveStoreContentsAsync(String)}, which completes when the
+ * file is in place.
+ * <p>
+ * The snapshot holds the store as it was when the task started, even
+ * though the store keeps changing while it is written. The bags are
+ * copied on write: the first time a bag is about to change, a copy of it
+ * is taken and written in its place. The writer marks each bag it has
+ * written, so a bag is copied at most once and only if it changes before
+ * the writer reaches it. Both sides go through a concurrent map keyed by
+ * the bag, so the writer never reads a bag while it is being changed.
+ * <p>
+ * The file is written under a temporary name and moved into place once
+ * complete, so a failed or cancelled task never leaves a partial
+ * snapshot behind.
+ *
+ * @author Max Beech, Louis Haddrell
+ */
+public class SnapshotTask implements Future<Void>
+{
+    // Marks a bag the writer has finished with, so it need not be copied
+    private static final Object WRITTEN = new Object();
+
+    private final String filename;
+    private final TypedArrayList<BeanBag> bags;
+    private final int highWater;
+    private final long lsn;
+    private final ConcurrentHashMap<BeanBag, Object> copies;
+    private final CompletableFuture<Void> result;
+    private final AtomicInteger copied;
+    private final long startTime;
+
+    private volatile int written;
+    private volatile long endTime;
+    private volatile boolean cancelled;
+
+    /**
+     * Capture the bags to be written; the caller must not change the
+     * store until this returns
+     */
+    SnapshotTask(String filename, TypedArrayList<BeanBag> bags, int highWater,
+                 long lsn) {
+        this.filename = filename;
+        this.bags = new TypedArrayList<BeanBag>(bags.size());
+        this.bags.addAll(bags);
+        this.highWater = highWater;
+        this.lsn = lsn;
+        this.copies = new ConcurrentHashMap<BeanBag, Object>();
+        this.result = new CompletableFuture<Void>();
+        this.copied = new AtomicInteger();
+        this.startTime = System.nanoTime();
+    }
+
+    /**
+     * Keep the state of a bag about to change, if the writer still needs it
+     *
+     * @param bag   bag about to change
+     */
+    void beforeChange(BeanBag bag) {
+        this.copies.computeIfAbsent(bag, original -> {
+            this.copied.incrementAndGet();
+            return original.snapshotCopy();
+        });
+    }
+
+    /**
+     * Write the snapshot, on the background thread
+     */
+    void run() {
+        String temporary = this.filename + ".tmp";
+
+        try {
+            SnapshotWriter writer = new SnapshotWriter(temporary,
+                this.bags.size(), this.highWater, this.lsn, SnapshotCodecs.NONE);
+            try {
+                for (int i=0; i < this.bags.size() && !this.cancelled; i++){
+                    this.write(writer, this.bags.get(i));
+                    this.written = i + 1;
+                }
+            }
+            finally {
+                writer.close();
+            }
+
+            if (this.cancelled) {
+                SnapshotWriter.discard(temporary);
+                return;
+            }
+
+            SnapshotWriter.moveIntoPlace(temporary, this.filename);
+            this.finish(null);
+        }
+        catch (IOException | RuntimeException err) {
+            SnapshotWriter.discard(temporary);
+            this.finish(err);
+        }
+    }
+
+    /*
+     * Write the copy of a bag if it has changed, otherwise the bag itself,
+     * which cannot change until it is marked as written
+     */
+    private void write(SnapshotWriter writer, BeanBag bag) throws IOException {
+        Object copy = this.copies.get(bag);
+        if (copy != null) {
+            writer.writeBag((BeanBag) copy);
+            return;
+        }
+
+        try {
+            this.copies.compute(bag, (original, current) -> {
+                try {
+                    writer.writeBag(current == null ? original : (BeanBag) current);
+                }
+                catch (IOException err) {
+                    throw new UncheckedIOException(err);
+                }
+                return WRITTEN;
+            });
+        }
+        catch (UncheckedIOException err) {
+            throw err.getCause();
+        }
+    }
+
+    /*
+     * Record the end of the task and complete the future
+     */
+    private void finish(Exception failure) {
+        this.endTime = System.nanoTime();
+        this.copies.clear();
+        if (failure == null) {
+            this.result.complete(null);
+        }
+        else {
+            this.result.completeExceptionally(failure);
+        }
+    }
+
+    /**
+     * @return      number of bags in the snapshot
+     */
+    public int getBagCount() {
+        return this.bags.size();
+    }
+
+    /**
+     * @return      number of bags written so far
+     */
+    public int getBagsWritten() {
+        return this.written;
+    }
+
+    /**
+     * @return      number of bags copied because they changed before being
+     *              written
+     */
+    public int getBagsCopied() {
+        return this.copied.get();
+    }
+
+    /**
+     * @return      time taken so far, or the total time once done, in
+     *              milliseconds
+     */
+    public long getDurationMillis() {
+        long end = this.isDone() ? this.endTime : System.nanoTime();
+        return TimeUnit.NANOSECONDS.toMillis(end - this.startTime);
+    }
+
+    /**
+     * Stop writing the snapshot and remove the partial file
+     *
+     * @param mayInterruptIfRunning     ignored, as the writer checks for
+     *                                  cancellation between bags
+     * @return                          false if the task had already finished
+     */
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        this.cancelled = true;
+        if (!this.isDone()) {
+            this.endTime = System.nanoTime();
+        }
+        return this.result.cancel(mayInterruptIfRunning);
+    }
+
+    public boolean isCancelled() {
+        return this.result.isCancelled();
+    }
+
+    public boolean isDone() {
+        return this.result.isDone();
+    }
+
+    /**
+     * Wait for the snapshot to be in place
+     *
+     * @return      null
+     * @throws ExecutionException   wrapping the IOException if the snapshot
+     *                              could not be written
+     */
+    public Void get() throws InterruptedException, ExecutionException {
+        return this.result.get();
+    }
+
+    /**
+     * @return      true if the task is done without the snapshot being put
+     *              in place, as it failed or was cancelled
+     */
+    boolean failed() {
+        return this.result.isCompletedExceptionally();
+    }
+
+    /**
+     * @return      future completing once the snapshot is in place, or
+     *              failing with the IOException if it could not be written
+     */
+    CompletableFuture<Void> completion() {
+        return this.result.copy();
+    }
+
+    public Void get(long timeout, TimeUnit unit)
+    throws InterruptedException, ExecutionException, TimeoutException {
+        return this.result.get(timeout, unit);
+    }
+}
@@ -0,0 +1,426 @@
+package beanbags;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.zip.CRC32C;
+
+/**
+ * Writes a store snapshot in the binary format read by
+ * {@link SnapshotReader}.
+ * <p>
+ * The file starts with a header of the magic number, format version,
+ * reservation high-water mark, LSN of the last journalled change included
+ * and number of bags. Version 1 files have no LSN. Each bag record then
+ * holds, all big-endian and fixed width:
+ * <pre>
+ *   id             string
+ *   manufacturer   string table reference
+ *   name           string table reference
+ *   information    string
+ *   year           short
+ *   month          byte
+ *   price          int (-1 if not set)
+ *   stock          int
+ *   sold count     int
+ *   sold value     int
+ *   reservations   int count, then id, price and quantity ints for each
+ * </pre>
+ * A string is an int byte length (-1 for null) followed by its UTF-8
+ * bytes. Manufacturers and names repeat across many bags, so they are
+ * written once and later referred to by their index in a string table
+ * built up as the file is read: a reference is the index of a string
+ * already seen, {@link #NEW_STRING} followed by a string to add to the
+ * table, or {@link #NULL_STRING}.
+ * <p>
+ * A delta snapshot holds only the bags changed since the previous save.
+ * It has its own magic number, and after the LSN its header gives the LSN
+ * of the save it follows, so it is only ever applied on top of that one.
+ * It then says whether the store was emptied and lists the IDs of bags to
+ * drop, because they were given a new ID, before the changed bags are
+ * applied. Version 2 deltas do not say which save they follow.
+ * <p>
+ * A block snapshot, version {@link #BLOCK_VERSION}, follows the full
+ * snapshot header with the ID of the {@link SnapshotCodec} used, then
+ * groups its bag records into blocks of around {@link #BLOCK_SIZE} bytes.
+ * Each block is written as a frame of {@link #FRAME_SIZE} bytes followed
+ * by the block as compressed by the codec. The frame holds the
+ * {@link #BLOCK_MAGIC} marker, the bag count, length and stored length
+ * of the block, a CRC32C of the stored block and a CRC32C of the frame
+ * itself, so damage is caught before the block is decoded and a reader
+ * salvaging a damaged file can find the next good frame. Version 3 block
+ * snapshots have frames of just the three lengths. Every block starts a
+ * new string table, so blocks can be decompressed and decoded
+ * independently of each other.
+ * <p>
+ * Every file is now written in version {@link #HEADER_VERSION}, whose
+ * header ends with a CRC32C of all of the header before it, so a damaged
+ * bag count or mark is caught before anything is read on its strength.
+ * A full snapshot in this version says after its bag count whether it is
+ * split into blocks, and if so which codec they use; earlier versions
+ * tell by their version number alone.
+ *
+ * @author Max Beech, Louis Haddrell
+ */
+class SnapshotWriter
+{
+    static final int MAGIC = 0x4242534E;
+    static final int DELTA_MAGIC = 0x4242444C;
+    static final short VERSION = 2;
+    static final short DELTA_VERSION = 3;
+    static final short FIRST_BLOCK_VERSION = 3;
+    static final short BLOCK_VERSION = 4;
+    static final short HEADER_VERSION = 5;
+    static final int BLOCK_MAGIC = 0x42424B4C;
+    static final int FRAME_SIZE = 24;
+    static final int BLOCK_SIZE = 128 * 1024;
+    static final int NEW_STRING = -1;
+    static final int NULL_STRING = -2;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final FileChannel channel;
+    private final HashMap<String, Integer> strings;
+    private final SnapshotCodec codec;
+    private final CRC32C checksum;
+    private final CRC32C blockChecksum;
+    private ByteBuffer buffer;
+    private int blockBags;
+    private long length;
+
+    /**
+     * Create or truncate the file and write the header
+     *
+     * @param filename      location of the snapshot
+     * @param bagCount      number of bags that will be written
+     * @param highWater     reservation high-water mark of the store
+     * @param lsn           LSN of the last journalled change in the store,
+     *                      or 0 if it has no journal
+     * @throws IOException  if the file cannot be written
+     */
+    SnapshotWriter(String filename, int bagCount, int highWater, long lsn)
+    throws IOException {
+        this(MAGIC, HEADER_VERSION, filename, highWater, lsn, null);
+        this.buffer.putInt(bagCount);
+        this.buffer.put((byte) 0);
+        this.endHeader();
+    }
+
+    /**
+     * Create or truncate a block snapshot, compressing each block with the
+     * given codec, and write its header
+     *
+     * @param filename      location of the snapshot
+     * @param bagCount      number of bags that will be written
+     * @param highWater     reservation high-water mark of the store
+     * @param lsn           LSN of the last journalled change in the store,
+     *                      or 0 if it has no journal
+     * @param codec         codec to compress blocks with
+     * @throws IOException  if the file cannot be written
+     */
+    SnapshotWriter(String filename, int bagCount, int highWater, long lsn,
+                   SnapshotCodec codec)
+    throws IOException {
+        this(MAGIC, HEADER_VERSION, filename, highWater, lsn, codec);
+        this.buffer.putInt(bagCount);
+        this.buffer.put((byte) 1);
+        this.buffer.put((byte) codec.getId());
+        this.endHeader();
+        this.flush();
+        this.buffer = ByteBuffer.allocate(BLOCK_SIZE);
+    }
+
+    /**
+     * Create or truncate a delta snapshot and write its header
+     *
+     * @param filename      location of the delta
+     * @param bagCount      number of changed bags that will be written
+     * @param highWater     reservation high-water mark of the store
+     * @param lsn           LSN of the last journalled change in the store,
+     *                      or 0 if it has no journal
+     * @param baseLsn       LSN of the save the delta follows on from
+     * @param cleared       true if the store was emptied since the last save
+     * @param removedIds    IDs no longer in use since the last save
+     * @throws IOException  if the file cannot be written
+     */
+    SnapshotWriter(String filename, int bagCount, int highWater, long lsn,
+                   long baseLsn, boolean cleared,
+                   TypedArrayList<String> removedIds)
+    throws IOException {
+        this(DELTA_MAGIC, HEADER_VERSION, filename, highWater, lsn, null);
+        this.buffer.putLong(baseLsn);
+        this.buffer.put((byte) (cleared ? 1 : 0));
+        this.buffer.putInt(removedIds.size());
+        for (int i=0; i < removedIds.size(); i++){
+            this.putString(removedIds.get(i));
+        }
+        this.ensure(4);
+        this.buffer.putInt(bagCount);
+        this.endHeader();
+    }
+
+    /*
+     * Open the file and write the start of the header common to full and
+     * delta snapshots
+     */
+    private SnapshotWriter(int magic, short version, String filename,
+                           int highWater, long lsn, SnapshotCodec codec)
+    throws IOException {
+        this.channel = FileChannel.open(Paths.get(filename),
+                                        StandardOpenOption.CREATE,
+                                        StandardOpenOption.WRITE,
+                                        StandardOpenOption.TRUNCATE_EXISTING);
+        this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        this.strings = new HashMap<String, Integer>();
+        this.codec = codec;
+        this.checksum = new CRC32C();
+        this.blockChecksum = new CRC32C();
+
+        this.buffer.putInt(magic);
+        this.buffer.putShort(version);
+        this.buffer.putInt(highWater);
+        this.buffer.putLong(lsn);
+    }
+
+    /**
+     * Append one bag record
+     *
+     * @param bag           bag to write
+     * @throws IOException  if the file cannot be written
+     */
+    void writeBag(BeanBag bag) throws IOException {
+        this.putString(bag.getId());
+        this.putTableString(bag.getManufacturer());
+        this.putTableString(bag.getName());
+        this.putString(bag.getInformation());
+
+        TypedArrayList<Reservation> reservations = bag.getReservations();
+        this.ensure(23);
+        this.buffer.putShort(bag.getYear());
+        this.buffer.put(bag.getMonth());
+        this.buffer.putInt(bag.getPrice());
+        this.buffer.putInt(bag.getStockCount());
+        this.buffer.putInt(bag.getSoldCount());
+        this.buffer.putInt(bag.getSoldValue());
+        this.buffer.putInt(reservations.size());
+
+        for (int i=0; i < reservations.size(); i++){
+            Reservation reservation = reservations.get(i);
+            this.ensure(12);
+            this.buffer.putInt(reservation.getID());
+            this.buffer.putInt(reservation.getPrice());
+            this.buffer.putInt(reservation.getQuantity());
+        }
+
+        if (this.codec != null) {
+            this.blockBags++;
+            if (this.buffer.position() >= BLOCK_SIZE) {
+                this.writeBlock();
+            }
+        }
+    }
+
+    /**
+     * Flush what is left, force it to disk and close the file
+     *
+     * @throws IOException  if the file cannot be written
+     */
+    void close() throws IOException {
+        try {
+            if (this.codec == null) {
+                this.flush();
+            }
+            else if (this.blockBags > 0) {
+                this.writeBlock();
+            }
+            this.channel.force(false);
+        }
+        finally {
+            this.channel.close();
+        }
+    }
+
+    /**
+     * Move a file written in full over the one it replaces, atomically
+     * where the file system allows, so a reader sees either the old file
+     * or the new one whole
+     *
+     * @param temporary     location the file was written to
+     * @param filename      location of the file to replace
+     * @throws IOException  if the file cannot be moved
+     */
+    static void moveIntoPlace(String temporary, String filename)
+    throws IOException {
+        Path from = Paths.get(temporary);
+        Path to = Paths.get(filename);
+        try {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (AtomicMoveNotSupportedException err) {
+            Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Delete a file left part written by a failed save, if there is one
+     *
+     * @param temporary     location the file was being written to
+     */
+    static void discard(String temporary) {
+        try {
+            Files.deleteIfExists(Paths.get(temporary));
+        }
+        catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * @return      number of bytes written to the file so far
+     */
+    long getLength() {
+        return this.length;
+    }
+
+    /**
+     * @return      CRC32C of every byte written to the file so far
+     */
+    int getChecksum() {
+        return (int) this.checksum.getValue();
+    }
+
+    /*
+     * Write a string through the string table
+     */
+    private void putTableString(String value) throws IOException {
+        this.ensure(4);
+        if (value == null) {
+            this.buffer.putInt(NULL_STRING);
+            return;
+        }
+
+        Integer index = this.strings.get(value);
+        if (index != null) {
+            this.buffer.putInt(index);
+        }
+        else {
+            this.strings.put(value, this.strings.size());
+            this.buffer.putInt(NEW_STRING);
+            this.putString(value);
+        }
+    }
+
+    /*
+     * Write a length-prefixed UTF-8 string, which may be larger than the
+     * buffer
+     */
+    private void putString(String value) throws IOException {
+        this.ensure(4);
+        if (value == null) {
+            this.buffer.putInt(-1);
+            return;
+        }
+
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        this.buffer.putInt(bytes.length);
+        if (this.codec != null) {
+            this.ensure(bytes.length);
+        }
+
+        int offset = 0;
+        while (offset < bytes.length) {
+            if (!this.buffer.hasRemaining()) {
+                this.flush();
+            }
+            int count = Math.min(this.buffer.remaining(), bytes.length - offset);
+            this.buffer.put(bytes, offset, count);
+            offset += count;
+        }
+    }
+
+    /*
+     * Make room in the buffer for a fixed-width field, growing a block
+     * rather than splitting it
+     */
+    private void ensure(int bytes) throws IOException {
+        if (this.buffer.remaining() >= bytes) {
+            return;
+        }
+
+        if (this.codec == null) {
+            this.flush();
+            return;
+        }
+        int capacity = Math.max(this.buffer.capacity() * 2,
+                                this.buffer.position() + bytes);
+        ByteBuffer larger = ByteBuffer.allocate(capacity);
+        this.buffer.flip();
+        larger.put(this.buffer);
+        this.buffer = larger;
+    }
+
+    /*
+     * Compress the block buffered so far and write it out, starting a new
+     * string table for the next block
+     */
+    private void writeBlock() throws IOException {
+        int length = this.buffer.position();
+        byte[] stored = this.codec.compress(this.buffer.array(), length);
+
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_SIZE);
+        frame.putInt(BLOCK_MAGIC);
+        frame.putInt(this.blockBags);
+        frame.putInt(length);
+        frame.putInt(stored.length);
+        this.blockChecksum.reset();
+        this.blockChecksum.update(stored);
+        frame.putInt((int) this.blockChecksum.getValue());
+        this.blockChecksum.reset();
+        this.blockChecksum.update(frame.array(), 0, FRAME_SIZE - 4);
+        frame.putInt((int) this.blockChecksum.getValue());
+        frame.flip();
+        this.write(frame);
+        this.write(ByteBuffer.wrap(stored));
+
+        this.buffer.clear();
+        this.strings.clear();
+        this.blockBags = 0;
+    }
+
+    /*
+     * Follow the header with the checksum of every byte of it, which is
+     * everything written so far
+     */
+    private void endHeader() throws IOException {
+        this.flush();
+        this.buffer.putInt((int) this.checksum.getValue());
+    }
+
+    /*
+     * Write everything buffered so far to the channel
+     */
+    private void flush() throws IOException {
+        this.buffer.flip();
+        this.write(this.buffer);
+        this.buffer.clear();
+    }
+
+    /*
+     * Write the whole of a buffer to the channel
+     */
+    private void write(ByteBuffer data) throws IOException {
+        this.checksum.update(data.duplicate());
+        this.length += data.remaining();
+        while (data.hasRemaining()) {
+            this.channel.write(data);
+        }
+    }
+}
@@ -1,12 +1,22 @@
 package beanbags;
 
-import java.io.FileOutputStream;
+import java.io.BufferedInputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.ObjectOutputStream;
 import java.io.ObjectInputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
-
+import java.io.UncheckedIOException;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Bean Bag store object implementing BeanBagStore interface
@@ -15,53 +25,319 @@ import java.io.Serializable;
  */
 public class Store implements BeanBagStore, Serializable
 {
-    private ObjectArrayList beanBags;
+    private static final long serialVersionUID = -4205680186873444876L;
+
+    private TypedArrayList<BeanBag> beanBags;
+
+    private transient ReservationSequence reservationNumbers;
+    // Numbers issued are the sequence's numbers times the stride plus the
+    // offset, so stores sharing one number space never issue the same one
+    private transient int reservationStride;
+    private transient int reservationOffset;
+    private transient Journal journal;
+    private transient ReplicationLog replication;
+    private transient long lastLsn;
+    private transient volatile SnapshotTask snapshotTask;
+
+    // Bags changed since the last save, each with the ID it was saved
+    // under (null if added since), and whether the store was emptied since
+    private transient IdentityHashMap<BeanBag, String> dirty;
+    private transient boolean dirtyCleared;
+    // LSN of the save or load the next delta follows on from
+    private transient long savedLsn;
+
+    // Changes held by the snapshot last started in the background, kept
+    // until it is known to be in place so a failed one loses none of them
+    private transient SnapshotTask handedTo;
+    private transient IdentityHashMap<BeanBag, String> handedOff;
+    private transient boolean handedOffCleared;
+    private transient long handedOffLsn;
+
+    // Serialised form kept as it was when bags were held in an
+    // ObjectArrayList, so files saved by earlier versions still load. Files
+    // from before the reservation high-water mark was saved read it as 0
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("beanBags", ObjectArrayList.class),
+        new ObjectStreamField("reservationHighWater", Integer.TYPE)
+    };
+    private transient LongObjectHashMap<BeanBag> index;
+    private transient IntObjectHashMap<Reservation> reservationIndex;
+    private transient BeanBagOwner owner;
+
+    // Running totals over every bag, kept up to date by the bags themselves
+    private transient int totalStock;
+    private transient int totalReserved;
+    private transient int totalSoldCount;
+    private transient int totalSoldValue;
+    private transient int totalReservationValue;
+    private transient boolean checkingTotals;
     
     public Store() {
-        this.beanBags = new ObjectArrayList();    
+        this.beanBags = new TypedArrayList<BeanBag>();    
+        this.index = new LongObjectHashMap<BeanBag>();
+        this.reservationIndex = new IntObjectHashMap<Reservation>();
+        this.reservationNumbers = new ReservationSequence();
+        this.reservationStride = 1;
+        this.dirty = new IdentityHashMap<BeanBag, String>();
+        this.owner = new Owner();
+        this.checkingTotals = Boolean.getBoolean("beanbags.checkTotals");
+    }
+
+    /**
+     * Keeps the reservation number index in step with the bags' reservations
+     */
+    private class Owner implements BeanBagOwner
+    {
+        public void beforeChange(BeanBag bag) {
+            if (!dirty.containsKey(bag)) {
+                dirty.put(bag, bag.getId());
+            }
+
+            SnapshotTask task = snapshotTask;
+            if (task != null) {
+                if (task.isDone()) {
+                    snapshotTask = null;
+                }
+                else {
+                    task.beforeChange(bag);
+                }
+            }
+        }
+
+        public int nextReservationNumber() {
+            return reservationNumbers.next() * reservationStride + reservationOffset;
+        }
+
+        public void reservationAdded(Reservation reservation) {
+            reservationIndex.put(reservation.getID(), reservation);
+            // Bags brought in with reservations already made must never
+            // have their numbers issued again
+            reservationNumbers.advanceTo(reservation.getID() / reservationStride + 1);
+        }
+
+        public void reservationRemoved(Reservation reservation) {
+            reservationIndex.remove(reservation.getID());
+        }
+
+        public void totalsChanged(int stock, int reserved, int soldCount,
+                                  int soldValue, int reservationValue) {
+            totalStock += stock;
+            totalReserved += reserved;
+            totalSoldCount += soldCount;
+            totalSoldValue += soldValue;
+            totalReservationValue += reservationValue;
+        }
+    }
+
+    /**
+     * Turn on checking of the running totals, so every store-wide total
+     * read is compared against a full recount of the bags. Meant for
+     * debugging only, as it makes those reads linear in the number of bags.
+     * Checking starts on if the beanbags.checkTotals system property is set.
+     *
+     * @param value     true to check totals on every read
+     */
+    public void setTotalsChecking(boolean value) {
+        this.checkingTotals = value;
+    }
+
+    /**
+     * Recount every store-wide total from the bags and compare it with the
+     * running totals.
+     *
+     * @throws IllegalStateException if any running total is wrong
+     */
+    public void verifyTotals() {
+        int stock = 0;
+        int reserved = 0;
+        int soldCount = 0;
+        int soldValue = 0;
+        int reservationValue = 0;
+
+        for (int i=0; i < this.beanBags.size(); i++){
+            BeanBag bag = this.beanBags.get(i);
+            stock += bag.getStockCount();
+            reserved += bag.getReservedCount();
+            soldCount += bag.getSoldCount();
+            soldValue += bag.getSoldValue();
+            reservationValue += bag.getReservationValue();
+        }
+
+        if (stock != this.totalStock || reserved != this.totalReserved ||
+            soldCount != this.totalSoldCount ||
+            soldValue != this.totalSoldValue ||
+            reservationValue != this.totalReservationValue) {
+            throw new IllegalStateException("Store totals out of step with bags");
+        }
     }
 
     /**
-     *  @return     bean bags ObjectArrayList
+     * @return      number above every reservation number this store has
+     *              issued or holds
      */
-    public ObjectArrayList getBeanBagsArray() {
+    public int getReservationHighWater() {
+        return this.reservationNumbers.getHighWater() * this.reservationStride;
+    }
+
+    /*
+     * Make sure no reservation number below the given high-water mark is
+     * issued from now on
+     */
+    private void advanceReservations(int highWater) {
+        this.reservationNumbers.advanceTo(
+            (highWater + this.reservationStride - 1) / this.reservationStride);
+    }
+
+    /**
+     * Issue only reservation numbers that leave the given remainder when
+     * divided by the stride, so that each of several stores can be told
+     * apart by its reservation numbers. Only for use on an empty store.
+     *
+     * @param stride    number of stores sharing the number space
+     * @param offset    remainder of every number this store issues
+     */
+    void setReservationStride(int stride, int offset) {
+        if (offset < 0 || offset >= stride) {
+            throw new IllegalArgumentException("Offset must be below the stride");
+        }
+        this.reservationStride = stride;
+        this.reservationOffset = offset;
+    }
+
+    /**
+     *  @return     bean bags list
+     */
+    public TypedArrayList<BeanBag> getBeanBagsArray() {
         return this.beanBags;
     }
 
     /**
-     * Retrieve a BeanBag object from the ObjectArrayList by ID string
+     * Retrieve a BeanBag object from the list by ID string
      * 
      * @param id    bean bag ID string to search for
      * @return      BeanBag object if ID exists in array; null if not
      */
     public BeanBag findBeanBag(String id) {
-        // Iterate BeanBag array searching for the ID
-        for (int i=0; i < this.beanBags.size(); i++){
-            BeanBag bag = (BeanBag) this.beanBags.get(i);
+        return this.findBeanBag(BeanBagID.parse(id));
+    }
+
+    /**
+     * Retrieve a BeanBag object from the list by numeric ID
+     * 
+     * @param id    bean bag ID to search for
+     * @return      BeanBag object if ID exists in array; null if not
+     */
+    public BeanBag findBeanBag(long id) {
+        if (!BeanBagID.isValid(id)) {
+            return null;
+        }
+        return this.index.get(id);
+    }
+
+    /**
+     * Append a BeanBag to the list and the ID and reservation
+     * indexes
+     *
+     * @param bag   BeanBag object to store
+     */
+    private void insert(BeanBag bag) {
+        this.beanBags.add(bag);
+        this.index.put(bag.getKey(), bag);
+        bag.setOwner(this.owner);
+        this.dirty.put(bag, null);
+    }
+
+    /*
+     * Start tracking changes afresh, after the whole store has been saved
+     * or loaded
+     */
+    private void markClean() {
+        this.dirty.clear();
+        this.dirtyCleared = false;
+        this.savedLsn = this.lastLsn;
+        this.handedTo = null;
+        this.handedOff = null;
+    }
 
-            if (bag.getId().equals(id)) {
-                return bag;
+    /*
+     * Once the snapshot last started in the background is done, take back
+     * the changes handed to it if it failed, so the next delta holds them
+     */
+    private void settleSnapshot() {
+        SnapshotTask task = this.handedTo;
+        if (task == null || !task.isDone()) {
+            return;
+        }
+
+        if (task.failed()) {
+            // Bags changed since the store was emptied are all in the
+            // dirty set already
+            if (!this.dirtyCleared) {
+                for (Map.Entry<BeanBag, String> entry : this.handedOff.entrySet()) {
+                    this.dirty.put(entry.getKey(), entry.getValue());
+                }
             }
+            this.dirtyCleared |= this.handedOffCleared;
+            this.savedLsn = this.handedOffLsn;
+        }
+        this.handedTo = null;
+        this.handedOff = null;
+    }
+
+    /**
+     * Write the store in its original serialised form
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectArrayList bagArray = new ObjectArrayList();
+        bagArray.ensureCapacity(this.beanBags.size());
+        for (int i=0; i < this.beanBags.size(); i++){
+            bagArray.add(this.beanBags.get(i));
+        }
+
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("beanBags", bagArray);
+        fields.put("reservationHighWater", this.getReservationHighWater());
+        out.writeFields();
+    }
+
+    /**
+     * Read the store from its serialised form, and rebuild the indexes, as
+     * they are not written out
+     */
+    private void readObject(ObjectInputStream in)
+    throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        ObjectArrayList bagArray = (ObjectArrayList) fields.get("beanBags", null);
+
+        this.beanBags = new TypedArrayList<BeanBag>(bagArray.size());
+        for (int i=0; i < bagArray.size(); i++){
+            this.beanBags.add((BeanBag) bagArray.get(i));
+        }
+
+        this.index = new LongObjectHashMap<BeanBag>(bagArray.size());
+        this.reservationIndex = new IntObjectHashMap<Reservation>();
+        this.reservationNumbers = new ReservationSequence();
+        this.reservationNumbers.advanceTo(fields.get("reservationHighWater", 0));
+        this.reservationStride = 1;
+        this.dirty = new IdentityHashMap<BeanBag, String>();
+        this.owner = new Owner();
+        this.checkingTotals = Boolean.getBoolean("beanbags.checkTotals");
+
+        for (int i=0; i < this.beanBags.size(); i++){
+            BeanBag bag = this.beanBags.get(i);
+            this.index.put(bag.getKey(), bag);
+            bag.setOwner(this.owner);
         }
-        
-        // ID not found
-        return null;
     }
 
     /**
     * Check if a string is valid, positive hexadecimal number
     *
     * @param hex    string to check
-    * @return       Boolean representing validity
+    * @return       true if the string is a legal ID
     */
-    public Boolean validateHex(String hex) {
-        try {
-            return Long.valueOf(hex, 16) >= 0L;
-        }
-        // Hex string was invalid
-        catch (NumberFormatException err) {
-            return false;
-        }
+    public boolean validateHex(String hex) {
+        return BeanBagID.isValid(hex);
     }
 
     /**
@@ -117,40 +393,143 @@ public class Store implements BeanBagStore, Serializable
     throws IllegalNumberOfBeanBagsAddedException, BeanBagMismatchException,
            IllegalIDException, InvalidMonthException {
 
+        IngestResult.Reason failure = this.addRecord(num, manufacturer, name, id,
+                                                     year, month, information);
+        if (failure == null) {
+            return;
+        }
+
+        switch (failure) {
+            case ILLEGAL_NUMBER:
+                throw new IllegalNumberOfBeanBagsAddedException();
+            case INVALID_MONTH:
+                throw new InvalidMonthException();
+            case ILLEGAL_ID:
+                throw new IllegalIDException();
+            default:
+                throw new BeanBagMismatchException();
+        }
+    }
+
+    /**
+     * Add bean bags, or merge them into the stock of a matching bag, as for
+     * addBeanBags but without throwing.
+     *
+     * @return      null if the bags were added, otherwise the reason the
+     *              exception addBeanBags would throw
+     */
+    private IngestResult.Reason addRecord(int num, String manufacturer,
+                                          String name, String id, short year,
+                                          byte month, String information) {
         // Ensure we are trying to add a legal number of beanbags
         if (num < 1) {
-            throw new IllegalNumberOfBeanBagsAddedException();
+            return IngestResult.Reason.ILLEGAL_NUMBER;
         }
 
         // Validate month
         if (month < (byte)1 || (byte)12 < month ) {
-            throw new InvalidMonthException();
+            return IngestResult.Reason.INVALID_MONTH;
         }
         
-        if (!this.validateHex(id)) {
-            throw new IllegalIDException();
+        long key = BeanBagID.parse(id);
+        if (!BeanBagID.isValid(key)) {
+            return IngestResult.Reason.ILLEGAL_ID;
         }
 
         // Check if a bean bag with this ID already exists
-        BeanBag existingBag = this.findBeanBag(id);
+        BeanBag existingBag = this.findBeanBag(key);
         
         // ID not found - add new bean bag
         if (existingBag == null) {
-            BeanBag bag = new BeanBag(num, manufacturer, name, id, year, month);
-            this.beanBags.add(bag);
-            return;
+            this.log(JournalRecord.add(num, manufacturer, name, id, year, month,
+                                       information));
+            BeanBag bag = new BeanBag(num, manufacturer, name, id, year, month,
+                                      information);
+            this.insert(bag);
+            return null;
         }
 
-        // ID match found - try to merge stock
+        // ID match found - merge stock if the parameters are all equal
         if (existingBag.getName().equals(name) &&
             existingBag.getManufacturer().equals(manufacturer) &&
             existingBag.getInformation().equals(information)) {
-            // If parameters are all equal, same bag found
+            this.log(JournalRecord.add(num, manufacturer, name, id, year, month,
+                                       information));
             existingBag.setStockCount((existingBag.getStockCount() + num));
+            return null;
         }
         
-        // Otherwise, correct bag not found, so raise exception
-        throw new BeanBagMismatchException();           
+        // Otherwise, correct bag not found
+        return IngestResult.Reason.MISMATCH;
+    }
+
+    /**
+     * Add a batch of bean bag records in a single pass. Records are checked
+     * exactly as addBeanBags checks them, and records for an ID already in
+     * the store, or earlier in the batch, are merged into its stock. Bad
+     * records are skipped and reported in the result instead of throwing,
+     * so the rest of the batch is still added. Records carrying a price set
+     * it once their bags are added.
+     *
+     * @param records   records to add
+     * @return          counts of added and merged records, and the position
+     *                  and reason of every rejected record
+     */
+    public IngestResult ingest(BeanBagRecord[] records) {
+        // Make room for the whole batch up front
+        int capacity = this.beanBags.size() + records.length;
+        this.beanBags.ensureCapacity(capacity);
+        this.index.ensureCapacity(capacity);
+
+        IngestResult result = new IngestResult();
+        for (int i=0; i < records.length; i++){
+            this.ingest(records[i], result);
+        }
+        return result;
+    }
+
+    /**
+     * Add a stream of bean bag records in a single pass, as for
+     * {@link #ingest(BeanBagRecord[])}. Records are read one at a time, so
+     * the source need not hold the whole feed in memory.
+     *
+     * @param records   records to add
+     * @return          counts of added and merged records, and the position
+     *                  and reason of every rejected record
+     */
+    public IngestResult ingest(Iterable<? extends BeanBagRecord> records) {
+        IngestResult result = new IngestResult();
+        for (BeanBagRecord record : records) {
+            this.ingest(record, result);
+        }
+        return result;
+    }
+
+    /*
+     * Add one record of a batch and count the outcome
+     */
+    private void ingest(BeanBagRecord record, IngestResult result) {
+        int models = this.beanBags.size();
+        IngestResult.Reason failure = this.addRecord(
+            record.getNum(), record.getManufacturer(), record.getName(),
+            record.getId(), record.getYear(), record.getMonth(),
+            record.getInformation());
+
+        if (failure == null && record.getPrice() > 0) {
+            BeanBag bag = this.findBeanBag(record.getId());
+            this.log(JournalRecord.setPrice(bag.getId(), record.getPrice()));
+            bag.setPrice(record.getPrice());
+        }
+
+        if (failure != null) {
+            result.failed(failure);
+        }
+        else if (this.beanBags.size() > models) {
+            result.added();
+        }
+        else {
+            result.merged();
+        }
     }
 
     /**
@@ -167,7 +546,20 @@ public class Store implements BeanBagStore, Serializable
     public void setBeanBagPrice(String id, int priceInPence) 
     throws InvalidPriceException, BeanBagIDNotRecognisedException, IllegalIDException {
 
-        if (!validateHex(id)) {
+        this.setBeanBagPrice(BeanBagID.parse(id), priceInPence);
+    }
+
+    /**
+     * Method to set the price of bean bags by numeric ID.
+     *
+     * @param id                numeric ID of bean bags
+     * @param priceInPence      bean bag price in pence
+     * @see #setBeanBagPrice(String, int)
+     */
+    public void setBeanBagPrice(long id, int priceInPence) 
+    throws InvalidPriceException, BeanBagIDNotRecognisedException, IllegalIDException {
+
+        if (!BeanBagID.isValid(id)) {
             throw new IllegalIDException();
         }
         if (priceInPence < 1) {
@@ -180,6 +572,7 @@ public class Store implements BeanBagStore, Serializable
             throw new BeanBagIDNotRecognisedException();
         }
 
+        this.log(JournalRecord.setPrice(bag.getId(), priceInPence));
         bag.setPrice(priceInPence);
     }
 
@@ -206,6 +599,21 @@ public class Store implements BeanBagStore, Serializable
      *                           hexadecimal number
      */
     public void sellBeanBags(int num, String id)
+    throws BeanBagNotInStockException, InsufficientStockException,
+           IllegalNumberOfBeanBagsSoldException, PriceNotSetException,
+           BeanBagIDNotRecognisedException, IllegalIDException {
+
+        this.sellBeanBags(num, BeanBagID.parse(id));
+    }
+
+    /**
+     * Method sells bean bags by numeric ID.
+     *
+     * @param num           number of bean bags to be sold
+     * @param id            numeric ID of bean bags to be sold
+     * @see #sellBeanBags(int, String)
+     */
+    public void sellBeanBags(int num, long id)
     throws BeanBagNotInStockException, InsufficientStockException,
            IllegalNumberOfBeanBagsSoldException, PriceNotSetException,
            BeanBagIDNotRecognisedException, IllegalIDException {
@@ -214,7 +622,7 @@ public class Store implements BeanBagStore, Serializable
             throw new IllegalNumberOfBeanBagsSoldException();
         }
 
-        if (!validateHex(id)) {
+        if (!BeanBagID.isValid(id)) {
             throw new IllegalIDException();
         }
 
@@ -236,6 +644,7 @@ public class Store implements BeanBagStore, Serializable
             throw new PriceNotSetException();
         }
 
+        this.log(JournalRecord.sell(num, bag.getId()));
         bag.sell(num);
     }
 
@@ -262,6 +671,38 @@ public class Store implements BeanBagStore, Serializable
      *      If the ID is not a positive eight character hexadecimal number
      */
     public int reserveBeanBags(int quantity, String id)
+    throws BeanBagNotInStockException, InsufficientStockException,
+           IllegalNumberOfBeanBagsReservedException, PriceNotSetException,
+           BeanBagIDNotRecognisedException, IllegalIDException {
+
+        return this.reserveBeanBags(quantity, BeanBagID.parse(id));
+    }
+
+    /**
+     * Reserve bean bags by numeric ID.
+     *
+     * @param quantity  Quantity to reserve
+     * @param id        numeric ID of bean bags to be reserved
+     * @return          Unique reservation number
+     * @see #reserveBeanBags(int, String)
+     */
+    public int reserveBeanBags(int quantity, long id)
+    throws BeanBagNotInStockException, InsufficientStockException,
+           IllegalNumberOfBeanBagsReservedException, PriceNotSetException,
+           BeanBagIDNotRecognisedException, IllegalIDException {
+
+        BeanBag beanbag = this.checkReservation(quantity, id);
+        int reservationNumber = this.owner.nextReservationNumber();
+        this.log(JournalRecord.reserve(quantity, beanbag.getId(),
+                                       reservationNumber));
+        beanbag.reserve(quantity, reservationNumber);
+        return reservationNumber;
+    }
+
+    /*
+     * Find the bag to reserve from, checking the reservation can be made
+     */
+    private BeanBag checkReservation(int quantity, long id)
     throws BeanBagNotInStockException, InsufficientStockException,
            IllegalNumberOfBeanBagsReservedException, PriceNotSetException,
            BeanBagIDNotRecognisedException, IllegalIDException {
@@ -270,7 +711,7 @@ public class Store implements BeanBagStore, Serializable
             throw new IllegalNumberOfBeanBagsReservedException();
         }
 
-        if (!this.validateHex(id)) {
+        if (!BeanBagID.isValid(id)) {
             throw new IllegalIDException();
         }
 
@@ -292,7 +733,7 @@ public class Store implements BeanBagStore, Serializable
             throw new PriceNotSetException();
         }
 
-        return beanbag.reserve(quantity);
+        return beanbag;
     }
 
 
@@ -307,15 +748,14 @@ public class Store implements BeanBagStore, Serializable
     public void unreserveBeanBags(int reservationNumber)
     throws ReservationNumberNotRecognisedException {
 
-        // Iterate all bean bags and try to unreserve
-        for (int i=0; i < this.beanBags.size(); i++){
-            BeanBag bag = (BeanBag) this.beanBags.get(i);
-            if (bag.unreserve(reservationNumber)) {
-                return;
-            }
+        Reservation reservation = this.reservationIndex.get(reservationNumber);
+
+        if (reservation == null) {
+            throw new ReservationNumberNotRecognisedException();
         }
 
-        throw new ReservationNumberNotRecognisedException();
+        this.log(JournalRecord.unreserve(reservationNumber));
+        reservation.getBag().unreserve(reservation);
     }
 
     /**
@@ -328,15 +768,14 @@ public class Store implements BeanBagStore, Serializable
     public void sellBeanBags(int reservationNumber)
     throws ReservationNumberNotRecognisedException {
 
-        // Iterate all bean bags and try to sell
-        for (int i=0; i < this.beanBags.size(); i++){
-            BeanBag bag = (BeanBag) this.beanBags.get(i);
-            if (bag.sellReservation(reservationNumber)) {
-                return;
-            }
+        Reservation reservation = this.reservationIndex.get(reservationNumber);
+
+        if (reservation == null) {
+            throw new ReservationNumberNotRecognisedException();
         }
 
-        throw new ReservationNumberNotRecognisedException();
+        this.log(JournalRecord.sellReservation(reservationNumber));
+        reservation.getBag().sellReservation(reservation);
     }
 
     /**
@@ -345,15 +784,10 @@ public class Store implements BeanBagStore, Serializable
      * @return      number of bean bags in this store
      */    
     public int beanBagsInStock() { 
-
-        int beanBagsInStockCount = 0;
-        // Iterate all bean bags and add the number of them to variable
-        for (int i=0; i < this.beanBags.size(); i++){
-            BeanBag bag = (BeanBag) this.beanBags.get(i);
-            beanBagsInStockCount += bag.getStockCount();
+        if (this.checkingTotals) {
+            this.verifyTotals();
         }
-        // Return the total number of BeanBags in stock after iteration
-        return beanBagsInStockCount;
+        return this.totalStock;
     }
 
     /**
@@ -362,15 +796,10 @@ public class Store implements BeanBagStore, Serializable
      * @return      number of reserved bean bags in this store
      */  
     public int reservedBeanBagsInStock() { 
-
-        int reservedBeanBagsInStockCount = 0;
-        // Iterate all bean bags and add the number that is reserved to variable
-        for (int i=0; i < this.beanBags.size(); i++){
-            BeanBag bag = (BeanBag) this.beanBags.get(i);
-            reservedBeanBagsInStockCount += bag.getReservedCount();
+        if (this.checkingTotals) {
+            this.verifyTotals();
         }
-        // Return the total number of reserved BeanBags in stock after iteration
-        return reservedBeanBagsInStockCount;
+        return this.totalReserved;
     }
 
     /**
@@ -379,9 +808,20 @@ public class Store implements BeanBagStore, Serializable
      * @return      number of bean bags in this store
      */    
     public int beanBagsInStock(String id)
+    throws BeanBagIDNotRecognisedException, IllegalIDException {
+        return this.beanBagsInStock(BeanBagID.parse(id));
+    }
+
+    /**
+     * Get the total stock held by the store for a numeric bean bag ID.
+     *
+     * @return      number of bean bags in this store
+     * @see #beanBagsInStock(String)
+     */    
+    public int beanBagsInStock(long id)
     throws BeanBagIDNotRecognisedException, IllegalIDException {
         // Validate that the ID provided is valid
-        if (!this.validateHex(id)) {
+        if (!BeanBagID.isValid(id)) {
             throw new IllegalIDException();
         }
         BeanBag existingBag = this.findBeanBag(id);
@@ -394,28 +834,131 @@ public class Store implements BeanBagStore, Serializable
     }
 
     /**
-     * Write Store's contents into a serialised file.
+     * Write Store's contents into a binary snapshot file, split into
+     * uncompressed blocks that each carry a checksum.
      *
      * @param filename      location of the file to be saved
      * @throws IOException  if there is a problem experienced when trying to save 
      *                      the store contents to the file
+     * @see #salvageStoreContents(String)
      */
     public void saveStoreContents(String filename)
     throws IOException {
+        this.saveStoreContents(filename, SnapshotCodecs.NONE);
+    }
+
+    /**
+     * Write Store's contents into a binary snapshot file split into blocks,
+     * each compressed with the given codec. The blocks are decompressed in
+     * parallel when the snapshot is loaded. The file is only replaced once
+     * the new snapshot has been written in full.
+     *
+     * @param filename      location of the file to be saved
+     * @param codec         codec to compress each block with, such as
+     *                      {@link SnapshotCodecs#DEFLATE}, or null to write
+     *                      the snapshot unblocked, without block checksums
+     * @throws IOException  if there is a problem experienced when trying to save 
+     *                      the store contents to the file
+     */
+    public void saveStoreContents(String filename, SnapshotCodec codec)
+    throws IOException {
+        int count = this.beanBags.size();
+        int highWater = this.getReservationHighWater();
+        // Written alongside and moved over, so a failed save leaves the
+        // last one whole
+        String temporary = filename + ".tmp";
         try {
-            FileOutputStream fileOut = new FileOutputStream(filename);
-            ObjectOutputStream objectOut = new ObjectOutputStream(fileOut);
-            objectOut.writeObject(this);
-            objectOut.close();
+            SnapshotWriter writer = codec == null
+                ? new SnapshotWriter(temporary, count, highWater, this.lastLsn)
+                : new SnapshotWriter(temporary, count, highWater, this.lastLsn,
+                                     codec);
+            try {
+                for (int i=0; i < this.beanBags.size(); i++){
+                    writer.writeBag(this.beanBags.get(i));
+                }
+            }
+            finally {
+                writer.close();
+            }
+            SnapshotWriter.moveIntoPlace(temporary, filename);
         }
         catch (IOException err) {
+            SnapshotWriter.discard(temporary);
             err.printStackTrace();
             throw err;
         }
+        catch (RuntimeException err) {
+            SnapshotWriter.discard(temporary);
+            throw err;
+        }
+        this.markClean();
+    }
+
+    /**
+     * Start writing a binary snapshot of the store as it is now on a
+     * background thread, while the store carries on being used. Bags that
+     * change before they are written are copied first, so the snapshot is
+     * a consistent view of the moment this was called.
+     *
+     * @param filename      location of the file to be saved, replaced once
+     *                      the snapshot is complete
+     * @return              task to wait on for the snapshot, with its
+     *                      progress and duration
+     * @throws IllegalStateException if a snapshot is already being written
+     * @see #saveDeltaContents(String)
+     */
+    public SnapshotTask saveStoreContentsAsync(String filename) {
+        SnapshotTask task = this.startSnapshot(filename);
+
+        // Deltas carry on from this snapshot, but only once it is in
+        // place, so the changes it holds are kept until then
+        this.settleSnapshot();
+        this.handedTo = task;
+        this.handedOff = this.dirty;
+        this.handedOffCleared = this.dirtyCleared;
+        this.handedOffLsn = this.savedLsn;
+        this.dirty = new IdentityHashMap<BeanBag, String>();
+        this.dirtyCleared = false;
+        this.savedLsn = this.lastLsn;
+        return task;
+    }
+
+    /**
+     * Start writing a copy of the store as it is now in the background,
+     * as for {@link #saveStoreContentsAsync(String)}, but without it
+     * counting as a save: the next delta still follows the last save, and
+     * keeps every change made since. Used for snapshots that are sent
+     * elsewhere and thrown away, such as those for replicas.
+     *
+     * @param filename      location of the file to be written
+     * @return              task to wait on for the snapshot
+     * @throws IllegalStateException if a snapshot is already being written
+     */
+    SnapshotTask copyStoreContentsAsync(String filename) {
+        return this.startSnapshot(filename);
+    }
+
+    /*
+     * Start the background writer for a snapshot of the store as it is now
+     */
+    private SnapshotTask startSnapshot(String filename) {
+        if (this.snapshotTask != null && !this.snapshotTask.isDone()) {
+            throw new IllegalStateException("A snapshot is already being written");
+        }
+
+        SnapshotTask task = new SnapshotTask(filename, this.beanBags,
+            this.getReservationHighWater(), this.lastLsn);
+        this.snapshotTask = task;
+
+        Thread writer = new Thread(task::run, "beanbags-snapshot");
+        writer.setDaemon(true);
+        writer.start();
+        return task;
     }
 
     /**
-     * Load Store's contents from a serialised file.
+     * Load Store's contents from a binary snapshot, or from a serialised
+     * file written by earlier versions.
      *
      * Note: this will immediately replace Store's contents; be sure to save
      * contents first to avoid permanent data loss!
@@ -423,16 +966,47 @@ public class Store implements BeanBagStore, Serializable
      * @param filename      location of the file to be saved
      * @throws IOException  if there is a problem experienced when trying to save 
      *                      the store contents to the file
+     * @throws IllegalStateException if a journal is open or the store is
+     *                      being replicated, as the load could not be
+     *                      recorded
+     * @see #loadStoreContents(String, int)
      */
     public void loadStoreContents(String filename)
     throws IOException, ClassNotFoundException {
-        Store loadedStore;
+        this.loadStoreContents(filename, SnapshotReader.DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Load Store's contents from a file, reading it through a buffer of
+     * the given size.
+     *
+     * Binary snapshots are streamed: each bag is decoded as it is read,
+     * without the whole file being held in memory. The store is only
+     * replaced once every bag has been read, so if the snapshot turns out
+     * to be damaged part way through, the store is left as it was.
+     * Serialised files from earlier versions are read whole before the
+     * store is replaced.
+     *
+     * @param filename      location of the file to be loaded
+     * @param bufferSize    bytes read from the file at a time; very large
+     *                      snapshots are memory-mapped instead
+     * @throws IOException  if there is a problem experienced when trying to
+     *                      load the store contents from the file
+     * @throws IllegalStateException if a journal is open or the store is
+     *                      being replicated, as the load could not be
+     *                      recorded
+     */
+    public void loadStoreContents(String filename, int bufferSize)
+    throws IOException, ClassNotFoundException {
+        this.checkLoadable();
 
         try {
-            FileInputStream fileInput = new FileInputStream(filename);
-            ObjectInputStream objectInput = new ObjectInputStream(fileInput);
-            loadedStore = (Store) objectInput.readObject();
-            objectInput.close();
+            if (SnapshotReader.isSnapshot(filename)) {
+                this.streamSnapshot(filename, bufferSize);
+            }
+            else {
+                this.loadSerialised(filename, bufferSize);
+            }
         }
         catch (IOException err){
             err.printStackTrace();
@@ -442,14 +1016,770 @@ public class Store implements BeanBagStore, Serializable
             err.printStackTrace();
             throw err;
         }
+        this.markClean();
+    }
 
-        // Apply loaded beanbags array
-        this.empty();
-        ObjectArrayList loadedArray = loadedStore.getBeanBagsArray();
+    /*
+     * Decode a binary snapshot one bag at a time, then swap the bags in
+     */
+    private void streamSnapshot(String filename, int bufferSize)
+    throws IOException {
+        SnapshotReader reader = new SnapshotReader(filename, bufferSize);
+        try {
+            if (reader.isDelta()) {
+                throw new IOException(filename + " is a delta snapshot;" +
+                                      " load it with its base");
+            }
 
-        for (int i=0; i < loadedArray.size(); i++){
-            BeanBag beanbag = (BeanBag) loadedArray.get(i);
-            this.beanBags.add(beanbag);
+            TypedArrayList<BeanBag> bags =
+                new TypedArrayList<BeanBag>(reader.getBagCapacity());
+            for (int i=0; i < reader.getBagCount(); i++){
+                bags.add(reader.readBag());
+            }
+            this.replaceContents(bags, reader.getReservationHighWater(),
+                                 reader.getLsn());
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+    /*
+     * Read a store serialised by earlier versions and take over its bags
+     */
+    private void loadSerialised(String filename, int bufferSize)
+    throws IOException, ClassNotFoundException {
+        Store loadedStore;
+
+        ObjectInputStream objectInput = new ObjectInputStream(
+            new BufferedInputStream(new FileInputStream(filename), bufferSize));
+        try {
+            loadedStore = (Store) objectInput.readObject();
+        }
+        finally {
+            objectInput.close();
+        }
+
+        this.replaceContents(loadedStore.getBeanBagsArray(),
+                             loadedStore.getReservationHighWater(), 0);
+    }
+
+    /*
+     * Swap in the bags read by a load, once all of them have been read, so
+     * a load that fails part way leaves the store as it was. Carries on
+     * from the loaded store's reservation numbers as well as our own. Not
+     * recorded as a change, as loads are neither journalled nor replicated.
+     */
+    private void replaceContents(TypedArrayList<BeanBag> bags, int highWater,
+                                 long lsn) {
+        this.clear();
+        this.advanceReservations(highWater);
+        this.lastLsn = lsn;
+        this.beanBags.ensureCapacity(bags.size());
+        this.index.ensureCapacity(bags.size());
+        for (int i=0; i < bags.size(); i++){
+            this.insert(bags.get(i));
+        }
+    }
+
+    /**
+     * Load as much of a damaged snapshot as can be recovered, rather than
+     * failing at the first problem as {@link #loadStoreContents(String)}
+     * does. Blocks of a block snapshot are checked against their checksums
+     * in parallel; damaged blocks are skipped, and every intact bag is
+     * loaded. An unblocked snapshot is loaded up to its first damaged
+     * record. Serialised files from earlier versions cannot be salvaged,
+     * and load whole or not at all.
+     *
+     * Note: this will immediately replace Store's contents.
+     *
+     * @param filename      location of the file to be loaded
+     * @return              report of the bags loaded and the damage skipped
+     * @throws IOException  if the file cannot be read at all, or its header
+     *                      is damaged
+     * @throws IllegalStateException if a journal is open or the store is
+     *                      being replicated, as the load could not be
+     *                      recorded
+     */
+    public LoadReport salvageStoreContents(String filename)
+    throws IOException, ClassNotFoundException {
+        this.checkLoadable();
+
+        if (!SnapshotReader.isSnapshot(filename)) {
+            this.loadSerialised(filename, SnapshotReader.DEFAULT_BUFFER_SIZE);
+            this.markClean();
+            LoadReport report = new LoadReport(filename, this.beanBags.size());
+            report.bagsLoaded(this.beanBags.size());
+            return report;
+        }
+
+        SnapshotReader reader = new SnapshotReader(filename);
+        try {
+            if (reader.isDelta()) {
+                throw new IOException(filename + " is a delta snapshot;" +
+                                      " load it with its base");
+            }
+
+            LoadReport report = new LoadReport(filename, reader.getBagCount());
+            reader.salvage(report);
+
+            TypedArrayList<BeanBag> bags =
+                new TypedArrayList<BeanBag>(reader.getBagCapacity());
+            BeanBag bag = reader.readBag();
+            while (bag != null) {
+                bags.add(bag);
+                bag = reader.readBag();
+            }
+            this.replaceContents(bags, reader.getReservationHighWater(),
+                                 reader.getLsn());
+            report.bagsLoaded(this.beanBags.size());
+
+            // Bags lost from the file are still to be saved, so only a
+            // complete load starts change tracking afresh
+            if (report.isComplete()) {
+                this.markClean();
+            }
+            return report;
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Write Store's contents as a snapshot split into shard files by bag
+     * ID, written in parallel, and a manifest listing the shards with
+     * their checksums. The shards are named after the manifest, with the
+     * shard number appended.
+     *
+     * @param manifestFile  location of the manifest
+     * @param shards        number of shard files, each written on its own
+     *                      thread up to the number of cores
+     * @throws IOException  if any shard or the manifest cannot be written
+     * @see #loadShardedContents(String)
+     */
+    public void saveShardedContents(String manifestFile, int shards)
+    throws IOException {
+        this.saveShardedContents(manifestFile, shards, null);
+    }
+
+    /**
+     * Write Store's contents as a snapshot split into shard files by bag
+     * ID, each split into blocks compressed with the given codec.
+     *
+     * @param manifestFile  location of the manifest
+     * @param shards        number of shard files, each written on its own
+     *                      thread up to the number of cores
+     * @param codec         codec to compress each block with, or null to
+     *                      write the shards unblocked
+     * @throws IOException  if any shard or the manifest cannot be written
+     * @see #loadShardedContents(String)
+     */
+    public void saveShardedContents(String manifestFile, int shards,
+                                    SnapshotCodec codec)
+    throws IOException {
+        if (shards < 1) {
+            throw new IllegalArgumentException("At least one shard is needed");
+        }
+
+        TypedArrayList<TypedArrayList<BeanBag>> partitions =
+            new TypedArrayList<TypedArrayList<BeanBag>>(shards);
+        for (int i=0; i < shards; i++){
+            partitions.add(new TypedArrayList<BeanBag>(this.beanBags.size() / shards + 1));
+        }
+        for (int i=0; i < this.beanBags.size(); i++){
+            BeanBag bag = this.beanBags.get(i);
+            partitions.get(SnapshotManifest.shardOf(bag.getKey(), shards)).add(bag);
+        }
+
+        SnapshotManifest manifest = new SnapshotManifest(
+            this.getReservationHighWater(), this.lastLsn, shards);
+
+        ExecutorService pool = shardPool(shards);
+        try {
+            TypedArrayList<Future<?>> writes = new TypedArrayList<Future<?>>(shards);
+            for (int i=0; i < shards; i++){
+                final int shard = i;
+                writes.add(pool.submit(() -> {
+                    manifest.writeShard(shard, SnapshotManifest.shardFile(manifestFile, shard),
+                                        partitions.get(shard), codec);
+                    return null;
+                }));
+            }
+            awaitShards(writes);
+        }
+        finally {
+            pool.shutdown();
+        }
+
+        manifest.write(manifestFile);
+        this.markClean();
+    }
+
+    /**
+     * Load Store's contents from a snapshot saved by
+     * {@link #saveShardedContents}, checking and reading the shards in
+     * parallel. The store is only replaced once every shard has been read
+     * and matches its checksum in the manifest.
+     *
+     * @param manifestFile  location of the manifest
+     * @throws IOException  if the manifest or any shard cannot be read, or
+     *                      a shard does not match the manifest
+     * @throws IllegalStateException if a journal is open or the store is
+     *                      being replicated, as the load could not be
+     *                      recorded
+     */
+    public void loadShardedContents(String manifestFile) throws IOException {
+        this.checkLoadable();
+
+        SnapshotManifest manifest = SnapshotManifest.read(manifestFile);
+        int shards = manifest.getShardCount();
+
+        TypedArrayList<Future<TypedArrayList<BeanBag>>> reads =
+            new TypedArrayList<Future<TypedArrayList<BeanBag>>>(shards);
+        ExecutorService pool = shardPool(shards);
+        try {
+            for (int i=0; i < shards; i++){
+                final int shard = i;
+                reads.add(pool.submit(() -> manifest.readShard(shard)));
+            }
+            awaitShards(reads);
+        }
+        finally {
+            pool.shutdown();
+        }
+
+        TypedArrayList<BeanBag> bags =
+            new TypedArrayList<BeanBag>(manifest.getTotalBagCount());
+        for (int i=0; i < shards; i++){
+            bags.addAll(getShard(reads.get(i)));
+        }
+        this.replaceContents(bags, manifest.getReservationHighWater(),
+                             manifest.getLsn());
+        this.markClean();
+    }
+
+    /**
+     * Replace the store's contents with bags read from one shard of a
+     * sharded snapshot
+     *
+     * @param bags          bags read from the shard, not held by any store
+     * @param highWater     reservation high-water mark of the snapshot
+     * @throws IllegalStateException if a journal is open or the store is
+     *                      being replicated, as the load could not be
+     *                      recorded
+     */
+    void loadShard(TypedArrayList<BeanBag> bags, int highWater) {
+        this.checkLoadable();
+
+        this.replaceContents(bags, highWater, this.lastLsn);
+        this.markClean();
+    }
+
+    /*
+     * Pool of daemon threads for writing or reading shards, one per shard
+     * up to the number of cores
+     */
+    private static ExecutorService shardPool(int shards) {
+        int threads = Math.min(shards, Runtime.getRuntime().availableProcessors());
+        return Executors.newFixedThreadPool(Math.max(threads, 1), task -> {
+            Thread thread = new Thread(task, "beanbags-shard");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /*
+     * Wait for every shard task, then throw the first failure, if any
+     */
+    private static void awaitShards(TypedArrayList<? extends Future<?>> tasks)
+    throws IOException {
+        IOException failure = null;
+        for (int i=0; i < tasks.size(); i++){
+            try {
+                getShard(tasks.get(i));
+            }
+            catch (IOException err) {
+                if (failure == null) {
+                    failure = err;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /*
+     * Result of a finished shard task, with its failure unwrapped
+     */
+    private static <T> T getShard(Future<T> task) throws IOException {
+        try {
+            return task.get();
+        }
+        catch (InterruptedException err) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for shards");
+        }
+        catch (ExecutionException err) {
+            Throwable cause = err.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Write a delta snapshot holding only the bags changed since the store
+     * was last saved or loaded, so saving costs time in proportion to the
+     * changes rather than the size of the catalogue. The previous save and
+     * every delta since must be kept to load the store again. A snapshot
+     * still being written in the background is waited for first, and if
+     * it failed the delta carries on from the save before it instead.
+     *
+     * @param filename      location of the delta to be saved
+     * @return              number of changed bags written
+     * @throws IOException  if the delta cannot be written
+     * @see #loadStoreContents(String, String[])
+     */
+    public int saveDeltaContents(String filename) throws IOException {
+        // The delta carries on from a snapshot being written in the
+        // background only if it succeeds
+        if (this.handedTo != null) {
+            try {
+                this.handedTo.get();
+            }
+            catch (InterruptedException err) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for the snapshot");
+            }
+            catch (ExecutionException | CancellationException err) {
+                // Its changes are taken back below
+            }
+            this.settleSnapshot();
+        }
+
+        TypedArrayList<BeanBag> changed = new TypedArrayList<BeanBag>(this.dirty.size());
+        TypedArrayList<String> removedIds = new TypedArrayList<String>();
+
+        for (Map.Entry<BeanBag, String> entry : this.dirty.entrySet()) {
+            BeanBag bag = entry.getKey();
+            String savedId = entry.getValue();
+            changed.add(bag);
+
+            // A bag given a new ID must not be found under the old one
+            if (savedId != null && BeanBagID.parse(savedId) != bag.getKey()) {
+                removedIds.add(savedId);
+            }
+        }
+
+        SnapshotWriter writer = new SnapshotWriter(filename, changed.size(),
+            this.getReservationHighWater(), this.lastLsn, this.savedLsn,
+            this.dirtyCleared, removedIds);
+        try {
+            for (int i=0; i < changed.size(); i++){
+                writer.writeBag(changed.get(i));
+            }
+        }
+        finally {
+            writer.close();
+        }
+
+        this.markClean();
+        return changed.size();
+    }
+
+    /**
+     * Load Store's contents from a full snapshot followed by the delta
+     * snapshots saved after it, in the order they were saved.
+     *
+     * @param baseFile      full snapshot the deltas were saved after
+     * @param deltaFiles    delta snapshots, oldest first
+     * @throws IOException  if any file cannot be read, or a delta file is
+     *                      not a delta or does not follow on from the file
+     *                      before it
+     * @see #saveDeltaContents(String)
+     */
+    public void loadStoreContents(String baseFile, String[] deltaFiles)
+    throws IOException, ClassNotFoundException {
+        this.checkLoadable();
+
+        // Built up apart, so a bad delta leaves this store as it was
+        Store loaded = new Store();
+        loaded.loadStoreContents(baseFile);
+        for (int i=0; i < deltaFiles.length; i++){
+            loaded.applyDelta(deltaFiles[i]);
+        }
+
+        this.replaceContents(loaded.beanBags, loaded.getReservationHighWater(),
+                             loaded.lastLsn);
+        this.markClean();
+    }
+
+    /**
+     * Fold a full snapshot and the deltas saved after it into a single new
+     * full snapshot, so the deltas can be deleted.
+     *
+     * @param baseFile      full snapshot the deltas were saved after
+     * @param deltaFiles    delta snapshots, oldest first
+     * @param outputFile    location of the combined snapshot, which may be
+     *                      the base file
+     * @throws IOException  if any file cannot be read or written
+     */
+    public static void compactSnapshots(String baseFile, String[] deltaFiles,
+                                        String outputFile)
+    throws IOException, ClassNotFoundException {
+        Store store = new Store();
+        store.loadStoreContents(baseFile, deltaFiles);
+        store.saveStoreContents(outputFile);
+    }
+
+    /*
+     * Apply one delta snapshot: drop the bags it replaces, then add its
+     * bags
+     */
+    private void applyDelta(String filename) throws IOException {
+        SnapshotReader reader = new SnapshotReader(filename);
+        try {
+            if (!reader.isDelta()) {
+                throw new IOException(filename + " is not a delta snapshot");
+            }
+            // Deltas from before they were chained cannot be checked
+            if (reader.getBaseLsn() >= 0 && reader.getBaseLsn() != this.lastLsn) {
+                throw new IOException(filename + " follows the save at LSN " +
+                    reader.getBaseLsn() + ", not " + this.lastLsn);
+            }
+            if (reader.isCleared()) {
+                this.clear();
+            }
+
+            IdentityHashMap<BeanBag, Boolean> dropped =
+                new IdentityHashMap<BeanBag, Boolean>();
+            TypedArrayList<String> removedIds = reader.getRemovedIds();
+            for (int i=0; i < removedIds.size(); i++){
+                this.drop(BeanBagID.parse(removedIds.get(i)), dropped);
+            }
+
+            for (int i=0; i < reader.getBagCount(); i++){
+                BeanBag bag = reader.readBag();
+                this.drop(bag.getKey(), dropped);
+                this.insert(bag);
+            }
+
+            // Take the dropped bags out of the list in a single pass
+            if (!dropped.isEmpty()) {
+                TypedArrayList<BeanBag> kept =
+                    new TypedArrayList<BeanBag>(this.beanBags.size());
+                for (int i=0; i < this.beanBags.size(); i++){
+                    BeanBag bag = this.beanBags.get(i);
+                    if (!dropped.containsKey(bag)) {
+                        kept.add(bag);
+                    }
+                }
+                this.beanBags = kept;
+            }
+
+            this.advanceReservations(reader.getReservationHighWater());
+            this.lastLsn = reader.getLsn();
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+    /*
+     * Detach the bag with the given key, if any, from the indexes and
+     * totals, leaving it to be taken out of the list
+     */
+    private void drop(long key, IdentityHashMap<BeanBag, Boolean> dropped) {
+        BeanBag bag = this.index.remove(key);
+        if (bag == null) {
+            return;
+        }
+
+        TypedArrayList<Reservation> reservations = bag.getReservations();
+        for (int i=0; i < reservations.size(); i++){
+            this.reservationIndex.remove(reservations.get(i).getID());
+        }
+        bag.setOwner(null);
+        dropped.put(bag, Boolean.TRUE);
+    }
+
+    /**
+     * Start recording every change to the store in a journal, so changes
+     * made since the last save can be recovered after a crash. Each change
+     * is on disk before the call making it returns.
+     *
+     * @param filename      location of the journal, appended to if it
+     *                      already exists
+     * @throws IOException  if the journal cannot be opened
+     * @throws IllegalStateException if the journal holds changes this store
+     *                      does not, so {@link #recover} should be used
+     */
+    public void openJournal(String filename) throws IOException {
+        this.openJournal(filename, 1);
+    }
+
+    /**
+     * Start recording every change to the store in a journal, syncing it
+     * to disk once for each group of changes rather than for every one. Up
+     * to groupSize - 1 changes may be lost in a crash unless
+     * {@link #syncJournal()} is called.
+     *
+     * @param filename      location of the journal, appended to if it
+     *                      already exists
+     * @param groupSize     number of changes written per sync
+     * @throws IOException  if the journal cannot be opened
+     * @throws IllegalStateException if the journal holds changes this store
+     *                      does not, so {@link #recover} should be used
+     */
+    public void openJournal(String filename, int groupSize) throws IOException {
+        if (this.journal != null) {
+            throw new IllegalStateException("Journal already open");
+        }
+        this.journal = new Journal(filename, groupSize, this.lastLsn);
+    }
+
+    /**
+     * Force every change journalled so far to disk.
+     *
+     * @throws IOException  if the journal cannot be written
+     */
+    public void syncJournal() throws IOException {
+        if (this.journal != null) {
+            this.journal.sync();
+        }
+    }
+
+    /**
+     * Sync and stop using the journal.
+     *
+     * @throws IOException  if the journal cannot be written
+     */
+    public void closeJournal() throws IOException {
+        if (this.journal != null) {
+            Journal closing = this.journal;
+            this.journal = null;
+            closing.close();
+        }
+    }
+
+    /**
+     * Save a snapshot of the store and then empty the journal, which would
+     * otherwise grow for as long as the store is used. The journal is only
+     * emptied once the snapshot is in place, so a crash part way leaves
+     * either the old snapshot and the whole journal, or the new snapshot
+     * and records it already holds, which recovery skips. Later changes
+     * are journalled as before, and {@link #recover} rebuilds the store
+     * from this snapshot and the journal.
+     *
+     * @param snapshotFile  location of the snapshot, as for
+     *                      {@link #saveStoreContents(String)}
+     * @throws IOException  if the snapshot cannot be saved, leaving the
+     *                      journal as it was, or the journal cannot be
+     *                      emptied
+     * @throws IllegalStateException if no journal is open
+     */
+    public void checkpoint(String snapshotFile) throws IOException {
+        if (this.journal == null) {
+            throw new IllegalStateException("No journal open");
+        }
+        this.saveStoreContents(snapshotFile);
+        this.journal.restart(this.lastLsn);
+    }
+
+    /**
+     * Rebuild the store after a crash from the last saved snapshot and the
+     * journal of changes made since. Journal records already included in
+     * the snapshot are skipped, and a record left half-written by the
+     * crash is ignored.
+     *
+     * @param snapshotFile  snapshot saved by saveStoreContents, or null to
+     *                      replay the journal into an empty store
+     * @param journalFile   journal written while the store was in use
+     * @return              number of journal records replayed
+     * @throws IOException  if either file cannot be read, or the journal
+     *                      does not carry on from the snapshot
+     * @throws IllegalStateException if a journal is open or the store is
+     *                      being replicated
+     */
+    public int recover(String snapshotFile, String journalFile)
+    throws IOException, ClassNotFoundException {
+        if (snapshotFile != null) {
+            this.loadStoreContents(snapshotFile);
+        }
+        else if (this.journal != null) {
+            throw new IllegalStateException("Close the journal before recovering");
+        }
+        else if (this.replication != null) {
+            throw new IllegalStateException("Stop replicating before recovering");
+        }
+        else {
+            this.clear();
+            this.lastLsn = 0;
+        }
+
+        if (!new File(journalFile).exists()) {
+            return 0;
+        }
+
+        int replayed = 0;
+        JournalReader reader = new JournalReader(journalFile);
+        try {
+            JournalRecord record = reader.next();
+            while (record != null) {
+                if (this.apply(record)) {
+                    replayed++;
+                }
+                record = reader.next();
+            }
+        }
+        finally {
+            reader.close();
+        }
+        return replayed;
+    }
+
+    /**
+     * Make a journalled change again, if the store does not already hold
+     * it, and carry on from its LSN
+     *
+     * @param record        record of the change
+     * @return              false if the change was already held
+     * @throws IOException  if the record does not follow on from the last
+     *                      change held, or cannot be made
+     */
+    boolean apply(JournalRecord record) throws IOException {
+        if (record.getLsn() <= this.lastLsn) {
+            return false;
+        }
+        if (record.getLsn() != this.lastLsn + 1) {
+            throw new IOException("Record " + record.getLsn() +
+                                  " does not carry on from " + this.lastLsn);
+        }
+        this.replay(record);
+        this.lastLsn = record.getLsn();
+        return true;
+    }
+
+    /**
+     * @return  LSN of the last change made to or loaded into the store
+     */
+    long getLastLsn() {
+        return this.lastLsn;
+    }
+
+    /**
+     * Start passing every change, with its LSN, to a replication log
+     *
+     * @param log   log starting after the store's last LSN
+     * @throws IllegalStateException if the store is already replicating
+     */
+    void startReplication(ReplicationLog log) {
+        if (this.replication != null) {
+            throw new IllegalStateException("Already replicating");
+        }
+        this.replication = log;
+    }
+
+    /**
+     * Stop passing changes to the replication log
+     */
+    void stopReplication() {
+        this.replication = null;
+    }
+
+    /*
+     * Loads replace the store without a record of the change, so they can
+     * be neither journalled nor replicated
+     */
+    private void checkLoadable() {
+        if (this.journal != null) {
+            throw new IllegalStateException("Close the journal before loading");
+        }
+        if (this.replication != null) {
+            throw new IllegalStateException("Stop replicating before loading");
+        }
+    }
+
+    /*
+     * Make a journalled change again
+     */
+    private void replay(JournalRecord record) throws IOException {
+        try {
+            switch (record.getType()) {
+                case ADD:
+                    this.addBeanBags(record.getNum(), record.getManufacturer(),
+                                     record.getName(), record.getId(),
+                                     record.getYear(), record.getMonth(),
+                                     record.getInformation());
+                    break;
+                case SET_PRICE:
+                    this.setBeanBagPrice(record.getId(), record.getNum());
+                    break;
+                case SELL:
+                    this.sellBeanBags(record.getNum(), record.getId());
+                    break;
+                case RESERVE:
+                    BeanBag bag = this.checkReservation(record.getNum(),
+                        BeanBagID.parse(record.getId()));
+                    if (this.reservationIndex.get(record.getReservationNumber()) != null) {
+                        throw new IOException("Journal reuses a reservation number");
+                    }
+                    bag.reserve(record.getNum(), record.getReservationNumber());
+                    break;
+                case UNRESERVE:
+                    this.unreserveBeanBags(record.getReservationNumber());
+                    break;
+                case SELL_RESERVATION:
+                    this.sellBeanBags(record.getReservationNumber());
+                    break;
+                case REPLACE:
+                    this.replace(record.getId(), record.getReplacementId());
+                    break;
+                case RESET:
+                    this.resetSaleAndCostTracking();
+                    break;
+                case EMPTY:
+                    this.empty();
+                    break;
+            }
+        }
+        catch (IOException err) {
+            throw err;
+        }
+        catch (Exception err) {
+            throw new IOException("Journal record " + record.getLsn() +
+                                  " does not apply to the store", err);
+        }
+    }
+
+    /*
+     * Give a change the next LSN, appending it to the journal if one is
+     * open, and pass it on to the replication log. LSNs are counted even
+     * with neither, so snapshots always say which changes they hold.
+     * Called once a change has been checked but before it is made, so if
+     * the journal cannot be written the store is left unchanged.
+     */
+    private void log(JournalRecord record) {
+        if (this.journal != null) {
+            try {
+                this.lastLsn = this.journal.log(record);
+            }
+            catch (IOException err) {
+                throw new UncheckedIOException(err);
+            }
+        }
+        else {
+            record.setLsn(++this.lastLsn);
+        }
+
+        if (this.replication != null) {
+            this.replication.append(record);
         }
     }
 
@@ -459,7 +1789,7 @@ public class Store implements BeanBagStore, Serializable
      * @return      number of bean bags sold by the store
      */
     public int getNumberOfDifferentBeanBagsInStock() { 
-        // Return the number of objects in ObjectArrayList, giving the number
+        // Return the number of bags in the list, giving the number
         // of different Bean Bags in stock
         return this.beanBags.size();
     }
@@ -470,15 +1800,10 @@ public class Store implements BeanBagStore, Serializable
      * @return      number of bean bags sold by the store
      */
     public int getNumberOfSoldBeanBags() { 
-        int totalSold = 0;
-
-        // Iterate bean bags and sum sales count
-        for (int i=0; i < this.beanBags.size(); i++){
-            BeanBag bag = (BeanBag) this.beanBags.get(i);
-            totalSold = totalSold + bag.getSoldCount();
+        if (this.checkingTotals) {
+            this.verifyTotals();
         }
-        // Return the total number of BeanBags sold after iteration
-        return totalSold;
+        return this.totalSoldCount;
     }
 
     /**
@@ -492,9 +1817,21 @@ public class Store implements BeanBagStore, Serializable
      *                           hexadecimal number
      */
     public int getNumberOfSoldBeanBags(String id) throws
+    BeanBagIDNotRecognisedException, IllegalIDException { 
+        return this.getNumberOfSoldBeanBags(BeanBagID.parse(id));
+    }
+
+    /**
+     * Count total number of sold bean bags for a numeric model ID.
+     *
+     * @param id    numeric ID of bean bags
+     * @return      number bean bags sold by the store with matching ID
+     * @see #getNumberOfSoldBeanBags(String)
+     */
+    public int getNumberOfSoldBeanBags(long id) throws
     BeanBagIDNotRecognisedException, IllegalIDException { 
         // Ensure ID legal
-        if (!validateHex(id)) {
+        if (!BeanBagID.isValid(id)) {
             throw new IllegalIDException();
         }
         BeanBag bag = this.findBeanBag(id);
@@ -512,15 +1849,10 @@ public class Store implements BeanBagStore, Serializable
      * @return      total cost of bean bags sold (in pence)
      */
     public int getTotalPriceOfSoldBeanBags() { 
-        int totalPrice = 0;
-        
-        // Iterate bean bags and sum sales value
-        for (int i=0; i < this.beanBags.size(); i++){
-            BeanBag bag = (BeanBag) this.beanBags.get(i);
-            totalPrice += bag.getSoldValue();
+        if (this.checkingTotals) {
+            this.verifyTotals();
         }
-        // Return the total price of BeanBags sold after iteration
-        return totalPrice;
+        return this.totalSoldValue;
     }
 
     /**
@@ -534,9 +1866,21 @@ public class Store implements BeanBagStore, Serializable
      *      If the ID is not a positive eight character hexadecimal number
      */
     public int getTotalPriceOfSoldBeanBags(String id)
+    throws BeanBagIDNotRecognisedException, IllegalIDException {
+        return this.getTotalPriceOfSoldBeanBags(BeanBagID.parse(id));
+    }
+
+    /**
+     * Count total income generated by a numeric bean bag model ID.
+     *
+     * @param id        numeric ID of bean bags
+     * @return          total cost of bean bag model sales (in pence)
+     * @see #getTotalPriceOfSoldBeanBags(String)
+     */
+    public int getTotalPriceOfSoldBeanBags(long id)
     throws BeanBagIDNotRecognisedException, IllegalIDException {
         // Validate that the ID provided is valid
-        if (!this.validateHex(id)) {
+        if (!BeanBagID.isValid(id)) {
             throw new IllegalIDException();
         }
         BeanBag existingBag = this.findBeanBag(id);
@@ -554,15 +1898,10 @@ public class Store implements BeanBagStore, Serializable
      * @return      total cost of reserved bean bags sold (in pence)
      */
     public int getTotalPriceOfReservedBeanBags() {
-        int totalValue = 0;
-
-        // Iterate bean bags and sum reservation values
-        for (int i=0; i < this.beanBags.size(); i++){
-            BeanBag bag = (BeanBag) this.beanBags.get(i);
-            totalValue += bag.getReservationValue();
+        if (this.checkingTotals) {
+            this.verifyTotals();
         }
-
-        return totalValue;
+        return this.totalReservationValue;
     }
 
     /**
@@ -578,7 +1917,20 @@ public class Store implements BeanBagStore, Serializable
     public String getBeanBagDetails(String id)
     throws BeanBagIDNotRecognisedException, IllegalIDException {
 
-        if (!validateHex(id)) {
+        return this.getBeanBagDetails(BeanBagID.parse(id));
+    }
+
+    /**
+     * Retrieve description of a bean bag model by numeric ID.
+     *
+     * @param id    numeric ID of bean bag
+     * @return      any textual details relating to the bean bag
+     * @see #getBeanBagDetails(String)
+     */
+    public String getBeanBagDetails(long id)
+    throws BeanBagIDNotRecognisedException, IllegalIDException {
+
+        if (!BeanBagID.isValid(id)) {
             throw new IllegalIDException();
         }
 
@@ -595,7 +1947,25 @@ public class Store implements BeanBagStore, Serializable
      * Empty all contents from the store.
      */
     public void empty() {
-        this.beanBags = new ObjectArrayList();
+        this.log(JournalRecord.empty());
+        this.clear();
+    }
+
+    /*
+     * Empty the store without recording the change
+     */
+    private void clear() {
+        // Detach the old bags so they no longer update this store's indexes
+        for (int i=0; i < this.beanBags.size(); i++){
+            BeanBag bag = this.beanBags.get(i);
+            bag.setOwner(null);
+        }
+
+        this.beanBags = new TypedArrayList<BeanBag>();
+        this.index = new LongObjectHashMap<BeanBag>();
+        this.reservationIndex.clear();
+        this.dirty.clear();
+        this.dirtyCleared = true;
     }
 
     /**
@@ -604,10 +1974,11 @@ public class Store implements BeanBagStore, Serializable
      * Note that stock levels and reservations are unaffected.
      */
     public void resetSaleAndCostTracking() {
+        this.log(JournalRecord.reset());
         for (int i=0; i < this.beanBags.size(); i++){
-            BeanBag beanbag = (BeanBag) this.beanBags.get(i);
+            BeanBag beanbag = this.beanBags.get(i);
             beanbag.reset();
-        }        
+        }
     }
 
     /**
@@ -624,22 +1995,28 @@ public class Store implements BeanBagStore, Serializable
     public void replace(String oldId, String replacementId) 
     throws BeanBagIDNotRecognisedException, IllegalIDException {   
 
-        if (!validateHex(oldId) || !validateHex(replacementId)) {
+        long oldKey = BeanBagID.parse(oldId);
+        long replacementKey = BeanBagID.parse(replacementId);
+
+        if (!BeanBagID.isValid(oldKey) || !BeanBagID.isValid(replacementKey)) {
             throw new IllegalIDException();
         }
 
-        BeanBag oldBag = this.findBeanBag(oldId);
+        BeanBag oldBag = this.findBeanBag(oldKey);
         if (oldBag == null) {
             throw new BeanBagIDNotRecognisedException();
         }
 
-        BeanBag newBag = this.findBeanBag(replacementId);
+        BeanBag newBag = this.findBeanBag(replacementKey);
         // New ID already in use
         if (newBag != null) {
             throw new IllegalIDException();
         }
 
-        // Update ID
+        // Update ID and move the index entry across
+        this.log(JournalRecord.replace(oldId, replacementId));
         oldBag.setId(replacementId);
+        this.index.remove(oldKey);
+        this.index.put(replacementKey, oldBag);
     }
 }
@@ -0,0 +1,54 @@
+package beanbags;
+
+
+/**
+ * Choice of BeanBagStore implementation by how it will be used.
+ *
+ * @author Max Beech, Louis Haddrell
+ */
+public enum StoreMode
+{
+    /**
+     * Plain {@link Store} with no locking at all, for use by one thread
+     */
+    SINGLE_THREADED {
+        public BeanBagStore createStore() {
+            return new Store();
+        }
+    },
+
+    /**
+     * {@link ConcurrentStore} guarded by striped locks, for use by many
+     * threads at once
+     */
+    STRIPED {
+        public BeanBagStore createStore() {
+            return new ConcurrentStore();
+        }
+    },
+
+    /**
+     * {@link PipelinedStore} applying every call on one writer thread, for
+     * use by many threads at once
+     */
+    PIPELINED {
+        public BeanBagStore createStore() {
+            return new PipelinedStore();
+        }
+    },
+
+    /**
+     * {@link ShardedStore} splitting bags by ID across a writer thread per
+     * core, for use by many threads at once
+     */
+    SHARDED {
+        public BeanBagStore createStore() {
+            return new ShardedStore();
+        }
+    };
+
+    /**
+     * @return      new, empty store for this mode
+     */
+    public abstract BeanBagStore createStore();
+}
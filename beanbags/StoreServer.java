@@ -0,0 +1,438 @@
+package beanbags;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Embedded HTTP front end exposing the operations of a
+ * {@link BeanBagStore}, built on the JDK's com.sun.net.httpserver.
+ * <p>
+ * Parameters are taken from the query string or a form-encoded body, and
+ * results come back as JSON. Operations that return nothing answer 204.
+ * <pre>
+ *   GET    /store                    totals for the whole store
+ *   DELETE /store                    empty()
+ *   POST   /store/reset              resetSaleAndCostTracking()
+ *   GET    /bags/{id}                details, stock and sales of one bag
+ *   POST   /bags/{id}                addBeanBags: num, manufacturer, name,
+ *                                    year, month and optional information
+ *   PUT    /bags/{id}/price          setBeanBagPrice: price
+ *   POST   /bags/{id}/sell           sellBeanBags: num
+ *   POST   /bags/{id}/reserve        reserveBeanBags: num, answering the
+ *                                    reservation number
+ *   POST   /bags/{id}/replace        replace: with
+ *   DELETE /reservations/{number}    unreserveBeanBags
+ *   POST   /reservations/{number}/sell   sellBeanBags by reservation
+ * </pre>
+ * The store's exceptions are mapped to status codes: bad arguments to
+ * 400, unknown IDs and reservation numbers to 404, and requests the
+ * store's current state cannot satisfy, such as too little stock or no
+ * price set, to 409. The body of an error names the exception.
+ * <p>
+ * Each request runs on its own virtual thread where the JDK has them
+ * (Java 21 on), so slow clients cost no platform threads; older JDKs
+ * fall back to a fixed pool. A {@link ConcurrentStore},
+ * {@link PipelinedStore} or {@link ShardedStore} is called from every
+ * request thread at once; any other store is only used by one request at
+ * a time.
+ *
+ * @author Max Beech, Louis Haddrell
+ */
+public class StoreServer
+{
+    private static final int BACKLOG = 1024;
+    private static final int FALLBACK_THREADS =
+        Runtime.getRuntime().availableProcessors() * 8;
+
+    private final BeanBagStore store;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final boolean virtualThreads;
+    private final ReentrantLock lock;
+
+    /*
+     * Answer to a request that does not reach the store
+     */
+    private static class HttpError extends Exception
+    {
+        private static final long serialVersionUID = 8598145817728811250L;
+
+        final int status;
+
+        HttpError(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    /**
+     * Create a server for a store, listening on every interface
+     *
+     * @param store         store to serve
+     * @param port          port to listen on, or 0 for any free port
+     * @throws IOException  if the port cannot be bound
+     */
+    public StoreServer(BeanBagStore store, int port) throws IOException {
+        this(store, new InetSocketAddress(port));
+    }
+
+    /**
+     * Create a server for a store
+     *
+     * @param store         store to serve
+     * @param address       address to listen on
+     * @throws IOException  if the address cannot be bound
+     */
+    public StoreServer(BeanBagStore store, InetSocketAddress address)
+    throws IOException {
+        this.store = store;
+        this.lock = store instanceof ConcurrentStore || store instanceof PipelinedStore ||
+                    store instanceof ShardedStore ? null : new ReentrantLock();
+        this.server = HttpServer.create(address, BACKLOG);
+
+        ExecutorService virtual = virtualThreadExecutor();
+        this.virtualThreads = virtual != null;
+        this.executor = virtual != null ? virtual : Executors.newFixedThreadPool(
+            FALLBACK_THREADS, task -> {
+                Thread thread = new Thread(task, "beanbags-http");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+        this.server.setExecutor(this.executor);
+        this.server.createContext("/", this::handle);
+    }
+
+    /*
+     * Executor starting a virtual thread per task, found by reflection so
+     * the class still builds and runs on JDKs without them, or null
+     */
+    private static ExecutorService virtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        }
+        catch (ReflectiveOperationException | UnsupportedOperationException err) {
+            return null;
+        }
+    }
+
+    /**
+     * Start answering requests
+     */
+    public void start() {
+        this.server.start();
+    }
+
+    /**
+     * Stop accepting requests, wait up to the given time for those under
+     * way, and release the threads
+     *
+     * @param delaySeconds  longest to wait for requests under way
+     */
+    public void stop(int delaySeconds) {
+        this.server.stop(delaySeconds);
+        this.executor.shutdown();
+    }
+
+    /**
+     * @return      port the server is listening on
+     */
+    public int getPort() {
+        return this.server.getAddress().getPort();
+    }
+
+    /**
+     * @return      true if requests run on virtual threads
+     */
+    public boolean usesVirtualThreads() {
+        return this.virtualThreads;
+    }
+
+    /*
+     * Answer one request
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        int status;
+        String body;
+        try {
+            String method = exchange.getRequestMethod();
+            String[] path = exchange.getRequestURI().getPath().replaceAll("^/+|/+$", "")
+                                    .split("/+");
+            HashMap<String, String> params = readParams(exchange);
+
+            if (this.lock == null) {
+                body = this.route(method, path, params);
+            }
+            else {
+                this.lock.lock();
+                try {
+                    body = this.route(method, path, params);
+                }
+                finally {
+                    this.lock.unlock();
+                }
+            }
+            status = body == null ? 204 : 200;
+        }
+        catch (HttpError err) {
+            status = err.status;
+            body = error(err.getMessage());
+        }
+        catch (Exception err) {
+            status = statusFor(err);
+            body = error(err.getClass().getSimpleName());
+        }
+
+        try {
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            if (body == null) {
+                exchange.sendResponseHeaders(status, -1);
+            }
+            else {
+                byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(status, bytes.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(bytes);
+                out.close();
+            }
+        }
+        finally {
+            exchange.close();
+        }
+    }
+
+    /*
+     * Carry out the operation a request names, returning the JSON answer,
+     * or null if there is nothing to answer
+     */
+    private String route(String method, String[] path,
+                         HashMap<String, String> params)
+    throws Exception {
+        if (path.length >= 1 && path[0].equals("store")) {
+            if (path.length == 1 && method.equals("GET")) {
+                return this.totals();
+            }
+            if (path.length == 1 && method.equals("DELETE")) {
+                this.store.empty();
+                return null;
+            }
+            if (path.length == 2 && path[1].equals("reset") && method.equals("POST")) {
+                this.store.resetSaleAndCostTracking();
+                return null;
+            }
+        }
+        else if (path.length >= 2 && path[0].equals("bags")) {
+            String id = path[1];
+            if (path.length == 2 && method.equals("GET")) {
+                return this.bag(id);
+            }
+            if (path.length == 2 && method.equals("POST")) {
+                this.store.addBeanBags(number(params, "num"), text(params, "manufacturer"),
+                                       text(params, "name"), id,
+                                       (short) number(params, "year",
+                                                      Short.MIN_VALUE,
+                                                      Short.MAX_VALUE),
+                                       (byte) number(params, "month",
+                                                     Byte.MIN_VALUE,
+                                                     Byte.MAX_VALUE),
+                                       params.containsKey("information")
+                                           ? params.get("information") : "");
+                return null;
+            }
+            String action = path.length == 3 ? path[2] : "";
+            if (action.equals("price") && method.equals("PUT")) {
+                this.store.setBeanBagPrice(id, number(params, "price"));
+                return null;
+            }
+            if (action.equals("sell") && method.equals("POST")) {
+                this.store.sellBeanBags(number(params, "num"), id);
+                return null;
+            }
+            if (action.equals("reserve") && method.equals("POST")) {
+                int reservation = this.store.reserveBeanBags(number(params, "num"), id);
+                return "{\"reservation\":" + reservation + "}";
+            }
+            if (action.equals("replace") && method.equals("POST")) {
+                this.store.replace(id, text(params, "with"));
+                return null;
+            }
+        }
+        else if (path.length >= 2 && path[0].equals("reservations")) {
+            int reservation = parseNumber(path[1], "reservation number");
+            if (path.length == 2 && method.equals("DELETE")) {
+                this.store.unreserveBeanBags(reservation);
+                return null;
+            }
+            if (path.length == 3 && path[2].equals("sell") && method.equals("POST")) {
+                this.store.sellBeanBags(reservation);
+                return null;
+            }
+        }
+        throw new HttpError(404, "No such operation");
+    }
+
+    /*
+     * Totals for the whole store
+     */
+    private String totals() {
+        return "{\"models\":" + this.store.getNumberOfDifferentBeanBagsInStock() +
+               ",\"inStock\":" + this.store.beanBagsInStock() +
+               ",\"reserved\":" + this.store.reservedBeanBagsInStock() +
+               ",\"sold\":" + this.store.getNumberOfSoldBeanBags() +
+               ",\"soldValue\":" + this.store.getTotalPriceOfSoldBeanBags() +
+               ",\"reservedValue\":" + this.store.getTotalPriceOfReservedBeanBags() + "}";
+    }
+
+    /*
+     * Details, stock and sales of one bag
+     */
+    private String bag(String id) throws Exception {
+        return "{\"id\":" + quote(id) +
+               ",\"details\":" + quote(this.store.getBeanBagDetails(id)) +
+               ",\"inStock\":" + this.store.beanBagsInStock(id) +
+               ",\"sold\":" + this.store.getNumberOfSoldBeanBags(id) +
+               ",\"soldValue\":" + this.store.getTotalPriceOfSoldBeanBags(id) + "}";
+    }
+
+    /*
+     * Status code for an exception thrown by the store
+     */
+    private static int statusFor(Exception err) {
+        if (err instanceof BeanBagIDNotRecognisedException ||
+            err instanceof ReservationNumberNotRecognisedException) {
+            return 404;
+        }
+        if (err instanceof IllegalIDException ||
+            err instanceof InvalidMonthException ||
+            err instanceof InvalidPriceException ||
+            err instanceof IllegalNumberOfBeanBagsAddedException ||
+            err instanceof IllegalNumberOfBeanBagsSoldException ||
+            err instanceof IllegalNumberOfBeanBagsReservedException) {
+            return 400;
+        }
+        if (err instanceof InsufficientStockException ||
+            err instanceof BeanBagNotInStockException ||
+            err instanceof PriceNotSetException ||
+            err instanceof BeanBagMismatchException) {
+            return 409;
+        }
+        return 500;
+    }
+
+    /*
+     * Query string and form-encoded body parameters of a request
+     */
+    private static HashMap<String, String> readParams(HttpExchange exchange)
+    throws IOException, HttpError {
+        HashMap<String, String> params = new HashMap<String, String>();
+        addParams(params, exchange.getRequestURI().getRawQuery());
+
+        InputStream in = exchange.getRequestBody();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] chunk = new byte[1024];
+        int count = in.read(chunk);
+        while (count >= 0) {
+            body.write(chunk, 0, count);
+            count = in.read(chunk);
+        }
+        addParams(params, body.toString(StandardCharsets.UTF_8.name()));
+        return params;
+    }
+
+    private static void addParams(HashMap<String, String> params, String encoded)
+    throws HttpError {
+        if (encoded == null || encoded.isEmpty()) {
+            return;
+        }
+        for (String pair : encoded.split("&")) {
+            int split = pair.indexOf('=');
+            String key = split < 0 ? pair : pair.substring(0, split);
+            String value = split < 0 ? "" : pair.substring(split + 1);
+            try {
+                params.put(URLDecoder.decode(key, StandardCharsets.UTF_8),
+                           URLDecoder.decode(value, StandardCharsets.UTF_8));
+            }
+            catch (IllegalArgumentException err) {
+                // A % not followed by two hex digits
+                throw new HttpError(400, "Bad parameter encoding");
+            }
+        }
+    }
+
+    private static String text(HashMap<String, String> params, String name)
+    throws HttpError {
+        String value = params.get(name);
+        if (value == null) {
+            throw new HttpError(400, "Missing parameter " + name);
+        }
+        return value;
+    }
+
+    private static int number(HashMap<String, String> params, String name)
+    throws HttpError {
+        return parseNumber(text(params, name), name);
+    }
+
+    /*
+     * Number that must fit a narrower type, so it is not cut down to one
+     * that means something else
+     */
+    private static int number(HashMap<String, String> params, String name,
+                              int min, int max)
+    throws HttpError {
+        int value = number(params, name);
+        if (value < min || value > max) {
+            throw new HttpError(400, "Bad " + name);
+        }
+        return value;
+    }
+
+    private static int parseNumber(String value, String name) throws HttpError {
+        try {
+            return Integer.parseInt(value);
+        }
+        catch (NumberFormatException err) {
+            throw new HttpError(400, "Bad " + name);
+        }
+    }
+
+    private static String error(String message) {
+        return "{\"error\":" + quote(message) + "}";
+    }
+
+    /*
+     * JSON string literal
+     */
+    private static String quote(String value) {
+        if (value == null) {
+            return "null";
+        }
+        StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+        for (int i=0; i < value.length(); i++){
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            }
+            else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            }
+            else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
@@ -0,0 +1,206 @@
+package beanbags;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Type-safe version of {@link ObjectArrayList}: stores items of one type in
+ * an array list, so callers never need to cast what they get back. As with
+ * ObjectArrayList it should not be used to store null references.
+ * <p>
+ * Besides adding and removing in order, the list can remove an element by
+ * moving the last element into its place, which is constant time when the
+ * order of the elements does not matter.
+ *
+ * @author Max Beech, Louis Haddrell
+ * @version 1.0
+ */
+public class TypedArrayList<E> implements Serializable
+{
+    private static final long serialVersionUID = -4516084644364870353L;
+
+    private Object[] array;
+    private int elementsUsed;
+
+    /**
+     * Creates initial instance of a TypedArrayList with no contents
+     */
+    public TypedArrayList() {
+        this(10);
+    }
+
+    /**
+     * Creates an empty TypedArrayList able to hold the given number of
+     * elements before it needs to grow
+     *
+     * @param capacity  number of elements expected
+     */
+    public TypedArrayList(int capacity) {
+        this.array = new Object[Math.max(capacity, 1)];
+        this.elementsUsed = 0;
+    }
+
+    /**
+     * Method adds the argument to the end of the list
+     *
+     * @param e     element to be added
+     */
+    public void add(E e) {
+        if (this.elementsUsed == this.array.length)
+            this.grow(this.elementsUsed + 1);
+        this.array[this.elementsUsed] = e;
+        this.elementsUsed++;
+    }
+
+    /**
+     * Method adds every element of another list to the end of this one
+     *
+     * @param other     list of elements to be added
+     */
+    public void addAll(TypedArrayList<? extends E> other) {
+        this.ensureCapacity(this.elementsUsed + other.elementsUsed);
+        System.arraycopy(other.array, 0, this.array, this.elementsUsed,
+                         other.elementsUsed);
+        this.elementsUsed += other.elementsUsed;
+    }
+
+    /**
+     * Method grows the internal array so that it can hold at least the
+     * given number of elements without resizing again
+     *
+     * @param capacity  number of elements the list should be able to hold
+     */
+    public void ensureCapacity(int capacity) {
+        if (capacity > this.array.length)
+            this.grow(capacity);
+    }
+
+    /**
+     * Method shrinks the internal array to the number of elements stored
+     */
+    public void trimToSize() {
+        if (this.elementsUsed < this.array.length)
+            this.array = Arrays.copyOf(this.array, Math.max(this.elementsUsed, 1));
+    }
+
+    /*
+     * Method at least doubles the capacity of the array
+     */
+    private void grow(int capacity) {
+        this.array = Arrays.copyOf(this.array,
+                                   Math.max(capacity, this.array.length * 2));
+    }
+
+    /**
+     * Method returns the element of the list at the index provided, will
+     * return <code>null</code> if the index is invalid
+     *
+     * @param index index of element in list to be returned
+     * @return element at corresponding index
+     */
+    @SuppressWarnings("unchecked")
+    public E get(int index) {
+        if (this.isInvalid(index))
+            return null;
+        return (E) this.array[index];
+    }
+
+    /*
+     * Checks validity of index given current range, returns true if not valid
+     */
+    private boolean isInvalid(int index) {
+        return ((index < 0) || (index >= this.elementsUsed));
+    }
+
+    /**
+     * Method removes the argument if it is contained in the list, keeping
+     * the order of the remaining elements
+     *
+     * @param o element to be removed
+     * @return true if it was removed, false if it is not in the list
+     */
+    public boolean remove(Object o) {
+        for (int i = 0; i < this.elementsUsed; i++) {
+            if (this.array[i].equals(o)) {
+                this.contract(i);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Method copies every element beyond index down one space, effectively
+     * removing the index element
+     */
+    private void contract(int index) {
+        System.arraycopy(this.array,index+1,this.array,index,this.elementsUsed-(index+1));
+        this.elementsUsed--;
+        this.array[this.elementsUsed] = null;
+    }
+
+    /**
+     * Method removes the element of the list at the index provided, keeping
+     * the order of the remaining elements. Will return <code>null</code> if
+     * the index is invalid
+     *
+     * @param index index of element in list to be removed
+     * @return element removed
+     */
+    public E remove(int index) {
+        E value = this.get(index);
+        if (value != null)
+            this.contract(index);
+        return value;
+    }
+
+    /**
+     * Method removes the element of the list at the index provided by moving
+     * the last element into its place, so it does not keep the order of the
+     * list. Will return <code>null</code> if the index is invalid
+     *
+     * @param index index of element in list to be removed
+     * @return element removed
+     */
+    public E removeSwap(int index) {
+        E value = this.get(index);
+        if (value != null) {
+            this.elementsUsed--;
+            this.array[index] = this.array[this.elementsUsed];
+            this.array[this.elementsUsed] = null;
+        }
+        return value;
+    }
+
+    /**
+     * Method replaces the element of the list at the index provided
+     *
+     * @param e element to be placed in the list
+     * @param index index of element in list to be replaced
+     * @return true if successfully replaced, otherwise false if index is
+     *         out of the range of stored data
+     */
+    public boolean replace(E e, int index) {
+        if (this.isInvalid(index))
+            return false;
+        this.array[index] = e;
+        return true;
+    }
+
+    /**
+     * Method removes every element from the list, keeping its capacity
+     */
+    public void clear() {
+        Arrays.fill(this.array, 0, this.elementsUsed, null);
+        this.elementsUsed = 0;
+    }
+
+    /**
+     * Method returns the total number of elements in the list
+     *
+     * @return number of elements in the list
+     */
+    public int size(){
+        return this.elementsUsed;
+    }
+}